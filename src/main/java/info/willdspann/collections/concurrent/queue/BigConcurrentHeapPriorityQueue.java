@@ -0,0 +1,799 @@
+package info.willdspann.collections.concurrent.queue;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import info.willdspann.collections.BigCollection;
+import info.willdspann.collections.BigList;
+import info.willdspann.collections.BigQueue;
+import info.willdspann.collections.concurrent.queue.ConcurrentHeapPriorityQueue.LockPolicy;
+import info.willdspann.collections.list.UnrolledLinkedList;
+import info.willdspann.collections.utils.HeapBitReversedLongCounter;
+
+/**
+ * A thread-safe {@link BigQueue}, whose items are kept in a concurrent heap
+ * indexed by {@code long} positions, so that it may hold far more than
+ * {@code 2^31 - 1} items. The heap uses the same node-level locking as
+ * {@link ConcurrentHeapPriorityQueue} (per Hunt, et al.), w/ leaf
+ * positions reserved from a {@link HeapBitReversedLongCounter}, which is
+ * guarded by a global lock, held until the reserved leaf node has been
+ * locked.
+ * <p>
+ * The heap's nodes are stored a row at a time, as in
+ * {@code ConcurrentHeapPriorityQueue}, but each row beyond the first 24
+ * is split into chunks of {@code 2^24} nodes, since no Java array may have
+ * {@code 2^31} or more elements. So the heap may hold up to
+ * {@code 2^55 - 1} items (which is more than any JVM's heap could store
+ * the nodes of), and grows a row at a time, w/o copying or blocking access
+ * to existing nodes.
+ * <p>
+ * The queue's {@link #toList()} and {@link #iterator()} methods traverse a
+ * snapshot of its items, in no particular order, which is taken into an
+ * {@link UnrolledLinkedList}, one node at a time.
+ *
+ * @author Will D. Spann
+ * @version 1.0
+ *
+ * @see ConcurrentHeapPriorityQueue
+ * @see HeapBitReversedLongCounter
+ */
+@ThreadSafe
+public class BigConcurrentHeapPriorityQueue<E> implements BigQueue<E> {
+	private static final int DEFAULT_INIT_CAP = 16;
+	/** Default log2 of the number of nodes per chunk of a large row. */
+	private static final int DEFAULT_CHUNK_BITS = 24;
+	/** Number of busy-wait spins before a waiting thread starts yielding. */
+	private static final int MAX_SPINS = 64;
+	/** Tag values; any other tag is the ID of the inserting thread. */
+	private static final long EMPTY = 0L, AVAILABLE = -1L;
+	/** propagateStep() results, besides the item's new position. */
+	private static final long STEP_DONE = -1L, STEP_WAIT = -2L;
+
+	/** log2 of the number of nodes per chunk of a large row. */
+	private final int chunkBits;
+	/** Last heap row, whose chunks still fit in a single array. */
+	private final int maxRow;
+	/** Maximum number of items, which fill rows 0 to 'maxRow'. */
+	private final long maxCapacity;
+	@GuardedBy("this.countLock")
+	private final HeapBitReversedLongCounter count;
+	private final ReentrantLock countLock;
+	/** Number of heap rows in the first segment, which is one chunk. */
+	private final int baseRows;
+	/** The chunks of the base rows, and then of each row after them. */
+	private final AtomicReferenceArray<Chunk[]> segments;
+	/** Number of positions in all published segments. */
+	private volatile long capacity;
+	private final ReentrantLock growLock;
+	private final SlotLocks slotLocks;
+	private final Comparator<? super E> comp;
+
+
+	public BigConcurrentHeapPriorityQueue() {
+		this(DEFAULT_INIT_CAP, null, LockPolicy.SPIN_THEN_PARK);
+	}
+
+	/**
+	 * @param comparator the {@code Comparator} used to order this queue.
+	 *
+	 * @throws NullPointerException if {@code comparator} is {@code null}.
+	 */
+	public BigConcurrentHeapPriorityQueue(Comparator<? super E> comparator) {
+		this(DEFAULT_INIT_CAP, requireComparator(comparator),
+				LockPolicy.SPIN_THEN_PARK);
+	}
+
+	/**
+	 * @param initialCapacity the minimum initial capacity. Must be greater
+	 *    than 0.
+	 * @param comparator the {@code Comparator} used to order this queue, or
+	 *    {@code null} to use its items' natural ordering.
+	 * @param policy how node locks are granted to waiting threads.
+	 *
+	 * @throws IllegalArgumentException if {@code initialCapacity} is less
+	 *    than 1.
+	 * @throws NullPointerException if {@code policy} is {@code null}.
+	 */
+	public BigConcurrentHeapPriorityQueue(long initialCapacity,
+			Comparator<? super E> comparator, LockPolicy policy)
+	{
+		this(initialCapacity, comparator, policy, DEFAULT_CHUNK_BITS);
+	}
+
+	/**
+	 * Creates a queue whose large rows are split into chunks of
+	 * {@code 2^chunkBits} nodes. (Small chunks let tests exercise chunked
+	 * rows w/o billions of items.)
+	 */
+	BigConcurrentHeapPriorityQueue(long initialCapacity,
+			Comparator<? super E> comparator, LockPolicy policy,
+			int chunkBits)
+	{
+		assert chunkBits > 0 && chunkBits <= DEFAULT_CHUNK_BITS;
+		if (initialCapacity < 1L) {
+			throw new IllegalArgumentException("initialCapacity must be "
+					+ ">= 1");
+		}
+		if (policy == null)
+			throw new NullPointerException();
+
+		this.chunkBits = chunkBits;
+		this.maxRow = chunkBits + 30;
+		this.maxCapacity = (1L << (this.maxRow + 1)) - 1;
+		this.count = HeapBitReversedLongCounter.newInstance();
+		this.countLock = new ReentrantLock();
+		// Smallest number of whole rows holding 'initialCapacity' nodes, up
+		// to a single chunk's worth
+		this.baseRows = Math.min(Long.SIZE - Long.numberOfLeadingZeros(
+				Math.min(initialCapacity, this.maxCapacity)), chunkBits);
+		// One segment for the base rows, plus one for each row after them
+		this.segments = new AtomicReferenceArray<Chunk[]>(
+				this.maxRow - this.baseRows + 2);
+		this.segments.set(0, new Chunk[] {
+				new Chunk((1 << this.baseRows) - 1) });
+		this.capacity = (1L << this.baseRows) - 1;
+		this.growLock = new ReentrantLock();
+		this.slotLocks = new SlotLocks(policy);
+		this.comp = comparator;
+		ensureCapacity(Math.min(initialCapacity, this.maxCapacity));
+	}
+
+	private static <T> Comparator<T> requireComparator(Comparator<T> comp) {
+		if (comp == null)
+			throw new NullPointerException();
+		return comp;
+	}
+
+
+	/**
+	 * Inserts the specified item into this queue.
+	 *
+	 * @return {@code true}
+	 *
+	 * @throws NullPointerException if {@code item} is {@code null}.
+	 * @throws ClassCastException if {@code item} can't be compared with the
+	 *    queue's items.
+	 * @throws IllegalStateException if the queue holds as many items as
+	 *    its heap can index.
+	 */
+	public boolean offer(E item) {
+		if (item == null)
+			throw new NullPointerException();
+		if (this.comp == null && !(item instanceof Comparable<?>))
+			throw new ClassCastException(); // 'item' is incomparable.
+
+		long tag = Thread.currentThread().getId();
+		long pos;
+		this.countLock.lock();
+		try {
+			if (this.count.getNonreversedCount() >= this.maxCapacity)
+				throw new IllegalStateException("Queue full");
+			// Reserve the next leaf insert pos., & lock its (EMPTY) node
+			pos = this.count.getAndIncrement();
+			ensureCapacity(pos + 1);
+			lock(pos);
+		} finally {
+			this.countLock.unlock();
+		}
+		try {
+			Chunk chunk = chunk(pos);
+			int i = index(pos);
+			chunk.data[i] = item;
+			chunk.tags[i] = tag;
+		} finally {
+			unlock(pos);
+		}
+		propagateInsert(pos, tag);
+		return true;
+	}
+
+	/**
+	 * Inserts the specified item into this queue.
+	 *
+	 * @return {@code true}
+	 *
+	 * @throws NullPointerException if {@code item} is {@code null}.
+	 * @throws ClassCastException if {@code item} can't be compared with the
+	 *    queue's items.
+	 * @throws IllegalStateException if the queue holds as many items as
+	 *    its heap can index.
+	 */
+	public boolean add(E item) {
+		return offer(item);
+	}
+
+	/**
+	 * Removes and returns the minimum item in this queue.
+	 * <p>
+	 * Impl. Notes: This method is based closely on Galen C. Hunt's
+	 * {@code concurrent_delete(heap_t)} pseudo-code, as in
+	 * {@code ConcurrentHeapPriorityQueue}.
+	 *
+	 * @return the minimum item, or {@code null} if the queue is empty.
+	 */
+	@SuppressWarnings("unchecked")
+	public E poll() {
+		/* Grab an item from the bottom of the heap to replace the to-be-deleted
+		 * top item. */
+		long bottomPos = reserveBottom();
+		if (bottomPos < 0L)
+			return null;
+		E bottomData = takeItem(bottomPos);
+		unlock(bottomPos);
+
+		// Stop if it was the only item in the heap (and thereby the root)
+		if (bottomPos == 0L)
+			return bottomData;
+
+		Chunk root = chunk(0L);
+		lock(0L);
+		// Stop if a concurrent delete has taken the root as its 'bottom',
+		// or if 'bottom' is the minimum after all. (While it was in
+		// transit, a concurrent delete may have taken the root, and a
+		// concurrent insert refilled it w/ a larger item.)
+		if (root.tags[0] == EMPTY
+				|| compareData(bottomData, (E) root.data[0]) <= 0)
+		{
+			unlock(0L);
+			return bottomData;
+		}
+		// Replace the top item with the item taken from the bottom
+		E rootData = (E) root.data[0];
+		root.data[0] = bottomData;
+		root.tags[0] = AVAILABLE;
+		heapify(0L);  // Note: Unlocks the root
+		return rootData;
+	}
+
+	/**
+	 * @throws NoSuchElementException if the queue is empty.
+	 */
+	public E remove() {
+		E item = poll();
+		if (item == null)
+			throw new NoSuchElementException();
+		return item;
+	}
+
+	@SuppressWarnings("unchecked")
+	public E peek() {
+		Chunk root = chunk(0L);
+		lock(0L);
+		try {
+			return (root.tags[0] != EMPTY) ? (E) root.data[0] : null;
+		} finally {
+			unlock(0L);
+		}
+	}
+
+	/**
+	 * @throws NoSuchElementException if the queue is empty.
+	 */
+	public E element() {
+		E item = peek();
+		if (item == null)
+			throw new NoSuchElementException();
+		return item;
+	}
+
+	/**
+	 * Removes a single instance of the specified item from this queue, if
+	 * it's present, in O(n) time.
+	 *
+	 * @return {@code true} if an item was removed.
+	 *
+	 * @throws NullPointerException if {@code o} is {@code null}.
+	 */
+	@SuppressWarnings("unchecked")
+	public boolean remove(Object o) {
+		// Stop if the item isn't in the heap, before disturbing the heap
+		if (indexOf(o) < 0L)
+			return false;
+
+		/* Grab an item from the bottom of the heap to replace the to-be-deleted
+		 * item. */
+		long bottomPos = reserveBottom();
+		if (bottomPos < 0L)
+			return false;
+		E bottomData = takeItem(bottomPos);
+		unlock(bottomPos);
+		if (bottomData.equals(o))
+			return true;
+
+		// Lock the item's node, wherever the item is now
+		long pos;
+		Chunk chunk;
+		int i;
+		for (int spins = 0; ; spins++) {
+			if ((pos = indexOf(o)) < 0L) {
+				// It's been removed by another thread, so put back 'bottom'
+				offer(bottomData);
+				return false;
+			}
+			chunk = chunk(pos);
+			i = index(pos);
+			lock(pos);
+			if (chunk.tags[i] == AVAILABLE && o.equals(chunk.data[i]))
+				break;
+			unlock(pos);
+			backOff(spins);
+		}
+
+		// Replace the node's item w/ 'bottom', & move it up or down
+		E nodeData = (E) chunk.data[i];
+		chunk.data[i] = bottomData;
+		if (compareData(bottomData, nodeData) < 0) {
+			long tag = Thread.currentThread().getId();
+			chunk.tags[i] = tag;
+			unlock(pos);
+			propagateInsert(pos, tag);
+		} else {
+			heapify(pos);  // Note: Unlocks 'pos'
+		}
+		return true;
+	}
+
+	/**
+	 * @throws NullPointerException if {@code c} is {@code null}.
+	 */
+	public boolean removeAll(BigCollection<?> c) {
+		if (c == null)
+			throw new NullPointerException();
+
+		boolean changed = false;
+		for (E item : toList()) {
+			if (c.contains(item))
+				changed |= remove(item);
+		}
+		return changed;
+	}
+
+	/**
+	 * @throws NullPointerException if {@code c} is {@code null}.
+	 */
+	public boolean retainAll(BigCollection<?> c) {
+		if (c == null)
+			throw new NullPointerException();
+
+		boolean changed = false;
+		for (E item : toList()) {
+			if (!c.contains(item))
+				changed |= remove(item);
+		}
+		return changed;
+	}
+
+	/**
+	 * Removes all of the items from this queue, by deleting them one at a
+	 * time. Items inserted concurrently with this call may or may not be
+	 * removed.
+	 */
+	public void clear() {
+		while (poll() != null)
+			;
+	}
+
+	/**
+	 * @throws NullPointerException if {@code o} is {@code null}.
+	 */
+	public boolean contains(Object o) {
+		return indexOf(o) >= 0L;
+	}
+
+	/**
+	 * @throws NullPointerException if {@code c} is {@code null}.
+	 */
+	public boolean containsAll(BigCollection<?> c) {
+		for (Object o : c) {
+			if (!contains(o))
+				return false;
+		}
+		return true;
+	}
+
+	public long size() {
+		this.countLock.lock();
+		try {
+			return this.count.getNonreversedCount();
+		} finally {
+			this.countLock.unlock();
+		}
+	}
+
+	public boolean isEmpty() {
+		return peek() == null;
+	}
+
+	/**
+	 * Returns a snapshot of this queue's items, in no particular order, in
+	 * a new {@link UnrolledLinkedList}. Each node's item is read while the
+	 * node is locked, but the heap isn't otherwise locked, so items
+	 * inserted or removed concurrently may or may not be included.
+	 *
+	 * @return a new, modifiable list of the queue's items.
+	 */
+	public BigList<E> toList() {
+		BigList<E> items = new UnrolledLinkedList<E>();
+		for (long pos = 0L, cap = this.capacity; pos < cap; pos++) {
+			E item = itemAt(pos);
+			if (item != null)
+				items.add(item);
+		}
+		return items;
+	}
+
+	/**
+	 * Returns an iterator over a snapshot of this queue's items, in no
+	 * particular order, as taken by {@link #toList()}. The iterator's
+	 * {@code remove()} removes its last item from the queue (if it's still
+	 * there), as by {@link #remove(Object)}.
+	 */
+	public Iterator<E> iterator() {
+		final Iterator<E> it = toList().iterator();
+		return new Iterator<E>() {
+			private E lastRet;
+
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			public E next() {
+				return (this.lastRet = it.next());
+			}
+
+			public void remove() {
+				if (this.lastRet == null)
+					throw new IllegalStateException();
+				BigConcurrentHeapPriorityQueue.this.remove(this.lastRet);
+				this.lastRet = null;
+			}
+		};
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder("[");
+		for (E item : toList()) {
+			if (sb.length() > 1)
+				sb.append(", ");
+			sb.append(item);
+		}
+		return sb.append(']').toString();
+	}
+
+
+	/**
+	 * Returns the item at the specified position, read while its node is
+	 * locked, or {@code null} if the node is EMPTY.
+	 */
+	@SuppressWarnings("unchecked")
+	private E itemAt(long pos) {
+		Chunk chunk = chunk(pos);
+		int i = index(pos);
+		lock(pos);
+		try {
+			return (chunk.tags[i] != EMPTY) ? (E) chunk.data[i] : null;
+		} finally {
+			unlock(pos);
+		}
+	}
+
+	/**
+	 * Returns the position of an item equal to {@code o}, at which it may
+	 * no longer be, or -1 if none was found.
+	 *
+	 * @throws NullPointerException if {@code o} is {@code null}.
+	 */
+	private long indexOf(Object o) {
+		if (o == null)
+			throw new NullPointerException();
+
+		for (long pos = 0L, cap = this.capacity; pos < cap; pos++) {
+			E item = itemAt(pos);
+			if (item != null && item.equals(o))
+				return pos;
+		}
+		return -1L;
+	}
+
+	/**
+	 * Reserves the bottom node of the heap for a delete, and returns its
+	 * position, with the node locked.
+	 * <p>
+	 * <u>Notes on Locking</u>: The 'countLock' is held until the bottom
+	 * node has been locked.
+	 *
+	 * @return the bottom node's position; or -1 if the queue is empty.
+	 */
+	private long reserveBottom() {
+		this.countLock.lock();
+		try {
+			if (this.count.getNonreversedCount() == 0L)
+				return -1L;
+			long bottomPos = this.count.decrementAndGet();
+			lock(bottomPos);
+			return bottomPos;
+		} finally {
+			this.countLock.unlock();
+		}
+	}
+
+	/**
+	 * Empties the node at the specified position, which must be locked,
+	 * and returns its item.
+	 */
+	@SuppressWarnings("unchecked")
+	private E takeItem(long pos) {
+		Chunk chunk = chunk(pos);
+		int i = index(pos);
+		E data = (E) chunk.data[i];
+		chunk.data[i] = null;
+		chunk.tags[i] = EMPTY;
+		return data;
+	}
+
+	/**
+	 * Heapify the item at the specified position, which must be locked
+	 * when this method is called. All positions locked by this method,
+	 * including {@code pos}, are unlocked by the time it completes.
+	 *
+	 * @param pos position of the item to be heapified.
+	 */
+	private void heapify(long pos) {
+		while (true) {
+			long leftPos = (pos << 1) + 1, rightPos = leftPos + 1;
+			long cap = this.capacity;
+			// Lock non-EMPTY children (always left before right)
+			boolean hasLeft = leftPos < cap && lockIfFilled(leftPos);
+			boolean hasRight = rightPos < cap && lockIfFilled(rightPos);
+			// If the node has no non-EMPTY children, we're done
+			if (!hasLeft && !hasRight)
+				break;
+			// Otherwise, pick the node's smaller child, & unlock the other
+			long childPos;
+			if (!hasRight || (hasLeft && compare(leftPos, rightPos) <= 0)) {
+				if (hasRight)
+					unlock(rightPos);
+				childPos = leftPos;
+			} else {
+				if (hasLeft)
+					unlock(leftPos);
+				childPos = rightPos;
+			}
+
+			// If child is less than parent, swap their items, then continue
+			// from the child. Note: The child is locked
+			if (compare(childPos, pos) < 0) {
+				swap(childPos, pos);
+				unlock(pos);
+				pos = childPos;
+			}
+			// If not, stop. We're done.
+			else {
+				unlock(childPos);
+				break;
+			}
+		}
+		unlock(pos);
+	}
+
+	/**
+	 * Locks the node at the specified position, and keeps it locked only
+	 * if it's non-EMPTY.
+	 *
+	 * @return {@code true} if the node is non-EMPTY, & so still locked.
+	 */
+	private boolean lockIfFilled(long pos) {
+		lock(pos);
+		if (chunk(pos).tags[index(pos)] != EMPTY)
+			return true;
+		unlock(pos);
+		return false;
+	}
+
+	/**
+	 * Propagates the item in the node at the specified position, which has
+	 * just been inserted by the current thread, up the heap while it's less
+	 * than its parent's item.
+	 *
+	 * @param pos the current position of the inserted item.
+	 * @param tag the item's tag value.
+	 */
+	private void propagateInsert(long pos, long tag) {
+		int spins = 0;  // number of times we've waited
+		long step;
+		while ((step = propagateStep(pos, tag)) != STEP_DONE) {
+			if (step == STEP_WAIT)
+				backOff(spins++);
+			else
+				pos = step;
+		}
+	}
+
+	/**
+	 * Performs a single step of propagating an inserted item up the heap,
+	 * as in {@code ConcurrentHeapPriorityQueue}'s {@code LOCKED} mode.
+	 *
+	 * @param pos the current position of the inserted item.
+	 * @param tag the item's tag value.
+	 * @return the item's new position, if it may have moved further up;
+	 *    {@code STEP_DONE} if it has reached its final position; or
+	 *    {@code STEP_WAIT} if it must wait for another thread.
+	 */
+	private long propagateStep(long pos, long tag) {
+		// If the item is now root, set its tag to AVAILABLE, if it's still
+		// "our" item
+		if (pos == 0L) {
+			Chunk root = chunk(0L);
+			lock(0L);
+			if (root.tags[0] == tag)
+				root.tags[0] = AVAILABLE;
+			unlock(0L);
+			return STEP_DONE;
+		}
+
+		long parentPos = (pos - 1) >>> 1;  // (pos-1)/2
+		Chunk node = chunk(pos), parent = chunk(parentPos);
+		int n = index(pos), p = index(parentPos);
+		lock(parentPos);  // Note: Locking order is important.
+		lock(pos);
+		try {
+			// If parent isn't currently being inserted or deleted & 'node'
+			// still holds "our" item ...
+			if (parent.tags[p] == AVAILABLE && node.tags[n] == tag) {
+				if (compare(pos, parentPos) < 0) {
+					swap(pos, parentPos);
+					return parentPos;
+				}
+				node.tags[n] = AVAILABLE;
+				return STEP_DONE;
+			}
+			// Otherwise, if the parent is EMPTY, there's a concurrent
+			// delete, so stop or we'll deadlock w/ the deleting thread.
+			else if (parent.tags[p] == EMPTY)
+				return STEP_DONE;
+			// Otherwise, if 'node' doesn't hold our item, a concurrent
+			// delete has moved it up to the parent
+			else if (node.tags[n] != tag)
+				return parentPos;
+			// Otherwise, the parent holds another item, which is still being
+			// inserted. So we wait for it.
+			return STEP_WAIT;
+		} finally {
+			unlock(pos);    // Note: Unlocking order is important.
+			unlock(parentPos);
+		}
+	}
+
+	/**
+	 * Swaps the items (i.e., the data & tags) at two positions, both of
+	 * which must be locked by the current thread.
+	 */
+	private void swap(long pos1, long pos2) {
+		Chunk chunk1 = chunk(pos1), chunk2 = chunk(pos2);
+		int i1 = index(pos1), i2 = index(pos2);
+		Object data = chunk1.data[i1];
+		long tag = chunk1.tags[i1];
+		chunk1.data[i1] = chunk2.data[i2];
+		chunk1.tags[i1] = chunk2.tags[i2];
+		chunk2.data[i2] = data;
+		chunk2.tags[i2] = tag;
+	}
+
+	/**
+	 * Compares the items at two positions, both of which must be locked.
+	 */
+	@SuppressWarnings("unchecked")
+	private int compare(long pos1, long pos2) {
+		return compareData((E) chunk(pos1).data[index(pos1)],
+				(E) chunk(pos2).data[index(pos2)]);
+	}
+
+	@SuppressWarnings("unchecked")
+	private int compareData(E data1, E data2) {
+		if (this.comp != null)
+			return this.comp.compare(data1, data2);
+		else
+			return ((Comparable<E>) data1).compareTo(data2); // unchecked cast
+	}
+
+	private void lock(long pos) {
+		this.slotLocks.lock(chunk(pos).lockWords, index(pos));
+	}
+
+	private void unlock(long pos) {
+		this.slotLocks.unlock(chunk(pos).lockWords, index(pos));
+	}
+
+	/**
+	 * Waits briefly before a thread retries an operation that is blocked on
+	 * another thread's progress.
+	 */
+	private static void backOff(int spins) {
+		if (spins < MAX_SPINS)
+			Thread.onSpinWait();
+		else
+			Thread.yield();
+	}
+
+	/**
+	 * Returns the chunk holding the specified position, which must be less
+	 * than 'capacity'.
+	 */
+	private Chunk chunk(long pos) {
+		// Heap row of 'pos', which is also its bit-width
+		int row = Long.SIZE - 1 - Long.numberOfLeadingZeros(pos + 1);
+		if (row < this.baseRows)
+			return this.segments.get(0)[0];
+		long offset = pos + 1 - (1L << row);  // Offset within the row
+		return this.segments.get(row - this.baseRows + 1)[
+				(int) (offset >>> this.chunkBits)];
+	}
+
+	/**
+	 * Returns the specified position's index within its chunk.
+	 */
+	private int index(long pos) {
+		int row = Long.SIZE - 1 - Long.numberOfLeadingZeros(pos + 1);
+		if (row < this.baseRows)
+			return (int) pos;
+		return (int) ((pos + 1 - (1L << row)) & ((1 << this.chunkBits) - 1));
+	}
+
+	/**
+	 * Grows the heap a row at a time, until its capacity is at least
+	 * {@code minCapacity}. Has no effect if it already is.
+	 * <p>
+	 * <u>Implementation Notes</u>: Each row's chunks are all allocated
+	 * before the row is published, and before the volatile 'capacity' is
+	 * raised to include it, as in {@code ConcurrentHeapPriorityQueue}.
+	 */
+	private void ensureCapacity(long minCapacity) {
+		if (minCapacity <= this.capacity)
+			return;
+
+		this.growLock.lock();
+		try {
+			// Recheck, in case another thread grew the heap first
+			long cap = this.capacity;
+			while (cap < minCapacity) {
+				// Row to add, which has 'cap + 1' positions
+				int row = Long.SIZE - 1 - Long.numberOfLeadingZeros(cap + 1);
+				int chunkLen = 1 << Math.min(row, this.chunkBits);
+				Chunk[] chunks = new Chunk[
+						1 << Math.max(row - this.chunkBits, 0)];
+				for (int c = 0; c < chunks.length; c++)
+					chunks[c] = new Chunk(chunkLen);
+				this.segments.set(row - this.baseRows + 1, chunks);
+				cap = (cap << 1) + 1;
+				this.capacity = cap;
+			}
+		} finally {
+			this.growLock.unlock();
+		}
+	}
+
+
+	/**
+	 * A chunk of the heap, holding the data, tags & lock words of a run of
+	 * heap positions in parallel arrays. Each position's data & tag are
+	 * guarded by its lock, which is managed by 'slotLocks'.
+	 */
+	private static final class Chunk {
+		@GuardedBy("lockWords") final Object[] data;
+		@GuardedBy("lockWords") final long[] tags;
+		final AtomicIntegerArray lockWords;
+
+		Chunk(int length) {
+			this.data = new Object[length];
+			this.tags = new long[length];  // All EMPTY
+			this.lockWords = new AtomicIntegerArray(length);
+		}
+	}
+}
@@ -0,0 +1,445 @@
+package info.willdspann.collections.concurrent.queue;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A thread-safe, blocking priority queue, which extends
+ * {@link ConcurrentHeapPriorityQueue} with the blocking operations of
+ * {@link BlockingQueue}. Consumers calling {@link #take()} or
+ * {@link #poll(long, TimeUnit)} on an empty queue are parked, rather than
+ * busy-polling, until an item becomes available.
+ * <p>
+ * <u>Implementation Notes</u>: Only an insert that reserves the heap's
+ * root position (i.e., that finds the queue empty) signals a waiting
+ * consumer, and then only if any consumer is waiting. Every other insert
+ * pays no more than it would in a {@code ConcurrentHeapPriorityQueue}.
+ * A consumer that wakes and removes an item, while more items remain,
+ * passes the signal on to the next waiting consumer, so that a burst of
+ * inserts following a single empty to non-empty transition still wakes
+ * as many consumers as it needs.
+ * <p>
+ * Unless the queue is bounded, {@link #put(Object)} never blocks. A
+ * bounded queue, w/ the {@link OverflowPolicy#REJECT REJECT} policy, parks
+ * producers calling {@code put()} or {@link #offer(Object, long, TimeUnit)}
+ * while it's full, until a removal makes space. As w/ consumers, a removal
+ * only takes {@code putLock} to signal a producer if any is waiting.
+ *
+ * @author Will D. Spann
+ * @version 1.1
+ */
+@ThreadSafe
+public class ConcurrentHeapPriorityBlockingQueue<E>
+		extends ConcurrentHeapPriorityQueue<E> implements BlockingQueue<E>
+{
+	/** Lock held by consumers while waiting for the queue to be non-empty,
+	 *  and by producers while signaling them. */
+	private final ReentrantLock takeLock;
+	@GuardedBy("this.takeLock") private final Condition notEmpty;
+	/** Number of consumers waiting on 'notEmpty'. (Only written while
+	 *  holding 'takeLock', but read without it by producers.) */
+	private volatile int waiters;
+	/** Lock held by producers while waiting for a bounded queue to have
+	 *  space, and by consumers while signaling them. */
+	private final ReentrantLock putLock = new ReentrantLock();
+	@GuardedBy("this.putLock")
+	private final Condition notFull = this.putLock.newCondition();
+	/** Number of producers waiting on 'notFull'. (Only written while
+	 *  holding 'putLock', but read without it by consumers.) */
+	private volatile int putWaiters;
+
+
+	public ConcurrentHeapPriorityBlockingQueue() {
+		super();
+		this.takeLock = new ReentrantLock();
+		this.notEmpty = this.takeLock.newCondition();
+	}
+
+	/**
+	 * @param initialCapacity the minimum initial capacity. Must be greater
+	 *    than 0.
+	 *
+	 * @throws IllegalArgumentException if {@code initialCapacity} is less
+	 *    than 1.
+	 */
+	public ConcurrentHeapPriorityBlockingQueue(int initialCapacity) {
+		super(initialCapacity);
+		this.takeLock = new ReentrantLock();
+		this.notEmpty = this.takeLock.newCondition();
+	}
+
+	/**
+	 * @param initialCapacity the minimum initial capacity. Must be greater
+	 *    than 0.
+	 * @param mode how leaf positions are reserved by inserts and deletes.
+	 *
+	 * @throws IllegalArgumentException if {@code initialCapacity} is less
+	 *    than 1.
+	 * @throws NullPointerException if {@code mode} is {@code null}.
+	 */
+	public ConcurrentHeapPriorityBlockingQueue(int initialCapacity,
+			CountingMode mode)
+	{
+		super(initialCapacity, mode);
+		this.takeLock = new ReentrantLock();
+		this.notEmpty = this.takeLock.newCondition();
+	}
+
+	/**
+	 * @param initialCapacity the minimum initial capacity. Must be greater
+	 *    than 0.
+	 * @param comparator the {@code Comparator} used to order this queue.
+	 *
+	 * @throws IllegalArgumentException if {@code initialCapacity} is less
+	 *    than 1.
+	 * @throws NullPointerException if {@code comparator} is {@code null}.
+	 */
+	public ConcurrentHeapPriorityBlockingQueue(int initialCapacity,
+			Comparator<? super E> comparator)
+	{
+		super(initialCapacity, comparator);
+		this.takeLock = new ReentrantLock();
+		this.notEmpty = this.takeLock.newCondition();
+	}
+
+	/**
+	 * @param initialCapacity the minimum initial capacity. Must be greater
+	 *    than 0.
+	 * @param comparator the {@code Comparator} used to order this queue.
+	 * @param mode how leaf positions are reserved by inserts and deletes.
+	 *
+	 * @throws IllegalArgumentException if {@code initialCapacity} is less
+	 *    than 1.
+	 * @throws NullPointerException if {@code comparator} or {@code mode} is
+	 *    {@code null}.
+	 */
+	public ConcurrentHeapPriorityBlockingQueue(int initialCapacity,
+			Comparator<? super E> comparator, CountingMode mode)
+	{
+		super(initialCapacity, comparator, mode);
+		this.takeLock = new ReentrantLock();
+		this.notEmpty = this.takeLock.newCondition();
+	}
+
+	/**
+	 * @param initialCapacity the minimum initial capacity. Must be greater
+	 *    than 0.
+	 * @param comparator the {@code Comparator} used to order this queue, or
+	 *    {@code null} to use its items' natural ordering.
+	 * @param mode how leaf positions are reserved by inserts and deletes.
+	 * @param policy how node locks are granted to waiting threads.
+	 *
+	 * @throws IllegalArgumentException if {@code initialCapacity} is less
+	 *    than 1.
+	 * @throws NullPointerException if {@code mode} or {@code policy} is
+	 *    {@code null}.
+	 */
+	public ConcurrentHeapPriorityBlockingQueue(int initialCapacity,
+			Comparator<? super E> comparator, CountingMode mode,
+			LockPolicy policy)
+	{
+		super(initialCapacity, comparator, mode, policy);
+		this.takeLock = new ReentrantLock();
+		this.notEmpty = this.takeLock.newCondition();
+	}
+
+	/**
+	 * Creates a bounded queue, which holds at most {@code capacity} items.
+	 *
+	 * @param capacity the maximum number of items. Must be greater than 0.
+	 * @param comparator the {@code Comparator} used to order this queue, or
+	 *    {@code null} to use its items' natural ordering.
+	 * @param mode how leaf positions are reserved by inserts and deletes.
+	 * @param policy how node locks are granted to waiting threads.
+	 * @param overflowPolicy how an insert into the full queue is handled.
+	 *    Under {@code REJECT}, {@code put()} waits for space.
+	 *
+	 * @throws IllegalArgumentException if {@code capacity} is less than 1.
+	 * @throws NullPointerException if {@code mode}, {@code policy} or
+	 *    {@code overflowPolicy} is {@code null}.
+	 */
+	public ConcurrentHeapPriorityBlockingQueue(int capacity,
+			Comparator<? super E> comparator, CountingMode mode,
+			LockPolicy policy, OverflowPolicy overflowPolicy)
+	{
+		super(capacity, comparator, mode, policy, overflowPolicy);
+		this.takeLock = new ReentrantLock();
+		this.notEmpty = this.takeLock.newCondition();
+	}
+
+
+	/**
+	 * Inserts the specified item into this queue, waiting if necessary
+	 * for space to become available. Only a bounded queue w/ the
+	 * {@code REJECT} overflow policy ever waits; under {@code EVICT_WORST},
+	 * the item may instead be dropped, as by {@link #offer(Object)}.
+	 *
+	 * @param item the item to add.
+	 *
+	 * @throws InterruptedException if interrupted while waiting.
+	 * @throws NullPointerException if {@code item} is {@code null}.
+	 * @throws ClassCastException if {@code item} can't be compared with the
+	 *    queue's items.
+	 */
+	public void put(E item) throws InterruptedException {
+		if (offer(item) || !blocksWhenFull())
+			return;
+
+		while (true) {
+			awaitNotFull(Long.MAX_VALUE);
+			if (offer(item))
+				break;
+		}
+		passNotFullOn();
+	}
+
+	/**
+	 * Inserts the specified item into this queue, waiting up to the
+	 * specified wait time if necessary for space to become available.
+	 * Only a bounded queue w/ the {@code REJECT} overflow policy ever
+	 * waits.
+	 *
+	 * @param timeout how long to wait before giving up, in units of
+	 *    {@code unit}.
+	 * @param unit a {@code TimeUnit} determining how to interpret the
+	 *    {@code timeout} parameter.
+	 * @return {@code true} if the item was inserted; or {@code false} if
+	 *    the specified waiting time elapses before space is available
+	 *    (or if it was dropped, under {@code EVICT_WORST}).
+	 *
+	 * @throws InterruptedException if interrupted while waiting.
+	 * @throws NullPointerException if {@code item} is {@code null}.
+	 * @throws ClassCastException if {@code item} can't be compared with the
+	 *    queue's items.
+	 */
+	public boolean offer(E item, long timeout, TimeUnit unit)
+			throws InterruptedException
+	{
+		if (offer(item))
+			return true;
+		if (!blocksWhenFull())
+			return false;
+
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		do {
+			long nanos = deadline - System.nanoTime();
+			if (nanos <= 0L)
+				return false;
+			awaitNotFull(nanos);
+		} while (!offer(item));
+		passNotFullOn();
+		return true;
+	}
+
+	/**
+	 * Removes and returns the minimum item in this queue, waiting if
+	 * necessary until an item becomes available.
+	 *
+	 * @return the minimum item in this queue.
+	 *
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public E take() throws InterruptedException {
+		E item = poll();
+		if (item != null)
+			return item;
+
+		this.takeLock.lockInterruptibly();
+		try {
+			this.waiters++;
+			try {
+				// Note: An insert into the empty queue must signal while
+				// holding 'takeLock', so it can't slip in between this poll
+				// and the await.
+				while ((item = poll()) == null)
+					this.notEmpty.await();
+			} catch (InterruptedException e) {
+				this.notEmpty.signal();  // In case we consumed a signal
+				throw e;
+			} finally {
+				this.waiters--;
+			}
+			passSignalOn();
+			return item;
+		} finally {
+			this.takeLock.unlock();
+		}
+	}
+
+	/**
+	 * Removes and returns the minimum item in this queue, waiting up to the
+	 * specified wait time if necessary for an item to become available.
+	 *
+	 * @param timeout how long to wait before giving up, in units of
+	 *    {@code unit}.
+	 * @param unit a {@code TimeUnit} determining how to interpret the
+	 *    {@code timeout} parameter.
+	 * @return the minimum item in this queue; or {@code null} if the
+	 *    specified waiting time elapses before an item is available.
+	 *
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+		E item = poll();
+		if (item != null)
+			return item;
+
+		long nanos = unit.toNanos(timeout);
+		this.takeLock.lockInterruptibly();
+		try {
+			this.waiters++;
+			try {
+				while ((item = poll()) == null) {
+					if (nanos <= 0L)
+						return null;
+					nanos = this.notEmpty.awaitNanos(nanos);
+				}
+			} catch (InterruptedException e) {
+				this.notEmpty.signal();  // In case we consumed a signal
+				throw e;
+			} finally {
+				this.waiters--;
+			}
+			passSignalOn();
+			return item;
+		} finally {
+			this.takeLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of items this queue can accept w/o blocking, or
+	 * {@code Integer.MAX_VALUE} if it's unbounded.
+	 *
+	 * @return the remaining capacity.
+	 */
+	public int remainingCapacity() {
+		int max = getMaxSize();
+		if (max == Integer.MAX_VALUE)
+			return Integer.MAX_VALUE;
+		return Math.max(0, max - size());
+	}
+
+	/**
+	 * @throws IllegalArgumentException if {@code c} is this queue.
+	 */
+	@Override
+	public int drainTo(Collection<? super E> c) {
+		if (c == this)
+			throw new IllegalArgumentException();
+		return super.drainTo(c);
+	}
+
+	/**
+	 * @throws IllegalArgumentException if {@code c} is this queue.
+	 */
+	@Override
+	public int drainTo(Collection<? super E> c, int maxElements) {
+		if (c == this)
+			throw new IllegalArgumentException();
+		return super.drainTo(c, maxElements);
+	}
+
+
+	/**
+	 * Wakes a waiting consumer, if there is one, after an insert into an
+	 * empty queue.
+	 */
+	@Override
+	void signalNotEmpty() {
+		// A consumer increments 'waiters' before polling, so if we read 0
+		// here, its poll will see our item.
+		if (this.waiters == 0)
+			return;
+
+		this.takeLock.lock();
+		try {
+			this.notEmpty.signal();
+		} finally {
+			this.takeLock.unlock();
+		}
+	}
+
+	/**
+	 * Wakes the next waiting consumer, if items remain after a woken
+	 * consumer's delete, since only one consumer is signaled per empty to
+	 * non-empty transition.
+	 */
+	@GuardedBy("this.takeLock")
+	private void passSignalOn() {
+		if (this.waiters > 0 && !isEmpty())
+			this.notEmpty.signal();
+	}
+
+	/**
+	 * Wakes a waiting producer, if there is one, after a removal from a
+	 * bounded queue.
+	 */
+	@Override
+	void signalNotFull() {
+		// A producer increments 'putWaiters' before offering, so if we
+		// read 0 here, its offer will see the freed space.
+		if (this.putWaiters == 0)
+			return;
+
+		this.putLock.lock();
+		try {
+			this.notFull.signal();
+		} finally {
+			this.putLock.unlock();
+		}
+	}
+
+	/**
+	 * Waits up to {@code nanos} for the queue to have space, unless it
+	 * already does. The caller must then offer its item w/o holding
+	 * {@code putLock}, since an insert may take {@code takeLock} to signal
+	 * a consumer, which in turn takes {@code putLock} after a removal.
+	 * (So the locks are only ever nested in that order.)
+	 *
+	 * @param nanos the maximum time to wait, in nanoseconds.
+	 *
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	private void awaitNotFull(long nanos) throws InterruptedException {
+		this.putLock.lockInterruptibly();
+		try {
+			this.putWaiters++;
+			try {
+				// Note: A removal from the full queue must signal while
+				// holding 'putLock', so it can't slip in between this
+				// check and the await.
+				if (remainingCapacity() == 0)
+					this.notFull.awaitNanos(nanos);
+			} catch (InterruptedException e) {
+				this.notFull.signal();  // In case we consumed a signal
+				throw e;
+			} finally {
+				this.putWaiters--;
+			}
+		} finally {
+			this.putLock.unlock();
+		}
+	}
+
+	/**
+	 * Wakes the next waiting producer, if space remains after a woken
+	 * producer's insert, since a batch removal only signals one producer.
+	 */
+	private void passNotFullOn() {
+		if (this.putWaiters > 0 && remainingCapacity() > 0)
+			signalNotFull();
+	}
+
+	private boolean blocksWhenFull() {
+		return getMaxSize() != Integer.MAX_VALUE
+				&& getOverflowPolicy() == OverflowPolicy.REJECT;
+	}
+}
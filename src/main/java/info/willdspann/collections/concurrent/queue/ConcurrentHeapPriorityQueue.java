@@ -1,13 +1,34 @@
 package info.willdspann.collections.concurrent.queue;
 
+import java.lang.management.ManagementFactory;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.IntSupplier;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
 
 import javax.annotation.concurrent.GuardedBy;
-import javax.annotation.concurrent.Immutable;
 import javax.annotation.concurrent.ThreadSafe;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
+import info.willdspann.collections.utils.AtomicHeapBitReversedCounter;
 import info.willdspann.collections.utils.HeapBitReversedCounter;
 
 /**
@@ -17,18 +38,161 @@ import info.willdspann.collections.utils.HeapBitReversedCounter;
  * Hunt, et al., described in the paper
  * <a href="http://www.cs.rochester.edu/u/scott/papers/1996_IPL_heaps.pdf">
  * "An efficient algorithm for concurrent priority queue heaps"</a>.
+ * <p>
+ * By default, the bit-reversed counter is guarded by a global lock, which
+ * is held until the next leaf node has been locked (as in Hunt, et al.).
+ * Alternatively, a queue may be created in {@link CountingMode#LOCK_FREE}
+ * mode, in which leaf positions are reserved with a single CAS on an
+ * {@link AtomicHeapBitReversedCounter}, so that inserts and deletes don't
+ * serialize on a global lock before node-level locking begins. (An insert
+ * still waits for any delete whose reserved leaf hasn't yet been emptied,
+ * and vice versa, but inserts don't wait for each other, nor deletes for
+ * each other.)
+ * <p>
+ * The backing heap is stored in row-aligned segments, so that it grows a
+ * row at a time without copying, or blocking access to, existing nodes.
+ * Items may also be inserted and removed in batches, via
+ * {@link #offerAll(Collection)} and {@link #pollBatch(int)}, which reserve
+ * all of a batch's leaf positions in a single counter step.
+ * <p>
+ * No objects are allocated per node: each node's item, tag and lock are
+ * stored in parallel arrays (the lock being a single {@code int} word),
+ * and a tag is a primitive {@code long}. How the node locks are granted to
+ * waiting threads is set by the queue's {@link LockPolicy}. A queue w/ a
+ * non-default policy or counting mode may be created with a
+ * {@link Builder}.
+ * <p>
+ * An item inserted via {@link #offerHandle(Object)} is tracked by the
+ * returned {@link Handle}, which follows the item's position in the heap,
+ * and may be used to remove the item, or change its priority, in
+ * O(log n). Any item may also be removed via {@link #remove(Object)}, in
+ * O(n).
+ * <p>
+ * The queue's {@link #iterator()}, {@link #spliterator()} and
+ * {@code toArray()} methods all traverse an array-backed snapshot of its
+ * items, which is taken in O(n) time.
+ * <p>
+ * A queue may be bounded, w/ a fixed capacity, in which case its heap is
+ * allocated at full size up front, and never grows. An insert into a full
+ * bounded queue is handled per its {@link OverflowPolicy}: it's either
+ * rejected, or it evicts the queue's largest item. (A bounded
+ * {@link ConcurrentHeapPriorityBlockingQueue} may instead block the
+ * producer until space is available.) Since a min-heap doesn't track its
+ * largest item, a queue that evicts also keeps its items ranked in a
+ * {@link ConcurrentSkipListMap}, from which an eviction takes the largest
+ * item in O(log n) time, so that the queue keeps exactly its
+ * {@code capacity} smallest items. (An item that's still being inserted
+ * isn't ranked yet, though, so a concurrent insert into the full queue may
+ * be rejected in favor of it, even if it's larger.) The cost is an extra O(log n) index
+ * update (w/o any heap node lock held, besides the inserted leaf's) on
+ * every insert & delete, plus an internal {@link Handle} per item.
+ * <p>
+ * A queue may be created already holding the items of a {@code Collection},
+ * via {@link #ConcurrentHeapPriorityQueue(Collection)} or
+ * {@link Builder#build(Collection)}, in O(n) time: the items are copied
+ * into the heap's nodes, which are then heapified bottom-up (as by
+ * Floyd), before the queue is published. A large heap's independent
+ * subtrees are heapified in parallel, in the common
+ * {@link ForkJoinPool}.
+ * <p>
+ * An unbounded queue gives back the storage of its heap's trailing rows,
+ * once they're no longer needed, via {@link #trimToSize()} (which is also
+ * called by {@link #clear()}). A queue built w/
+ * {@link Builder#trimOnDrain(boolean)} also trims its heap by itself,
+ * whenever a delete leaves it below its low-water mark, so that a
+ * long-running queue doesn't hold on to the peak footprint of a burst.
+ * <p>
+ * A queue may instead be ordered by a {@code long} or {@code double} key,
+ * which is extracted from each item once, when it's inserted, and stored
+ * alongside the item in its node (see {@link #orderedByLongKey} and
+ * {@link #orderedByDoubleKey}). Every comparison made while holding node
+ * locks is then a primitive compare, rather than a call to a (possibly
+ * expensive) {@code Comparator}, which shortens the critical sections of
+ * each sift.
+ * <p>
+ * Non-blocking consumers may call {@link #pollAsync()}, whose future is
+ * completed by the inserting thread, if the queue was empty, rather than
+ * retrying {@code poll()}; or subscribe to the queue's {@link #publisher()}
+ * view, which deletes items in batches, as its subscribers request them.
+ * <p>
+ * The items of another queue may be moved into a queue in bulk, via
+ * {@link #meld(ConcurrentHeapPriorityQueue, Collection)}, which takes
+ * them out of the donor's heap w/o sifting, and heapifies them bottom-up
+ * if the receiving queue is empty.
+ * <p>
+ * A queue built w/ {@link Builder#collectStats(boolean)} counts its
+ * 'countLock' waits, node lock contention by heap row, sift depths, and
+ * propagation retries, and reads them back as a {@link Stats} snapshot,
+ * either via {@link #getStats()}, or over JMX (see
+ * {@link #registerMBean(ObjectName)}). Inserts & deletes slower than its
+ * threshold are also counted, and emitted as Flight Recorder events. A
+ * queue that doesn't collect statistics pays a single null check at each
+ * probe.
  *
  * @author Will D. Spann
- * @version 1.2
+ * @version 1.27
  */
 @ThreadSafe
 public class ConcurrentHeapPriorityQueue<E> implements Queue<E> {
 	private static final int DEFAULT_INIT_CAP = 10;
+	/** Number of busy-wait spins before a waiting thread starts yielding. */
+	private static final int MAX_SPINS = 64;
+	/** propagateStep() results, besides the item's new position. */
+	private static final int STEP_DONE = -1, STEP_WAIT = -2;
+	/** Tag values of a node that's empty, or whose item isn't being
+	 *  inserted. Any other tag value identifies the item's inserter:
+	 *  either a thread ID (which is > 0), or a batch insert tag (< -1). */
+	private static final long EMPTY = 0L, AVAILABLE = -1L;
+	/** Height (in rows) of the subtrees that a bulk construction's
+	 *  parallel heapify leaves to a single thread. */
+	private static final int SEQ_HEAPIFY_ROWS = 13;
+	/** A queue that trims on drain does so once its size falls to
+	 *  {@code 1 / 2^LOW_WATER_SHIFT} of its heap's capacity. */
+	private static final int LOW_WATER_SHIFT = 3;
+	/** Maximum number of items a {@link #publisher()} subscription takes
+	 *  from the heap in a single batch delete. */
+	private static final int PUBLISHER_BATCH = 64;
+	/** Default time an insert or delete must take to be counted as slow,
+	 *  when statistics are collected. */
+	private static final long DEFAULT_SLOW_OP_NANOS =
+			TimeUnit.MILLISECONDS.toNanos(1L);
 	
-	private final ArrayList<Node<E>> heap;
+	private final SegmentedHeap<E> heap;
 	@GuardedBy("this.countLock") private final HeapBitReversedCounter
 			count;
+	/** Leaf position counter, used instead of 'count' when in LOCK_FREE
+	 *  mode. (In that mode 'countLock' only guards growth of 'heap'.) */
+	private final AtomicHeapBitReversedCounter atomicCount;
 	private final ReentrantReadWriteLock countLock;  // Lock on 'count'
+	/** Source of unique tags for the items of batch inserts, which are
+	 *  tagged {@code -2 - seq}, so as not to collide w/ thread ID tags. */
+	private final AtomicLong batchTagSeq;
+	/** Maximum number of items, or {@code Integer.MAX_VALUE} if the queue
+	 *  is unbounded. */
+	private final int maxSize;
+	private final OverflowPolicy overflowPolicy;
+	/** The queued items' {@code Handle}s, by their items' rank (& then by
+	 *  when they were ranked), so that an {@code EVICT_WORST} eviction can
+	 *  find the largest item; or {@code null} unless the queue is bounded
+	 *  & evicts. (Every item of such a queue has a {@code Handle}.) */
+	private final ConcurrentSkipListMap<Rank<E>, Handle<E>> ranked;
+	/** Source of the ranks' tie-breaking sequence numbers. */
+	private final AtomicLong rankSeq;
+	/** Whether deletes trim the heap once the queue falls below its
+	 *  low-water mark. (Only set by a {@link Builder}.) */
+	private volatile boolean trimOnDrain;
+	/** Extractor of the items' precomputed keys, or {@code null} unless
+	 *  the queue is in key mode. (In key mode, 'comp' compares the items'
+	 *  keys, and is only used for items that aren't in the heap.) */
+	private final ToLongFunction<? super E> keyFn;
+	/** Futures of {@link #pollAsync()} calls that found the queue empty,
+	 *  in the order they're to be completed. */
+	private final ConcurrentLinkedDeque<CompletableFuture<E>> asyncWaiters =
+			new ConcurrentLinkedDeque<CompletableFuture<E>>();
+	/** Statistics recorder, or {@code null} unless statistics are
+	 *  collected. (Only set by a {@link Builder}, before the queue is
+	 *  returned.) */
+	private StatsRecorder stats;
 	
 	private Comparator<? super E> comp;
 	
@@ -46,17 +210,218 @@ public class ConcurrentHeapPriorityQueue<E> implements Queue<E> {
      *    than 0. 
      */
     public ConcurrentHeapPriorityQueue(int initialCapacity) {
+    	this(initialCapacity, CountingMode.LOCKED);
+    }
+    
+    
+    /**
+     * @param initialCapacity the minimum initial capacity. Must be greater
+     *    than 0.
+     * @param mode how leaf positions are reserved by inserts and deletes.
+     *    
+     * @throws IllegalArgumentException if {@code initialCapacity} is less
+     *    than 0.
+     * @throws NullPointerException if {@code mode} is {@code null}.
+     */
+    public ConcurrentHeapPriorityQueue(int initialCapacity,
+    		CountingMode mode)
+    {
+    	this(initialCapacity, null, mode, LockPolicy.SPIN_THEN_PARK);
+    }
+    
+    
+    /**
+     * @param initialCapacity the minimum initial capacity. Must be greater
+     *    than 0.
+     * @param comparator 
+     * @param mode how leaf positions are reserved by inserts and deletes.
+     *    
+     * @throws IllegalArgumentException if {@code initialCapacity} is less
+     *    than 0.
+     * @throws NullPointerException if {@code comparator} or {@code mode} is
+     *    {@code null}.
+     */
+    public ConcurrentHeapPriorityQueue(int initialCapacity,
+    		Comparator<? super E> comparator, CountingMode mode)
+    {
+    	this(initialCapacity, Objects.requireNonNull(comparator), mode,
+    			LockPolicy.SPIN_THEN_PARK);
+    }
+    
+    
+    /**
+     * Version: 1.0
+     * 
+     * @param initialCapacity the minimum initial capacity. Must be greater
+     *    than 0.
+     * @param comparator the {@code Comparator} used to order this queue, or
+     *    {@code null} to use its items' natural ordering.
+     * @param mode how leaf positions are reserved by inserts and deletes.
+     * @param policy how node locks are granted to waiting threads.
+     *    
+     * @throws IllegalArgumentException if {@code initialCapacity} is less
+     *    than 0.
+     * @throws NullPointerException if {@code mode} or {@code policy} is
+     *    {@code null}.
+     * 
+     * @see Builder
+     */
+    public ConcurrentHeapPriorityQueue(int initialCapacity,
+    		Comparator<? super E> comparator, CountingMode mode,
+    		LockPolicy policy)
+    {
+    	this(initialCapacity, comparator, mode, policy, Integer.MAX_VALUE,
+    			OverflowPolicy.REJECT, null);
+    }
+    
+    
+    /**
+     * Creates a bounded queue, which holds at most {@code capacity} items.
+     * Its heap is allocated for {@code capacity} items up front, and never
+     * grows.
+     * <p>
+     * An item that's taken out of the heap, but then not removed after
+     * all, is put back regardless of the bound: e.g., the bottom item a
+     * delete moves, or an item deleted for a {@link #pollAsync()} future
+     * or {@link #publisher()} subscriber that was cancelled meanwhile. (The
+     * latter is first handed to the next waiting future or subscriber, if
+     * any.) So if concurrent inserts have filled the queue in the meantime,
+     * it's left over its capacity (w/o an eviction), until enough items are
+     * deleted.
+     * <p>
+     * Version: 1.1
+     * 
+     * @param capacity the maximum number of items. Must be greater than 0.
+     * @param comparator the {@code Comparator} used to order this queue, or
+     *    {@code null} to use its items' natural ordering.
+     * @param mode how leaf positions are reserved by inserts and deletes.
+     * @param policy how node locks are granted to waiting threads.
+     * @param overflowPolicy how an insert into the full queue is handled.
+     *    
+     * @throws IllegalArgumentException if {@code capacity} is less than 1.
+     * @throws NullPointerException if {@code mode}, {@code policy} or
+     *    {@code overflowPolicy} is {@code null}.
+     * 
+     * @see Builder
+     */
+    public ConcurrentHeapPriorityQueue(int capacity,
+    		Comparator<? super E> comparator, CountingMode mode,
+    		LockPolicy policy, OverflowPolicy overflowPolicy)
+    {
+    	this(capacity, comparator, mode, policy, capacity, overflowPolicy,
+    			null);
+    }
+    
+    
+    /**
+     * @param keyFn the items' key extractor, if the queue is in key mode,
+     *    in which case {@code comparator} is ignored; or {@code null}.
+     */
+    private ConcurrentHeapPriorityQueue(int initialCapacity,
+    		Comparator<? super E> comparator, CountingMode mode,
+    		LockPolicy policy, int maxSize, OverflowPolicy overflowPolicy,
+    		ToLongFunction<? super E> keyFn)
+    {
+    	if (maxSize < 1)
+    		throw new IllegalArgumentException("capacity must be >= 1");
     	if (initialCapacity < 1) {
     		throw new IllegalArgumentException("initialCapacity must be "
     				+ ">= 1");
     	}
+    	if (mode == null || policy == null || overflowPolicy == null)
+    		throw new NullPointerException();
     	
-    	this.heap = new ArrayList<Node<E>>(initialCapacity);
-    	this.count = HeapBitReversedCounter.newInstance();
+    	this.heap = new SegmentedHeap<E>(initialCapacity, policy,
+    			keyFn != null);
+    	if (mode == CountingMode.LOCK_FREE) {
+    		this.count = null;
+    		this.atomicCount = AtomicHeapBitReversedCounter.newInstance();
+    	} else {
+    		this.count = HeapBitReversedCounter.newInstance();
+    		this.atomicCount = null;
+    	}
     	this.countLock = new ReentrantReadWriteLock();
-    	ensureCapacity(initialCapacity);
-    	this.heap.set(0, new Node<E>());  // Set empty root Node
-    	this.comp = null;
+    	this.batchTagSeq = new AtomicLong();
+    	this.maxSize = maxSize;
+    	this.overflowPolicy = overflowPolicy;
+    	this.ranked = (maxSize != Integer.MAX_VALUE
+    			&& overflowPolicy == OverflowPolicy.EVICT_WORST)
+    			? new ConcurrentSkipListMap<Rank<E>, Handle<E>>(this::compareRanks)
+    			: null;
+    	this.rankSeq = new AtomicLong();
+    	this.keyFn = keyFn;
+    	this.comp = (keyFn != null) ? Comparator.<E>comparingLong(keyFn)
+    			: comparator;
+    }
+    
+    
+    /**
+     * Creates a queue holding the items of the specified collection,
+     * ordered by their natural ordering. The queue is built in O(n) time,
+     * rather than by n inserts.
+     * <p>
+     * Version: 1.0
+     * 
+     * @param c the items to place in the queue.
+     *    
+     * @throws NullPointerException if {@code c} or any of its items is
+     *    {@code null}.
+     * @throws ClassCastException if any of {@code c}'s items isn't
+     *    {@code Comparable}.
+     *    
+     * @see Builder#build(Collection)
+     */
+    public ConcurrentHeapPriorityQueue(Collection<? extends E> c) {
+    	this(c, null, CountingMode.LOCKED, LockPolicy.SPIN_THEN_PARK);
+    }
+    
+    
+    /**
+     * Creates a queue holding the items of the specified collection. The
+     * queue is built in O(n) time, rather than by n inserts: the items are
+     * copied into the heap's nodes, which are then heapified bottom-up. A
+     * large heap's independent subtrees are heapified in parallel, in the
+     * common {@code ForkJoinPool}, all before this constructor returns.
+     * <p>
+     * Version: 1.0
+     * 
+     * @param c the items to place in the queue.
+     * @param comparator the {@code Comparator} used to order this queue, or
+     *    {@code null} to use its items' natural ordering.
+     * @param mode how leaf positions are reserved by inserts and deletes.
+     * @param policy how node locks are granted to waiting threads.
+     *    
+     * @throws NullPointerException if {@code c}, any of its items,
+     *    {@code mode} or {@code policy} is {@code null}.
+     * @throws ClassCastException if any of {@code c}'s items can't be
+     *    compared.
+     */
+    public ConcurrentHeapPriorityQueue(Collection<? extends E> c,
+    		Comparator<? super E> comparator, CountingMode mode,
+    		LockPolicy policy)
+    {
+    	this(c.toArray(), DEFAULT_INIT_CAP, comparator, mode, policy,
+    			Integer.MAX_VALUE, OverflowPolicy.REJECT, null);
+    }
+    
+    
+    /**
+     * @param items the items to place in the queue, which may be a
+     *    bounded queue of at least as many items.
+     */
+    private ConcurrentHeapPriorityQueue(Object[] items, int initialCapacity,
+    		Comparator<? super E> comparator, CountingMode mode,
+    		LockPolicy policy, int maxSize, OverflowPolicy overflowPolicy,
+    		ToLongFunction<? super E> keyFn)
+    {
+    	this((maxSize != Integer.MAX_VALUE) ? maxSize
+    			: Math.max(items.length, initialCapacity),
+    			comparator, mode, policy, maxSize, overflowPolicy, keyFn);
+    	if (items.length > maxSize) {
+    		throw new IllegalArgumentException("More items than the "
+    				+ "capacity");
+    	}
+    	buildHeap(items);
     }
     
     
@@ -72,35 +437,328 @@ public class ConcurrentHeapPriorityQueue<E> implements Queue<E> {
     public ConcurrentHeapPriorityQueue(int initialCapacity,
     		Comparator<? super E> comparator)
     {
-    	this(initialCapacity);
-    	
-    	if (comparator == null)
-    		throw new NullPointerException();
-    	
-    	this.comp = comparator;
+    	this(initialCapacity, comparator, CountingMode.LOCKED);
+    }
+    
+    
+    /**
+     * Creates an empty queue in key mode, ordered by the {@code long} keys
+     * that the specified function extracts from its items. Each item's key
+     * is computed once, when it's inserted, and is stored alongside it, so
+     * no comparison made while sifting calls back into user code. (Items
+     * w/ equal keys are in no particular order.) A queue w/ other options
+     * may be created via {@link Builder#longKey(ToLongFunction)}.
+     * <p>
+     * Version: 1.0
+     * 
+     * @param keyExtractor the function that computes an item's key, which
+     *    must stay the same for as long as the item is in the queue.
+     * @return a new, empty queue.
+     * 
+     * @throws NullPointerException if {@code keyExtractor} is
+     *    {@code null}.
+     */
+    public static <E> ConcurrentHeapPriorityQueue<E> orderedByLongKey(
+    		ToLongFunction<? super E> keyExtractor)
+    {
+    	return new Builder<E>().longKey(keyExtractor).build();
+    }
+    
+    
+    /**
+     * Creates an empty queue in key mode, ordered by the {@code double}
+     * keys that the specified function extracts from its items, as by
+     * {@link Double#compare(double, double)}. Each key is computed once, and
+     * stored as a {@code long} w/ the same ordering, so the heap's
+     * comparisons are those of {@link #orderedByLongKey}. A queue w/ other
+     * options may be created via {@link Builder#doubleKey(ToDoubleFunction)}.
+     * <p>
+     * Version: 1.0
+     * 
+     * @param keyExtractor the function that computes an item's key, which
+     *    must stay the same for as long as the item is in the queue.
+     * @return a new, empty queue.
+     * 
+     * @throws NullPointerException if {@code keyExtractor} is
+     *    {@code null}.
+     */
+    public static <E> ConcurrentHeapPriorityQueue<E> orderedByDoubleKey(
+    		ToDoubleFunction<? super E> keyExtractor)
+    {
+    	return new Builder<E>().doubleKey(keyExtractor).build();
     }
     
     
+    /**
+     * Inserts the specified item into this queue. If the queue is bounded
+     * and full, the item is handled per its {@link OverflowPolicy}.
+     * <p>
+     * Version: 2.0
+     * 
+     * @return {@code true} if the item was inserted; or {@code false} if
+     *    the queue is full, and the item was rejected (or was no smaller
+     *    than the largest item, under {@code EVICT_WORST}).
+     * 
+     * @throws NullPointerException if {@code item} is {@code null}.
+     * @throws ClassCastException if {@code item} can't be compared with the
+     *    queue's items.
+     */
     public boolean offer(E item) {
-    	privOffer(item);
-    	return true;
+    	return privOffer(item, null);
     }
     
     
+    /**
+     * Version: 2.0
+     * 
+     * @throws IllegalStateException if the queue is bounded & full, and
+     *    the item was rejected.
+     * 
+     * @see #offer(Object)
+     */
     public boolean add(E item) {
-    	privOffer(item);
-    	return true;
+    	if (privOffer(item, null))
+    		return true;
+    	throw new IllegalStateException("Queue full");
+    }
+    
+    
+    /**
+     * Inserts the specified item into this queue, and returns a
+     * {@code Handle} that tracks the item while it's in the queue. The
+     * handle may be used to remove the item, or to replace it with an item
+     * of a different priority, in O(log n) time.
+     * <p>
+     * Version: 1.0
+     * 
+     * @param item the item to add.
+     * @return a {@code Handle} on the inserted item; or {@code null} if the
+     *    queue is bounded & full, and the item was rejected.
+     * 
+     * @throws NullPointerException if {@code item} is {@code null}.
+     * @throws ClassCastException if {@code item} can't be compared with the
+     *    queue's items.
+     */
+    public Handle<E> offerHandle(E item) {
+    	Handle<E> handle = new Handle<E>(this, item);
+    	return privOffer(item, handle) ? handle : null;
     }
     
     
+    /**
+     * Version: 2.1
+     * 
+     * @throws IllegalStateException if the queue is bounded, and not all
+     *    of the items could be inserted.
+     * 
+     * @see #offerAll(Collection)
+     */
     public boolean addAll(Collection<? extends E> c) {
+    	int n = offerAll(c);
+    	if (isBounded() && n < c.size())
+    		throw new IllegalStateException("Queue full");
+    	return n > 0;
+    }
+    
+    
+    /**
+     * Inserts all of the items in the specified {@code Collection} into
+     * this queue, as a single batch. The batch's leaf positions are all
+     * reserved in one step of the bit-reversed counter (and so, unless in
+     * {@code LOCK_FREE} mode, under a single hold of the global count lock),
+     * after which its items are propagated up the heap.
+     * <p>
+     * Every item is checked before any is inserted, so if an exception is
+     * thrown, none of the items will have been inserted.
+     * <p>
+     * If the queue is bounded, the items are instead inserted one at a
+     * time, as by {@link #offer(Object)}, since each must be checked
+     * against the bound.
+     * 
+     * @param c the items to insert.
+     * @return the number of items inserted, which is the size of {@code c}
+     *    unless the queue is bounded.
+     * 
+     * @throws NullPointerException if {@code c} or any of its items is
+     *    {@code null}.
+     * @throws ClassCastException if any of {@code c}'s items can't be
+     *    compared with this queue's items.
+     */
+    @SuppressWarnings("unchecked")
+    public int offerAll(Collection<? extends E> c) {
     	if (c == null)
     		throw new NullPointerException();
     	
-    	boolean changed = false;
-    	for (E item : c)
-    		changed |= add(item);
-    	return changed;
+    	Object[] items = c.toArray();
+    	for (Object item : items) {
+    		if (item == null)
+    			throw new NullPointerException();
+    		if (this.comp == null && !(item instanceof Comparable<?>))
+    			throw new ClassCastException(); // 'item' is incomparable.
+    	}
+    	if (items.length == 0)
+    		return 0;
+    	if (isBounded()) {
+    		int n = 0;
+    		for (Object item : items) {
+    			if (privOffer((E) item, null))  // unchecked cast
+    				n++;
+    		}
+    		return n;
+    	}
+    	
+    	if (insertAll(items))
+    		itemsAvailable();
+    	return items.length;
+    }
+    
+    
+    /**
+     * Moves all of the specified queue's items into this queue, and
+     * returns how many were moved. The donor's items are taken out of its
+     * heap in a single batch, w/o any sift (as the bottom items of a
+     * {@link #pollBatch(int)} are), and then inserted into this queue as a
+     * single batch, as by {@link #offerAll(Collection)}. No item is copied,
+     * and neither queue is locked as a whole, so both may be used
+     * concurrently; items inserted into the donor meanwhile may be left in
+     * it. The donor's {@link Handle}s can't follow their items into this
+     * queue, so they're no longer queued.
+     * <p>
+     * If this queue is empty, the donor's items are first heapified
+     * bottom-up, as by {@link #ConcurrentHeapPriorityQueue(Collection,
+     * Comparator, CountingMode, LockPolicy)} (in parallel, if there are
+     * many of them), and laid out in the order in which the batch insert
+     * reserves its leaf positions, so that each item lands in its final
+     * node, and the meld takes O(n) time rather than O(n log n).
+     * <p>
+     * If this queue is bounded, the items are instead inserted one at a
+     * time, as by {@link #offer(Object)}: into whatever room it has, and
+     * then per its {@link OverflowPolicy}. Under {@code REJECT}, the items
+     * it has no room for are added to {@code rejected}. Under
+     * {@code EVICT_WORST}, the items are offered in ascending order, so
+     * that none evicts another of the donor's items: each one evicts this
+     * queue's largest item, if it's smaller, and is otherwise added to
+     * {@code rejected}. (Evicted items are dropped, as by {@code offer()}.
+     * Rejected items aren't given back to the donor, since concurrent
+     * inserts may have refilled it.) So every item taken out of the donor
+     * ends up either in this queue or in {@code rejected}, as long as
+     * {@code rejected} accepts it; as w/ {@link #drainTo(Collection)}, an
+     * exception thrown by {@code rejected} may leave an item in neither.
+     * <p>
+     * Version: 1.2
+     * 
+     * @param other the queue whose items are to be moved into this queue.
+     * @param rejected the collection to which the donor's items that
+     *    aren't moved into this queue are added.
+     * @return the number of items moved into this queue.
+     * 
+     * @throws NullPointerException if {@code other} or {@code rejected}
+     *    is {@code null}.
+     * @throws IllegalArgumentException if {@code other} or
+     *    {@code rejected} is this queue.
+     * @throws ClassCastException if any of the donor's items can't be
+     *    compared with this queue's items, in which case none is moved,
+     *    and they're all added to {@code rejected}.
+     */
+    public int meld(ConcurrentHeapPriorityQueue<E> other,
+    		Collection<? super E> rejected)
+    {
+    	if (other == null || rejected == null)
+    		throw new NullPointerException();
+    	if (other == this || rejected == this)
+    		throw new IllegalArgumentException("Can't meld a queue into "
+    				+ "itself");
+    	
+    	List<E> items = other.detachAll();
+    	if (items.isEmpty())
+    		return 0;
+    	try {
+    		for (E item : items)
+    			checkItem(item);
+    	} catch (ClassCastException e) {
+    		rejected.addAll(items);
+    		throw e;
+    	}
+    	if (isBounded()) {
+    		if (this.overflowPolicy == OverflowPolicy.EVICT_WORST)
+    			items.sort(this::compareData);
+    		int n = 0, nodePos;
+    		for (E item : items) {
+    			long key = keyOf(item);
+    			if ((nodePos = reserveLeaf(this.maxSize)) >= 0) {
+    				if (insertAt(nodePos, item, key, null))
+    					itemsAvailable();
+    			} else if (!offerWhenFull(item, key, null)) {
+    				rejected.add(item);
+    				continue;
+    			}
+    			n++;
+    		}
+    		return n;
+    	}
+    	
+    	if (insertAll(isEmpty() ? heapOrdered(items) : items.toArray()))
+    		itemsAvailable();
+    	return items.size();
+    }
+    
+    
+    /**
+     * Removes up to {@code maxElements} of this queue's minimum items, as a
+     * single batch, and returns them in ascending order.
+     * <p>
+     * <u>Implementation Notes</u>: The batch's bottom positions are all
+     * released in one step of the bit-reversed counter, and their items are
+     * taken out of the heap and sorted. Then each item returned is either
+     * the smallest remaining batch item, or the heap's root item, whichever
+     * is smaller. In the latter case, the largest remaining batch item
+     * replaces the root and is sifted down, as in a single delete. So a
+     * batch costs one counter step, plus at most one sift per item. (The
+     * batch's items aren't visible to other threads while it's underway.)
+     * 
+     * @param maxElements the maximum number of items to remove.
+     * @return a {@code List} of the removed items, in ascending order,
+     *    which is empty if this queue is empty.
+     * 
+     * @throws IllegalArgumentException if {@code maxElements} is less than
+     *    0.
+     */
+    public List<E> pollBatch(int maxElements) {
+    	if (maxElements < 0) {
+    		throw new IllegalArgumentException("maxElements must be >= 0");
+    	}
+    	
+    	List<Handle<E>> handles = new ArrayList<Handle<E>>();
+    	List<E> batch = deleteBottoms(maxElements, handles);
+    	int n = batch.size();
+    	if (n == 0)
+    		return batch;
+    	itemRemoved();
+    	long[] keys = sortBatch(batch, handles);
+    	
+    	List<E> mins = new ArrayList<E>(n);
+    	int lo = 0, hi = n - 1;  // Remaining batch items
+    	while (lo <= hi) {
+    		this.heap.lock(0);
+    		// If smallest batch item is smallest overall, take it
+    		if (this.heap.getTag(0) == EMPTY || compareToNode(batch.get(lo),
+    				(keys.length > 0) ? keys[lo] : 0L, 0) <= 0)
+    		{
+    			this.heap.unlock(0);
+    			markRemoved(handles.get(lo));
+    			mins.add(batch.get(lo++));
+    		}
+    		// Otherwise, take root's item & replace it w/ largest batch item
+    		else {
+    			mins.add(this.heap.getData(0));
+    			markRemoved(this.heap.getHandle(0));
+    			setItem(0, batch.get(hi), (keys.length > 0) ? keys[hi] : 0L);
+    			this.heap.setHandle(0, handles.get(hi--));
+    			this.heap.setTag(0, AVAILABLE);
+    			heapify(0);  // Note: Unlocks the root
+    		}
+    	}
+    	return mins;
     }
     
     
@@ -109,6 +767,66 @@ public class ConcurrentHeapPriorityQueue<E> implements Queue<E> {
     }
     
     
+    /**
+     * Removes this queue's minimum item, asynchronously. If the queue isn't
+     * empty, the returned future is already completed w/ its minimum item.
+     * Otherwise, the future is registered w/ the queue, and completed by
+     * the thread whose insert makes the queue non-empty, so that no thread
+     * has to wait or retry for it. (Non-async dependent stages of the
+     * future are therefore run by the inserting thread.) Registered futures
+     * are completed in the order they were returned.
+     * <p>
+     * A future that's cancelled before it's completed takes no item from
+     * the queue.
+     * <p>
+     * Version: 1.0
+     * 
+     * @return a {@code CompletableFuture} of the removed minimum item.
+     */
+    public CompletableFuture<E> pollAsync() {
+    	E item = delete();
+    	if (item != null)
+    		return CompletableFuture.completedFuture(item);
+    	
+    	CompletableFuture<E> future = new CompletableFuture<E>();
+    	this.asyncWaiters.offerLast(future);
+    	future.whenComplete((result, ex) -> {
+    		if (ex != null)  // Cancelled
+    			this.asyncWaiters.remove(future);
+    	});
+    	// An insert may have completed, & found no waiter, since our delete
+    	completeAsyncWaiters();
+    	return future;
+    }
+    
+    
+    /**
+     * Returns a {@link Flow.Publisher} view of this queue, whose
+     * subscribers consume its items. A subscriber is sent items only as it
+     * requests them: while it has outstanding demand, up to that many items
+     * are deleted at a time, as by {@link #pollBatch(int)}, and sent in
+     * ascending order. Once the queue is empty, the subscription waits on a
+     * {@link #pollAsync()} future, so that the next insert resumes sending
+     * in the inserting thread.
+     * <p>
+     * Each item is sent to only one subscriber, so several subscribers
+     * share the queue's items as competing consumers. A subscription never
+     * completes, as more items may always be inserted; items deleted for a
+     * subscription that's cancelled before they're sent are inserted back.
+     * <p>
+     * Version: 1.0
+     * 
+     * @return a {@code Flow.Publisher} of this queue's items.
+     */
+    public Flow.Publisher<E> publisher() {
+    	return subscriber -> {
+    		if (subscriber == null)
+    			throw new NullPointerException();
+    		subscriber.onSubscribe(new QueueSubscription(subscriber));
+    	};
+    }
+    
+    
     public E remove() {
     	E ret = delete();
     	if (ret != null)
@@ -137,102 +855,121 @@ public class ConcurrentHeapPriorityQueue<E> implements Queue<E> {
      * if it is present. Returns {@code true} if this queue contained the
      * specified element.
      * <p>
-     * Version: 2.0
+     * The element is found by a scan of the heap, so this method takes
+     * O(n) time. An item inserted via {@link #offerHandle(Object)} may be
+     * removed in O(log n) time via its {@link Handle}, instead.
+     * <p>
+     * Version: 3.0
      * 
      * @param o element to be removed from this queue, if present.
      * @return {@code true} if an element was removed as a result of this
      *    call.
      * 
-     * @throws ClassCastException if the type of {@code o} is incompatible
-     *    with this queue.
      * @throws NullPointerException if {@code o} is {@code null}.
      */
-    /*
-     * NOTE: The method is no longer supported, because it can't be implemented correctly without introducing deadlock.
-     *   It would need to call a deleteNode(Node<E> n, int pos) method, which would delete a given Node, while holding
-     *   the 'n' Node's lock.
-     */
     public boolean remove(Object o) {
-    	throw new UnsupportedOperationException();
+    	if (o == null)
+    		throw new NullPointerException();
+    	
+    	return deleteItem(null, o, false);
     }
     
     /**
      * Removes all of this queue's elements that are also contained in the
      * specified {@code Collection<?>}. After this call returns, this
      * queue will contain no elements in common with the specified
-     * {@code Collection<?>}.
+     * {@code Collection<?>}, except for any inserted concurrently.
      * <p>
-     * Version: 2.0
+     * Version: 3.0
      * 
      * @param c {@code Collection<?>} containing elements to be removed
      *    from this queue.
      * @return {@code true} if this queue changed as a result of the call.
      * 
-     * @throws UnsupportedOperationException because this operation is not
-     *    supported.
+     * @throws NullPointerException if {@code c} is {@code null}.
      */
     public boolean removeAll(Collection<?> c) {
-    	throw new UnsupportedOperationException();
+    	if (c == null)
+    		throw new NullPointerException();
+    	
+    	boolean changed = false;
+    	for (E item : new SnapshotCreator().getList()) {
+    		if (c.contains(item))
+    			changed |= deleteItem(null, item, true);
+    	}
+    	return changed;
     }
     
     /**
-     * Version: 1.0
+     * Retains only the elements in this queue that are contained in the
+     * specified {@code Collection<?>}, except for any inserted
+     * concurrently with this call.
+     * <p>
+     * Version: 2.0
+     * 
+     * @param c {@code Collection<?>} containing elements to be retained in
+     *    this queue.
+     * @return {@code true} if this queue changed as a result of the call.
      * 
-     * @throws UnsupportedOperationException because this operation is not
-     *    supported.
+     * @throws NullPointerException if {@code c} is {@code null}.
      */
     public boolean retainAll(Collection<?> c) {
-    	throw new UnsupportedOperationException();
-    }
-    
-    
-    public int drainTo(Collection<? super E> c) {
     	if (c == null)
     		throw new NullPointerException();
     	
-    	int count = 0;
-    	while (!isEmpty()) {
-    		try {
-    			c.add(deleteMin());
-    			count++;
-    		} catch (NoSuchElementException e) {
-    			break;
-    		}
+    	boolean changed = false;
+    	for (E item : new SnapshotCreator().getList()) {
+    		if (!c.contains(item))
+    			changed |= deleteItem(null, item, true);
     	}
-    	return count;
+    	return changed;
+    }
+    
+    
+    /**
+     * Version: 2.0
+     * 
+     * @see #pollBatch(int)
+     */
+    public int drainTo(Collection<? super E> c) {
+    	return drainTo(c, Integer.MAX_VALUE);
     }
     
     
+    /**
+     * Version: 2.0
+     * 
+     * @see #pollBatch(int)
+     */
     public int drainTo(Collection<? super E> c, int maxElements) {
     	if (c == null)
     		throw new NullPointerException();
+    	if (maxElements <= 0)
+    		return 0;
     	
-    	int count = 0;
-    	while (!isEmpty() && maxElements-- > 0) {
-    		try {
-    			c.add(deleteMin());
-    			count++;
-    		} catch (NoSuchElementException e) {
-    			break;
-    		}
-    	}
-    	return count;
+    	List<E> batch = pollBatch(maxElements);
+    	c.addAll(batch);
+    	return batch.size();
     }
     
     
+    /**
+     * Removes all of the elements from this queue, by deleting them one at
+     * a time, and then trims its heap, as by {@link #trimToSize()}.
+     * Elements inserted concurrently with this call may or may not be
+     * removed.
+     * <p>
+     * Version: 2.1
+     */
     public void clear() {
-    	this.countLock.writeLock().lock();
-    	try {
-    		this.count.reset();
-    		this.heap.clear();
-    	} finally {
-    		this.countLock.writeLock().unlock();
-    	}
+    	while (delete() != null)
+    		;
+    	trimToSize();
     }
     
     
     public boolean contains(Object o) {
-    	return indexOf(o) >= 0;
+    	return indexOf(o, false) >= 0;
     }
     
     
@@ -261,8 +998,26 @@ public class ConcurrentHeapPriorityQueue<E> implements Queue<E> {
     }
     
     
+    /**
+     * Returns a {@code Spliterator} over the elements in this queue, in no
+     * particular order. The {@code Spliterator} traverses a snapshot of the
+     * queue, taken when it's first traversed, split or sized, so it reports
+     * {@link Spliterator#SIZED}, {@link Spliterator#SUBSIZED},
+     * {@link Spliterator#NONNULL} & {@link Spliterator#CONCURRENT}. It
+     * splits into halves of the snapshot, so {@code parallelStream()} may
+     * be used to traverse a large queue.
+     * <p>
+     * Version: 1.0
+     * 
+     * @return a {@code Spliterator} over the elements in this queue.
+     */
+    public Spliterator<E> spliterator() {
+    	return new SnapshotSpliterator(null, 0, -1);
+    }
+    
+    
     public Object[] toArray() {
-    	return new SnapshotCreator().getList().toArray();
+    	return new SnapshotCreator().toArray();
     }
     
     
@@ -272,6 +1027,9 @@ public class ConcurrentHeapPriorityQueue<E> implements Queue<E> {
     
     
     public int size() {
+    	if (this.atomicCount != null)
+    		return this.atomicCount.getNonreversedCount();
+    	
     	this.countLock.readLock().lock();
     	try {
     		return this.count.getNonreversedCount();
@@ -287,27 +1045,427 @@ public class ConcurrentHeapPriorityQueue<E> implements Queue<E> {
     public boolean isEmpty() {
 		return privPeek() == null;
     }
+    
+    
+    /**
+     * Returns the maximum number of items this queue may hold.
+     * 
+     * @return the queue's capacity, if it's bounded; or
+     *    {@code Integer.MAX_VALUE} if it's unbounded.
+     */
+    public int getMaxSize() {
+    	return this.maxSize;
+    }
+    
+    
+    /**
+     * Returns how an insert into this queue is handled when it's full.
+     * (Only applies if the queue is bounded.)
+     */
+    public OverflowPolicy getOverflowPolicy() {
+    	return this.overflowPolicy;
+    }
+    
+    
+    /**
+     * Trims the storage of this queue's heap to the rows needed to hold its
+     * current items, dropping each trailing row w/ no items, down to its
+     * initial capacity. Concurrent inserts and deletes may proceed
+     * meanwhile, but an insert into a row being dropped waits until it has
+     * been dropped, and then reallocates it. Has no effect on a bounded
+     * queue, whose heap is allocated up front.
+     * <p>
+     * Version: 1.0
+     */
+    public void trimToSize() {
+    	if (!isBounded())
+    		trim(0, true);
+    }
+    
+    
+    /**
+     * Returns a snapshot of the statistics this queue has collected since
+     * it was created, if it was built w/
+     * {@link Builder#collectStats(boolean)}. The snapshot's counters are
+     * read one at a time, while operations may be underway, so they're
+     * only mutually consistent while the queue is quiescent.
+     * <p>
+     * Version: 1.0
+     * 
+     * @return a snapshot of this queue's statistics.
+     * 
+     * @throws IllegalStateException if this queue doesn't collect
+     *    statistics.
+     */
+    public Stats getStats() {
+    	StatsRecorder stats = this.stats;
+    	if (stats == null)
+    		throw new IllegalStateException("Statistics aren't collected");
+    	return new Stats(stats);
+    }
+    
+    
+    /**
+     * Registers a {@link ConcurrentHeapPriorityQueueMXBean} for this queue's
+     * statistics w/ the platform {@code MBeanServer}, under the specified
+     * name. Each of its attributes is read from a fresh {@link Stats}
+     * snapshot. It may be unregistered via the server's
+     * {@code unregisterMBean(ObjectName)}.
+     * <p>
+     * Version: 1.0
+     * 
+     * @param name the MBean's object name.
+     * 
+     * @throws JMException if the MBean couldn't be registered (e.g., if
+     *    {@code name} is already registered).
+     * @throws IllegalStateException if this queue doesn't collect
+     *    statistics.
+     * @throws NullPointerException if {@code name} is {@code null}.
+     */
+    public void registerMBean(ObjectName name) throws JMException {
+    	if (name == null)
+    		throw new NullPointerException();
+    	if (this.stats == null)
+    		throw new IllegalStateException("Statistics aren't collected");
+    	ManagementFactory.getPlatformMBeanServer().registerMBean(
+    			new StatsMBean(), name);
+    }
 
     
-    private void privOffer(E item) {
+    /**
+     * Version: 2.0
+     * 
+     * @param handle the item's {@code Handle}, or {@code null} if it has
+     *    none.
+     * @return {@code true} if the item was inserted.
+     */
+    private boolean privOffer(E item, Handle<E> handle) {
+    	checkItem(item);
+    	long key = keyOf(item);
+    	StatsRecorder stats = this.stats;
+    	long start = (stats != null) ? System.nanoTime() : 0L;
+    	
+    	int nodePos = reserveLeaf(this.maxSize);
+    	if (nodePos < 0) {
+    		boolean added = offerWhenFull(item, key, handle);
+    		if (stats != null)
+    			stats.operationDone("offer", start);
+    		return added;
+    	}
+    	boolean wasEmpty = insertAt(nodePos, item, key, handle);
+    	if (stats != null)
+    		stats.operationDone("offer", start);
+    	if (wasEmpty)
+    		itemsAvailable();
+    	return true;
+    }
+    
+    /**
+     * Handles an insert into a full, bounded queue, per its overflow
+     * policy. Under {@code EVICT_WORST}, the largest item is the last one
+     * in 'ranked', and is removed in favor of {@code item}, unless
+     * {@code item} is no smaller. If the largest item is removed by
+     * another thread first, or a concurrent insert takes the freed
+     * position, the eviction is repeated.
+     * <p>
+     * Version: 2.0
+     * 
+     * @param key the item's key, in key mode.
+     * @return {@code true} if the item was inserted.
+     */
+    private boolean offerWhenFull(E item, long key, Handle<E> handle) {
+    	if (this.overflowPolicy != OverflowPolicy.EVICT_WORST)
+    		return false;
+    	
+    	while (true) {
+    		Map.Entry<Rank<E>, Handle<E>> worst = this.ranked.lastEntry();
+    		if (worst != null) {
+    			// Keep the smallest items, so drop 'item' if it's the largest
+    			if (compareRank(item, key, worst.getKey()) >= 0)
+    				return false;
+    			deleteItem(worst.getValue(), null, true);
+    		}
+    		int nodePos = reserveLeaf(this.maxSize);
+    		if (nodePos >= 0) {
+    			if (insertAt(nodePos, item, key, handle))
+    				itemsAvailable();
+    			return true;
+    		}
+    	}
+    }
+    
+    /**
+     * Gives the specified item a {@code Handle}, unless it already has
+     * one, and ranks it in 'ranked', unless it's already ranked (i.e., it's
+     * being put back after a delete took it from the bottom of the heap).
+     * 
+     * @param key the item's key, in key mode.
+     * @param handle the item's {@code Handle}, or {@code null}.
+     * @return the item's {@code Handle}.
+     */
+    private Handle<E> rank(E item, long key, Handle<E> handle) {
+    	if (handle == null)
+    		handle = new Handle<E>(this, item);
+    	if (handle.rank == null) {
+    		Rank<E> rank = new Rank<E>(item, key,
+    				this.rankSeq.getAndIncrement());
+    		handle.rank = rank;
+    		this.ranked.put(rank, handle);
+    	}
+    	return handle;
+    }
+    
+    /**
+     * Removes the specified {@code Handle}'s item from 'ranked', if it's
+     * there.
+     */
+    private void unrank(Handle<E> handle) {
+    	Rank<E> rank = handle.rank;
+    	if (rank != null) {
+    		handle.rank = null;
+    		this.ranked.remove(rank);
+    	}
+    }
+    
+    /**
+     * Compares the specified item to a ranked item.
+     * 
+     * @param key the item's key, in key mode.
+     */
+    private int compareRank(E item, long key, Rank<E> rank) {
+    	return (this.keyFn != null) ? Long.compare(key, rank.key)
+    			: compareData(item, rank.item);
+    }
+    
+    /**
+     * Orders 'ranked': by item, and then by when the items were ranked.
+     */
+    private int compareRanks(Rank<E> rank1, Rank<E> rank2) {
+    	int cmp = compareRank(rank1.item, rank1.key, rank2);
+    	return (cmp != 0) ? cmp : Long.compare(rank1.seq, rank2.seq);
+    }
+    
+    /**
+     * Checks that the specified item may be inserted into this queue.
+     * 
+     * @throws NullPointerException if {@code item} is {@code null}.
+     * @throws ClassCastException if {@code item} can't be compared.
+     */
+    private void checkItem(E item) {
     	if (item == null)
     		throw new NullPointerException();
     	if (this.comp == null && !(item instanceof Comparable<?>))
     		throw new ClassCastException(); // 'item' is incomparable.
-    		
-    	insert(item);
+    }
+    
+    /**
+     * Called after an insert into an empty queue has completed: hands its
+     * items to any waiting {@link #pollAsync()} futures, and then signals
+     * any consumers blocked on the empty queue.
+     */
+    private void itemsAvailable() {
+    	if (!this.asyncWaiters.isEmpty())
+    		completeAsyncWaiters();
+    	signalNotEmpty();
+    }
+    
+    /**
+     * Completes the futures of waiting {@link #pollAsync()} calls, in
+     * order, w/ items deleted from this queue, until either runs out.
+     * <p>
+     * <u>Implementation Notes</u>: A future is taken before an item is
+     * deleted for it, so that concurrent callers never delete an item w/
+     * no future to complete. If the queue is then found to be empty, the
+     * future is put back, and the queue checked once more, since an insert
+     * may have completed in the meantime, and found no future waiting.
+     * <p>
+     * Version: 1.1
+     */
+    private void completeAsyncWaiters() {
+    	CompletableFuture<E> waiter;
+    	E item = null;
+    	while ((waiter = this.asyncWaiters.pollFirst()) != null) {
+    		if (waiter.isDone())
+    			continue;  // Cancelled
+    		if (item == null && (item = delete()) == null) {
+    			this.asyncWaiters.offerFirst(waiter);
+    			if ((item = delete()) == null)
+    				return;
+    			continue;
+    		}
+    		if (waiter.complete(item))
+    			item = null;
+    	}
+    	// The last waiter was cancelled after we deleted its item
+    	if (item != null)
+    		putBack(item);
+    }
+    
+    /**
+     * Puts back an item that was deleted for a {@link #pollAsync()} future
+     * or a {@link #publisher()} subscriber, which didn't take it after all.
+     * 
+     * @see #putBack(List)
+     */
+    private void putBack(E item) {
+    	putBack(Collections.singletonList(item));
+    }
+    
+    /**
+     * Puts back items that were deleted for {@link #pollAsync()} futures or
+     * {@link #publisher()} subscribers, which didn't take them after all.
+     * The items are first handed, in order, to the next waiting futures
+     * (which include those of subscribers waiting on an empty queue), so
+     * that they needn't re-enter the heap. Only the rest are inserted back,
+     * as a batch, which ignores the queue's bound, since concurrent inserts
+     * may already have taken the items' places.
+     * <p>
+     * Version: 2.0
+     */
+    private void putBack(List<E> items) {
+    	int i = 0, n = items.size();
+    	CompletableFuture<E> waiter;
+    	while (i < n && (waiter = this.asyncWaiters.pollFirst()) != null) {
+    		if (waiter.complete(items.get(i)))
+    			i++;  // Otherwise, it was cancelled
+    	}
+    	if (i < n && insertAll(items.subList(i, n).toArray()))
+    		itemsAvailable();
+    }
+    
+    /**
+     * Called after an insert into an empty queue has completed, so that
+     * the inserted item is visible to deletes. Does nothing by default.
+     * Subclasses that block consumers on an empty queue override this
+     * method to wake them, so that only inserts causing an empty to
+     * non-empty transition pay for a signal.
+     */
+    void signalNotEmpty() {
+    }
+
+    /**
+     * Called after items have been removed from a bounded queue. Does
+     * nothing by default. Subclasses that block producers on a full queue
+     * override this method to wake them.
+     */
+    void signalNotFull() {
+    }
+
+    /**
+     * Signals a removal to producers waiting for space, if the queue is
+     * bounded.
+     */
+    private void itemRemoved() {
+    	if (isBounded())
+    		signalNotFull();
+    	else if (this.trimOnDrain)
+    		trimIfBelowLowWater();
+    }
+
+    /**
+     * Trims the heap if the queue has fallen to its low-water mark, while
+     * keeping room for it to double in size, so that a queue whose size
+     * hovers about the mark doesn't repeatedly drop & reallocate a row.
+     * The trim is skipped if any lock it needs is held, so a delete never
+     * waits for it.
+     */
+    private void trimIfBelowLowWater() {
+    	int cap = this.heap.capacity();
+    	if (cap <= this.heap.baseCapacity())
+    		return;
+    	int n = size();
+    	if (n <= (cap >>> LOW_WATER_SHIFT))
+    		trim(n << 1, false);
+    }
+
+    /**
+     * Drops the heap's trailing rows w/ no items, while its capacity
+     * w/o them would still be at least {@code minCapacity}.
+     * <p>
+     * <u>Notes on Locking</u>: Unless in {@code LOCK_FREE} mode, the
+     * 'countLock' is held throughout, so that no leaf position may be
+     * reserved meanwhile.
+     * 
+     * @param wait whether to wait for the locks the trim needs, rather
+     *    than to skip (or stop) the trim if any is held.
+     */
+    private void trim(int minCapacity, boolean wait) {
+    	if (this.atomicCount != null) {
+    		this.heap.trim(minCapacity, wait,
+    				this.atomicCount::getNonreversedCount);
+    		return;
+    	}
+    	Lock lock = this.countLock.writeLock();
+    	if (wait)
+    		lock.lock();
+    	else if (!lock.tryLock())
+    		return;
+    	try {
+    		this.heap.trim(minCapacity, wait, this.count::getNonreversedCount);
+    	} finally {
+    		lock.unlock();
+    	}
+    }
+
+    private boolean isBounded() {
+    	return this.maxSize != Integer.MAX_VALUE;
+    }
+    
+    /**
+     * Acquires the write lock of 'countLock', and records whether, & for
+     * how long, it was waited for, if statistics are collected.
+     */
+    private void lockCount() {
+    	Lock lock = this.countLock.writeLock();
+    	StatsRecorder stats = this.stats;
+    	if (stats == null) {
+    		lock.lock();
+    	} else if (lock.tryLock()) {
+    		stats.countLockAcquired();
+    	} else {
+    		long start = System.nanoTime();
+    		lock.lock();
+    		stats.countLockWaited(System.nanoTime() - start);
+    	}
+    }
+    
+    /**
+     * Starts collecting statistics. Only called by a {@link Builder},
+     * before the queue is returned.
+     */
+    private void enableStats(long slowOperationNanos) {
+    	this.stats = new StatsRecorder(slowOperationNanos);
+    	this.heap.stats = this.stats;
+    }
+
+    /**
+     * Returns the number of nodes currently allocated in the heap.
+     */
+    int heapCapacity() {
+    	return this.heap.capacity();
+    }
+
+    /**
+     * Called after an item has been propagated up to the root, whether by
+     * an insert or by a priority update, or after the root's item has been
+     * cancelled or updated in place, so that the queue may have a new
+     * minimum. (Not called by a delete of the minimum item, which only the
+     * deleting thread needs to know about.) Does nothing by default.
+     * Subclasses that wait on the root's item override this method to
+     * wake their waiters.
+     */
+    void signalNewRoot() {
     }
 
     private E privPeek() {
-    	Node<E> root = this.heap.get(0);
-    	root.lock.lock();
+    	this.heap.lock(0);
     	try {
-    		if (root.getTag() != Tag.EMPTY)
-    			return root.getData();
+    		if (this.heap.getTag(0) != EMPTY)
+    			return this.heap.getData(0);
     		else
     			return null;
     	} finally {
-    		root.lock.unlock();
+    		this.heap.unlock(0);
     	}
     }
     
@@ -315,648 +1473,2631 @@ public class ConcurrentHeapPriorityQueue<E> implements Queue<E> {
      * Returns the position of the specified item in the min-heap's backing
      * array, or -1 if the item was not found.
      * <p>
-     * Version: 1.0.1
+     * Version: 1.2
      * 
      * @param o the item for which to find the position.
+     * @param sameOnly whether only {@code o} itself matches, rather than any
+     *    item equal to it.
      * @return the position of the specified item in the min-heap's backing
      *    array, or -1 if the item was not found.
      * 
      * @throws NullPointerException if {@code o} is {@code null}.
      */
-    private int indexOf(Object o) {
+    private int indexOf(Object o, boolean sameOnly) {
     	if (o == null)
     		throw new NullPointerException();
     	
     	E data;
-    	int i = 0;
-    	for (Node<E> n : this.heap) {
-    		if (n != null) {
-	    		n.lock.lock();
-	    		try {
-		    		if (n.getTag() != Tag.EMPTY)
-		    			data = n.getData();
-		    		else
-		    			data = null;
-	    		} finally {
-	    			n.lock.unlock();
-	    		}
-	    		if (data != null && (data == o || data.equals(o)))
-	    			return i;
-	    	}
-    		i++;
+    	int cap = this.heap.capacity();
+    	for (int i = 0; i < cap; i++) {
+    		if (!this.heap.lockIfPresent(i))
+    			break;  // The rest of the heap has been trimmed
+    		try {
+	    		if (this.heap.getTag(i) != EMPTY)
+	    			data = this.heap.getData(i);
+	    		else
+	    			data = null;
+    		} finally {
+    			this.heap.unlock(i);
+    		}
+    		if (data != null && matches(data, o, sameOnly))
+    			return i;
     	}
     	return -1;  // Indicate 'o' wasn't found
     }
     
     /**
-	 * Version: 1.2
+     * Inserts the specified item, regardless of any bound on the queue's
+     * size. This is only used to put back an item that a delete has just
+     * taken out. The item's leaf position is normally the one its delete
+     * just freed, but if concurrent inserts have filled a bounded queue in
+     * the meantime, the queue is left over its bound, until enough items
+     * are deleted. (No item is evicted to make up for it.)
+     * 
+     * @param key the item's key, in key mode.
+     * @param handle the item's {@code Handle}, or {@code null}.
+     * @return {@code true} if the queue was empty when the item's leaf
+     *    position was reserved (i.e., it was reserved at the root).
+     */
+    private boolean insert(E item, long key, Handle<E> handle) {
+    	int nodePos = reserveLeaf(Integer.MAX_VALUE);
+    	if (nodePos < 0)
+    		throw new IllegalStateException("Queue full");
+    	return insertAt(nodePos, item, key, handle);
+    }
+    
+    /**
+     * Reserves the next leaf position for an insert, unless the queue
+     * already holds {@code limit} items, and returns it w/ its node locked.
+     * <p>
+     * <u>Notes on Locking</u>: Unless in {@code LOCK_FREE} mode, the
+     * 'countLock' is held until the leaf node has been locked. In that
+     * mode, the reservation is instead pending until the leaf has been
+     * filled (in {@code insertAt()}).
+     * 
+     * @param limit the size at which the queue is full.
+     * @return the leaf's position; or -1 if the queue is full.
+     */
+    private int reserveLeaf(int limit) {
+		int nodePos;    // pos. of the node being inserted, in the heap
+		if (this.atomicCount != null) {
+			// Reserve the next leaf insert pos. w/o taking 'countLock'
+			nodePos = this.atomicCount.tryReserveIncrement(limit);
+			if (nodePos < 0)
+				return -1;
+			lockReservedNode(nodePos);
+		} else {
+    		lockCount();
+    		try {
+    			if (this.count.getNonreversedCount() >= limit)
+    				return -1;
+    			// Get the next leaf insert pos. from the bit-reversed counter
+    			nodePos = this.count.getAndIncrement();
+    			// Ensure sufficient heap capacity
+    			this.heap.ensureCapacity(nodePos + 1);
+    			// Lock the (EMPTY) node at 'nodePos'
+    			this.heap.lock(nodePos);
+    		} finally {
+    			this.countLock.writeLock().unlock();
+    		}
+		}
+		return nodePos;
+    }
+    
+    /**
+	 * Version: 1.9
 	 * <p>
-	 * Notes on Locking: The 'countLock' is held until we've acquired
-	 *   'node's lock, and is then released. The 'node' lock is first held
-	 *   while its members are set, and is then released. While 'node' isn't
+	 * Notes on Locking: The reserved leaf node's lock is first held while
+	 *   its members are set, and is then released (which, in LOCK_FREE
+	 *   mode, completes the leaf's reservation). While 'node' isn't
 	 *   root & its data is smaller than its parent's data, 'parent' is
 	 *   locked, then 'node' 
+	 * 
+	 * @param nodePos the leaf position reserved by reserveLeaf(), whose
+	 *    node is locked.
+	 * @param key the item's key, in key mode.
+	 * @param handle the item's {@code Handle}, or {@code null}.
+	 * @return {@code true} if the queue was empty when the item's leaf
+	 *    position was reserved (i.e., it was reserved at the root).
 	 */
-    private void insert(E item) {
+    private boolean insertAt(int nodePos, E item, long key,
+    		Handle<E> handle)
+    {
     	// Get our current Thread's ID, which is used to uniquely identify which
-    	// thread is inserting the new Node. 
+    	// thread is inserting the new item.
     	long threadID = Thread.currentThread().getId();
-		Node<E> node;    // Node being inserted w/ its data equal to 'item'  
-		int nodePos;    // 'node's pos. in the backing array-based heap 
-    	this.countLock.writeLock().lock();
-    	try {
-    		// Get the next leaf insert pos. from the bit-reversed counter
-    		nodePos = this.count.getAndIncrement();
-    		// Ensure sufficient heap capacity
-    		ensureCapacity(nodePos + 1);
-    		// Get 'node' from 'nodePos', which may be 'null' or Tag.EMPTY:
-    		node = this.heap.get(nodePos);    		
-    		// If 'node' is 'null', create new Node & put in the heap:
-    		if (node == null) {
-    			node = new Node<E>();
-    			node.lock.lock(); // Lock the new node before placing it in heap
-    			this.heap.set(nodePos, node); 
-    		} else {
-    			node.lock.lock();
-    		}
-    	} finally {
-    		this.countLock.writeLock().unlock();
-    	}
 		try {
-			// Set 'node's data to the inserting 'item'
-			node.setData(item);
-			// Set its Tag to current Thread's ID
-	    	node.setTag(Tag.newThreadIDTag(threadID));
+			if (this.ranked != null)
+				handle = rank(item, key, handle);
+			// Set the node's data to the inserting 'item'
+			setItem(nodePos, item, key);
+			this.heap.setHandle(nodePos, handle);
+			// Set its tag to current Thread's ID
+	    	this.heap.setTag(nodePos, threadID);
 		} finally {
-			node.lock.unlock();
+			this.heap.unlock(nodePos);
+			if (this.atomicCount != null)
+				this.atomicCount.completeIncrement();
 		}
 		
-		// Propagate 'node' towards heap's root while its data is "less than"
-		// its parent's.
-		nodePos = propagateInsert(nodePos, node);
-		
-    	// If 'node' is now root, set its Tag to Tag.AVAILABLE:
-    	if (nodePos == 0) {
-    		Node<E> root = this.heap.get(0);
-    		root.lock.lock();
+		// Reserving the root means the queue was empty
+		boolean wasEmpty = (nodePos == 0);
+		// Propagate the item towards heap's root while its data is "less
+		// than" its parent's.
+		propagateInsert(nodePos, threadID);
+    	return wasEmpty;
+    }
+    
+    /**
+     * Inserts the specified items as a single batch. Each item is given a
+     * unique tag from 'batchTagSeq', since the current thread's ID can
+     * only identify one in-flight item.
+     * <p>
+     * <u>Notes on Locking</u>: Unless in {@code LOCK_FREE} mode, the
+     * 'countLock' is held until every item has been placed in its reserved
+     * leaf node, each of which is locked only while being filled. (In that
+     * mode, the batch's reservation is pending until then, instead.)
+     * 
+     * @param items the non-{@code null}, comparable items to insert.
+     * @return {@code true} if the queue was empty when the batch's leaf
+     *    positions were reserved.
+     */
+    @SuppressWarnings("unchecked")
+    private boolean insertAll(Object[] items) {
+    	int n = items.length;
+    	long firstTag = -2L - this.batchTagSeq.getAndAdd(n);
+    	int[] positions = new int[n];  // Our items' positions
+    	// In key mode, compute the items' keys before taking any lock
+    	long[] keys = new long[(this.keyFn != null) ? n : 0];
+    	for (int i = 0; i < keys.length; i++)
+    		keys[i] = keyOf((E) items[i]);  // unchecked cast
+    	int pos;
+    	if (this.atomicCount != null) {
+    		// Reserve all of the leaf positions in one CAS
+    		int first = this.atomicCount.reserveAddNonreversed(n);
+    		try {
+    			for (int i = 0; i < n; i++) {
+    				pos = positions[i] = AtomicHeapBitReversedCounter
+    						.toReversed(first + i);
+    				lockReservedNode(pos);
+    				setBatchItem(pos, (E) items[i],  // unchecked cast
+    						(keys.length > 0) ? keys[i] : 0L);
+    				this.heap.setTag(pos, firstTag - i);
+    				this.heap.unlock(pos);
+    			}
+    		} finally {
+    			this.atomicCount.completeIncrement();
+    		}
+    	} else {
+    		lockCount();
+    		try {
+    			for (int i = 0; i < n; i++) {
+    				pos = positions[i] = this.count.getAndIncrement();
+    				this.heap.ensureCapacity(pos + 1);
+    				this.heap.lock(pos);
+    				setBatchItem(pos, (E) items[i],  // unchecked cast
+    						(keys.length > 0) ? keys[i] : 0L);
+    				this.heap.setTag(pos, firstTag - i);
+    				this.heap.unlock(pos);
+    			}
+    		} finally {
+    			this.countLock.writeLock().unlock();
+    		}
+    	}
+    	// Reserving the root means the queue was empty
+    	boolean wasEmpty = (positions[0] == 0);
+    	
+    	propagateBatch(positions, firstTag);
+    	return wasEmpty;
+    }
+    
+    /**
+     * Sets the item of a batch insert's (or a bulk construction's) node,
+     * and its {@code Handle}, if the queue ranks its items.
+     * 
+     * @param key the item's key, in key mode.
+     */
+    private void setBatchItem(int pos, E item, long key) {
+    	setItem(pos, item, key);
+    	if (this.ranked != null)
+    		this.heap.setHandle(pos, rank(item, key, null));
+    }
+    
+    /**
+     * Removes up to {@code maxElements} items from the bottom of the heap,
+     * as a single batch, and returns them in no particular order.
+     * <p>
+     * <u>Notes on Locking</u>: Unless in {@code LOCK_FREE} mode, the
+     * 'countLock' is held until every reserved bottom node has been
+     * emptied, each of which is locked only while being emptied. (In that
+     * mode, the batch's reservation is pending until then, instead.)
+     * 
+     * @param maxElements the maximum number of items to remove.
+     * @param handles a list, to which the removed items' {@code Handle}s
+     *    (or {@code null}s) are appended, in the same order as the items.
+     * @return the removed items, of which there are {@code maxElements},
+     *    or fewer if the queue's size was less than {@code maxElements}.
+     */
+    private List<E> deleteBottoms(int maxElements,
+    		List<Handle<E>> handles)
+    {
+    	List<E> items;
+    	int pos;
+    	if (this.atomicCount != null) {
+    		// Reserve all of the bottom positions in one CAS
+    		int prev = this.atomicCount.reserveSubtractAtMostNonreversed(
+    				maxElements);
+    		int n = Math.min(prev, maxElements);
+    		items = new ArrayList<E>(n);
+    		if (n == 0)
+    			return items;
+    		try {
+    			for (int i = 1; i <= n; i++) {
+    				pos = AtomicHeapBitReversedCounter.toReversed(prev - i);
+    				lockReservedNode(pos);
+    				handles.add(this.heap.getHandle(pos));
+    				items.add(takeItem(pos));
+    				this.heap.unlock(pos);
+    			}
+    		} finally {
+    			this.atomicCount.completeDecrement();
+    		}
+    	} else {
+    		lockCount();
+    		try {
+    			int n = Math.min(this.count.getNonreversedCount(),
+    					maxElements);
+    			items = new ArrayList<E>(n);
+    			for (int i = 0; i < n; i++) {
+    				pos = this.count.decrementAndGet();
+    				this.heap.lock(pos);
+    				handles.add(this.heap.getHandle(pos));
+    				items.add(takeItem(pos));
+    				this.heap.unlock(pos);
+    			}
+    		} finally {
+    			this.countLock.writeLock().unlock();
+    		}
+    	}
+    	return items;
+    }
+    
+    /**
+     * Takes all of this queue's items out of its heap, as a single batch
+     * delete of its bottom nodes, and returns them in no particular order.
+     * Their {@code Handle}s are marked as no longer queued.
+     */
+    private List<E> detachAll() {
+    	List<Handle<E>> handles = new ArrayList<Handle<E>>();
+    	List<E> items = deleteBottoms(Integer.MAX_VALUE, handles);
+    	if (items.isEmpty())
+    		return items;
+    	itemRemoved();
+    	for (Handle<E> handle : handles)
+    		markRemoved(handle);
+    	return items;
+    }
+    
+    /**
+     * Returns the specified items in the order in which a batch insert
+     * into an empty heap reserves its leaf positions, w/ the items already
+     * heap-ordered in those positions. The items are heapified bottom-up,
+     * as by {@link #buildHeap(Object[])}, in a scratch queue w/ this
+     * queue's ordering, whose nodes are then read back in counter order.
+     */
+    private Object[] heapOrdered(List<E> items) {
+    	ConcurrentHeapPriorityQueue<E> scratch =
+    			new ConcurrentHeapPriorityQueue<E>(items.toArray(),
+    					DEFAULT_INIT_CAP, this.comp, CountingMode.LOCK_FREE,
+    					LockPolicy.SPIN_THEN_PARK, Integer.MAX_VALUE,
+    					OverflowPolicy.REJECT, this.keyFn);
+    	Object[] ordered = new Object[items.size()];
+    	for (int i = 0; i < ordered.length; i++) {
+    		ordered[i] = scratch.heap.getData(
+    				AtomicHeapBitReversedCounter.toReversed(i));
+    	}
+    	return ordered;
+    }
+    
+    /**
+     * Removes and returns the minimum item in this queue.
+     * <p>
+     * Version: 3.0
+     * 
+     * @return the minimum item in this queue, after removing it; or
+     *    {@code null} if the queue is empty.
+     */
+    private E delete() {
+    	StatsRecorder stats = this.stats;
+    	long start = (stats != null) ? System.nanoTime() : 0L;
+    	E item;
+    	try {
+    		item = deleteMin(null);
+    	} catch (NoSuchElementException e) {
+    		return null;
+    	}
+    	itemRemoved();
+    	if (stats != null)
+    		stats.operationDone("poll", start);
+    	return item;
+    }
+
+    /**
+     * Removes and returns the minimum item in this queue, only if it
+     * satisfies the specified condition. The condition is tested on the
+     * root's item while its node is locked, so that no other item may be
+     * removed in its place.
+     * <p>
+     * Version: 1.0
+     * 
+     * @param condition the condition the minimum item must satisfy.
+     * @return the minimum item in this queue, after removing it; or
+     *    {@code null} if the queue is empty, or its minimum item doesn't
+     *    satisfy {@code condition}.
+     */
+    E pollIf(Predicate<? super E> condition) {
+    	// Check first w/o reserving a bottom node, which would have to be
+    	// put back if the condition fails.
+    	E first = privPeek();
+    	if (first == null || !condition.test(first))
+    		return null;
+    	E item;
+    	try {
+    		item = deleteMin(condition);
+    	} catch (NoSuchElementException e) {
+    		return null;
+    	}
+    	if (item != null)
+    		itemRemoved();
+    	return item;
+    }
+
+    /**
+     * Removes the item tracked by the specified {@code Handle}, or if it's
+     * {@code null}, an item matching {@code o}, wherever it is in the heap.
+     * This is a generalized version of deleteMin(), which replaces the
+     * prior delete(int) method.
+     * <p>
+     * Version: 3.0
+     * <p>
+     * <u>Notes on Locking</u>: As in deleteMin(), a bottom node is reserved
+     * & emptied first, and is unlocked before the item's node is locked.
+     * So no lock is ever held while waiting for another, except in the
+     * heap's top-down locking order. The bottom item then replaces the
+     * removed item. If it's smaller than the removed item, it may have to
+     * rise, so it's tagged w/ the current thread's ID and propagated up,
+     * exactly as though it had just been inserted there. Otherwise, it's
+     * sifted down, as in deleteMin(). While the item's node is tagged by
+     * another thread's propagation, we wait (w/o holding any lock) for that
+     * to complete.
+     * <p>
+     * If the item is removed by another thread in the meantime, the bottom
+     * item is re-inserted.
+     * 
+     * @param handle the {@code Handle} of the item to remove, or
+     *    {@code null} to remove an item matching {@code o}.
+     * @param o the item to remove, if {@code handle} is {@code null}.
+     * @param sameOnly whether only {@code o} itself matches, rather than any
+     *    item equal to it.
+     * @return {@code true} if an item was removed.
+     */
+    private boolean deleteItem(Handle<E> handle, Object o, boolean sameOnly) {
+    	// Stop if the item isn't in the heap, before disturbing the heap
+    	if (findItem(handle, o, sameOnly) < 0)
+    		return false;
+    	
+    	/* Grab an item from the bottom of the heap to replace the to-be-deleted
+    	 * item. */
+    	int bottomPos = reserveBottom();
+    	if (bottomPos < 0)
+    		return false;
+    	Handle<E> bottomHandle = this.heap.getHandle(bottomPos);
+    	long bottomKey = keyAt(bottomPos);
+    	E bottomData = takeItem(bottomPos);
+    	releaseBottom(bottomPos);
+    	
+    	// Stop if the bottom item was the one to remove
+    	if ((handle != null) ? bottomHandle == handle
+    			: matches(bottomData, o, sameOnly))
+    	{
+    		markRemoved(bottomHandle);
+    		itemRemoved();
+    		return true;
+    	}
+    	
+    	// Lock the item's node, wherever the item is now
+    	int pos;
+    	for (int spins = 0; ; spins++) {
+    		pos = findItem(handle, o, sameOnly);
+    		if (pos < 0) {
+    			// It's been removed by another thread, so put back 'bottom'
+    			reinsert(bottomData, bottomKey, bottomHandle);
+    			return false;
+    		}
+    		if (!this.heap.lockIfPresent(pos)) {
+    			backOff(spins);  // The item has moved out of a trimmed row
+    			continue;
+    		}
+    		if (isItemAt(pos, handle, o, sameOnly)
+    				&& this.heap.getTag(pos) == AVAILABLE)
+    		{
+    			break;
+    		}
+    		this.heap.unlock(pos);
+    		backOff(spins);
+    	}
+    	
+    	// Replace the node's item with the item that was in 'bottom':
+    	int cmp = compareToNode(bottomData, bottomKey, pos);
+    	markRemoved(this.heap.getHandle(pos));
+    	setItem(pos, bottomData, bottomKey);
+    	this.heap.setHandle(pos, bottomHandle);
+    	// Note: Unlocks 'pos'.
+    	restoreItem(pos, cmp);
+    	itemRemoved();
+    	return true;
+    }
+    
+    /**
+     * Replaces the item tracked by the specified {@code Handle} with
+     * {@code item}, and moves it up or down the heap as needed.
+     * <p>
+     * <u>Notes on Locking</u>: Only the item's node is locked at first, and
+     * the item is then moved as in deleteItem().
+     * 
+     * @return {@code true} if the handle's item was still in the queue.
+     */
+    private boolean updateItem(Handle<E> handle, E item) {
+    	checkItem(item);
+    	long key = keyOf(item);
+    	
+    	int pos;
+    	for (int spins = 0; ; spins++) {
+    		if ((pos = handle.pos) < 0)
+    			return false;
+    		if (!this.heap.lockIfPresent(pos)) {
+    			backOff(spins);  // The item has moved out of a trimmed row
+    			continue;
+    		}
+    		if (this.heap.getHandle(pos) == handle
+    				&& this.heap.getTag(pos) == AVAILABLE)
+    		{
+    			break;
+    		}
+    		this.heap.unlock(pos);
+    		backOff(spins);
+    	}
+    	
+    	int cmp = compareToNode(item, key, pos);
+    	setItem(pos, item, key);
+    	handle.item = item;
+    	if (this.ranked != null) {
+    		unrank(handle);
+    		rank(item, key, handle);
+    	}
+    	// Note: Unlocks 'pos'.
+    	restoreItem(pos, cmp);
+    	return true;
+    }
+    
+    /**
+     * Restores the heap property at the locked node at the specified
+     * position, whose item has just been replaced. If the new item is
+     * smaller than the old one ({@code cmp < 0}), it's tagged w/ the
+     * current thread's ID and propagated up. Otherwise, it's made AVAILABLE
+     * and sifted down. Either way, the node is unlocked. (A new root item
+     * that's sifted down may still be smaller than the old one, if it was
+     * taken from a bottom node while being inserted, so the root's
+     * replacement is signaled either way.)
+     * 
+     * @param pos the position of the replaced item, which must be locked.
+     * @param cmp the result of comparing the new item to the old one.
+     */
+    private void restoreItem(int pos, int cmp) {
+    	if (cmp < 0) {
+    		long threadID = Thread.currentThread().getId();
+    		this.heap.setTag(pos, threadID);
+    		this.heap.unlock(pos);
+    		propagateInsert(pos, threadID);
+    	} else {
+    		this.heap.setTag(pos, AVAILABLE);
+    		heapify(pos);  // Note: Unlocks 'pos'
+    		if (pos == 0)
+    			signalNewRoot();
+    	}
+    }
+    
+    /**
+     * Returns the last known position of the specified item, at which it
+     * may no longer be, or -1 if it isn't in the heap.
+     */
+    private int findItem(Handle<E> handle, Object o, boolean sameOnly) {
+    	return (handle != null) ? handle.pos : indexOf(o, sameOnly);
+    }
+    
+    /**
+     * Returns whether the (locked) node at the specified position holds the
+     * item tracked by {@code handle}, or if it's {@code null}, an item
+     * matching {@code o}.
+     */
+    private boolean isItemAt(int pos, Handle<E> handle, Object o,
+    		boolean sameOnly)
+    {
+    	if (this.heap.getTag(pos) == EMPTY)
+    		return false;
+    	return (handle != null) ? this.heap.getHandle(pos) == handle
+    			: matches(this.heap.getData(pos), o, sameOnly);
+    }
+    
+    private static boolean matches(Object data, Object o, boolean sameOnly) {
+    	return data == o || (!sameOnly && data.equals(o));
+    }
+    
+    /**
+     * Removes the minimum-priority item from the queue and returns this item.
+     * <p>
+     * Impl. Notes: This method is based closely on Galen C. Hunt's
+     * {@code concurrent_delete(heap_t)} pseudo-code, except that the item
+     * taken from the bottom is itself returned, if it's no larger than the
+     * root's item, so that a delete never returns a larger item in place of
+     * the one it holds. If a condition is given, and the root's item fails
+     * it, the item taken from the bottom is inserted back into the heap.
+     * 
+     * @param condition the condition the removed item must satisfy, or
+     *    {@code null} if there is none.
+     * @return the removed minimum-priority item; or {@code null} if it
+     *    didn't satisfy {@code condition}.
+     * @throws NoSuchElementException if the queue is empty.
+     */
+    private E deleteMin(Predicate<? super E> condition) {
+    	E bottomData, rootData;
+    	Handle<E> bottomHandle;
+    	long bottomKey;
+    	
+    	/* Grab an item from the bottom of the heap to replace the to-be-deleted
+    	 * top item. */
+    	int bottomPos = reserveBottom();
+    	if (bottomPos < 0)
+    		throw new NoSuchElementException();
+    	
+    	// Get 'bottom' data & set the node empty, then release its lock:
+    	bottomHandle = this.heap.getHandle(bottomPos);
+    	bottomKey = keyAt(bottomPos);
+    	bottomData = takeItem(bottomPos);
+    	releaseBottom(bottomPos);
+    	
+    	// Stop if it was the only item in the heap (and thereby the root).
+    	// Note: The root's tag can't tell us that, since a concurrent insert
+    	// may already have refilled the root.
+    	if (bottomPos == 0)
+    		return takeBottomItem(bottomData, bottomKey, bottomHandle,
+    				condition);
+    	
+    	// Lock first item:
+    	this.heap.lock(0);
+		// Stop if a concurrent delete has taken the root as its 'bottom',
+		// or if 'bottom' is the minimum after all. (While it was in
+		// transit, a concurrent delete may have taken the root, and a
+		// concurrent insert refilled it w/ a larger item.)
+		if (this.heap.getTag(0) == EMPTY
+				|| compareToNode(bottomData, bottomKey, 0) <= 0)
+		{
+			this.heap.unlock(0);
+			return takeBottomItem(bottomData, bottomKey, bottomHandle,
+					condition);
+		}
+		rootData = this.heap.getData(0);
+		if (condition != null && !condition.test(rootData)) {
+			this.heap.unlock(0);
+			reinsert(bottomData, bottomKey, bottomHandle);
+			return null;
+		}
+		// Replace the top item with the item stored from the bottom:
+		markRemoved(this.heap.getHandle(0));
+		setItem(0, bottomData, bottomKey);
+		this.heap.setHandle(0, bottomHandle);
+		this.heap.setTag(0, AVAILABLE);
+		
+		// Adjust the heap starting at the top. We always hold a lock on the
+		// item being adjusted. (In this case the root.) Note: This unlocks
+		// the root.
+		heapify(0);
+		
+		// Return minimum item
+		return rootData;
+    }
+    
+    /**
+     * Returns the item a delete took from the bottom of the heap, as the
+     * minimum item, unless it fails the delete's condition, in which case
+     * it's inserted back.
+     */
+    private E takeBottomItem(E data, long key, Handle<E> handle,
+    		Predicate<? super E> condition)
+    {
+    	if (condition != null && !condition.test(data)) {
+    		reinsert(data, key, handle);
+    		return null;
+    	}
+    	markRemoved(handle);
+    	return data;
+    }
+    
+    /**
+     * Inserts back an item that a delete took from the bottom of the heap,
+     * but didn't need after all.
+     */
+    private void reinsert(E data, long key, Handle<E> handle) {
+    	if (insert(data, key, handle))
+    		itemsAvailable();
+    }
+    
+    /**
+     * Reserves the bottom node of the heap for a delete, and returns its
+     * position, with the node locked.
+     * <p>
+     * <u>Notes on Locking</u>: Unless in {@code LOCK_FREE} mode, the
+     * 'countLock' is held until the bottom node has been locked. In that
+     * mode, the reservation is instead pending until the caller has
+     * emptied the node, & released it via {@link #releaseBottom(int)}.
+     * 
+     * @return the bottom node's position; or -1 if the queue is empty.
+     */
+    private int reserveBottom() {
+    	int bottomPos;
+    	if (this.atomicCount != null) {
+    		bottomPos = this.atomicCount.tryReserveDecrement();
+    		if (bottomPos < 0)
+    			return -1;
+    		lockReservedNode(bottomPos);
+    	} else {
+    		lockCount();
+    		try {
+	    		if (this.count.getNonreversedCount() == 0)
+	    			return -1;
+	    		bottomPos = this.count.decrementAndGet();
+	    		this.heap.lock(bottomPos);
+    		} finally {
+    			this.countLock.writeLock().unlock();
+    		}
+    	}
+    	return bottomPos;
+    }
+    
+    /**
+     * Unlocks the bottom node reserved by {@link #reserveBottom()}, once
+     * it has been emptied, which (in {@code LOCK_FREE} mode) completes its
+     * reservation.
+     */
+    private void releaseBottom(int bottomPos) {
+    	this.heap.unlock(bottomPos);
+    	if (this.atomicCount != null)
+    		this.atomicCount.completeDecrement();
+    }
+    
+    /**
+     * Empties the node at the specified position, which must be locked,
+     * and returns its item. The item's {@code Handle}, if any, is left
+     * pointing at the node, for the caller to either move or mark removed.
+     */
+    private E takeItem(int pos) {
+    	E data = this.heap.getData(pos);
+    	this.heap.setTag(pos, EMPTY);
+    	this.heap.setData(pos, null);
+    	this.heap.setHandle(pos, null);
+    	return data;
+    }
+    
+    /**
+     * Marks the specified {@code Handle} (unless it's {@code null}) as no
+     * longer tracking an item in the queue, since its item has just been
+     * taken out of the heap, and unranks its item.
+     */
+    private void markRemoved(Handle<E> handle) {
+    	if (handle != null) {
+    		handle.pos = Handle.REMOVED;
+    		if (this.ranked != null)
+    			unrank(handle);
+    	}
+    }
+    
+    /**
+     * Sorts the items of a batch delete in ascending order, keeping their
+     * {@code Handle}s in the same order. In key mode, each item's key is
+     * computed once (w/o holding any lock), and the items are sorted by
+     * their keys.
+     * 
+     * @return the sorted items' keys in key mode, or else an empty array.
+     */
+    private long[] sortBatch(List<E> batch, List<Handle<E>> handles) {
+    	int n = batch.size();
+    	long[] keys = new long[(this.keyFn != null) ? n : 0];
+    	for (int i = 0; i < keys.length; i++)
+    		keys[i] = keyOf(batch.get(i));
+    	boolean hasHandles = false;
+    	for (Handle<E> h : handles)
+    		hasHandles |= (h != null);
+    	if (!hasHandles && keys.length == 0) {
+    		batch.sort(this::compareData);
+    		return keys;
+    	}
+    	
+    	Integer[] order = new Integer[n];
+    	for (int i = 0; i < n; i++)
+    		order[i] = i;
+    	Arrays.sort(order, (keys.length > 0)
+    			? (i, j) -> Long.compare(keys[i], keys[j])
+    			: (i, j) -> compareData(batch.get(i), batch.get(j)));
+    	List<E> items = new ArrayList<E>(batch);
+    	List<Handle<E>> hs = new ArrayList<Handle<E>>(handles);
+    	long[] ks = keys.clone();
+    	for (int i = 0; i < n; i++) {
+    		batch.set(i, items.get(order[i]));
+    		handles.set(i, hs.get(order[i]));
+    		if (keys.length > 0)
+    			keys[i] = ks[order[i]];
+    	}
+    	return keys;
+    }
+
+    
+    /**
+     * Locks the node at the specified leaf position, which has just been
+     * reserved in {@code LOCK_FREE} mode.
+     * <p>
+     * <u>Notes on Locking</u>: No reservation is granted while one in the
+     * opposite direction is pending, so the node has already been filled
+     * (for a delete) or emptied (for an insert), and needn't be waited on.
+     * 
+     * @param pos the reserved leaf position.
+     */
+    private void lockReservedNode(int pos) {
+    	// The heap is grown a whole row at a time, so every position below a
+    	// reserved one (in particular, its parent) is also in the heap
+    	this.heap.ensureCapacity(pos + 1);
+    	this.heap.lock(pos);
+    }
+    
+    /**
+     * Waits briefly before a thread retries an operation that is blocked on
+     * another thread's progress. The thread busy-waits for the first
+     * {@code MAX_SPINS} attempts, and then yields its processor.
+     * 
+     * @param spins the number of prior attempts.
+     */
+    private static void backOff(int spins) {
+    	if (spins < MAX_SPINS)
+    		Thread.onSpinWait();
+    	else
+    		Thread.yield();
+    }
+    
+    /**
+     * Fills the (as yet unpublished) heap w/ the specified items, &
+     * heapifies it bottom-up, as by Floyd, in O(n) time. Item {@code i}
+     * is placed in the node the {@code i}th insert would have reserved, so
+     * the heap's shape matches its counter's.
+     * <p>
+     * <u>Notes on Locking</u>: No node is locked, since no other thread
+     * can access the queue until its constructor has returned. Each
+     * subtree is heapified by a single thread, and its result is published
+     * to the thread that heapifies its root by the fork/join.
+     */
+    private void buildHeap(Object[] items) {
+    	int n = items.length;
+    	if (n == 0)
+    		return;
+    	
+    	this.heap.ensureCapacity(n);
+    	// Row holding the last item, which is also the heap's last row
+    	int lastRow = Integer.SIZE - 1 - Integer.numberOfLeadingZeros(n);
+    	if (lastRow < SEQ_HEAPIFY_ROWS)
+    		heapifySubtree(0, items);
+    	else
+    		ForkJoinPool.commonPool().invoke(new HeapifyTask(0, items, lastRow));
+    	
+    	if (this.atomicCount != null)
+    		this.atomicCount.setNonreversed(n);
+    	else
+    		this.count.setNonreversed(n);
+    }
+    
+    /**
+     * Fills & heapifies the subtree rooted at {@code pos}, in the current
+     * thread.
+     */
+    private void heapifySubtree(int pos, Object[] items) {
+    	if (!fillNode(pos, items))
+    		return;
+    	heapifySubtree((pos << 1) + 1, items);
+    	heapifySubtree((pos << 1) + 2, items);
+    	siftDownUnpublished(pos);
+    }
+    
+    /**
+     * Places the item that belongs in the node at {@code pos}, if any.
+     * 
+     * @return {@code false} if no item belongs there, in which case none
+     *    belongs in any node below it, either.
+     */
+    @SuppressWarnings("unchecked")
+    private boolean fillNode(int pos, Object[] items) {
+    	if (pos < 0)
+    		return false;    // Overflowed past the last possible row
+    	int i = AtomicHeapBitReversedCounter.toNonreversed(pos);
+    	if (i >= items.length)
+    		return false;
+    	
+    	E item = (E) items[i];  // unchecked cast
+    	checkItem(item);
+    	setBatchItem(pos, item, keyOf(item));
+    	this.heap.setTag(pos, AVAILABLE);
+    	return true;
+    }
+    
+    /**
+     * Sifts the item at {@code pos} down, while it's greater than its
+     * smaller child, w/o locking any node, as only the constructing thread
+     * (or a heapify task it has forked) can access the heap.
+     */
+    private void siftDownUnpublished(int pos) {
+    	int cap = this.heap.capacity();
+    	while (true) {
+    		int leftPos = (pos << 1) + 1;
+    		int rightPos = leftPos + 1;
+    		boolean hasLeft = leftPos > 0 && leftPos < cap
+    				&& this.heap.getTag(leftPos) != EMPTY;
+    		boolean hasRight = rightPos > 0 && rightPos < cap
+    				&& this.heap.getTag(rightPos) != EMPTY;
+    		if (!hasLeft && !hasRight)
+    			return;
+    		int childPos = (!hasRight
+    				|| (hasLeft && compareNodes(leftPos, rightPos) <= 0))
+    				? leftPos : rightPos;
+    		if (compareNodes(childPos, pos) >= 0)
+    			return;
+    		this.heap.swapItems(childPos, pos);
+    		pos = childPos;
+    	}
+    }
+    
+    /**
+     * Heapify the item at the specified position.
+     * <p>
+     * Note: The node at {@code pos} must be locked when this method is
+     *   called. All nodes locked by this method, including that one, are
+     *   unlocked by the time it completes.
+     * <p>
+     * Version: 3.0
+     * 
+     * @param pos position in the heap of the item to be heapified, which
+     *    must be locked when this method is called.
+     */
+    private void heapify(int pos) {
+    	// Caller should hold the lock on 'pos'
+    	assert this.heap.isLocked(pos);
+    	
+		int leftPos,   // pos. of the node's left child
+			rightPos,  // pos. of the node's right child
+			childPos;  // pos. of the node's smaller child
+		boolean hasLeft, hasRight;  // whether each child is locked & non-EMPTY
+		int depth = 0;  // number of rows the item has moved down
+		while (true) {
+			// Get pos. of the node's left child
+			leftPos = (pos << 1) + 1;   // pos * 2 + 1
+			// Get pos. of the node's right child
+			rightPos = (pos << 1) + 2;  // pos * 2 + 2
+			// Lock non-EMPTY children (always left before right), making sure
+			// we don't try to read past the end of the (possibly trimmed)
+			// heap
+			hasLeft = this.heap.lockIfPresent(leftPos);
+			if (hasLeft) {
+				if (this.heap.getTag(leftPos) == EMPTY) {
+					this.heap.unlock(leftPos);
+					hasLeft = false;
+				}
+			}
+			hasRight = this.heap.lockIfPresent(rightPos);
+			if (hasRight) {
+				if (this.heap.getTag(rightPos) == EMPTY) {
+					this.heap.unlock(rightPos);
+					hasRight = false;
+				}
+			}
+			// If the node has no non-EMPTY children, we're done. (Note: In
+			// LOCK_FREE mode, the left child may still be waiting to be
+			// filled by its inserter, while the right has already been
+			// filled.)
+			if (!hasLeft && !hasRight)
+				break;
+			// Otherwise, pick the node's smaller child, & unlock the other one
+			if (!hasRight || (hasLeft && compare(leftPos, rightPos) <= 0)) {
+				if (hasRight)
+					this.heap.unlock(rightPos);  // we're done w/ the right
+				childPos = leftPos;
+			} else {
+				if (hasLeft)
+					this.heap.unlock(leftPos);  // we're done w/ the left
+				childPos = rightPos;
+			}
+			
+			// If child is less than parent, swap their items, then continue
+			// from the child. Note: The child is locked
+			if (compare(childPos, pos) < 0) {
+				this.heap.swapItems(childPos, pos);
+				this.heap.unlock(pos);  // we're done w/ the node
+				pos = childPos;
+				depth++;
+			}
+			// If not, stop. We're done.
+			else {
+				this.heap.unlock(childPos);
+				break;
+			}
+		}
+		this.heap.unlock(pos);
+		if (this.stats != null)
+			this.stats.siftedDown(depth);
+    }
+
+    /**
+     * Propagates the item in the node at the specified position,
+     * which has just been inserted by the current thread, up the backing
+     * heap towards its root node via successive item swaps, while the item
+     * is "less than" its parent node's item (according to either
+     * this queue's {@code Comparator} or the data's natural ordering), in
+     * order to move the item to its correct location in the heap.
+     * <p>
+     * <u>Notes on Locking</u>: Each node (i.e., its lock) stays at a fixed
+     * position in the heap, and only items (i.e., data & tag) are swapped
+     * between nodes. So the thread's item is tracked by its position plus its
+     * tag, as in Hunt, et al.
+     * <p>
+     * Version: 2.0
+     * 
+     * @param nodePos the current position, in the backing array-based heap,
+     *    of the newly inserted item.
+     * @param tag the item's tag value.
+     */
+    private void propagateInsert(int nodePos, long tag) {
+    	int spins = 0;  // number of times we've waited
+    	int depth = 0;  // number of rows the item has moved up
+    	int step;
+    	while ((step = propagateStep(nodePos, tag)) != STEP_DONE) {
+    		if (step == STEP_WAIT) {
+    			backOff(spins++);
+    		} else {
+    			nodePos = step;
+    			depth++;
+    		}
+    	}
+    	if (this.stats != null)
+    		this.stats.siftedUp(depth);
+    }
+    
+    /**
+     * Propagates the items of a batch insert, which have just been placed
+     * at the specified positions by the current thread. The items are
+     * propagated in order, but an item that must wait for another item
+     * (which might be a later item of the same batch, if a concurrent
+     * delete has moved it up the heap) is set aside, until each of the
+     * batch's other items has been tried again. So the current thread never
+     * waits on one of its own items.
+     * 
+     * @param positions the positions of the batch's items, which are
+     *    updated as the items are propagated.
+     * @param firstTag the tag value of the batch's first item. (The item at
+     *    {@code positions[i]} has the tag value {@code firstTag - i}.)
+     */
+    private void propagateBatch(int[] positions, long firstTag) {
+    	int remaining = positions.length;  // number of items not yet done
+    	int spins = 0;  // number of times we've waited
+    	int step;
+    	boolean progressed;
+    	while (remaining > 0) {
+    		progressed = false;
+    		for (int i = 0; i < positions.length; i++) {
+    			if (positions[i] < 0)
+    				continue;  // Item 'i' is done
+    			// Propagate item 'i' until it's done or must wait
+    			while ((step = propagateStep(positions[i], firstTag - i))
+    					>= 0)
+    			{
+    				positions[i] = step;
+    				progressed = true;
+    			}
+    			if (step == STEP_DONE) {
+    				positions[i] = -1;
+    				remaining--;
+    				progressed = true;
+    			}
+    		}
+    		if (!progressed)
+    			backOff(spins++);
+    	}
+    }
+    
+    /**
+     * Performs a single step of propagating an inserted item up the heap.
+     * The item will either have been swapped with its parent's item, have
+     * been found to have been moved up by a concurrent delete, have reached
+     * its final position, or must wait for another thread.
+     * 
+     * @param nodePos the current position, in the backing array-based heap,
+     *    of the inserted item.
+     * @param tag the item's tag value.
+     * @return the item's new position, if it may have moved further up;
+     *    {@code STEP_DONE} if it has reached its final position; or
+     *    {@code STEP_WAIT} if it must wait for another thread.
+     */
+    private int propagateStep(int nodePos, long tag) {
+    	// If the item is now root, set its tag to AVAILABLE:
+    	if (nodePos == 0) {
+    		this.heap.lock(0);
+			// Only set the root's tag to AVAILABLE if it's "our" item. (It
+			// could have been replaced with another item due to a
+			// concurrent insert or delete.)
+    		boolean isRoot = (this.heap.getTag(0) == tag);
+    		if (isRoot)
+    			this.heap.setTag(0, AVAILABLE);
+    		this.heap.unlock(0);
+    		if (isRoot)
+    			signalNewRoot();
+    		return STEP_DONE;
+    	}
+    	
+    	// Calc. the node's parent's pos.
+    	int parentPos = (nodePos - 1) >>> 1;  // (nodePos-1)/2
+    	// Note: Locking order is important. If the node's row has been
+    	// trimmed, its node was EMPTY, so a concurrent delete has taken our
+    	// item (as it has if the parent's row has been trimmed too).
+    	if (!this.heap.lockIfPresent(parentPos))
+    		return parentPos;
+    	if (!this.heap.lockIfPresent(nodePos)) {
+    		this.heap.unlock(parentPos);
+    		return parentPos;
+    	}
+    	try {
+    		long parentTag = this.heap.getTag(parentPos);
+    		long nodeTag = this.heap.getTag(nodePos);
+    		// If the parent isn't currently being inserted or deleted & the
+    		// node still holds "our" item ...
+    		if (parentTag == AVAILABLE && nodeTag == tag) {
+    			// If our item is less than the parent's, swap items
+    			if (compare(nodePos, parentPos) < 0) {
+    				this.heap.swapItems(nodePos, parentPos);
+    				return parentPos;
+    			}
+    			// Otherwise, we're done.
+    			this.heap.setTag(nodePos, AVAILABLE);
+    			return STEP_DONE;
+    		}
+    		// Otherwise, if the parent's tag is EMPTY, there's a concurrent
+    		// delete, so stop or we'll deadlock w/ the deleting thread.
+    		// (Unless in LOCK_FREE mode the node still holds our item, in
+    		// which case the parent has been reserved, but not yet filled,
+    		// by another insert. So we wait for it.)
+    		else if (parentTag == EMPTY) {
+    			if (this.stats != null)
+    				this.stats.parentEmptyRetries.increment();
+    			if (this.atomicCount == null || nodeTag != tag)
+    				return STEP_DONE;
+    			return STEP_WAIT;
+    		}
+    		// Otherwise, if the node's tag isn't our item's, then a concurrent
+    		// delete has swapped our item w/ the parent's, so continue from
+    		// our item's new position.
+    		else if (nodeTag != tag) {
+    			if (this.stats != null)
+    				this.stats.tagChangedRetries.increment();
+    			return parentPos;
+    		}
+    		// Otherwise, the parent holds another item, which is still being
+    		// inserted. So we wait for it.
+    		return STEP_WAIT;
+    	} finally {
+    		this.heap.unlock(nodePos);    // Note: Unlocking order is important.
+    		this.heap.unlock(parentPos);
+    	}
+    }
+
+    /**
+     * Compares the items at two positions, both of which must be locked,
+     * by their precomputed keys in key mode, or else using a
+     * {@code Comparator}'s {@code compare(E,E)} if one is set, or
+     * {@code Comparable}'s {@code compareTo(E)} if not. Returns a positive
+     * integer, zero, or a negative integer, if {@code pos1}'s item is
+     * greater than, equal, or less than {@code pos2}'s item.
+     * 
+     * @param pos1 the position of the first item
+     * @param pos2 the position of the second item, which {@code pos1}'s
+     *    item will be compared to
+     * @return a positive integer, zero, or a negative integer, if
+     *    {@code pos1}'s item is greater than, equal, or less than
+     *    {@code pos2}'s item.
+     */
+    private int compare(int pos1, int pos2) {
+    	// Caller should hold the locks on 'pos1' & 'pos2':
+    	assert this.heap.isLocked(pos1);
+    	assert this.heap.isLocked(pos2);
+    	
+    	return compareNodes(pos1, pos2);
+    }
+    
+    /**
+     * Compares the items at two positions, as by {@link #compare(int, int)},
+     * but w/o checking that they're locked.
+     */
+    private int compareNodes(int pos1, int pos2) {
+    	if (this.keyFn != null)
+    		return Long.compare(this.heap.getKey(pos1), this.heap.getKey(pos2));
+    	return compareData(this.heap.getData(pos1), this.heap.getData(pos2));
+    }
+    
+    /**
+     * Compares an item that isn't in the heap to the item at the specified
+     * position, which must be locked. In key mode, the item's precomputed
+     * key is compared to the node's, and neither item is looked at.
+     * 
+     * @param data the item to compare.
+     * @param key {@code data}'s key, in key mode.
+     * @param pos the position of the item {@code data} will be compared
+     *    to.
+     * @return a positive integer, zero, or a negative integer, if
+     *    {@code data} is greater than, equal, or less than {@code pos}'s
+     *    item.
+     */
+    private int compareToNode(E data, long key, int pos) {
+    	if (this.keyFn != null)
+    		return Long.compare(key, this.heap.getKey(pos));
+    	return compareData(data, this.heap.getData(pos));
+    }
+    
+    /**
+     * Sets the data of the node at the specified position, which must be
+     * locked, and in key mode, its precomputed key.
+     */
+    private void setItem(int pos, E data, long key) {
+    	this.heap.setData(pos, data);
+    	if (this.keyFn != null)
+    		this.heap.setKey(pos, key);
+    }
+    
+    /**
+     * Returns the key of the specified item, or 0 if not in key mode.
+     */
+    private long keyOf(E data) {
+    	return (this.keyFn != null) ? this.keyFn.applyAsLong(data) : 0L;
+    }
+    
+    /**
+     * Returns the precomputed key of the item at the specified position,
+     * which must be locked, or 0 if not in key mode.
+     */
+    private long keyAt(int pos) {
+    	return (this.keyFn != null) ? this.heap.getKey(pos) : 0L;
+    }
+    
+    /**
+     * Returns a {@code long} key w/ the same ordering as the specified
+     * {@code double} under {@link Double#compare(double, double)}: a
+     * negative value's bits, other than its sign, are flipped, so that
+     * signed comparison of the keys orders the values.
+     */
+    private static long sortableKey(double value) {
+    	long bits = Double.doubleToLongBits(value);
+    	return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
+    
+    /**
+     * Compares two items, using a {@code Comparator}'s
+     * {@code compare(E,E)} if one is set, or {@code Comparable}'s
+     * {@code compareTo(E)} if not.
+     * 
+     * @return a positive integer, zero, or a negative integer, if
+     *    {@code data1} is greater than, equal, or less than {@code data2}.
+     */
+    @SuppressWarnings("unchecked")
+    private int compareData(E data1, E data2) {
+    	if (this.comp != null)
+    		return this.comp.compare(data1, data2);
+    	else
+    		return ((Comparable<E>) data1).compareTo(data2); // unchecked cast
+    }
+
+
+    /**
+     * How leaf positions are reserved, by inserts and deletes, from the
+     * queue's heap bit-reversed counter.
+     */
+    public enum CountingMode {
+    	/**
+    	 * The counter is guarded by a global lock, which is held until the
+    	 * reserved leaf node has been locked.
+    	 */
+    	LOCKED,
+    	/**
+    	 * Leaf positions are reserved via a CAS on an
+    	 * {@link AtomicHeapBitReversedCounter}, without a global lock.
+    	 */
+    	LOCK_FREE
+    }
+
+
+    /**
+     * How the queue's node locks are granted to threads waiting for them.
+     * Node locks are only held for a few comparisons & swaps, but the locks
+     * of the root and the upper rows are taken by every delete, and by
+     * inserts whose items rise that far.
+     */
+    public enum LockPolicy {
+    	/**
+    	 * A node lock is granted in arrival order, and waiting threads spin
+    	 * briefly, then park. Every release under contention hands the lock
+    	 * to a particular (possibly parked) thread, which limits throughput.
+    	 */
+    	FAIR,
+    	/**
+    	 * A released node lock may be taken by any thread, and a thread that
+    	 * finds it held parks right away.
+    	 */
+    	NON_FAIR,
+    	/**
+    	 * A released node lock may be taken by any thread, and a thread that
+    	 * finds it held busy-waits briefly before parking, which saves a
+    	 * park & unpark if the holder, running on another core, releases it
+    	 * within that time. (On a single core, the spin can't overlap w/ the
+    	 * holder, and only delays the park.) This is the default.
+    	 */
+    	SPIN_THEN_PARK
+    }
+
+
+    /**
+     * How an insert into a full, bounded queue is handled.
+     */
+    public enum OverflowPolicy {
+    	/**
+    	 * The new item is rejected: {@code offer()} returns {@code false},
+    	 * and {@code add()} throws an {@code IllegalStateException}. (A
+    	 * bounded {@link ConcurrentHeapPriorityBlockingQueue}'s
+    	 * {@code put()} instead waits for space.)
+    	 */
+    	REJECT,
+    	/**
+    	 * The queue's largest item is evicted to make room for the new
+    	 * item, unless the new item is no smaller, in which case it's the
+    	 * one dropped. So the queue keeps its {@code capacity} smallest
+    	 * items. The queue's items are kept ranked, to find the largest
+    	 * one, at an O(log n) cost per insert & delete (see the class
+    	 * comment).
+    	 */
+    	EVICT_WORST
+    }
+
+
+    /**
+     * A builder of {@code ConcurrentHeapPriorityQueue}s. Any option that
+     * isn't set takes the same default as in the queue's constructors. A
+     * queue is unbounded unless its {@link #capacity(int)} is set. A
+     * queue is in key mode if a {@link #longKey(ToLongFunction)} or
+     * {@link #doubleKey(ToDoubleFunction)} extractor is set, in which case
+     * no {@code Comparator} may be.
+     * <p>
+     * Version: 1.4
+     */
+    public static final class Builder<E> {
+    	private int initialCapacity = DEFAULT_INIT_CAP;
+    	private Comparator<? super E> comparator = null;
+    	private CountingMode countingMode = CountingMode.LOCKED;
+    	private LockPolicy lockPolicy = LockPolicy.SPIN_THEN_PARK;
+    	/** Fixed capacity, or 0 if the queue is unbounded. */
+    	private int capacity = 0;
+    	private OverflowPolicy overflowPolicy = OverflowPolicy.REJECT;
+    	private boolean trimOnDrain = false;
+    	private ToLongFunction<? super E> keyExtractor = null;
+    	private boolean collectStats = false;
+    	private long slowOperationNanos = DEFAULT_SLOW_OP_NANOS;
+
+    	/**
+    	 * @param initialCapacity the minimum initial capacity. Must be
+    	 *    greater than 0.
+    	 * @return this builder.
+    	 * 
+    	 * @throws IllegalArgumentException if {@code initialCapacity} is
+    	 *    less than 1.
+    	 */
+    	public Builder<E> initialCapacity(int initialCapacity) {
+    		if (initialCapacity < 1) {
+    			throw new IllegalArgumentException("initialCapacity must be "
+    					+ ">= 1");
+    		}
+    		this.initialCapacity = initialCapacity;
+    		return this;
+    	}
+
+    	/**
+    	 * @param comparator the {@code Comparator} used to order the queue,
+    	 *    or {@code null} to use its items' natural ordering.
+    	 * @return this builder.
+    	 */
+    	public Builder<E> comparator(Comparator<? super E> comparator) {
+    		this.comparator = comparator;
+    		return this;
+    	}
+
+    	/**
+    	 * @param mode how leaf positions are reserved by inserts and
+    	 *    deletes.
+    	 * @return this builder.
+    	 * 
+    	 * @throws NullPointerException if {@code mode} is {@code null}.
+    	 */
+    	public Builder<E> countingMode(CountingMode mode) {
+    		if (mode == null)
+    			throw new NullPointerException();
+    		this.countingMode = mode;
+    		return this;
+    	}
+
+    	/**
+    	 * @param policy how node locks are granted to waiting threads.
+    	 * @return this builder.
+    	 * 
+    	 * @throws NullPointerException if {@code policy} is {@code null}.
+    	 */
+    	public Builder<E> lockPolicy(LockPolicy policy) {
+    		if (policy == null)
+    			throw new NullPointerException();
+    		this.lockPolicy = policy;
+    		return this;
+    	}
+
+    	/**
+    	 * Makes the queue bounded, w/ the specified fixed capacity, for
+    	 * which its heap is allocated up front. (The initial capacity is
+    	 * then ignored.) The capacity may only be exceeded by items that
+    	 * are put back into the queue (see
+    	 * {@link ConcurrentHeapPriorityQueue#ConcurrentHeapPriorityQueue(int,
+    	 * Comparator, CountingMode, LockPolicy, OverflowPolicy)}).
+    	 * 
+    	 * @param capacity the maximum number of items. Must be greater
+    	 *    than 0.
+    	 * @return this builder.
+    	 * 
+    	 * @throws IllegalArgumentException if {@code capacity} is less
+    	 *    than 1.
+    	 */
+    	public Builder<E> capacity(int capacity) {
+    		if (capacity < 1)
+    			throw new IllegalArgumentException("capacity must be >= 1");
+    		this.capacity = capacity;
+    		return this;
+    	}
+
+    	/**
+    	 * @param policy how an insert into the full queue is handled, if
+    	 *    it's bounded.
+    	 * @return this builder.
+    	 * 
+    	 * @throws NullPointerException if {@code policy} is {@code null}.
+    	 */
+    	public Builder<E> overflowPolicy(OverflowPolicy policy) {
+    		if (policy == null)
+    			throw new NullPointerException();
+    		this.overflowPolicy = policy;
+    		return this;
+    	}
+
+    	/**
+    	 * Sets whether the queue trims its heap by itself, whenever a delete
+    	 * leaves it holding no more than 1/8th of its capacity, down to
+    	 * twice its size (or its initial capacity). Defaults to
+    	 * {@code false}, in which case the heap is only trimmed by
+    	 * {@link ConcurrentHeapPriorityQueue#trimToSize()}. (Has no effect on
+    	 * a bounded queue.)
+    	 * 
+    	 * @param trimOnDrain whether deletes trim the heap.
+    	 * @return this builder.
+    	 */
+    	public Builder<E> trimOnDrain(boolean trimOnDrain) {
+    		this.trimOnDrain = trimOnDrain;
+    		return this;
+    	}
+
+    	/**
+    	 * Puts the queue in key mode, ordered by the {@code long} keys the
+    	 * specified function extracts from its items (see
+    	 * {@link ConcurrentHeapPriorityQueue#orderedByLongKey}).
+    	 * 
+    	 * @param keyExtractor the function that computes an item's key,
+    	 *    which must stay the same for as long as the item is in the
+    	 *    queue.
+    	 * @return this builder.
+    	 * 
+    	 * @throws NullPointerException if {@code keyExtractor} is
+    	 *    {@code null}.
+    	 */
+    	public Builder<E> longKey(ToLongFunction<? super E> keyExtractor) {
+    		if (keyExtractor == null)
+    			throw new NullPointerException();
+    		this.keyExtractor = keyExtractor;
+    		return this;
+    	}
+
+    	/**
+    	 * Puts the queue in key mode, ordered by the {@code double} keys the
+    	 * specified function extracts from its items (see
+    	 * {@link ConcurrentHeapPriorityQueue#orderedByDoubleKey}).
+    	 * 
+    	 * @param keyExtractor the function that computes an item's key,
+    	 *    which must stay the same for as long as the item is in the
+    	 *    queue.
+    	 * @return this builder.
+    	 * 
+    	 * @throws NullPointerException if {@code keyExtractor} is
+    	 *    {@code null}.
+    	 */
+    	public Builder<E> doubleKey(ToDoubleFunction<? super E> keyExtractor) {
+    		if (keyExtractor == null)
+    			throw new NullPointerException();
+    		this.keyExtractor = item -> sortableKey(
+    				keyExtractor.applyAsDouble(item));
+    		return this;
+    	}
+
+    	/**
+    	 * Sets whether the queue collects statistics on its lock contention
+    	 * & sifts, which are read back via
+    	 * {@link ConcurrentHeapPriorityQueue#getStats()}, or over JMX. Not
+    	 * collected by default.
+    	 * 
+    	 * @param collectStats whether to collect statistics.
+    	 * @return this builder.
+    	 */
+    	public Builder<E> collectStats(boolean collectStats) {
+    		this.collectStats = collectStats;
+    		return this;
+    	}
+
+    	/**
+    	 * Sets how long an insert or delete must take to be counted as slow
+    	 * (& emitted as a Flight Recorder event, on a JVM w/ the
+    	 * {@code jdk.jfr} API), if the queue collects statistics. Defaults
+    	 * to 1 ms.
+    	 * 
+    	 * @param threshold the threshold, in units of {@code unit}, which
+    	 *    must be greater than or equal to 0.
+    	 * @param unit the threshold's {@code TimeUnit}.
+    	 * @return this builder.
+    	 * 
+    	 * @throws IllegalArgumentException if {@code threshold} is less than
+    	 *    0.
+    	 * @throws NullPointerException if {@code unit} is {@code null}.
+    	 */
+    	public Builder<E> slowOperationThreshold(long threshold,
+    			TimeUnit unit)
+    	{
+    		if (threshold < 0L)
+    			throw new IllegalArgumentException("threshold must be >= 0");
+    		this.slowOperationNanos = unit.toNanos(threshold);
+    		return this;
+    	}
+
+    	/**
+    	 * Returns a new, empty queue w/ this builder's options.
+    	 * 
+    	 * @throws IllegalStateException if both a comparator and a key
+    	 *    extractor have been set.
+    	 */
+    	public ConcurrentHeapPriorityQueue<E> build() {
+    		checkOrdering();
+    		ConcurrentHeapPriorityQueue<E> queue;
+    		if (this.capacity > 0) {
+    			queue = new ConcurrentHeapPriorityQueue<E>(this.capacity,
+    					this.comparator, this.countingMode, this.lockPolicy,
+    					this.capacity, this.overflowPolicy, this.keyExtractor);
+    		} else {
+    			queue = new ConcurrentHeapPriorityQueue<E>(
+    					this.initialCapacity, this.comparator,
+    					this.countingMode, this.lockPolicy, Integer.MAX_VALUE,
+    					OverflowPolicy.REJECT, this.keyExtractor);
+    		}
+    		queue.trimOnDrain = this.trimOnDrain;
+    		if (this.collectStats)
+    			queue.enableStats(this.slowOperationNanos);
+    		return queue;
+    	}
+
+    	/**
+    	 * Returns a new queue w/ this builder's options, holding the items
+    	 * of the specified collection. The queue is built in O(n) time, as
+    	 * by {@link ConcurrentHeapPriorityQueue#ConcurrentHeapPriorityQueue(
+    	 * Collection, Comparator, CountingMode, LockPolicy)}.
+    	 * 
+    	 * @param items the items to place in the queue.
+    	 * 
+    	 * @throws NullPointerException if {@code items} or any of its items
+    	 *    is {@code null}.
+    	 * @throws ClassCastException if any of {@code items} can't be
+    	 *    compared.
+    	 * @throws IllegalArgumentException if the queue is bounded, and
+    	 *    there are more items than its capacity.
+    	 * @throws IllegalStateException if both a comparator and a key
+    	 *    extractor have been set.
+    	 */
+    	public ConcurrentHeapPriorityQueue<E> build(
+    			Collection<? extends E> items)
+    	{
+    		checkOrdering();
+    		ConcurrentHeapPriorityQueue<E> queue;
+    		if (this.capacity > 0) {
+    			queue = new ConcurrentHeapPriorityQueue<E>(items.toArray(),
+    					this.capacity, this.comparator, this.countingMode,
+    					this.lockPolicy, this.capacity, this.overflowPolicy,
+    					this.keyExtractor);
+    		} else {
+    			queue = new ConcurrentHeapPriorityQueue<E>(items.toArray(),
+    					this.initialCapacity, this.comparator,
+    					this.countingMode, this.lockPolicy, Integer.MAX_VALUE,
+    					OverflowPolicy.REJECT, this.keyExtractor);
+    		}
+    		queue.trimOnDrain = this.trimOnDrain;
+    		if (this.collectStats)
+    			queue.enableStats(this.slowOperationNanos);
+    		return queue;
+    	}
+
+    	private void checkOrdering() {
+    		if (this.comparator != null && this.keyExtractor != null) {
+    			throw new IllegalStateException("Both a comparator & a key "
+    					+ "extractor are set");
+    		}
+    	}
+    }
+
+
+    /**
+     * The backing array-based heap of nodes, which is stored as a directory
+     * of segments, rather than as one contiguous array. The first segment
+     * holds the heap's initial rows, and each later segment holds exactly
+     * one further row, so segment {@code s > 0} holds
+     * {@code 2^(baseRows + s - 1)} nodes. Growing the heap by a row thus
+     * allocates a single new segment, and never copies (or blocks access
+     * to) any existing node.
+     * <p>
+     * A node isn't an object, but a position in the heap, whose item (i.e.,
+     * data, tag, handle &, in key mode, precomputed key) and lock are
+     * stored in its segment's parallel arrays. Each node's item is guarded
+     * by its lock, which is a word in a {@link SlotLocks}-managed
+     * {@code AtomicIntegerArray}. An item's {@link Handle}, if it has one,
+     * is kept pointing at its node.
+     * <p>
+     * <u>Implementation Notes</u>: Each segment is fully allocated before
+     * it is published in the directory (a {@code AtomicReferenceArray}),
+     * and before the volatile 'capacity' is raised to include it. So any
+     * thread that has read a capacity greater than a position, or that has
+     * been handed the position by another thread, sees the position's
+     * segment. Growth itself is serialized by 'growLock', which readers
+     * never take.
+     * <p>
+     * Trailing rows w/ no items may be dropped again by {@link #trim}, once
+     * all of their nodes are locked by the trimming thread, which then
+     * lowers the capacity & unpublishes their segments before unlocking
+     * them. So a thread that reaches a position via a stale capacity, or
+     * waits on the lock of a dropped node, finds its segment gone when it
+     * checks the directory again, after locking the node (see
+     * {@link #lock(int)} and {@link #lockIfPresent(int)}).
+     * <p>
+     * Version: 2.3
+     */
+    @ThreadSafe
+    private static class SegmentedHeap<E> {
+    	/** Number of heap rows in the first segment. */
+    	private final int baseRows;
+    	/** Whether each segment stores its items' precomputed keys. */
+    	private final boolean keyed;
+    	private final AtomicReferenceArray<Segment> segments;
+    	/** Number of nodes in all published segments. */
+    	private volatile int capacity;
+    	private final ReentrantLock growLock;
+    	private final SlotLocks locks;
+    	/** The queue's statistics recorder, or {@code null} unless it
+    	 *  collects statistics. (Only set before the queue is returned.) */
+    	StatsRecorder stats;
+
+    	/**
+    	 * @param minCapacity the minimum initial capacity, which must be
+    	 *    greater than 0.
+    	 * @param policy the node locks' policy.
+    	 * @param keyed whether to store the items' precomputed keys.
+    	 */
+    	SegmentedHeap(int minCapacity, LockPolicy policy, boolean keyed) {
+    		assert minCapacity > 0;
+    		
+    		this.keyed = keyed;    		
+    		// Smallest number of whole rows holding 'minCapacity' nodes
+    		this.baseRows = Integer.SIZE - Integer.numberOfLeadingZeros(
+    				minCapacity);
+    		// One segment for the base rows, plus one for each row after them
+    		// (up to row 30, the last row w/ positions <= Integer.MAX_VALUE)
+    		this.segments = new AtomicReferenceArray<Segment>(
+    				Integer.SIZE - this.baseRows);
+    		this.growLock = new ReentrantLock();
+    		this.locks = new SlotLocks(policy);
+    		this.segments.set(0, new Segment((1 << this.baseRows) - 1,
+    				keyed));
+    		this.capacity = (1 << this.baseRows) - 1;
+    	}
+
+    	/**
+    	 * Returns the number of nodes in the heap, all of which have been
+    	 * allocated.
+    	 */
+    	int capacity() {
+    		return this.capacity;
+    	}
+
+    	/**
+    	 * Returns the number of nodes in the heap's base rows, which are
+    	 * never trimmed.
+    	 */
+    	int baseCapacity() {
+    		return (1 << this.baseRows) - 1;
+    	}
+
+    	/**
+    	 * Grows the heap a row at a time, until its capacity is at least
+    	 * {@code minCapacity}. Has no effect if it already is.
+    	 */
+    	void ensureCapacity(int minCapacity) {
+    		if (minCapacity <= this.capacity)
+    			return;
+    		
+    		this.growLock.lock();
+    		try {
+    			// Recheck, in case another thread grew the heap first
+    			int cap = this.capacity;
+    			while (cap < minCapacity) {
+    				// Row to add, which has 'cap + 1' positions
+    				int row = Integer.SIZE - 1
+    						- Integer.numberOfLeadingZeros(cap + 1);
+    				this.segments.set(row - this.baseRows + 1,
+    						new Segment(cap + 1, this.keyed));
+    				cap = (cap << 1) + 1;
+    				this.capacity = cap;
+    			}
+    		} finally {
+    			this.growLock.unlock();
+    		}
+    	}
+
+    	/**
+    	 * Drops the heap's last row, and then each row before it in turn,
+    	 * while every one of its nodes is EMPTY, and the heap w/o it would
+    	 * still hold at least {@code minCapacity} nodes, and at least as
+    	 * many as the queue's size. The base rows are never dropped.
+    	 * 
+    	 * @param minCapacity the minimum capacity to keep.
+    	 * @param wait whether to wait for 'growLock' & each row's node
+    	 *    locks, rather than to stop if any of them is held.
+    	 * @param size the queue's current size.
+    	 */
+    	void trim(int minCapacity, boolean wait, IntSupplier size) {
+    		if (wait)
+    			this.growLock.lock();
+    		else if (!this.growLock.tryLock())
+    			return;
+    		try {
+    			int cap = this.capacity;
+    			while (cap > baseCapacity()) {
+    				// Capacity w/o the last row, which is also the row's
+    				// first position
+    				int newCap = cap >>> 1;
+    				if (newCap < minCapacity || newCap < size.getAsInt())
+    					break;
+    				int row = Integer.SIZE - 1
+    						- Integer.numberOfLeadingZeros(newCap + 1);
+    				Segment seg = this.segments.get(row - this.baseRows + 1);
+    				int locked = lockRow(seg, wait);
+    				// Recheck the size, in case a leaf in the row has been
+    				// reserved meanwhile
+    				boolean drop = (locked == seg.tags.length)
+    						&& newCap >= size.getAsInt();
+    				if (drop) {
+    					this.capacity = newCap;
+    					this.segments.set(row - this.baseRows + 1, null);
+    				}
+    				for (int i = 0; i < locked; i++)
+    					this.locks.unlock(seg.lockWords, i);
+    				if (!drop)
+    					break;
+    				cap = newCap;
+    			}
+    		} finally {
+    			this.growLock.unlock();
+    		}
+    	}
+
+    	/**
+    	 * Locks the nodes of a row's segment in order, while they're EMPTY,
+    	 * stopping at the first node that isn't, or (unless {@code wait})
+    	 * that's already locked, which is left unlocked.
+    	 * 
+    	 * @return the number of nodes locked, which is the segment's length
+    	 *    only if every node is EMPTY.
+    	 */
+    	private int lockRow(Segment seg, boolean wait) {
+    		int n = seg.tags.length;
+    		for (int i = 0; i < n; i++) {
+    			if (wait)
+    				this.locks.lock(seg.lockWords, i);
+    			else if (!this.locks.tryLock(seg.lockWords, i))
+    				return i;
+    			if (seg.tags[i] != EMPTY) {
+    				this.locks.unlock(seg.lockWords, i);
+    				return i;
+    			}
+    		}
+    		return n;
+    	}
+
+    	/**
+    	 * Locks the node at the specified position, first growing the heap
+    	 * to include it, if needed. (A position reserved by an insert or
+    	 * delete may have been trimmed before its node was locked.)
+    	 */
+    	void lock(int pos) {
+    		while (true) {
+    			Segment seg = segment(pos);
+    			if (seg == null) {
+    				ensureCapacity(pos + 1);
+    				continue;
+    			}
+    			int i = offset(pos);
+    			lockNode(seg, i, pos);
+    			if (segment(pos) == seg)
+    				return;
+    			// Its row was trimmed while we waited for it
+    			this.locks.unlock(seg.lockWords, i);
+    		}
+    	}
+
+    	/**
+    	 * Locks the node at the specified position, unless the position is
+    	 * beyond the end of the heap (or has just been trimmed).
+    	 * 
+    	 * @return {@code true} if the node was locked.
+    	 */
+    	boolean lockIfPresent(int pos) {
+    		while (pos < this.capacity) {
+    			Segment seg = segment(pos);
+    			if (seg == null)
+    				return false;
+    			int i = offset(pos);
+    			lockNode(seg, i, pos);
+    			if (segment(pos) == seg)
+    				return true;
+    			this.locks.unlock(seg.lockWords, i);
+    		}
+    		return false;
+    	}
+
+    	/* Note: The following methods' 'pos' must be locked, or otherwise
+    	 * less than capacity(). */
+
+    	void unlock(int pos) {
+    		this.locks.unlock(segment(pos).lockWords, offset(pos));
+    	}
+
+    	/**
+    	 * Locks the node at offset {@code i} of its segment, and records
+    	 * whether its lock was contended, by the node's row, if statistics
+    	 * are collected.
+    	 */
+    	private void lockNode(Segment seg, int i, int pos) {
+    		StatsRecorder stats = this.stats;
+    		if (stats == null) {
+    			this.locks.lock(seg.lockWords, i);
+    		} else if (!this.locks.tryLock(seg.lockWords, i)) {
+    			stats.nodeLockContended(pos);
+    			this.locks.lock(seg.lockWords, i);
+    		}
+    	}
+
+    	boolean isLocked(int pos) {
+    		return this.locks.isLocked(segment(pos).lockWords, offset(pos));
+    	}
+
+    	@SuppressWarnings("unchecked")
+    	@GuardedBy("lock(pos)")
+    	E getData(int pos) {
+    		return (E) segment(pos).data.getPlain(offset(pos));
+    	}
+
+    	@GuardedBy("lock(pos)")
+    	void setData(int pos, E data) {
+    		segment(pos).data.setPlain(offset(pos), data);
+    	}
+
+    	@GuardedBy("lock(pos)")
+    	long getTag(int pos) {
+    		return segment(pos).tags[offset(pos)];
+    	}
+
+    	@GuardedBy("lock(pos)")
+    	void setTag(int pos, long tag) {
+    		segment(pos).tags[offset(pos)] = tag;
+    	}
+
+    	/* Note: The key accessors may only be used in key mode. */
+
+    	@GuardedBy("lock(pos)")
+    	long getKey(int pos) {
+    		return segment(pos).keys[offset(pos)];
+    	}
+
+    	@GuardedBy("lock(pos)")
+    	void setKey(int pos, long key) {
+    		segment(pos).keys[offset(pos)] = key;
+    	}
+
+    	@SuppressWarnings("unchecked")
+    	@GuardedBy("lock(pos)")
+    	Handle<E> getHandle(int pos) {
+    		return (Handle<E>) segment(pos).handles[offset(pos)];
+    	}
+
+    	/**
+    	 * Sets the {@code Handle} of the node's item, and (unless it's
+    	 * {@code null}) points the handle at the node.
+    	 */
+    	@GuardedBy("lock(pos)")
+    	void setHandle(int pos, Handle<E> handle) {
+    		segment(pos).handles[offset(pos)] = handle;
+    		if (handle != null)
+    			handle.pos = pos;
+    	}
+
+    	/**
+    	 * Swaps the items (i.e., the data, tags, handles & keys) of the
+    	 * specified nodes, both of which must be locked by the current
+    	 * thread. The nodes' locks stay in place, and the items' handles are
+    	 * pointed at their new nodes.
+    	 */
+    	void swapItems(int pos1, int pos2) {
+    		Segment seg1 = segment(pos1), seg2 = segment(pos2);
+    		int i1 = offset(pos1), i2 = offset(pos2);
+    		Object data = seg1.data.getPlain(i1);
+    		long tag = seg1.tags[i1];
+    		Handle<?> handle1 = seg1.handles[i1], handle2 = seg2.handles[i2];
+    		seg1.data.setPlain(i1, seg2.data.getPlain(i2));
+    		seg1.tags[i1] = seg2.tags[i2];
+    		seg1.handles[i1] = handle2;
+    		seg2.data.setPlain(i2, data);
+    		seg2.tags[i2] = tag;
+    		seg2.handles[i2] = handle1;
+    		if (this.keyed) {
+    			long key = seg1.keys[i1];
+    			seg1.keys[i1] = seg2.keys[i2];
+    			seg2.keys[i2] = key;
+    		}
+    		if (handle1 != null)
+    			handle1.pos = pos2;
+    		if (handle2 != null)
+    			handle2.pos = pos1;
+    	}
+
+    	/**
+    	 * Returns the segment holding the specified position, or
+    	 * {@code null} if its row hasn't been allocated (or has been
+    	 * trimmed).
+    	 */
+    	private Segment segment(int pos) {
+    		// Heap row of 'pos', which is also its bit-width
+    		int row = Integer.SIZE - 1 - Integer.numberOfLeadingZeros(pos + 1);
+    		return this.segments.get((row < this.baseRows) ? 0
+    				: row - this.baseRows + 1);
+    	}
+
+    	private int offset(int pos) {
+    		int row = Integer.SIZE - 1 - Integer.numberOfLeadingZeros(pos + 1);
+    		return (row < this.baseRows) ? pos : pos + 1 - (1 << row);
+    	}
+    }
+
+
+    /**
+     * Fills & heapifies a subtree of a bulk-constructed heap, forking a
+     * task for each of its child subtrees until they're short enough to
+     * leave to a single thread.
+     */
+    private final class HeapifyTask extends RecursiveAction {
+    	private static final long serialVersionUID = 1L;
+    	private final int pos;
+    	private final Object[] items;
+    	/** The heap's last row. */
+    	private final int lastRow;
+
+    	HeapifyTask(int pos, Object[] items, int lastRow) {
+    		this.pos = pos;
+    		this.items = items;
+    		this.lastRow = lastRow;
+    	}
+
+    	@Override
+    	protected void compute() {
+    		if (!fillNode(this.pos, this.items))
+    			return;
+    		int leftPos = (this.pos << 1) + 1;
+    		int childRow = Integer.SIZE - 1
+    				- Integer.numberOfLeadingZeros(leftPos + 1);
+    		if (this.lastRow - childRow < SEQ_HEAPIFY_ROWS) {
+    			heapifySubtree(leftPos, this.items);
+    			heapifySubtree(leftPos + 1, this.items);
+    		} else {
+    			invokeAll(new HeapifyTask(leftPos, this.items, this.lastRow),
+    					new HeapifyTask(leftPos + 1, this.items, this.lastRow));
+    		}
+    		siftDownUnpublished(this.pos);
+    	}
+    }
+
+
+    /**
+     * A subscription to the queue's {@link #publisher()} view, which sends
+     * its subscriber items deleted from the queue, as they're requested.
+     * <p>
+     * Sending is serialized by {@code wip}: the thread that increments it
+     * from 0 runs {@link #deliver()} until no request, cancellation or
+     * completed future arrived meanwhile, so {@code onNext()} is never
+     * called concurrently. Once the queue is empty, the subscription holds
+     * a single {@code pollAsync()} future, whose completion by an inserting
+     * thread runs {@code drain()} in that thread.
+     * <p>
+     * Version: 1.0
+     */
+    private final class QueueSubscription implements Flow.Subscription {
+    	private final Flow.Subscriber<? super E> subscriber;
+    	/** Outstanding demand, or {@code Long.MAX_VALUE} if unbounded. */
+    	private final AtomicLong requested = new AtomicLong();
+    	private final AtomicInteger wip = new AtomicInteger();
+    	private volatile boolean cancelled;
+    	/** Error from a non-positive request, to be sent by deliver(). */
+    	private volatile Throwable error;
+    	/** Future of the item to send next, once the queue was empty. */
+    	private CompletableFuture<E> pending;  // Only accessed in deliver()
+
+    	QueueSubscription(Flow.Subscriber<? super E> subscriber) {
+    		this.subscriber = subscriber;
+    	}
+
+    	public void request(long n) {
+    		if (n <= 0L) {
+    			this.error = new IllegalArgumentException(
+    					"Non-positive request: " + n);
+    		} else {
+    			long r;
+    			do {
+    				r = this.requested.get();
+    				if (r == Long.MAX_VALUE)
+    					break;
+    			} while (!this.requested.compareAndSet(r,
+    					(r + n < 0L) ? Long.MAX_VALUE : r + n));
+    		}
+    		drain();
+    	}
+
+    	public void cancel() {
+    		this.cancelled = true;
+    		drain();
+    	}
+
+    	private void drain() {
+    		if (this.wip.getAndIncrement() != 0)
+    			return;
+    		int missed = 1;
+    		do {
+    			deliver();
+    			missed = this.wip.addAndGet(-missed);
+    		} while (missed != 0);
+    	}
+
+    	private void deliver() {
+    		if (this.cancelled) {
+    			releasePending();
+    			return;
+    		}
+    		if (this.error != null) {
+    			this.cancelled = true;
+    			releasePending();
+    			this.subscriber.onError(this.error);
+    			return;
+    		}
+    		
+    		List<E> batch;
+    		long r = this.requested.get();
+    		while (r > 0L && !this.cancelled) {
+    			if (this.pending != null) {
+    				if (!this.pending.isDone())
+    					return;  // Its completion will drain() again
+    				batch = Collections.singletonList(this.pending.join());
+    				this.pending = null;
+    			} else {
+    				batch = pollBatch((int) Math.min(r, PUBLISHER_BATCH));
+    				if (batch.isEmpty()) {
+    					this.pending = pollAsync();
+    					this.pending.thenRun(this::drain);
+    					continue;
+    				}
+    			}
+    			int sent = send(batch);
+    			r = (r == Long.MAX_VALUE) ? r
+    					: this.requested.addAndGet(-sent);
+    		}
+    		if (this.cancelled)
+    			releasePending();
+    	}
+
+    	/**
+    	 * Sends the batch's items to the subscriber, in order, and returns
+    	 * how many were sent. If the subscription is cancelled part way
+    	 * (e.g., by the subscriber), or {@code onNext()} throws (which the
+    	 * subscription takes as a cancellation), the unsent items are put
+    	 * back, as by {@link ConcurrentHeapPriorityQueue#putBack(List)}.
+    	 */
+    	private int send(List<E> batch) {
+    		int sent = 0, n = batch.size();
     		try {
-    			// Only set 'root's tag to AVAILABLE if it's "our" node. (It
-    			// could have been replaced with another node due to a
-    			// concurrent insert or delete.)
-        		if (root.getTag().getValue() == threadID)
-        			root.setTag(Tag.AVAILABLE);
+    			while (sent < n && !this.cancelled)
+    				this.subscriber.onNext(batch.get(sent++));
+    		} catch (RuntimeException e) {
+    			this.cancelled = true;
     		} finally {
-    			root.lock.unlock();
+    			if (sent < n)
+    				putBack(batch.subList(sent, n));
     		}
+    		return sent;
+    	}
+
+    	/**
+    	 * Gives up the pending {@code pollAsync()} future, and puts its item
+    	 * back, if it was completed.
+    	 */
+    	private void releasePending() {
+    		if (this.pending == null)
+    			return;
+    		if (!this.pending.cancel(false))
+    			putBack(this.pending.join());
+    		this.pending = null;
     	}
     }
     
+    
     /**
-     * Removes and returns the minimum item in this queue.
+     * An immutable snapshot of the statistics collected by a queue built
+     * w/ {@link Builder#collectStats(boolean)}, as returned by
+     * {@link ConcurrentHeapPriorityQueue#getStats()}. Every counter is
+     * cumulative since the queue was created. The per-row arrays are
+     * indexed by heap row (the root's row being 0), and the sift depth
+     * histograms by the number of rows an item moved.
      * <p>
-     * Version: 3.0
-     * 
-     * @return the minimum item in this queue, after removing it; or
-     *    {@code null} if the queue is empty.
+     * Version: 1.0
      */
-    private E delete() {
-    	try {
-    		return deleteMin();
-    	} catch (NoSuchElementException e) {
-    		return null;
+    public static final class Stats {
+    	private final long countLockAcquisitions, countLockContentions,
+    			countLockWaitNanos;
+    	private final long[] nodeLockContention, siftDownDepths,
+    			siftUpDepths;
+    	private final long parentEmptyRetries, tagChangedRetries,
+    			slowOperations;
+    	
+    	private Stats(StatsRecorder rec) {
+    		this.countLockAcquisitions = rec.countLockAcquisitions.sum();
+    		this.countLockContentions = rec.countLockContentions.sum();
+    		this.countLockWaitNanos = rec.countLockWaitNanos.sum();
+    		this.nodeLockContention = sums(rec.nodeLockContention);
+    		this.siftDownDepths = sums(rec.siftDownDepths);
+    		this.siftUpDepths = sums(rec.siftUpDepths);
+    		this.parentEmptyRetries = rec.parentEmptyRetries.sum();
+    		this.tagChangedRetries = rec.tagChangedRetries.sum();
+    		this.slowOperations = rec.slowOperations.sum();
     	}
-    }
-
-    /**
-     * Removes and returns the item at the given position, in the backing
-     * array-based min-heap. This is a generalized version of the prior
-     * delete() method, which supports deletion of any item in the queue.
-     * The optional {@code item} parameter specifies the item to be deleted,
-     * and if specified is used to make sure the position given by
-     * {@code pos} is correct.
-     * <p>
-     * Version: 2.1
-     * <p>
-     * <u>Notes on Locking</u>: The 'countLock' is released as soon as we've
-     * acquired the 'bottom' lock, or immediately if the queue's size is found
-     * to be 0. Then the 'bottom' lock is released as soon we've copied its data
-     * and set it to EMPTY. Then the 'node' lock at position 'pos' is acquired.
-     * The 'node' lock is released immediately if 'node' is tagged EMPTY and
-     * thereby is the sole Node (and equal to 'bottom'). In this case,
-     * 'bottomData' is returned. Otherwise, the 'node' lock is held until the
-     * method returns, or an exception is thrown.
-     * 
-     * @param pos index of item to be deleted, in the backing array-based
-     *    min-heap. 
-     * @return the deleted item, which was at position {@code pos}, in the
-     *    backing array-based min-heap.
-     * @throws NoSuchElementException if the queue is empty.
-     * @throws IndexOutOfBoundsException if {@code pos} is greater than or equal
-     *    to the queue's size.
-     */
-    /* NOTE: This method is now deprecated, because it was only needed by remove(Object), which is no longer supported,
-     *   because it was unpredictable. */
-    @Deprecated
-    private E delete(int pos) {
-    	Node<E> bottom, node;
-    	E bottomData, nodeData;
-    	int bottomPos;
     	
-    	/* Grab an item from the bottom of the heap to replace the to-be-deleted
-    	 * item at 'pos'. */
-    	this.countLock.writeLock().lock();
-    	try {
-	    	int size = this.count.getNonreversedCount();
-	    	// Throw NoSuchElementException if the queue is empty.
-	    	if (size == 0) {
-	    		this.countLock.writeLock().unlock();
-	    		throw new NoSuchElementException();
-	    	} else if (pos >= size) {
-	    		this.countLock.writeLock().unlock();
-	    		throw new IndexOutOfBoundsException();
-	    	}
-	    	bottomPos = this.count.decrementAndGet();
-	    	bottom = this.heap.get(bottomPos);
-	    	bottom.lock.lock();
-    	} finally {
-    		if (this.countLock.writeLock().isHeldByCurrentThread())
-    			this.countLock.writeLock().unlock();
+    	/**
+    	 * Returns the number of times inserts & deletes acquired
+    	 * 'countLock', to reserve leaf positions. (It isn't acquired for
+    	 * that in {@code LOCK_FREE} mode.)
+    	 */
+    	public long getCountLockAcquisitions() {
+    		return this.countLockAcquisitions;
     	}
     	
-    	// Get 'bottom' data & set the Node empty, then release its lock:
-    	bottomData = bottom.getData();
-    	bottom.setTag(Tag.EMPTY);
-    	bottom.setData(null);
-    	bottom.lock.unlock();
+    	/**
+    	 * Returns the number of 'countLock' acquisitions that had to wait
+    	 * for the lock.
+    	 */
+    	public long getCountLockContentions() {
+    		return this.countLockContentions;
+    	}
     	
-    	// Lock item at 'pos':
-    	node = this.heap.get(pos);
-    	node.lock.lock();
-    	try {
-    		// Stop if it was only item in the heap (and thereby was 'bottom')
-    		if (node.getTag() == Tag.EMPTY) {
-    			node.lock.unlock();
-    			return bottomData;
-    		}
-    		// Replace node's item with the item that was in 'bottom':
-    		nodeData = node.getData();
-    		node.setData(bottomData);
-    		node.setTag(Tag.AVAILABLE);
-    		// Adjust heap starting at 'pos', while holding the lock on 'node'.
-    		heapify(pos, node);
-    		// Return deleted item
-    		return nodeData;
-    	} finally {
-    		if (node.lock.isHeldByCurrentThread())
-    			node.lock.unlock();
+    	/**
+    	 * Returns the total time spent waiting for 'countLock', in
+    	 * nanoseconds.
+    	 */
+    	public long getCountLockWaitNanos() {
+    		return this.countLockWaitNanos;
+    	}
+    	
+    	/**
+    	 * Returns the number of node lock acquisitions that found the lock
+    	 * held, and had to wait for it, by the node's heap row.
+    	 */
+    	public long[] getNodeLockContentionByLevel() {
+    		return this.nodeLockContention.clone();
+    	}
+    	
+    	/**
+    	 * Returns a histogram of the number of rows each item sifted down
+    	 * by heapify() (after a delete, removal, or priority update) moved.
+    	 */
+    	public long[] getSiftDownDepths() {
+    		return this.siftDownDepths.clone();
+    	}
+    	
+    	/**
+    	 * Returns a histogram of the number of rows each single insert's
+    	 * item moved up the heap.
+    	 */
+    	public long[] getSiftUpDepths() {
+    		return this.siftUpDepths.clone();
+    	}
+    	
+    	/**
+    	 * Returns the number of propagation steps that found the parent
+    	 * node EMPTY, due to a concurrent delete (or, in {@code LOCK_FREE}
+    	 * mode, a concurrent insert that hadn't yet filled it).
+    	 */
+    	public long getParentEmptyRetries() {
+    		return this.parentEmptyRetries;
+    	}
+    	
+    	/**
+    	 * Returns the number of propagation steps that found the inserted
+    	 * item's tag gone from its node, since a concurrent delete had
+    	 * moved it up, so that it had to be followed.
+    	 */
+    	public long getTagChangedRetries() {
+    		return this.tagChangedRetries;
+    	}
+    	
+    	/**
+    	 * Returns the number of inserts & deletes that took at least the
+    	 * queue's slow operation threshold.
+    	 */
+    	public long getSlowOperations() {
+    		return this.slowOperations;
+    	}
+    	
+    	@Override
+    	public String toString() {
+    		return "Stats[countLockAcquisitions=" + this.countLockAcquisitions
+    				+ ", countLockContentions=" + this.countLockContentions
+    				+ ", countLockWaitNanos=" + this.countLockWaitNanos
+    				+ ", nodeLockContentionByLevel="
+    				+ Arrays.toString(trimmed(this.nodeLockContention))
+    				+ ", siftDownDepths="
+    				+ Arrays.toString(trimmed(this.siftDownDepths))
+    				+ ", siftUpDepths="
+    				+ Arrays.toString(trimmed(this.siftUpDepths))
+    				+ ", parentEmptyRetries=" + this.parentEmptyRetries
+    				+ ", tagChangedRetries=" + this.tagChangedRetries
+    				+ ", slowOperations=" + this.slowOperations + "]";
+    	}
+    	
+    	private static long[] sums(LongAdder[] adders) {
+    		long[] sums = new long[adders.length];
+    		for (int i = 0; i < adders.length; i++)
+    			sums[i] = adders[i].sum();
+    		return sums;
+    	}
+    	
+    	/** Returns a copy of the array w/o its trailing zeros. */
+    	private static long[] trimmed(long[] counts) {
+    		int n = counts.length;
+    		while (n > 0 && counts[n - 1] == 0L)
+    			n--;
+    		return Arrays.copyOf(counts, n);
     	}
     }
     
+    
     /**
-     * Removes the minimum-priority item from the queue and returns this item.
+     * The counters behind a queue's {@link Stats}. Each is a
+     * {@code LongAdder}, so that threads recording at once don't all
+     * contend on one word.
      * <p>
-     * Impl. Notes: This method is based closely on Galen C. Hunt's
-     * {@code concurrent_delete(heap_t)} pseudo-code.
-     * 
-     * @return the removed minimum-priority item.
-     * @throws NoSuchElementException if the queue is empty.
+     * Version: 1.0
      */
-    private E deleteMin() {
-    	Node<E> bottom, root;
-    	E bottomData, rootData;
-    	int bottomPos;
+    private static final class StatsRecorder {
+    	/** Number of heap rows, & so of sift depths, counted. */
+    	private static final int ROWS = Integer.SIZE;
+    	/** Whether slow operations are emitted as JFR events. (Cleared if
+    	 *  the JVM lacks the jdk.jfr API, which first shipped w/ Java 11.) */
+    	private static volatile boolean jfrEvents = true;
     	
-    	/* Grab an item from the bottom of the heap to replace the to-be-deleted
-    	 * top item. */
-    	this.countLock.writeLock().lock();
-    	try {
-	    	int size = this.count.getNonreversedCount();
-	    	if (size == 0) {
-	    		this.countLock.writeLock().unlock();
-	    		throw new NoSuchElementException();
-	    	}
-	    	bottomPos = this.count.decrementAndGet();
-	    	bottom = this.heap.get(bottomPos);
-	    	bottom.lock.lock();
-    	} finally {
-    		if (this.countLock.writeLock().isHeldByCurrentThread())
-    			this.countLock.writeLock().unlock();
+    	final long slowOperationNanos;
+    	final LongAdder countLockAcquisitions = new LongAdder(),
+    			countLockContentions = new LongAdder(),
+    			countLockWaitNanos = new LongAdder();
+    	final LongAdder[] nodeLockContention = newAdders(ROWS),
+    			siftDownDepths = newAdders(ROWS),
+    			siftUpDepths = newAdders(ROWS);
+    	final LongAdder parentEmptyRetries = new LongAdder(),
+    			tagChangedRetries = new LongAdder(),
+    			slowOperations = new LongAdder();
+    	
+    	StatsRecorder(long slowOperationNanos) {
+    		this.slowOperationNanos = slowOperationNanos;
     	}
     	
-    	// Get 'bottom' data & set the Node empty, then release its lock:
-    	bottomData = bottom.getData();
-    	bottom.setTag(Tag.EMPTY);
-    	bottom.setData(null);
-    	bottom.lock.unlock();
+    	void countLockAcquired() {
+    		this.countLockAcquisitions.increment();
+    	}
     	
-    	// Lock first item:
-    	root = this.heap.get(0);
-    	root.lock.lock();
-    	try {
-    		// Stop if it was only item in the heap (and thereby was 'bottom')
-    		if (root.getTag() == Tag.EMPTY) {
-    			root.lock.unlock();
-    			return bottomData;
+    	void countLockWaited(long nanos) {
+    		this.countLockAcquisitions.increment();
+    		this.countLockContentions.increment();
+    		this.countLockWaitNanos.add(nanos);
+    	}
+    	
+    	void nodeLockContended(int pos) {
+    		this.nodeLockContention[Integer.SIZE - 1
+    				- Integer.numberOfLeadingZeros(pos + 1)].increment();
+    	}
+    	
+    	void siftedDown(int depth) {
+    		this.siftDownDepths[Math.min(depth, ROWS - 1)].increment();
+    	}
+    	
+    	void siftedUp(int depth) {
+    		this.siftUpDepths[Math.min(depth, ROWS - 1)].increment();
+    	}
+    	
+    	/**
+    	 * Records an insert or delete that started at {@code start} (per
+    	 * {@code System.nanoTime()}), if it was slow.
+    	 */
+    	void operationDone(String operation, long start) {
+    		long nanos = System.nanoTime() - start;
+    		if (nanos < this.slowOperationNanos)
+    			return;
+    		this.slowOperations.increment();
+    		if (jfrEvents) {
+    			try {
+    				SlowHeapOperationEvent.emit(operation, nanos);
+    			} catch (LinkageError e) {
+    				jfrEvents = false;
+    			}
     		}
-    		// Replace the top item with the item stored from the bottom:
-    		rootData = root.getData();
-    		root.setData(bottomData);
-    		root.setTag(Tag.AVAILABLE);
-    		
-    		// Adjust the heap starting at the top. We always hold a lock on the
-    		// item being adjusted. (In this case 'root'.)
-    		heapify(0, root);
-    		
-    		// Return minimum item
-    		return rootData;
-    	} finally {
-    		if (root.lock.isHeldByCurrentThread())
-    			root.lock.unlock();
+    	}
+    	
+    	private static LongAdder[] newAdders(int n) {
+    		LongAdder[] adders = new LongAdder[n];
+    		for (int i = 0; i < n; i++)
+    			adders[i] = new LongAdder();
+    		return adders;
     	}
     }
     
+    
     /**
-     * Heapify the specified {@code Node}.
-     * <p>
-     * Note: The {@code Node} 'node' remains locked after this method
-     *   completes.  
-     * <p>
-     * Version: 1.2.1
-     * 
-     * @param pos {@code node}'s position in the heap.
-     * @param node {@code Node} to be heapified, which must be locked when
-     *    this method is called.
+     * The MBean registered by {@link #registerMBean(ObjectName)}, each of
+     * whose attributes is read from a fresh {@link Stats} snapshot.
      */
-    private void heapify(int pos, Node<E> node) {
-    	// Caller should hold Lock on 'node'
-    	assert node.lock.isHeldByCurrentThread();
+    private final class StatsMBean
+    		implements ConcurrentHeapPriorityQueueMXBean
+    {
+    	public int getSize() {
+    		return size();
+    	}
     	
-		Node<E> left,   // 'node's left child
-				right,  // 'node's right child
-				child;  // 'node's smaller child
-		int i = pos,       // pos. of 'node'
-				 leftPos,   // pos. of 'node's left child
-				 rightPos,  // pos. of 'node's right child
-				 childPos;  // pos. of 'node's smaller child
-		while (true) {
-			// Get pos. of 'node's left child
-			leftPos = (i << 1) + 1;   // i * 2 + 1
-			// Get pos. of 'node's right child
-			rightPos = (i << 1) + 2;  // i * 2 + 2
-			// Make sure we don't try to read past the end of the heap
-			if (leftPos >= this.heap.size())
-				left = null;
-			else
-				left = this.heap.get(leftPos);
-			// Make sure we don't try to read past the end of the heap
-			if (rightPos >= this.heap.size())
-				right = null;
-			else
-				right = this.heap.get(rightPos);
-			// If left child exists
-			if (left != null) {
-				left.lock.lock();
-				// If 'left' is empty, 'node' has no valid children.
-				if (left.getTag() == Tag.EMPTY) {
-					left.lock.unlock();
-					return;
-				}
-			}
-			// Otherwise, 'node' has no children.
-			else {
-				return;
-			}
-			// If right child exists
-			if (right != null) {
-				right.lock.lock();
-				// If 'right' is empty or 'left.data' <= 'right.data'
-				// Note: 'left' is still locked
-				if (right.getTag() == Tag.EMPTY
-						|| compare(left, right) <= 0)
-				{
-					right.lock.unlock();  // unlock; we're done w/ 'right'
-					// Assign 'node's smaller child:
-					childPos = leftPos;
-					child = left;
-				}
-				// Otherwise, 'right.data' < 'left.data'
-				else {
-					left.lock.unlock();  // unlock; we're done w/ 'left'
-					// Assign 'node's smaller child:
-					childPos = rightPos;
-					child = right;
-				}
-			}
-			// Otherwise, 'left' is sole child
-			// Note: 'left' is still locked.
-			else {
-				childPos = leftPos;
-				child = left;  // 'child' is locked
-			}
-			
-			// If child is less than parent, swap Nodes.
-			// Note: 'child' is locked
-			if (compare(child, node) < 0) {
-				swapNodes(childPos, i);  // swap 'node' w/ 'child'
-				child.lock.unlock();  // 'child' is now 'node's parent
-				i = childPos;  // 'i' is new pos. of 'node'
-			}
-			// If not, stop. We're done.
-			else {
-				child.lock.unlock();
-				return;
-			}
-		}
-    }
-
-    /**
-     * Propagates the specified newly inserted {@code Node} up the backing heap
-     * towards its root node via successive node swaps, while its data is
-     * "less than" its parent {@code Node}'s data (according to either this
-     * queue's {@code Comparator} or the data's natural ordering), in order to
-     * move the node to its correct location in the heap.
-     * 
-     * @param nodePos the current position, in the backing array-based heap, of
-     *    the {@code Node} to propagate up the heap.
-     * @param node the {@code Node} to propagate up the heap.
-     * @return the specified {@code Node}'s new position in the backing
-     *    array-based heap.
-     */
-    private int propagateInsert(int nodePos, Node<E> node) {
-    	long threadID = Thread.currentThread().getId();
-    	Node<E> parent; // 'node's parent Node
-    	int parentPos;  // parent node's position in backing array-based heap
-    	
-    	// Move 'node' towards heap's root while smaller than its parent
-    	while (nodePos > 0) {
-    		// Calc. 'node's parent's pos.
-    		parentPos = (nodePos - 1) >>> 1;  // (nodePos-1)/2
-    		// Get 'node's parent from heap
-    		parent = this.heap.get(parentPos);
-    		parent.lock.lock();  // Note: Locking order is important.
-    		node.lock.lock();
-    		try {
-    			// If 'parent' isn't currently being inserted or deleted &
-    			// 'node' is still "our" node ...
-        		if (parent.getTag() == Tag.AVAILABLE
-        				&& node.getTag().getValue() == threadID)
-        		{
-        			// If 'node' is less than 'parent', swap nodes
-        			if (compare(node, parent) < 0) {
-        				swapNodes(nodePos, parentPos);
-        				nodePos = parentPos;
-        			}
-        			// Otherwise, we're done.
-        			else {
-        				node.setTag(Tag.AVAILABLE);
-        				break;
-        			}
-        		}
-        		// Otherwise, if 'parent's tag is EMPTY, there's a concurrent
-        		// delete, so break or we'll deadlock w/ the deleting thread.
-        		else if (parent.getTag() == Tag.EMPTY) {
-        			break;
-        		}
-        		// Otherwise, if 'node's tag isn't our Thread ID, then a
-        		// concurrent insert has swapped 'node' w/ 'parent', so update
-        		// 'nodePos' w/ 'node's new position, which equals 'parentPos'.
-        		else if (node.getTag().getValue() != threadID) {
-        			nodePos = parentPos;
-        		}
-    		} finally {
-    			node.lock.unlock();    // Note: Unlocking order is important.
-    			parent.lock.unlock();
-    		}
+    	public long getCountLockAcquisitions() {
+    		return getStats().getCountLockAcquisitions();
+    	}
+    	
+    	public long getCountLockContentions() {
+    		return getStats().getCountLockContentions();
+    	}
+    	
+    	public long getCountLockWaitNanos() {
+    		return getStats().getCountLockWaitNanos();
+    	}
+    	
+    	public long[] getNodeLockContentionByLevel() {
+    		return getStats().getNodeLockContentionByLevel();
+    	}
+    	
+    	public long[] getSiftDownDepths() {
+    		return getStats().getSiftDownDepths();
+    	}
+    	
+    	public long[] getSiftUpDepths() {
+    		return getStats().getSiftUpDepths();
+    	}
+    	
+    	public long getParentEmptyRetries() {
+    		return getStats().getParentEmptyRetries();
+    	}
+    	
+    	public long getTagChangedRetries() {
+    		return getStats().getTagChangedRetries();
+    	}
+    	
+    	public long getSlowOperations() {
+    		return getStats().getSlowOperations();
     	}
-    	return nodePos;
     }
-
+    
+    
     /**
-     * Swaps the nodes at the specified positions.
+     * A segment of the backing heap, holding the data, tags, handles, keys
+     * & lock words of a run of nodes in parallel arrays.
      * <p>
-     * Version: 1.0.1
-     * 
-     * @param node1pos the first node, which will be swapped with
-     *    {@code node2pos}
-     * @param node2pos the second node, which will be swapped with
-     *    {@code node1pos}
+     * Version: 1.2
      */
-    private void swapNodes(int node1pos, int node2pos) {
-    	/* Assert the current Thread holds the locks for the Nodes at the
-    	 * specified positions. */
-    	assert this.heap.get(node1pos).lock.isHeldByCurrentThread();
-    	assert this.heap.get(node2pos).lock.isHeldByCurrentThread();
-    	
-    	Node<E> temp = this.heap.get(node1pos);
-    	this.heap.set(node1pos, this.heap.get(node2pos));
-    	this.heap.set(node2pos, temp);
-    }
+    private static final class Segment {
+    	final AtomicReferenceArray<Object> data;
+    	final long[] tags;  // All initially EMPTY
+    	final Handle<?>[] handles;
+    	final long[] keys;  // null unless in key mode
+    	final AtomicIntegerArray lockWords;
 
-    /**
-     * Increases the backing {@code ArrayList}'s capacity, if
-     * {@code minCapacity} is greater than its current capacity, and adds
-     * nulls to the resized {@code ArrayList}, filling it to the new capacity.
-     * <p> 
-     * Version: 1.0.1
-     * 
-     * @param minCapacity a new capacity for the backing {@code ArrayList},
-     *    which should be greater than {@code heap.size()}. Note: Calling this
-     *    method with a value less than or equal to {@code heap.size()} has no
-     *    effect.
-     */
-    @GuardedBy("this.countLock")
-    private void ensureCapacity(int minCapacity) {
-    	this.heap.ensureCapacity(minCapacity);
-    	// Fill with 'null's, increasing size to capacity.
-    	for (int i = this.heap.size(); i < minCapacity; i++)
-    		this.heap.add(null);
+    	Segment(int length, boolean keyed) {
+    		this.data = new AtomicReferenceArray<Object>(length);
+    		this.tags = new long[length];
+    		this.handles = new Handle<?>[length];
+    		this.keys = keyed ? new long[length] : null;
+    		this.lockWords = new AtomicIntegerArray(length);
+    	}
     }
-
+    
+    
     /**
-     * Compares two {@code Node}s' data, using a {@code Comparator}'s
-     * {@code compare(E,E)} if one is set, or {@code Comparable}'s
-     * {@code compareTo(E)} if not. Returns a positive integer, zero, or a
-     * negative integer, if {@code item1}'s data is greater than, equal, or
-     * less than {@code item2}'s data.
-     * 
-     * @param item1 the first {@code Node}, whose data will be compared to
-     *    {@code item2}'s data
-     * @param item2 the second {@code Node}, whose data {@code item1}'s data
-     *    will be compared to
-     * @return a positive integer, zero, or a negative integer, if
-     *    {@code item1}'s data is greater than, equal, or less than
-     *    {@code item2}'s data.
+     * An item's entry in a queue's 'ranked' index. The item's key (in key
+     * mode) is stored w/ it, along w/ a sequence number that tells apart
+     * equal items.
      */
-    @SuppressWarnings("unchecked")
-    private int compare(Node<E> item1, Node<E> item2) {
-    	// Caller should hold Lock on 'item1' & 'item2':
-    	assert item1.lock.isHeldByCurrentThread();
-    	assert item2.lock.isHeldByCurrentThread();
+    private static final class Rank<E> {
+    	final E item;
+    	final long key;
+    	final long seq;
     	
-    	if (this.comp != null)
-    		return this.comp.compare(item1.data, item2.data);
-    	else
-    		return ((Comparable<E>) item1.data).compareTo(item2.data); // unchecked cast
+    	Rank(E item, long key, long seq) {
+    		this.item = item;
+    		this.key = key;
+    		this.seq = seq;
+    	}
     }
-
-
+    
+    
     /**
-     * Version: 1.1
+     * A handle on an item inserted via {@link #offerHandle(Object)}, which
+     * tracks the item's position in the queue's heap for as long as the
+     * item is in the queue. It may be used to remove the item from the
+     * queue, or to replace it with an item of a different priority (e.g.,
+     * to cancel or reschedule a timer), in O(log n) time.
+     * <p>
+     * Version: 1.0
      */
-    private static class Node<E> {
-    	final ReentrantLock lock;
+    @ThreadSafe
+    public static final class Handle<E> {
+    	/** 'pos' of a handle whose item isn't in the queue. */
+    	static final int REMOVED = -1;
     	
-    	private E data;
-    	private Tag tag;
-
-    	private Node() {
-    		this.data = null;
-    		this.tag = Tag.EMPTY;
-    		this.lock = new ReentrantLock(true);  // Create a "fair" Lock
+    	private final ConcurrentHeapPriorityQueue<E> queue;
+    	/** Heap position of the item, or REMOVED. (Only written while
+    	 *  holding the lock of the item's node, or after taking the item
+    	 *  out of the heap, but read w/o a lock.) */
+    	volatile int pos;
+    	volatile E item;
+    	/** The item's entry in the queue's 'ranked' index, or {@code null}
+    	 *  if it's not ranked. */
+    	volatile Rank<E> rank;
+    	
+    	private Handle(ConcurrentHeapPriorityQueue<E> queue, E item) {
+    		this.queue = queue;
+    		this.item = item;
+    		this.pos = REMOVED;
     	}
-
-    	E getData() {
-    		// Calling Thread should hold the Lock
-    		assert this.lock.isHeldByCurrentThread();
-    		
-    		return this.data;
+    	
+    	/**
+    	 * Returns the handle's item, or its last item if it has been removed
+    	 * from the queue.
+    	 */
+    	public E get() {
+    		return this.item;
     	}
     	
-    	void setData(E data) {
-    		// Calling Thread should hold the Lock
-    		assert this.lock.isHeldByCurrentThread();
-    		
-    		this.data = data;
+    	/**
+    	 * Returns whether the handle's item is still in the queue.
+    	 */
+    	public boolean isQueued() {
+    		return this.pos != REMOVED;
     	}
     	
-    	Tag getTag() {
-    		// Calling Thread should hold the Lock
-    		assert this.lock.isHeldByCurrentThread();
-    		
-    		return this.tag;
+    	/**
+    	 * Removes the handle's item from the queue, if it's still there.
+    	 * 
+    	 * @return {@code true} if the item was removed by this call;
+    	 *    {@code false} if it had already been removed (e.g., polled or
+    	 *    cancelled).
+    	 */
+    	public boolean cancel() {
+    		return this.queue.deleteItem(this, null, true);
     	}
     	
-    	void setTag(Tag tag) {
-    		// Calling Thread should hold the Lock
-    		assert this.lock.isHeldByCurrentThread();
-    		
-    		this.tag = tag;
+    	/**
+    	 * Replaces the handle's item with the specified item (normally, the
+    	 * same item w/ a new priority), and moves it up or down the queue's
+    	 * heap as needed. Has no effect if the handle's item has already been
+    	 * removed from the queue.
+    	 * 
+    	 * @param newItem the item to replace the handle's item with.
+    	 * @return {@code true} if the item was replaced; {@code false} if
+    	 *    the handle's item had already been removed from the queue.
+    	 * 
+    	 * @throws NullPointerException if {@code newItem} is {@code null}.
+    	 * @throws ClassCastException if {@code newItem} can't be compared
+    	 *    with the queue's items.
+    	 */
+    	public boolean updatePriority(E newItem) {
+    		return this.queue.updateItem(this, newItem);
     	}
     }
+
     
     
     /**
-     * This class creates a snapshot of this queue's elements. The resulting
-     * {@code List<E>} is obtained via its {@code getList()} method.
+     * This class creates a snapshot of this queue's elements, in an array.
+     * The snapshot is obtained via its {@code toArray()} or
+     * {@code getList()} method, or its 'items' & 'size' fields.
      * <p>
      * <u>Implementation Notes</u>: To create the snapshot, this class
-     * performs a locking breadth-first traversal of this queue's backing
-     * heap. Each row of nodes in the heap are locked in succession, with
-     * the previous row's nodes being unlocked once the current row's nodes
-     * have been successfully locked. This locking of nodes during traversal
-     * will cause some concurrent inserts and deletes to temporarily block.
-     * However, this approach provides a consistent view of the queue, such
-     * that concurrent inserts and/or deletes will not cause any items to be
-     * skipped, or visited more than once.
+     * performs a depth-first traversal of this queue's backing heap, w/
+     * lock coupling: each node is locked while its parent is still locked,
+     * and is unlocked once both of its subtrees have been visited. So only
+     * the path from the root to the current node is locked, which is at
+     * most O(log n) nodes. Since an item only moves between a parent and
+     * its child while both are locked, no item can move between a visited
+     * subtree and an unvisited part of the heap, as any such move passes
+     * through a locked node of the path. This locking of nodes during
+     * traversal will cause some concurrent inserts and deletes to
+     * temporarily block. However, this approach provides a consistent view
+     * of the queue, such that concurrent inserts and/or deletes moving
+     * items between parents and children will not cause any items to be
+     * skipped, or visited more than once. (The exception is an item that a
+     * concurrent delete moves from the bottom of the heap to replace the
+     * item it removes, which is skipped if the replaced node has already
+     * been visited.)
+     * <p>
+     * Version: 4.0
      */
     private class SnapshotCreator {
-    	private HeapBitReversedCounter bufCount; // Our pos. in the heap
-    	private List<E> buf; // Snapshot of queue's items
-    	private List<Integer> curRow, prevRow; // Lists of buffered Node indexes
-    	private int curRowCap; // Heap max. capacity of current row
+    	private Object[] items;  // Snapshot of queue's items
+    	private int size;        // Number of items in 'items'
 
     	private SnapshotCreator() {
-    		this.bufCount = HeapBitReversedCounter.newInstance();
-    		this.buf = new LinkedList<E>();
-    		this.prevRow = null;
-    		this.curRow = new LinkedList<Integer>();
-    		this.curRowCap = 1;
+    		// Presize, so as not to copy while holding node locks
+    		int estimate = ConcurrentHeapPriorityQueue.this.size();
+    		this.items = new Object[estimate + (estimate >>> 3) + 16];
+    		this.size = 0;
     		
     		readSnapshot();
     	}
     	
+    	Object[] toArray() {
+    		return Arrays.copyOf(this.items, this.size);
+    	}
+    	
+    	@SuppressWarnings("unchecked")
     	List<E> getList() {
-    		return this.buf;
+    		return (List<E>) Arrays.asList(this.items).subList(0, this.size);
     	}
 
     	/**
-    	 * Version: 1.0.1
+    	 * Buffers the heap's items, by a depth-first traversal from its
+    	 * root.
+    	 * <p>
+    	 * Version: 4.0
     	 */
     	private void readSnapshot() {
-    		// Buffer items:
-    		int rowSz = 0, exp = 0;
-    		while (rowSz == exp) {
-    			if (exp > 0)
-    				exp <<= 1;  // exp *= 2
-    			else
-    				exp = 1;
-    			
-    			rowSz = bufferRow();
-    			
-    			this.prevRow = this.curRow;
-	    		this.curRow.clear();
-	    		this.curRowCap <<= 1;  // curRowCap *= 2
-    		}
-    		
-    		/* Unlock all Nodes we locked: */
-    		// Unlock previous row's Nodes:
-    		if (this.prevRow != null) {
-    			for (int index : this.prevRow) {
-    				ConcurrentHeapPriorityQueue.this.heap.get(index).lock
-    						.unlock();
-    			}
-    		}
-    		// Unlock current row's Nodes:
-    		for (int index : this.curRow) {
-				ConcurrentHeapPriorityQueue.this.heap.get(index).lock
-						.unlock();
-			}
+    		SegmentedHeap<E> heap = ConcurrentHeapPriorityQueue.this.heap;
+    		if (heap.lockIfPresent(0))
+    			readSubtree(heap, 0);
     	}
     	
     	/**
-    	 * <p>
-    	 * Version: 1.0.1
-    	 * 
-    	 * @return the number of items added to the buffer.
+    	 * Buffers the items of the subtree rooted at the locked node at
+    	 * {@code pos}, and then unlocks it. The traversal doesn't descend
+    	 * past a node w/o an item, since a heap row is only filled once the
+    	 * rows above it are full (and emptied before them), so such a node
+    	 * has no items below it, except for any being inserted concurrently.
     	 */
-    	private int bufferRow() {
-    		if (this.prevRow != null) {
-	    		// Unlock previous row's Nodes:
-	    		for (int index : this.prevRow) {
-	    			ConcurrentHeapPriorityQueue.this.heap.get(index).lock
-	    					.unlock();
-	    		}
-    		}
-    		
-    		Node<E> n;
-    		int index;
-    		// Lock current row's Nodes & buffer their data values:
-    		for (int i = 0; i < this.curRowCap; i++) {
-    			index = this.bufCount.getAndIncrement();
-    			// Don't try to buffer nonexistent Nodes (beyond the heap)
-    			if (index >= ConcurrentHeapPriorityQueue.this.heap.size())
-    				return i + 1; // End of row
-    			n = ConcurrentHeapPriorityQueue.this.heap.get(index);
+    	private void readSubtree(SegmentedHeap<E> heap, int pos) {
+    		try {
+    			if (heap.getTag(pos) == EMPTY)
+    				return;
+    			if (this.size == this.items.length)
+    				this.items = Arrays.copyOf(this.items, this.size << 1);
+    			this.items[this.size++] = heap.getData(pos);
     			
-    			if (n != null) {
-    				this.curRow.add(index);
-    				n.lock.lock();
-    				if (n.getTag() != Tag.EMPTY) {
-    					this.buf.add(n.getData());
-    				}
-    				// Otherwise, the Node has been deleted & we've reached the
-    				// end of the row
-    				else {
-    					return i + 1;
+    			int leftPos = (pos << 1) + 1;
+    			for (int childPos = leftPos; childPos <= leftPos + 1;
+    					childPos++)
+    			{
+    				// Stop at the end of the heap, or a trimmed row. (Once
+    				// a row's node is locked, its row can't be trimmed.)
+    				if (childPos <= 0 || childPos >= heap.capacity()
+    						|| !heap.lockIfPresent(childPos))
+    				{
+    					break;
     				}
+    				readSubtree(heap, childPos);  // Unlocks 'childPos'
     			}
-    			// We've reached the end of the row
-    			else {
-    				return i + 1;
-    			}
+    		} finally {
+    			heap.unlock(pos);
+    		}
+    	}
+    }
+    
+    
+    /**
+     * A {@code Spliterator} over a snapshot of this queue's elements,
+     * which is taken (by a SnapshotCreator) when the {@code Spliterator} is
+     * first traversed, split or sized. It splits into halves of the
+     * snapshot array, each of whose exact size is known.
+     * <p>
+     * Version: 1.0
+     */
+    private final class SnapshotSpliterator implements Spliterator<E> {
+    	private Object[] items;  // Snapshot, or null until it's taken
+    	private int index;       // Next index to traverse
+    	private int fence;       // One past the last index, or -1
+
+    	private SnapshotSpliterator(Object[] items, int index, int fence) {
+    		this.items = items;
+    		this.index = index;
+    		this.fence = fence;
+    	}
+    	
+    	/** Takes the snapshot, if it hasn't been taken yet. */
+    	private int getFence() {
+    		if (this.fence < 0) {
+    			SnapshotCreator snapshot = new SnapshotCreator();
+    			this.items = snapshot.items;
+    			this.fence = snapshot.size;
     		}
+    		return this.fence;
+    	}
+    	
+    	public Spliterator<E> trySplit() {
+    		int hi = getFence(), lo = this.index, mid = (lo + hi) >>> 1;
+    		return (lo >= mid) ? null
+    				: new SnapshotSpliterator(this.items, lo, this.index = mid);
+    	}
+    	
+    	@SuppressWarnings("unchecked")
+    	public void forEachRemaining(Consumer<? super E> action) {
+    		if (action == null)
+    			throw new NullPointerException();
+    		
+    		int hi = getFence();
+    		Object[] a = this.items;
+    		int i = this.index;
+    		this.index = hi;
+    		for (; i < hi; i++)
+    			action.accept((E) a[i]);  // unchecked cast
+    	}
+    	
+    	@SuppressWarnings("unchecked")
+    	public boolean tryAdvance(Consumer<? super E> action) {
+    		if (action == null)
+    			throw new NullPointerException();
     		
-    		return this.curRow.size();
+    		if (this.index >= getFence())
+    			return false;
+    		action.accept((E) this.items[this.index++]);  // unchecked cast
+    		return true;
+    	}
+    	
+    	public long estimateSize() {
+    		return getFence() - this.index;
+    	}
+    	
+    	public int characteristics() {
+    		return Spliterator.NONNULL | Spliterator.SIZED
+    				| Spliterator.SUBSIZED | Spliterator.CONCURRENT;
     	}
     }
 
@@ -977,63 +4118,48 @@ public class ConcurrentHeapPriorityQueue<E> implements Queue<E> {
      * then what is iterated over. This approach should limit the time locks
      * need to be held on the queue's nodes.
      * <p>
-     * Version: 1.1
+     * Version: 1.3
      */
     private class Iter implements Iterator<E> {
-    	private List<E> buf;  // Snapshot of queue's items
+    	private final Object[] buf;  // Snapshot of queue's items
+    	private final int bufSize;
     	private int iterIndex;
+    	private E lastRet;    // Item returned by next(), if not removed
 
     	private Iter() {
-    		this.buf = new SnapshotCreator().getList();
+    		SnapshotCreator snapshot = new SnapshotCreator();
+    		this.buf = snapshot.items;
+    		this.bufSize = snapshot.size;
     		this.iterIndex = 0;
+    		this.lastRet = null;
     	}
     	
     	public boolean hasNext() {
-    		return this.iterIndex < this.buf.size();
+    		return this.iterIndex < this.bufSize;
     	}
 
+    	@SuppressWarnings("unchecked")
     	public E next() {
-    		if (this.iterIndex < this.buf.size()) {
-    			return this.buf.get(this.iterIndex++);
+    		if (this.iterIndex < this.bufSize) {
+    			return this.lastRet = (E) this.buf[this.iterIndex++];
     		}
     		else
     			throw new NoSuchElementException();
     	}
     	
     	/**
-    	 * @throws UnsupportedOperationException because this operation is
-    	 *    not supported.
+    	 * Removes the item last returned by {@code next()} from the queue,
+    	 * if it's still there.
+    	 * 
+    	 * @throws IllegalStateException if {@code next()} hasn't been called,
+    	 *    or {@code remove()} has already been called since.
     	 */
     	public void remove() {
-    		throw new UnsupportedOperationException();
-    	}
-    }
-
-    
-	@Immutable
-    private static class Tag {
-    	static Tag EMPTY = new Tag(0L);
-    	static Tag AVAILABLE = new Tag(-1L);
-
-    	private final long val;
-
-    	private Tag(long value) {
-    		this.val = value;
-    	}
-    	
-    	static Tag newThreadIDTag(long id) {
-    		if (id < 1L)
-    			return null;
+    		if (this.lastRet == null)
+    			throw new IllegalStateException();
     		
-    		return new Tag(id);
-    	}
-    	
-    	long getValue() {
-    		return this.val;
-    	}
-
-    	boolean isThreadIDTag() {
-    		return this.val > 0L;
+    		deleteItem(null, this.lastRet, true);
+    		this.lastRet = null;
     	}
     }
 
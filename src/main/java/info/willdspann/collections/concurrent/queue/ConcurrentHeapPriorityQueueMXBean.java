@@ -0,0 +1,48 @@
+package info.willdspann.collections.concurrent.queue;
+
+import info.willdspann.collections.concurrent.queue.ConcurrentHeapPriorityQueue.Stats;
+
+/**
+ * The JMX management interface of a {@link ConcurrentHeapPriorityQueue}
+ * that collects statistics, as registered by
+ * {@link ConcurrentHeapPriorityQueue#registerMBean(javax.management.ObjectName)}.
+ * Each attribute is read from a fresh {@link Stats} snapshot of the
+ * queue's counters, which are cumulative since the queue was created.
+ *
+ * @author Will D. Spann
+ * @version 1.0
+ *
+ * @see Stats
+ */
+public interface ConcurrentHeapPriorityQueueMXBean {
+
+	/** @see ConcurrentHeapPriorityQueue#size() */
+	int getSize();
+
+	/** @see Stats#getCountLockAcquisitions() */
+	long getCountLockAcquisitions();
+
+	/** @see Stats#getCountLockContentions() */
+	long getCountLockContentions();
+
+	/** @see Stats#getCountLockWaitNanos() */
+	long getCountLockWaitNanos();
+
+	/** @see Stats#getNodeLockContentionByLevel() */
+	long[] getNodeLockContentionByLevel();
+
+	/** @see Stats#getSiftDownDepths() */
+	long[] getSiftDownDepths();
+
+	/** @see Stats#getSiftUpDepths() */
+	long[] getSiftUpDepths();
+
+	/** @see Stats#getParentEmptyRetries() */
+	long getParentEmptyRetries();
+
+	/** @see Stats#getTagChangedRetries() */
+	long getTagChangedRetries();
+
+	/** @see Stats#getSlowOperations() */
+	long getSlowOperations();
+}
@@ -0,0 +1,564 @@
+package info.willdspann.collections.concurrent.queue;
+
+import java.util.AbstractQueue;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import info.willdspann.collections.concurrent.queue.ConcurrentHeapPriorityQueue.LockPolicy;
+import info.willdspann.collections.utils.HeapDigitReversedCounter;
+
+/**
+ * A thread-safe priority queue backed by a d-ary heap, w/ the same
+ * node-level locking as {@link ConcurrentHeapPriorityQueue} (per Hunt, et
+ * al.), but w/ {@code d} children per node, where {@code d} is 2, 4, 8 or
+ * 16. A heap of arity {@code d} has {@code log2(d)} times fewer rows than a
+ * binary heap, so an insert's propagation, or a delete's heapify, takes
+ * that many fewer lock acquisitions (and cache misses). The {@code d}
+ * children of a node are stored contiguously, so a delete compares them
+ * w/in one or two cache lines.
+ * <p>
+ * Leaf positions are reserved from a {@link HeapDigitReversedCounter},
+ * the d-ary generalization of the binary heap's bit-reversed counter, so
+ * that consecutive inserts & deletes still take place on disjoint paths
+ * to & from the root. The counter is guarded by a global lock, which is
+ * held until the reserved leaf node has been locked, as in Hunt, et al.
+ * <p>
+ * The queue's iterator traverses an array-backed snapshot of its items,
+ * in no particular order, and doesn't support {@code remove()}.
+ * <p>
+ * <u>Implementation Notes</u>: Since there are more children to compare
+ * per row, a heapify step locks the children one at a time, keeping only
+ * the smallest one seen so far locked. A child unlocked in the meantime
+ * can't move up past its parent, which stays locked, so the heap property
+ * is restored by any insert still propagating through it.
+ *
+ * @author Will D. Spann
+ * @version 1.0
+ *
+ * @see ConcurrentHeapPriorityQueue
+ * @see HeapDigitReversedCounter
+ */
+@ThreadSafe
+public class DaryConcurrentHeapPriorityQueue<E> extends AbstractQueue<E> {
+	private static final int DEFAULT_ARITY = 4, DEFAULT_INIT_CAP = 16;
+	/** Number of busy-wait spins before a waiting thread starts yielding. */
+	private static final int MAX_SPINS = 64;
+	/** Tag values; any other tag is the ID of the inserting thread. */
+	private static final long EMPTY = 0L, AVAILABLE = -1L;
+	/** propagateStep() results, besides the item's new position. */
+	private static final int STEP_DONE = -1, STEP_WAIT = -2;
+
+	private final int arity;
+	/** log2(arity), the number of bits per base-arity digit. */
+	private final int shift;
+	@GuardedBy("this.countLock")
+	private final HeapDigitReversedCounter count;
+	private final ReentrantLock countLock;
+	/** Number of heap rows in the first segment. */
+	private final int baseRows;
+	private final AtomicReferenceArray<Segment> segments;
+	/** Number of positions in all published segments. */
+	private volatile int capacity;
+	private final ReentrantLock growLock;
+	private final SlotLocks slotLocks;
+	private final Comparator<? super E> comp;
+
+
+	public DaryConcurrentHeapPriorityQueue() {
+		this(DEFAULT_ARITY);
+	}
+
+	/**
+	 * @param arity the number of children per node: 2, 4, 8 or 16.
+	 *
+	 * @throws IllegalArgumentException if {@code arity} isn't 2, 4, 8 or
+	 *    16.
+	 */
+	public DaryConcurrentHeapPriorityQueue(int arity) {
+		this(arity, DEFAULT_INIT_CAP, null, LockPolicy.SPIN_THEN_PARK);
+	}
+
+	/**
+	 * @param arity the number of children per node: 2, 4, 8 or 16.
+	 * @param comparator the {@code Comparator} used to order this queue.
+	 *
+	 * @throws IllegalArgumentException if {@code arity} isn't 2, 4, 8 or
+	 *    16.
+	 * @throws NullPointerException if {@code comparator} is {@code null}.
+	 */
+	public DaryConcurrentHeapPriorityQueue(int arity,
+			Comparator<? super E> comparator)
+	{
+		this(arity, DEFAULT_INIT_CAP, requireComparator(comparator),
+				LockPolicy.SPIN_THEN_PARK);
+	}
+
+	/**
+	 * @param arity the number of children per node: 2, 4, 8 or 16.
+	 * @param initialCapacity the minimum initial capacity. Must be greater
+	 *    than 0.
+	 * @param comparator the {@code Comparator} used to order this queue, or
+	 *    {@code null} to use its items' natural ordering.
+	 * @param policy how node locks are granted to waiting threads.
+	 *
+	 * @throws IllegalArgumentException if {@code arity} isn't 2, 4, 8 or
+	 *    16, or if {@code initialCapacity} is less than 1.
+	 * @throws NullPointerException if {@code policy} is {@code null}.
+	 */
+	public DaryConcurrentHeapPriorityQueue(int arity, int initialCapacity,
+			Comparator<? super E> comparator, LockPolicy policy)
+	{
+		if (initialCapacity < 1) {
+			throw new IllegalArgumentException("initialCapacity must be "
+					+ ">= 1");
+		}
+		if (policy == null)
+			throw new NullPointerException();
+
+		this.count = HeapDigitReversedCounter.newInstance(arity);
+		this.arity = arity;
+		this.shift = Integer.numberOfTrailingZeros(arity);
+		this.countLock = new ReentrantLock();
+		// Smallest number of whole rows holding 'initialCapacity' nodes
+		int rows = 1;
+		while (rowStart(rows) < initialCapacity
+				&& rowStart(rows + 1) <= this.count.getMaxValue())
+		{
+			rows++;
+		}
+		this.baseRows = rows;
+		int totalRows = rows;
+		while (rowStart(totalRows + 1) <= this.count.getMaxValue())
+			totalRows++;
+		// One segment for the base rows, plus one for each row after them
+		this.segments = new AtomicReferenceArray<Segment>(
+				totalRows - rows + 1);
+		this.segments.set(0, new Segment((int) rowStart(rows)));
+		this.capacity = (int) rowStart(rows);
+		this.growLock = new ReentrantLock();
+		this.slotLocks = new SlotLocks(policy);
+		this.comp = comparator;
+	}
+
+	private static <T> Comparator<T> requireComparator(Comparator<T> comp) {
+		if (comp == null)
+			throw new NullPointerException();
+		return comp;
+	}
+
+
+	/**
+	 * Inserts the specified item into this queue.
+	 *
+	 * @return {@code true}
+	 *
+	 * @throws NullPointerException if {@code item} is {@code null}.
+	 * @throws ClassCastException if {@code item} can't be compared with the
+	 *    queue's items.
+	 * @throws IllegalStateException if the queue holds as many items as
+	 *    its heap can index.
+	 */
+	public boolean offer(E item) {
+		if (item == null)
+			throw new NullPointerException();
+		if (this.comp == null && !(item instanceof Comparable<?>))
+			throw new ClassCastException(); // 'item' is incomparable.
+
+		long tag = Thread.currentThread().getId();
+		int pos;
+		this.countLock.lock();
+		try {
+			// Reserve the next leaf insert pos., & lock its (EMPTY) node
+			pos = this.count.getAndIncrement();
+			ensureCapacity(pos + 1);
+			lock(pos);
+		} finally {
+			this.countLock.unlock();
+		}
+		try {
+			Segment seg = segment(pos);
+			int i = offset(pos);
+			seg.data[i] = item;
+			seg.tags[i] = tag;
+		} finally {
+			unlock(pos);
+		}
+
+		// Propagate the item towards the root while it's less than its
+		// parent's item
+		int spins = 0;  // number of times we've waited
+		int step;
+		while ((step = propagateStep(pos, tag)) != STEP_DONE) {
+			if (step == STEP_WAIT)
+				backOff(spins++);
+			else
+				pos = step;
+		}
+		return true;
+	}
+
+	/**
+	 * Removes and returns the minimum item in this queue.
+	 * <p>
+	 * Impl. Notes: This method is based closely on Galen C. Hunt's
+	 * {@code concurrent_delete(heap_t)} pseudo-code, as in
+	 * {@code ConcurrentHeapPriorityQueue}.
+	 *
+	 * @return the minimum item, or {@code null} if the queue is empty.
+	 */
+	@SuppressWarnings("unchecked")
+	public E poll() {
+		/* Grab an item from the bottom of the heap to replace the to-be-deleted
+		 * top item. */
+		int bottomPos;
+		this.countLock.lock();
+		try {
+			if (this.count.getNonreversedCount() == 0)
+				return null;
+			bottomPos = this.count.decrementAndGet();
+			lock(bottomPos);
+		} finally {
+			this.countLock.unlock();
+		}
+		Segment bottom = segment(bottomPos);
+		int b = offset(bottomPos);
+		E bottomData = (E) bottom.data[b];
+		bottom.data[b] = null;
+		bottom.tags[b] = EMPTY;
+		unlock(bottomPos);
+
+		// Stop if it was the only item in the heap (and thereby the root)
+		if (bottomPos == 0)
+			return bottomData;
+
+		Segment root = segment(0);
+		lock(0);
+		// Stop if a concurrent delete has taken the root as its 'bottom',
+		// or if 'bottom' is the minimum after all. (While it was in
+		// transit, a concurrent delete may have taken the root, and a
+		// concurrent insert refilled it w/ a larger item.)
+		if (root.tags[0] == EMPTY
+				|| compareData(bottomData, (E) root.data[0]) <= 0)
+		{
+			unlock(0);
+			return bottomData;
+		}
+		// Replace the top item with the item taken from the bottom
+		E rootData = (E) root.data[0];
+		root.data[0] = bottomData;
+		root.tags[0] = AVAILABLE;
+		heapify(0);  // Note: Unlocks the root
+		return rootData;
+	}
+
+	@SuppressWarnings("unchecked")
+	public E peek() {
+		Segment root = segment(0);
+		lock(0);
+		try {
+			return (root.tags[0] != EMPTY) ? (E) root.data[0] : null;
+		} finally {
+			unlock(0);
+		}
+	}
+
+	public int size() {
+		this.countLock.lock();
+		try {
+			return this.count.getNonreversedCount();
+		} finally {
+			this.countLock.unlock();
+		}
+	}
+
+	public boolean isEmpty() {
+		return peek() == null;
+	}
+
+	/**
+	 * Returns the number of children per node of this queue's heap.
+	 */
+	public int getArity() {
+		return this.arity;
+	}
+
+	/**
+	 * Returns an iterator over a snapshot of this queue's items, in no
+	 * particular order. The iterator doesn't support {@code remove()}.
+	 */
+	public Iterator<E> iterator() {
+		return Arrays.asList(snapshot()).iterator();
+	}
+
+	public Object[] toArray() {
+		return snapshot();
+	}
+
+
+	/**
+	 * Returns a snapshot of the queue's items, each read while its node is
+	 * locked.
+	 */
+	@SuppressWarnings("unchecked")
+	private E[] snapshot() {
+		Object[] items = new Object[size()];
+		int n = 0;
+		for (int pos = 0, cap = this.capacity; pos < cap; pos++) {
+			Segment seg = segment(pos);
+			int i = offset(pos);
+			lock(pos);
+			try {
+				if (seg.tags[i] != EMPTY) {
+					if (n == items.length)
+						items = Arrays.copyOf(items, n * 2 + 1);
+					items[n++] = seg.data[i];
+				}
+			} finally {
+				unlock(pos);
+			}
+		}
+		return (E[]) Arrays.copyOf(items, n);  // unchecked cast
+	}
+
+	/**
+	 * Heapify the item at the specified position, which must be locked
+	 * when this method is called. All positions locked by this method,
+	 * including {@code pos}, are unlocked by the time it completes.
+	 *
+	 * @param pos position of the item to be heapified.
+	 */
+	@SuppressWarnings("unchecked")
+	private void heapify(int pos) {
+		while (true) {
+			long firstChild = ((long) pos << this.shift) + 1;  // d*pos + 1
+			int cap = this.capacity;
+			// Lock the non-EMPTY children in order, keeping only the
+			// smallest one seen so far locked
+			int childPos = -1;
+			for (long c = firstChild, end = Math.min(firstChild + this.arity,
+					cap); c < end; c++)
+			{
+				int next = (int) c;
+				lock(next);
+				if (segment(next).tags[offset(next)] == EMPTY) {
+					unlock(next);
+				} else if (childPos < 0 || compare(next, childPos) < 0) {
+					if (childPos >= 0)
+						unlock(childPos);
+					childPos = next;
+				} else {
+					unlock(next);
+				}
+			}
+			// If the item has no non-EMPTY children, we're done
+			if (childPos < 0)
+				break;
+
+			// If child is less than parent, swap their items, then continue
+			// from the child. Note: The child is locked
+			if (compare(childPos, pos) < 0) {
+				swap(childPos, pos);
+				unlock(pos);
+				pos = childPos;
+			}
+			// If not, stop. We're done.
+			else {
+				unlock(childPos);
+				break;
+			}
+		}
+		unlock(pos);
+	}
+
+	/**
+	 * Performs a single step of propagating an inserted item up the heap,
+	 * as in {@code ConcurrentHeapPriorityQueue}'s {@code LOCKED} mode.
+	 *
+	 * @param pos the current position of the inserted item.
+	 * @param tag the item's tag value (i.e., its inserter's thread ID).
+	 * @return the item's new position, if it may have moved further up;
+	 *    {@code STEP_DONE} if it has reached its final position; or
+	 *    {@code STEP_WAIT} if it must wait for another thread.
+	 */
+	private int propagateStep(int pos, long tag) {
+		// If the item is now root, set its tag to AVAILABLE, if it's still
+		// "our" item
+		if (pos == 0) {
+			Segment root = segment(0);
+			lock(0);
+			if (root.tags[0] == tag)
+				root.tags[0] = AVAILABLE;
+			unlock(0);
+			return STEP_DONE;
+		}
+
+		int parentPos = (pos - 1) >>> this.shift;  // (pos-1)/d
+		Segment node = segment(pos), parent = segment(parentPos);
+		int n = offset(pos), p = offset(parentPos);
+		lock(parentPos);  // Note: Locking order is important.
+		lock(pos);
+		try {
+			// If parent isn't currently being inserted or deleted & 'node'
+			// still holds "our" item ...
+			if (parent.tags[p] == AVAILABLE && node.tags[n] == tag) {
+				if (compare(pos, parentPos) < 0) {
+					swap(pos, parentPos);
+					return parentPos;
+				}
+				node.tags[n] = AVAILABLE;
+				return STEP_DONE;
+			}
+			// Otherwise, if the parent is EMPTY, there's a concurrent
+			// delete, so stop or we'll deadlock w/ the deleting thread.
+			else if (parent.tags[p] == EMPTY)
+				return STEP_DONE;
+			// Otherwise, if 'node' doesn't hold our item, a concurrent
+			// delete has moved it up to the parent
+			else if (node.tags[n] != tag)
+				return parentPos;
+			// Otherwise, the parent holds another item, which is still being
+			// inserted. So we wait for it.
+			return STEP_WAIT;
+		} finally {
+			unlock(pos);    // Note: Unlocking order is important.
+			unlock(parentPos);
+		}
+	}
+
+	/**
+	 * Swaps the items (i.e., the data & tags) at two positions, both of
+	 * which must be locked by the current thread.
+	 */
+	private void swap(int pos1, int pos2) {
+		Segment seg1 = segment(pos1), seg2 = segment(pos2);
+		int i1 = offset(pos1), i2 = offset(pos2);
+		Object data = seg1.data[i1];
+		long tag = seg1.tags[i1];
+		seg1.data[i1] = seg2.data[i2];
+		seg1.tags[i1] = seg2.tags[i2];
+		seg2.data[i2] = data;
+		seg2.tags[i2] = tag;
+	}
+
+	/**
+	 * Compares the items at two positions, both of which must be locked.
+	 */
+	@SuppressWarnings("unchecked")
+	private int compare(int pos1, int pos2) {
+		return compareData((E) segment(pos1).data[offset(pos1)],
+				(E) segment(pos2).data[offset(pos2)]);
+	}
+
+	@SuppressWarnings("unchecked")
+	private int compareData(E data1, E data2) {
+		if (this.comp != null)
+			return this.comp.compare(data1, data2);
+		else
+			return ((Comparable<E>) data1).compareTo(data2); // unchecked cast
+	}
+
+	private void lock(int pos) {
+		this.slotLocks.lock(segment(pos).lockWords, offset(pos));
+	}
+
+	private void unlock(int pos) {
+		this.slotLocks.unlock(segment(pos).lockWords, offset(pos));
+	}
+
+	/**
+	 * Waits briefly before a thread retries an operation that is blocked on
+	 * another thread's progress.
+	 */
+	private static void backOff(int spins) {
+		if (spins < MAX_SPINS)
+			Thread.onSpinWait();
+		else
+			Thread.yield();
+	}
+
+	/**
+	 * Returns the position of the first node in the specified row.
+	 */
+	private long rowStart(int row) {
+		// (d^row - 1) / (d - 1)
+		return ((1L << (this.shift * row)) - 1) / (this.arity - 1);
+	}
+
+	/**
+	 * Returns the heap row of the specified position.
+	 */
+	private int row(int pos) {
+		// floor(log_d(pos * (d - 1) + 1))
+		return (Long.SIZE - 1 - Long.numberOfLeadingZeros(
+				(long) pos * (this.arity - 1) + 1)) / this.shift;
+	}
+
+	/**
+	 * Returns the segment holding the specified position, which must be
+	 * less than 'capacity'.
+	 */
+	private Segment segment(int pos) {
+		int row = row(pos);
+		return this.segments.get((row < this.baseRows) ? 0
+				: row - this.baseRows + 1);
+	}
+
+	/**
+	 * Returns the specified position's offset within its segment.
+	 */
+	private int offset(int pos) {
+		int row = row(pos);
+		return (row < this.baseRows) ? pos : (int) (pos - rowStart(row));
+	}
+
+	/**
+	 * Grows the heap a row at a time, until its capacity is at least
+	 * {@code minCapacity}. Has no effect if it already is.
+	 */
+	private void ensureCapacity(int minCapacity) {
+		if (minCapacity <= this.capacity)
+			return;
+
+		this.growLock.lock();
+		try {
+			// Recheck, in case another thread grew the heap first
+			int cap = this.capacity;
+			while (cap < minCapacity) {
+				// Row to add, which starts at position 'cap'
+				int row = row(cap);
+				int rowSize = 1 << (this.shift * row);
+				this.segments.set(row - this.baseRows + 1,
+						new Segment(rowSize));
+				cap += rowSize;
+				this.capacity = cap;
+			}
+		} finally {
+			this.growLock.unlock();
+		}
+	}
+
+
+	/**
+	 * A segment of the heap, holding the data, tags & lock words of a run
+	 * of heap positions in parallel arrays. Each position's data & tag are
+	 * guarded by its lock, which is managed by 'slotLocks'.
+	 */
+	private static final class Segment {
+		@GuardedBy("lockWords") final Object[] data;
+		@GuardedBy("lockWords") final long[] tags;
+		final AtomicIntegerArray lockWords;
+
+		Segment(int length) {
+			this.data = new Object[length];
+			this.tags = new long[length];  // All EMPTY
+			this.lockWords = new AtomicIntegerArray(length);
+		}
+	}
+}
@@ -0,0 +1,1185 @@
+package info.willdspann.collections.concurrent.queue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * An unbounded, thread-safe priority queue, whose items survive a restart.
+ * It's a {@link ConcurrentHeapPriorityQueue}, w/ a write-ahead log of its
+ * inserts and deletes kept in a directory. A queue opened on a directory
+ * that already holds a log recovers the items that were in the queue when
+ * the log was last written.
+ * <p>
+ * The log is a series of fixed-size segment files, each of which is
+ * memory-mapped, so appending a record is a copy into the mapping, and
+ * never a system call. A record's byte range is reserved by a CAS on the
+ * segment's end position, and then copied w/o holding any lock, so
+ * concurrent appends don't serialize on a log lock; the lock is only taken
+ * to rotate segments, and by the flusher. Once a segment is full, the log
+ * rotates to a new one, which a background flusher thread usually has
+ * ready in advance. The flusher also forces the mapped segments to
+ * disk, every {@code syncInterval} milliseconds and whenever a thread
+ * waits in {@link #sync()}, so that all of the records appended since its
+ * last force share a single {@code fsync} (i.e., a group commit). So an
+ * insert or delete is durable once {@code sync()} has returned after it,
+ * or within about {@code syncInterval} milliseconds otherwise.
+ * <p>
+ * Once enough segments have filled up, a background checkpoint folds them
+ * into a checkpoint file, holding the items still in the queue as of
+ * their last record, and deletes them. Recovery loads the latest
+ * checkpoint's items, applies the records of the segments after it, and
+ * builds the heap from the resulting items in O(n) time, by bottom-up
+ * heapify (see {@link ConcurrentHeapPriorityQueue.Builder#build}), rather
+ * than by replaying each insert.
+ * <p>
+ * Items are converted to & from bytes by the queue's {@link Codec}.
+ * Deliveries are at least once: an item taken by a delete whose record
+ * didn't reach the disk before a crash is recovered.
+ * <p>
+ * <u>Implementation Notes</u>: An insert's record is appended before the
+ * item is placed in the heap, and a delete's record after its item has
+ * been taken out, so an item's delete record always follows its insert
+ * record in the log. Each record is checksummed, so recovery stops at the
+ * first torn record in a segment. Since records are copied concurrently, a
+ * crash may leave an unfinished record before finished ones, so the
+ * flusher briefly stops reservations in the current segment, and waits for
+ * the copies in flight, before it counts the records it forces as durable.
+ * A checkpoint is built from the log,
+ * rather than from a scan of the live heap, since a concurrent scan could
+ * miss an item being moved up past it.
+ *
+ * @author Will D. Spann
+ * @version 1.1
+ *
+ * @see ConcurrentHeapPriorityQueue
+ */
+@ThreadSafe
+public class DurableConcurrentHeapPriorityQueue<E> extends AbstractQueue<E>
+		implements Closeable
+{
+	private static final int DEFAULT_SEGMENT_SIZE = 64 << 20;  // 64 MiB
+	private static final long DEFAULT_SYNC_INTERVAL = 10L;  // ms.
+	private static final int DEFAULT_CHECKPOINT_SEGMENTS = 4;
+	/** Record types. */
+	private static final byte OFFER = 1, DELETE = 2;
+	/** A record's length word, type & item ID, and its trailing checksum. */
+	private static final int HEADER_SIZE = 4 + 1 + 8, TRAILER_SIZE = 4;
+	private static final int CHECKPOINT_MAGIC = 0x43485051;
+	private static final String SEGMENT_PREFIX = "wal-",
+			SEGMENT_SUFFIX = ".log", CHECKPOINT_PREFIX = "checkpoint-",
+			CHECKPOINT_SUFFIX = ".ckp", CHECKPOINT_TMP = "checkpoint.tmp",
+			LOCK_FILE = "lock";
+
+	private final ConcurrentHeapPriorityQueue<Entry<E>> heap;
+	private final Comparator<? super E> comp;
+	private final Codec<E> codec;
+	private final Path dir;
+	private final int segmentSize;
+	private final long syncIntervalNanos;
+	/** Number of full segments that triggers a checkpoint. */
+	private final int checkpointSegments;
+	/** Source of the items' IDs, which tie their records together. */
+	private final AtomicLong nextId;
+	/** Last segment sequence number handed out. */
+	private final AtomicLong segmentSeq;
+	private final FileChannel lockChannel;
+	private final FileLock dirLock;
+
+	/** Held to rotate segments, or to read or change the log's state
+	 *  (though not to append a record). */
+	private final ReentrantLock logLock;
+	/** The segment that records are appended to. (Only written while
+	 *  holding 'logLock', but read w/o it by append().) */
+	private volatile Segment current;
+	/** A segment created in advance by the flusher, or {@code null}. */
+	@GuardedBy("this.logLock") private Segment spare;
+	/** Full segments not yet folded into a checkpoint, oldest first. */
+	@GuardedBy("this.logLock") private final ArrayDeque<Segment> sealed;
+	/** Full segments not yet forced to disk. */
+	@GuardedBy("this.logLock") private final List<Segment> unforced;
+	/** Number of records whose copies into the log have completed. */
+	private final AtomicLong appended;
+	private volatile boolean closed;
+
+	private final ReentrantLock flushLock;
+	private final Condition flushNeeded, flushDone;
+	/** Number of records known to be on disk. */
+	@GuardedBy("this.flushLock") private long durable;
+	@GuardedBy("this.flushLock") private int syncWaiters;
+	@GuardedBy("this.flushLock") private IOException failure;
+	private final Thread flusher;
+
+	/** Serializes checkpoints. */
+	private final ReentrantLock checkpointLock;
+	@GuardedBy("this.checkpointLock") private Checkpoint checkpoint;
+	private final ExecutorService checkpointer;
+	private final AtomicBoolean checkpointPending;
+
+
+	/**
+	 * Opens a queue on the specified directory, ordered by its items'
+	 * natural ordering, w/ the default log options.
+	 *
+	 * @throws IOException if the directory's log can't be read, or the
+	 *    directory is in use by another queue.
+	 * @throws NullPointerException if {@code directory} or {@code codec}
+	 *    is {@code null}.
+	 */
+	public DurableConcurrentHeapPriorityQueue(Path directory, Codec<E> codec)
+			throws IOException
+	{
+		this(directory, codec, null, DEFAULT_SEGMENT_SIZE,
+				DEFAULT_SYNC_INTERVAL, DEFAULT_CHECKPOINT_SEGMENTS);
+	}
+
+	/**
+	 * Version: 1.0
+	 *
+	 * @param directory the directory holding the queue's log, which is
+	 *    created if it doesn't exist.
+	 * @param codec converts the items to & from bytes.
+	 * @param comparator the {@code Comparator} used to order this queue,
+	 *    or {@code null} to use its items' natural ordering.
+	 * @param segmentSize the size, in bytes, of each log segment, which
+	 *    bounds the size of an encoded item. Must be at least 4096.
+	 * @param syncInterval the longest time, in milliseconds, between
+	 *    forces of the log to disk. Must be greater than 0.
+	 * @param checkpointSegments the number of full segments that triggers
+	 *    a checkpoint. Must be greater than 0.
+	 *
+	 * @throws IOException if the directory's log can't be read, or the
+	 *    directory is in use by another queue.
+	 * @throws IllegalArgumentException if any of the log options is out of
+	 *    range.
+	 * @throws NullPointerException if {@code directory} or {@code codec}
+	 *    is {@code null}.
+	 */
+	public DurableConcurrentHeapPriorityQueue(Path directory, Codec<E> codec,
+			Comparator<? super E> comparator, int segmentSize,
+			long syncInterval, int checkpointSegments) throws IOException
+	{
+		if (directory == null || codec == null)
+			throw new NullPointerException();
+		if (segmentSize < 4096)
+			throw new IllegalArgumentException("segmentSize must be >= 4096");
+		if (syncInterval < 1)
+			throw new IllegalArgumentException("syncInterval must be >= 1");
+		if (checkpointSegments < 1) {
+			throw new IllegalArgumentException("checkpointSegments must be "
+					+ ">= 1");
+		}
+
+		this.comp = comparator;
+		this.codec = codec;
+		this.dir = directory;
+		this.segmentSize = segmentSize;
+		this.syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(syncInterval);
+		this.checkpointSegments = checkpointSegments;
+		this.logLock = new ReentrantLock();
+		this.sealed = new ArrayDeque<Segment>();
+		this.unforced = new ArrayList<Segment>();
+		this.flushLock = new ReentrantLock();
+		this.flushNeeded = this.flushLock.newCondition();
+		this.flushDone = this.flushLock.newCondition();
+		this.checkpointLock = new ReentrantLock();
+		this.checkpointPending = new AtomicBoolean();
+		this.segmentSeq = new AtomicLong(-1L);
+		this.appended = new AtomicLong();
+
+		Files.createDirectories(directory);
+		this.lockChannel = FileChannel.open(directory.resolve(LOCK_FILE),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		try {
+			this.dirLock = lockDirectory(this.lockChannel);
+			// Recover the items, & start a new segment after the old ones
+			Map<Long, byte[]> live = recover();
+			long maxId = -1L;
+			List<Entry<E>> entries = new ArrayList<Entry<E>>(live.size());
+			for (Map.Entry<Long, byte[]> e : live.entrySet()) {
+				entries.add(new Entry<E>(e.getKey(),
+						codec.decode(e.getValue())));
+				maxId = Math.max(maxId, e.getKey());
+			}
+			this.nextId = new AtomicLong(Math.max(maxId + 1L,
+					(this.checkpoint != null) ? this.checkpoint.nextId : 0L));
+			this.heap = new ConcurrentHeapPriorityQueue.Builder<Entry<E>>()
+					.comparator((e1, e2) -> compare(e1.item, e2.item))
+					.build(entries);
+			this.current = Segment.create(directory,
+					this.segmentSeq.incrementAndGet(), segmentSize);
+		} catch (IOException | RuntimeException e) {
+			for (Segment seg : this.sealed)
+				seg.close();
+			this.lockChannel.close();  // Also releases 'dirLock'
+			throw e;
+		}
+
+		this.checkpointer = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "DurableQueue-checkpointer");
+			t.setDaemon(true);
+			return t;
+		});
+		this.flusher = new Thread(this::runFlusher, "DurableQueue-flusher");
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+		if (this.sealed.size() >= checkpointSegments)
+			requestCheckpoint();
+	}
+
+
+	/**
+	 * Inserts the specified item into this queue. Its record is appended
+	 * to the log before it's placed in the heap.
+	 *
+	 * @return {@code true}
+	 *
+	 * @throws NullPointerException if {@code item} is {@code null}.
+	 * @throws ClassCastException if {@code item} can't be compared with the
+	 *    queue's items.
+	 * @throws IllegalArgumentException if {@code item}'s encoding doesn't
+	 *    fit in a log segment.
+	 * @throws IllegalStateException if the queue has been closed.
+	 * @throws UncheckedIOException if a new log segment can't be created.
+	 */
+	public boolean offer(E item) {
+		if (item == null)
+			throw new NullPointerException();
+		if (this.comp == null && !(item instanceof Comparable<?>))
+			throw new ClassCastException(); // 'item' is incomparable.
+
+		long id = this.nextId.getAndIncrement();
+		append(record(OFFER, id, this.codec.encode(item)));
+		this.heap.offer(new Entry<E>(id, item));
+		return true;
+	}
+
+	/**
+	 * Removes and returns the minimum item in this queue. Its record is
+	 * appended to the log after it's taken out of the heap.
+	 *
+	 * @return the minimum item, or {@code null} if the queue is empty.
+	 *
+	 * @throws IllegalStateException if the queue has been closed.
+	 */
+	public E poll() {
+		checkOpen();
+		Entry<E> entry = this.heap.poll();
+		if (entry == null)
+			return null;
+		appendDelete(entry);
+		return entry.item;
+	}
+
+	public E peek() {
+		Entry<E> entry = this.heap.peek();
+		return (entry != null) ? entry.item : null;
+	}
+
+	public int size() {
+		return this.heap.size();
+	}
+
+	public boolean isEmpty() {
+		return this.heap.isEmpty();
+	}
+
+	/**
+	 * Removes a single instance of the specified item from this queue, if
+	 * it's present, as found by a scan of the heap in O(n) time.
+	 *
+	 * @throws IllegalStateException if the queue has been closed.
+	 */
+	public boolean remove(Object o) {
+		if (o == null)
+			return false;
+		checkOpen();
+		for (Iterator<Entry<E>> it = this.heap.iterator(); it.hasNext(); ) {
+			Entry<E> entry = it.next();
+			if (o.equals(entry.item) && removeEntry(entry))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns an iterator over a snapshot of this queue's items, in no
+	 * particular order. Its {@code remove()} removes (and logs the removal
+	 * of) the item last returned, if it's still in the queue.
+	 */
+	public Iterator<E> iterator() {
+		final Iterator<Entry<E>> it = this.heap.iterator();
+		return new Iterator<E>() {
+			private Entry<E> lastRet;
+
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			public E next() {
+				this.lastRet = it.next();
+				return this.lastRet.item;
+			}
+
+			public void remove() {
+				if (this.lastRet == null)
+					throw new IllegalStateException();
+				removeEntry(this.lastRet);
+				this.lastRet = null;
+			}
+		};
+	}
+
+	/**
+	 * Waits until every insert and delete that completed before this call
+	 * is on disk. Concurrent callers are served by the same force of the
+	 * log (i.e., group commit).
+	 *
+	 * @throws InterruptedIOException if interrupted while waiting.
+	 * @throws IOException if the log couldn't be forced to disk.
+	 */
+	public void sync() throws IOException {
+		long target = this.appended.get();
+
+		this.flushLock.lock();
+		try {
+			this.syncWaiters++;
+			try {
+				this.flushNeeded.signal();
+				while (this.durable < target) {
+					if (this.failure != null)
+						throw new IOException("Log force failed", this.failure);
+					this.flushDone.await();
+				}
+			} finally {
+				this.syncWaiters--;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} finally {
+			this.flushLock.unlock();
+		}
+	}
+
+	/**
+	 * Folds all of the full log segments into a new checkpoint, and
+	 * deletes them, w/o waiting for a background checkpoint to be
+	 * triggered.
+	 *
+	 * @throws IOException if the checkpoint can't be written. (The log is
+	 *    then left as it was.)
+	 * @throws IllegalStateException if the queue has been closed.
+	 */
+	public void checkpoint() throws IOException {
+		this.checkpointLock.lock();
+		try {
+			List<Segment> segs;
+			this.logLock.lock();
+			try {
+				checkOpen();
+				segs = new ArrayList<Segment>(this.sealed);
+			} finally {
+				this.logLock.unlock();
+			}
+			if (segs.isEmpty())
+				return;
+
+			Map<Long, byte[]> live = new LinkedHashMap<Long, byte[]>();
+			Checkpoint prev = this.checkpoint;
+			if (prev != null)
+				readCheckpoint(prev.path, live);
+			for (Segment seg : segs)
+				replay(seg.records(), live);
+			long nextSeq = segs.get(segs.size() - 1).seq + 1L;
+			this.checkpoint = writeCheckpoint(nextSeq, this.nextId.get(), live);
+
+			this.logLock.lock();
+			try {
+				this.sealed.removeAll(segs);
+				this.unforced.removeAll(segs);
+			} finally {
+				this.logLock.unlock();
+			}
+			for (Segment seg : segs)
+				seg.delete();
+			if (prev != null)
+				Files.deleteIfExists(prev.path);
+		} finally {
+			this.checkpointLock.unlock();
+		}
+	}
+
+	/**
+	 * Forces the log to disk, and closes it. The queue's items may no
+	 * longer be inserted or removed, but are recovered by the next queue
+	 * opened on its directory. Has no effect if the queue is already
+	 * closed.
+	 */
+	public void close() throws IOException {
+		this.logLock.lock();
+		try {
+			if (this.closed)
+				return;
+			this.closed = true;
+		} finally {
+			this.logLock.unlock();
+		}
+
+		// Let the flusher make its final force, & any checkpoint finish
+		this.flushLock.lock();
+		try {
+			this.flushNeeded.signal();
+		} finally {
+			this.flushLock.unlock();
+		}
+		this.checkpointer.shutdown();
+		boolean interrupted = false;
+		while (true) {
+			try {
+				this.flusher.join();
+				this.checkpointer.awaitTermination(Long.MAX_VALUE,
+						TimeUnit.NANOSECONDS);
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		flush();
+
+		this.logLock.lock();
+		try {
+			// Let any append still in flight finish, & stop any more
+			this.current.closeGate();
+			for (Segment seg : this.sealed)
+				seg.close();
+			this.current.close();
+			if (this.spare != null)
+				this.spare.delete();
+		} finally {
+			this.logLock.unlock();
+		}
+		this.lockChannel.close();  // Also releases 'dirLock'
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		this.flushLock.lock();
+		try {
+			if (this.failure != null)
+				throw new IOException("Log force failed", this.failure);
+		} finally {
+			this.flushLock.unlock();
+		}
+	}
+
+
+	/**
+	 * Removes the specified entry from the heap, and logs its removal.
+	 *
+	 * @return {@code true} if the entry was still in the heap.
+	 */
+	private boolean removeEntry(Entry<E> entry) {
+		if (!this.heap.remove(entry))
+			return false;
+		appendDelete(entry);
+		return true;
+	}
+
+	/**
+	 * Appends the delete record of an entry that has just been taken out
+	 * of the heap. If the queue has been closed meanwhile, the entry is put
+	 * back into the heap, so that it's not lost from the closed queue's
+	 * view either.
+	 *
+	 * @throws IllegalStateException if the queue has been closed.
+	 */
+	private void appendDelete(Entry<E> entry) {
+		try {
+			append(record(DELETE, entry.id, null));
+		} catch (IllegalStateException e) {
+			this.heap.offer(entry);
+			throw e;
+		}
+	}
+
+	/**
+	 * Appends the specified record to the log, rotating to a new segment
+	 * if it doesn't fit in the current one. The record's byte range is
+	 * reserved by a CAS, and copied w/o holding 'logLock'.
+	 * <p>
+	 * Version: 2.0
+	 *
+	 * @throws IllegalArgumentException if the record doesn't fit in a
+	 *    segment.
+	 * @throws IllegalStateException if the queue has been closed.
+	 */
+	private void append(byte[] record) {
+		if (record.length > this.segmentSize) {
+			throw new IllegalArgumentException("Item too large for a log "
+					+ "segment");
+		}
+		Segment seg;
+		int offset;
+		while (true) {
+			checkOpen();
+			seg = this.current;
+			offset = seg.reserve(record.length);
+			if (offset >= 0)
+				break;
+			if (offset == Segment.FULL)
+				rotate(seg);
+			else
+				Thread.yield();  // Gate closed by the flusher
+		}
+		try {
+			ByteBuffer view = seg.buffer.duplicate();
+			view.position(offset);
+			view.put(record);
+			this.appended.incrementAndGet();
+		} finally {
+			seg.completeCopy();
+		}
+	}
+
+	/**
+	 * Rotates the log, unless the specified (full) segment is no longer
+	 * the current one.
+	 */
+	private void rotate(Segment full) {
+		this.logLock.lock();
+		try {
+			checkOpen();
+			if (this.current == full)
+				rotate();
+		} finally {
+			this.logLock.unlock();
+		}
+	}
+
+	/**
+	 * Seals the current segment, once the copies in flight into it have
+	 * completed, and makes the spare segment current, creating it if the
+	 * flusher hasn't. Triggers a checkpoint if enough segments are full.
+	 * (The sealed segment's reservation gate is left closed, so that an
+	 * append that still sees it as current retries.)
+	 * <p>
+	 * Version: 2.0
+	 */
+	@GuardedBy("this.logLock")
+	private void rotate() {
+		Segment next = this.spare;
+		this.spare = null;
+		// A spare created before a segment was created here is out of order
+		if (next == null || next.seq < this.current.seq) {
+			if (next != null)
+				next.delete();
+			try {
+				next = Segment.create(this.dir,
+						this.segmentSeq.incrementAndGet(), this.segmentSize);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		this.current.closeGate();
+		this.current.seal();
+		this.sealed.add(this.current);
+		this.unforced.add(this.current);
+		this.current = next;
+		if (this.sealed.size() >= this.checkpointSegments)
+			requestCheckpoint();
+	}
+
+	private void requestCheckpoint() {
+		if (this.checkpointPending.compareAndSet(false, true)) {
+			this.checkpointer.execute(() -> {
+				this.checkpointPending.set(false);
+				try {
+					checkpoint();
+				} catch (IOException | IllegalStateException e) {
+					// The segments are kept, & folded by a later checkpoint
+				}
+			});
+		}
+	}
+
+	private void checkOpen() {
+		if (this.closed)
+			throw new IllegalStateException("Queue closed");
+	}
+
+	/**
+	 * The flusher's loop: forces the log every 'syncInterval', or as soon
+	 * as a thread waits in sync(), and keeps a spare segment ready once
+	 * the current one is half full.
+	 */
+	private void runFlusher() {
+		boolean stop = false;
+		while (!stop) {
+			this.flushLock.lock();
+			try {
+				if (this.syncWaiters == 0 && !this.closed)
+					this.flushNeeded.awaitNanos(this.syncIntervalNanos);
+			} catch (InterruptedException e) {
+				// Only close() stops the flusher
+			} finally {
+				this.flushLock.unlock();
+			}
+			stop = this.closed;
+			flush();
+			if (!stop)
+				prepareSpare();
+		}
+	}
+
+	/**
+	 * Forces every record appended so far to disk, and wakes the threads
+	 * waiting in sync() for them. The current segment's reservation gate
+	 * is closed while the records are counted, so that every record
+	 * counted follows only completed ones, and so is recovered once
+	 * forced.
+	 * <p>
+	 * Version: 2.0
+	 */
+	private void flush() {
+		long target;
+		List<Segment> segs;
+		this.logLock.lock();
+		try {
+			boolean gated = this.current.closeGate();
+			target = this.appended.get();
+			if (gated && !this.closed)
+				this.current.openGate();
+			segs = new ArrayList<Segment>(this.unforced);
+			this.unforced.clear();
+			segs.add(this.current);
+		} finally {
+			this.logLock.unlock();
+		}
+
+		this.flushLock.lock();
+		try {
+			if (this.durable >= target)
+				return;
+		} finally {
+			this.flushLock.unlock();
+		}
+		RuntimeException error = null;
+		try {
+			for (Segment seg : segs)
+				seg.buffer.force();
+		} catch (RuntimeException e) {
+			error = e;
+		}
+		this.flushLock.lock();
+		try {
+			if (error == null)
+				this.durable = target;
+			else
+				this.failure = new IOException(error);
+			this.flushDone.signalAll();
+		} finally {
+			this.flushLock.unlock();
+		}
+	}
+
+	/**
+	 * Creates the next segment in advance, if the current one is at least
+	 * half full, so that a rotation needn't create a file.
+	 */
+	private void prepareSpare() {
+		this.logLock.lock();
+		try {
+			if (this.spare != null || this.closed
+					|| this.current.end() < this.segmentSize / 2)
+			{
+				return;
+			}
+		} finally {
+			this.logLock.unlock();
+		}
+
+		Segment seg;
+		try {
+			seg = Segment.create(this.dir, this.segmentSeq.incrementAndGet(),
+					this.segmentSize);
+		} catch (IOException e) {
+			return;  // A rotation will try again
+		}
+		this.logLock.lock();
+		try {
+			if (this.spare == null && !this.closed
+					&& seg.seq > this.current.seq)
+			{
+				this.spare = seg;
+				seg = null;
+			}
+		} finally {
+			this.logLock.unlock();
+		}
+		if (seg != null)
+			seg.delete();
+	}
+
+	@SuppressWarnings("unchecked")
+	private int compare(E data1, E data2) {
+		if (this.comp != null)
+			return this.comp.compare(data1, data2);
+		else
+			return ((Comparable<E>) data1).compareTo(data2); // unchecked cast
+	}
+
+
+	/**
+	 * Recovers the items recorded in the directory, from its latest
+	 * checkpoint & the log segments after it, which become the queue's
+	 * full segments. Deletes any files left behind by an interrupted
+	 * checkpoint.
+	 *
+	 * @return the recovered items' encodings, by their IDs.
+	 */
+	private Map<Long, byte[]> recover() throws IOException {
+		TreeMap<Long, Path> segments = new TreeMap<Long, Path>();
+		TreeMap<Long, Path> checkpoints = new TreeMap<Long, Path>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(this.dir)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				if (name.equals(CHECKPOINT_TMP))
+					Files.delete(file);
+				else if (name.startsWith(SEGMENT_PREFIX)
+						&& name.endsWith(SEGMENT_SUFFIX))
+				{
+					segments.put(parseSeq(name, SEGMENT_PREFIX,
+							SEGMENT_SUFFIX), file);
+				}
+				else if (name.startsWith(CHECKPOINT_PREFIX)
+						&& name.endsWith(CHECKPOINT_SUFFIX))
+				{
+					checkpoints.put(parseSeq(name, CHECKPOINT_PREFIX,
+							CHECKPOINT_SUFFIX), file);
+				}
+			}
+		}
+
+		Map<Long, byte[]> live = new LinkedHashMap<Long, byte[]>();
+		long firstSeq = 0L;
+		if (!checkpoints.isEmpty()) {
+			this.checkpoint = readCheckpoint(checkpoints.lastEntry().getValue(),
+					live);
+			firstSeq = this.checkpoint.nextSegmentSeq;
+			for (Path older : checkpoints.headMap(checkpoints.lastKey()).values())
+				Files.delete(older);
+		}
+		long lastSeq = firstSeq - 1L;
+		for (Map.Entry<Long, Path> e : segments.entrySet()) {
+			if (e.getKey() < firstSeq) {
+				Files.delete(e.getValue());  // Already in the checkpoint
+				continue;
+			}
+			Segment seg = Segment.open(e.getValue(), e.getKey());
+			this.sealed.add(seg);
+			seg.limit = replay(seg.records(), live);
+			lastSeq = e.getKey();
+		}
+		this.segmentSeq.set(lastSeq);
+		return live;
+	}
+
+	private static long parseSeq(String name, String prefix, String suffix)
+			throws IOException
+	{
+		try {
+			return Long.parseLong(name.substring(prefix.length(),
+					name.length() - suffix.length()));
+		} catch (NumberFormatException e) {
+			throw new IOException("Unexpected log file: " + name, e);
+		}
+	}
+
+	/**
+	 * Locks the queue's directory against use by any other queue, in this
+	 * or another process.
+	 */
+	private FileLock lockDirectory(FileChannel channel) throws IOException {
+		FileLock lock;
+		try {
+			lock = channel.tryLock();
+		} catch (OverlappingFileLockException e) {
+			lock = null;
+		}
+		if (lock == null)
+			throw new IOException("Queue directory in use: " + this.dir);
+		return lock;
+	}
+
+	/**
+	 * Returns an encoded log record.
+	 *
+	 * @param payload the item's encoding, or {@code null} if there is none.
+	 */
+	private static byte[] record(byte type, long id, byte[] payload) {
+		int n = 1 + 8 + ((payload != null) ? payload.length : 0);
+		ByteBuffer buf = ByteBuffer.allocate(4 + n + TRAILER_SIZE);
+		buf.putInt(n).put(type).putLong(id);
+		if (payload != null)
+			buf.put(payload);
+		CRC32C crc = new CRC32C();
+		crc.update(buf.array(), 4, n);
+		buf.putInt((int) crc.getValue());
+		return buf.array();
+	}
+
+	/**
+	 * Applies the records in the buffer, from its position to its limit,
+	 * to the specified items, stopping at the end of the records or at the
+	 * first torn record.
+	 *
+	 * @param live the items' encodings, by their IDs.
+	 * @return the index in the buffer after the last valid record.
+	 */
+	private static int replay(ByteBuffer buf, Map<Long, byte[]> live) {
+		CRC32C crc = new CRC32C();
+		int pos = buf.position(), limit = buf.limit();
+		while (limit - pos >= HEADER_SIZE + TRAILER_SIZE) {
+			int n = buf.getInt(pos);
+			if (n < HEADER_SIZE - 4 || n > limit - pos - 4 - TRAILER_SIZE)
+				break;  // End of the records, or torn
+			ByteBuffer body = buf.duplicate();
+			body.limit(pos + 4 + n);
+			body.position(pos + 4);
+			crc.reset();
+			crc.update(body);
+			if ((int) crc.getValue() != buf.getInt(pos + 4 + n))
+				break;  // Torn
+
+			byte type = buf.get(pos + 4);
+			long id = buf.getLong(pos + 5);
+			if (type == OFFER) {
+				byte[] payload = new byte[n - (HEADER_SIZE - 4)];
+				body.position(pos + HEADER_SIZE);
+				body.get(payload);
+				live.put(id, payload);
+			} else if (type == DELETE) {
+				live.remove(id);
+			} else {
+				break;
+			}
+			pos += 4 + n + TRAILER_SIZE;
+		}
+		return pos;
+	}
+
+	/**
+	 * Writes a checkpoint of the specified items, as of the end of the
+	 * segment before {@code nextSegmentSeq}, to a temporary file, forces
+	 * it, and then atomically renames it.
+	 */
+	private Checkpoint writeCheckpoint(long nextSegmentSeq, long nextId,
+			Map<Long, byte[]> live) throws IOException
+	{
+		Path tmp = this.dir.resolve(CHECKPOINT_TMP);
+		try (FileChannel channel = FileChannel.open(tmp,
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			CheckedOutputStream checked = new CheckedOutputStream(
+					new BufferedOutputStream(Channels.newOutputStream(channel)),
+					new CRC32C());
+			DataOutputStream out = new DataOutputStream(checked);
+			out.writeInt(CHECKPOINT_MAGIC);
+			out.writeLong(nextSegmentSeq);
+			out.writeLong(nextId);
+			out.writeInt(live.size());
+			for (Map.Entry<Long, byte[]> e : live.entrySet()) {
+				out.writeLong(e.getKey());
+				out.writeInt(e.getValue().length);
+				out.write(e.getValue());
+			}
+			out.writeInt((int) checked.getChecksum().getValue());
+			out.flush();
+			channel.force(true);
+		}
+		Path path = this.dir.resolve(checkpointName(nextSegmentSeq));
+		Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+		return new Checkpoint(path, nextSegmentSeq, nextId);
+	}
+
+	/**
+	 * Reads the specified checkpoint's items into {@code live}.
+	 *
+	 * @throws IOException if the checkpoint is corrupt.
+	 */
+	private static Checkpoint readCheckpoint(Path path, Map<Long, byte[]> live)
+			throws IOException
+	{
+		try (CheckedInputStream checked = new CheckedInputStream(
+				new BufferedInputStream(Files.newInputStream(path)),
+				new CRC32C()))
+		{
+			DataInputStream in = new DataInputStream(checked);
+			if (in.readInt() != CHECKPOINT_MAGIC)
+				throw new IOException("Corrupt checkpoint: " + path);
+			long nextSegmentSeq = in.readLong();
+			long nextId = in.readLong();
+			for (int i = in.readInt(); i > 0; i--) {
+				long id = in.readLong();
+				byte[] payload = new byte[in.readInt()];
+				in.readFully(payload);
+				live.put(id, payload);
+			}
+			int expected = (int) checked.getChecksum().getValue();
+			if (in.readInt() != expected)
+				throw new IOException("Corrupt checkpoint: " + path);
+			return new Checkpoint(path, nextSegmentSeq, nextId);
+		} catch (EOFException | NegativeArraySizeException e) {
+			throw new IOException("Corrupt checkpoint: " + path, e);
+		}
+	}
+
+	private static String segmentName(long seq) {
+		return String.format("%s%020d%s", SEGMENT_PREFIX, seq, SEGMENT_SUFFIX);
+	}
+
+	private static String checkpointName(long seq) {
+		return String.format("%s%020d%s", CHECKPOINT_PREFIX, seq,
+				CHECKPOINT_SUFFIX);
+	}
+
+
+	/**
+	 * Converts a queue's items to & from the bytes stored in its log and
+	 * checkpoints. An item must decode to an item equal to it, and which
+	 * compares the same.
+	 */
+	public interface Codec<E> {
+		byte[] encode(E item);
+
+		E decode(byte[] bytes);
+	}
+
+
+	/**
+	 * An item in the heap, along w/ the ID that its records are logged
+	 * under. (Entries are only equal to themselves.)
+	 */
+	private static final class Entry<E> {
+		final long id;
+		final E item;
+
+		Entry(long id, E item) {
+			this.id = id;
+			this.item = item;
+		}
+	}
+
+
+	/**
+	 * The latest checkpoint, which holds the queue's items as of the end of
+	 * the segment before {@code nextSegmentSeq}.
+	 */
+	private static final class Checkpoint {
+		final Path path;
+		final long nextSegmentSeq;
+		final long nextId;
+
+		Checkpoint(Path path, long nextSegmentSeq, long nextId) {
+			this.path = path;
+			this.nextSegmentSeq = nextSegmentSeq;
+			this.nextId = nextId;
+		}
+	}
+
+
+	/**
+	 * A memory-mapped log segment file. A record is appended by reserving
+	 * its byte range w/ a CAS on the segment's 'state', which packs the
+	 * end of the reserved ranges (in its upper 32 bits), the number of
+	 * copies in flight, and a gate bit that stops further reservations. A
+	 * sealed segment's records end at its 'limit'.
+	 */
+	private static final class Segment {
+		/** reserve() results, besides a reserved offset. */
+		static final int FULL = -1, GATED = -2;
+		private static final long GATE = 1L << 31, WRITERS_MASK = GATE - 1L;
+		private static final AtomicLongFieldUpdater<Segment> STATE =
+				AtomicLongFieldUpdater.newUpdater(Segment.class, "state");
+
+		final long seq;
+		final Path path;
+		final FileChannel channel;
+		final MappedByteBuffer buffer;
+		/** End of the records, once the segment is sealed, or -1. */
+		int limit = -1;
+		/** Reserved end, gate bit, & number of copies in flight. */
+		private volatile long state;
+
+		private Segment(long seq, Path path, FileChannel channel,
+				MappedByteBuffer buffer)
+		{
+			this.seq = seq;
+			this.path = path;
+			this.channel = channel;
+			this.buffer = buffer;
+		}
+
+		/**
+		 * Creates a new, zero-filled segment file, mapped for appends.
+		 */
+		static Segment create(Path dir, long seq, int size)
+				throws IOException
+		{
+			Path path = dir.resolve(segmentName(seq));
+			FileChannel channel = FileChannel.open(path,
+					StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+			try {
+				return new Segment(seq, path, channel,
+						channel.map(FileChannel.MapMode.READ_WRITE, 0L, size));
+			} catch (IOException | RuntimeException e) {
+				channel.close();
+				Files.deleteIfExists(path);
+				throw e;
+			}
+		}
+
+		/**
+		 * Opens an existing segment file, mapped for reading.
+		 */
+		static Segment open(Path path, long seq) throws IOException {
+			FileChannel channel = FileChannel.open(path,
+					StandardOpenOption.READ);
+			try {
+				return new Segment(seq, path, channel, channel.map(
+						FileChannel.MapMode.READ_ONLY, 0L, channel.size()));
+			} catch (IOException | RuntimeException e) {
+				channel.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * Reserves {@code length} bytes for a record, unless the gate is
+		 * closed, or they don't fit. The caller must then copy the record
+		 * to the returned offset, and call completeCopy().
+		 *
+		 * @return the record's offset, or FULL or GATED.
+		 */
+		int reserve(int length) {
+			long s;
+			int end;
+			do {
+				s = this.state;
+				if ((s & GATE) != 0L)
+					return GATED;
+				end = (int) (s >>> 32);
+				if (length > this.buffer.capacity() - end)
+					return FULL;
+			} while (!STATE.compareAndSet(this, s,
+					s + ((long) length << 32) + 1L));
+			return end;
+		}
+
+		void completeCopy() {
+			STATE.decrementAndGet(this);
+		}
+
+		/** Returns the end of the reserved byte ranges. */
+		int end() {
+			return (int) (this.state >>> 32);
+		}
+
+		/**
+		 * Stops further reservations, and waits for the copies in flight
+		 * to complete.
+		 *
+		 * @return {@code true} if the gate was open.
+		 */
+		boolean closeGate() {
+			long s = STATE.getAndUpdate(this, x -> x | GATE);
+			while ((this.state & WRITERS_MASK) != 0L)
+				Thread.yield();  // A copy takes no lock, so it's brief
+			return (s & GATE) == 0L;
+		}
+
+		void openGate() {
+			STATE.getAndUpdate(this, x -> x & ~GATE);
+		}
+
+		/**
+		 * Ends the segment's records at its reserved end. (Its gate must be
+		 * closed.)
+		 */
+		void seal() {
+			this.limit = end();
+		}
+
+		/**
+		 * Returns a view of a sealed segment's records.
+		 */
+		ByteBuffer records() {
+			ByteBuffer view = this.buffer.duplicate();
+			view.position(0);
+			view.limit((this.limit >= 0) ? this.limit : view.capacity());
+			return view;
+		}
+
+		void close() {
+			try {
+				this.channel.close();
+			} catch (IOException e) {
+				// Nothing more to do w/ the segment
+			}
+		}
+
+		/**
+		 * Closes & deletes the segment file. (If it can't be deleted, the
+		 * next recovery deletes it.)
+		 */
+		void delete() {
+			close();
+			try {
+				Files.deleteIfExists(this.path);
+			} catch (IOException e) {
+				// Left for the next recovery
+			}
+		}
+	}
+}
@@ -0,0 +1,374 @@
+package info.willdspann.collections.concurrent.queue;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import info.willdspann.collections.concurrent.queue.ConcurrentHeapPriorityQueue.CountingMode;
+import info.willdspann.collections.concurrent.queue.ConcurrentHeapPriorityQueue.LockPolicy;
+
+/**
+ * An unbounded, thread-safe priority queue, which puts a flat-combining
+ * front end on a {@link ConcurrentHeapPriorityQueue}, for heavily
+ * contended workloads. Rather than each thread walking the node locks of
+ * the heap's upper rows itself, so that the root nodes' cache lines
+ * bounce between cores, a thread publishes its {@link #offer(Object)} or
+ * {@link #poll()} in a slot of a shared array, and whichever thread holds
+ * the combiner lock applies all of the published operations to the heap
+ * at once.
+ * <p>
+ * A combiner first eliminates pairs of published inserts & deletes: an
+ * inserted item no greater than the heap's root is handed directly to a
+ * delete, w/o ever entering the heap. The remaining inserts are then
+ * applied as a single batch insert, and the remaining deletes as a single
+ * batch delete, each of which reserves all of its leaf positions in a
+ * single counter step (see {@link ConcurrentHeapPriorityQueue#offerAll}
+ * and {@link ConcurrentHeapPriorityQueue#pollBatch}).
+ * <p>
+ * <u>Implementation Notes</u>: Since the underlying heap is itself
+ * thread-safe, a thread that finds every slot taken simply applies its
+ * operation to the heap directly, as do all other operations (e.g.,
+ * {@link #peek()}, {@link #remove(Object)} and iteration). A waiting
+ * thread repeatedly tries to become the combiner, so its operation is
+ * applied by at most the next combining pass after it's published. If a
+ * pass fails, e.g. because its items can't be compared, each of its
+ * requests that's still outstanding is completed w/ the exception, which
+ * is then thrown by the thread that published it. (If the failure comes
+ * from comparing the pass's inserted items, before the heap is touched,
+ * only its inserts fail, and its deletes are still applied.)
+ *
+ * @author Will D. Spann
+ * @version 1.2
+ *
+ * @see ConcurrentHeapPriorityQueue
+ */
+@ThreadSafe
+public class FlatCombiningPriorityQueue<E> extends AbstractQueue<E> {
+	private static final int DEFAULT_INIT_CAP = 16;
+	/** Number of busy-wait spins before a waiting thread starts yielding. */
+	private static final int MAX_SPINS = 64;
+	/** Maximum number of passes over the slots per turn as combiner. */
+	private static final int MAX_COMBINE_PASSES = 3;
+
+	private final ConcurrentHeapPriorityQueue<E> heap;
+	private final Comparator<? super E> comp;
+	/** Published operations, each claimed by CAS from {@code null}, and
+	 *  cleared by the combiner that takes it. */
+	private final AtomicReferenceArray<Request<E>> slots;
+	private final ReentrantLock combineLock;
+	@GuardedBy("this.combineLock")
+	private final List<Request<E>> offers = new ArrayList<Request<E>>();
+	@GuardedBy("this.combineLock")
+	private final List<Request<E>> polls = new ArrayList<Request<E>>();
+
+
+	public FlatCombiningPriorityQueue() {
+		this(DEFAULT_INIT_CAP, null, CountingMode.LOCKED,
+				LockPolicy.SPIN_THEN_PARK);
+	}
+
+	/**
+	 * @param comparator the {@code Comparator} used to order this queue.
+	 *
+	 * @throws NullPointerException if {@code comparator} is {@code null}.
+	 */
+	public FlatCombiningPriorityQueue(Comparator<? super E> comparator) {
+		this(DEFAULT_INIT_CAP, requireComparator(comparator),
+				CountingMode.LOCKED, LockPolicy.SPIN_THEN_PARK);
+	}
+
+	/**
+	 * @param initialCapacity the minimum initial capacity. Must be greater
+	 *    than 0.
+	 * @param comparator the {@code Comparator} used to order this queue, or
+	 *    {@code null} to use its items' natural ordering.
+	 * @param mode how the heap's leaf positions are reserved.
+	 * @param policy how the heap's node locks are granted to waiting
+	 *    threads.
+	 *
+	 * @throws IllegalArgumentException if {@code initialCapacity} is less
+	 *    than 1.
+	 * @throws NullPointerException if {@code mode} or {@code policy} is
+	 *    {@code null}.
+	 */
+	public FlatCombiningPriorityQueue(int initialCapacity,
+			Comparator<? super E> comparator, CountingMode mode,
+			LockPolicy policy)
+	{
+		this.heap = new ConcurrentHeapPriorityQueue<E>(initialCapacity,
+				comparator, mode, policy);
+		this.comp = comparator;
+		// Room for each core's thread, w/ few collisions
+		int n = Integer.highestOneBit(
+				Runtime.getRuntime().availableProcessors() * 2 - 1) << 1;
+		this.slots = new AtomicReferenceArray<Request<E>>(Math.max(n, 8));
+		this.combineLock = new ReentrantLock();
+	}
+
+	private static <T> Comparator<T> requireComparator(Comparator<T> comp) {
+		if (comp == null)
+			throw new NullPointerException();
+		return comp;
+	}
+
+
+	/**
+	 * Inserts the specified item into this queue.
+	 *
+	 * @return {@code true}
+	 *
+	 * @throws NullPointerException if {@code item} is {@code null}.
+	 * @throws ClassCastException if {@code item} can't be compared with the
+	 *    queue's items.
+	 */
+	public boolean offer(E item) {
+		if (item == null)
+			throw new NullPointerException();
+		if (this.comp == null && !(item instanceof Comparable<?>))
+			throw new ClassCastException(); // 'item' is incomparable.
+
+		Request<E> request = new Request<E>(item);
+		if (!publish(request))
+			return this.heap.offer(item);
+		await(request);
+		return true;
+	}
+
+	/**
+	 * Removes and returns the minimum item in this queue.
+	 *
+	 * @return the minimum item, or {@code null} if the queue is empty.
+	 */
+	public E poll() {
+		Request<E> request = new Request<E>(null);
+		if (!publish(request))
+			return this.heap.poll();
+		return await(request);
+	}
+
+	public E peek() {
+		return this.heap.peek();
+	}
+
+	public int size() {
+		return this.heap.size();
+	}
+
+	public boolean isEmpty() {
+		return this.heap.isEmpty();
+	}
+
+	public boolean contains(Object o) {
+		return this.heap.contains(o);
+	}
+
+	public boolean remove(Object o) {
+		return this.heap.remove(o);
+	}
+
+	public void clear() {
+		this.heap.clear();
+	}
+
+	/**
+	 * Returns an iterator over a snapshot of this queue's items, in no
+	 * particular order.
+	 */
+	public Iterator<E> iterator() {
+		return this.heap.iterator();
+	}
+
+	public Object[] toArray() {
+		return this.heap.toArray();
+	}
+
+	public <T> T[] toArray(T[] a) {
+		return this.heap.toArray(a);
+	}
+
+
+	/**
+	 * Publishes the request in a free slot, starting from the current
+	 * thread's home slot.
+	 *
+	 * @return {@code false} if every slot was taken.
+	 */
+	private boolean publish(Request<E> request) {
+		int mask = this.slots.length() - 1;
+		// Spread the thread IDs, which are usually sequential
+		int i = (int) (Thread.currentThread().getId() * 0x9E3779B9L) & mask;
+		for (int probes = 0; probes <= mask; probes++, i = (i + 1) & mask) {
+			if (this.slots.get(i) == null
+					&& this.slots.compareAndSet(i, null, request))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Waits for the published request to be applied, combining all of the
+	 * published requests whenever the combiner lock is free.
+	 *
+	 * @return the request's result.
+	 * @throws RuntimeException if applying the request failed.
+	 */
+	private E await(Request<E> request) {
+		for (int spins = 0; !request.done; spins++) {
+			if (this.combineLock.tryLock()) {
+				try {
+					combine();
+				} finally {
+					this.combineLock.unlock();
+				}
+			} else {
+				backOff(spins);
+			}
+		}
+		if (request.failure instanceof RuntimeException)
+			throw (RuntimeException) request.failure;
+		if (request.failure != null)
+			throw (Error) request.failure;
+		return request.result;
+	}
+
+	/**
+	 * Takes & applies the published requests, until there are none left,
+	 * or the maximum number of passes has been made.
+	 */
+	@GuardedBy("this.combineLock")
+	private void combine() {
+		for (int pass = 0; pass < MAX_COMBINE_PASSES; pass++) {
+			for (int i = 0, n = this.slots.length(); i < n; i++) {
+				Request<E> request = this.slots.get(i);
+				if (request != null) {
+					this.slots.set(i, null);
+					if (request.item != null)
+						this.offers.add(request);
+					else
+						this.polls.add(request);
+				}
+			}
+			if (this.offers.isEmpty() && this.polls.isEmpty())
+				return;
+			try {
+				apply();
+			} catch (RuntimeException | Error e) {
+				// Hand the failure to each request's own thread
+				fail(this.offers, e);
+				fail(this.polls, e);
+			} finally {
+				this.offers.clear();
+				this.polls.clear();
+			}
+		}
+	}
+
+	/**
+	 * Applies one pass's requests: first eliminating inserts & deletes in
+	 * pairs, then inserting the remaining items, and finally deleting the
+	 * remaining deletes' items, each in a single batch. So the deletes see
+	 * all of the pass's inserts. If the inserted items can't be compared
+	 * during the elimination, the remaining inserts fail, but the deletes
+	 * are still applied, since the heap hasn't been touched.
+	 */
+	@GuardedBy("this.combineLock")
+	private void apply() {
+		List<Request<E>> offers = this.offers, polls = this.polls;
+		int o = 0, p = 0;
+		if (!offers.isEmpty() && !polls.isEmpty()) {
+			try {
+				offers.sort((r1, r2) -> compare(r1.item, r2.item));
+				// Hand inserted items no greater than the root to deletes
+				E root = this.heap.peek();
+				while (o < offers.size() && p < polls.size()
+						&& (root == null
+							|| compare(offers.get(o).item, root) <= 0))
+				{
+					Request<E> offer = offers.get(o++);
+					polls.get(p++).complete(offer.item);
+					offer.complete(null);
+				}
+			} catch (RuntimeException | Error e) {
+				fail(offers, e);
+				o = offers.size();
+			}
+		}
+		if (o < offers.size()) {
+			List<E> items = new ArrayList<E>(offers.size() - o);
+			for (int i = o; i < offers.size(); i++)
+				items.add(offers.get(i).item);
+			this.heap.offerAll(items);
+			for (; o < offers.size(); o++)
+				offers.get(o).complete(null);
+		}
+		if (p < polls.size()) {
+			List<E> items = this.heap.pollBatch(polls.size() - p);
+			for (int i = 0; p < polls.size(); i++, p++)
+				polls.get(p).complete((i < items.size()) ? items.get(i) : null);
+		}
+	}
+
+	/**
+	 * Completes each of the requests that's still outstanding w/ the
+	 * specified failure.
+	 */
+	private static <E> void fail(List<Request<E>> requests, Throwable failure) {
+		for (Request<E> request : requests) {
+			if (!request.done)
+				request.fail(failure);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private int compare(E data1, E data2) {
+		if (this.comp != null)
+			return this.comp.compare(data1, data2);
+		else
+			return ((Comparable<E>) data1).compareTo(data2); // unchecked cast
+	}
+
+	private static void backOff(int spins) {
+		if (spins < MAX_SPINS)
+			Thread.onSpinWait();
+		else
+			Thread.yield();
+	}
+
+
+	/**
+	 * A published {@code offer()} (whose item isn't {@code null}) or
+	 * {@code poll()} (whose item is {@code null}).
+	 */
+	private static final class Request<E> {
+		final E item;
+		/** The polled item. Written before 'done', & read after it. */
+		E result;
+		/** The exception the request failed w/, if any. Written before
+		 *  'done', & read after it. */
+		Throwable failure;
+		volatile boolean done;
+
+		Request(E item) {
+			this.item = item;
+		}
+
+		void complete(E result) {
+			this.result = result;
+			this.done = true;
+		}
+
+		void fail(Throwable failure) {
+			this.failure = failure;
+			this.done = true;
+		}
+	}
+}
@@ -0,0 +1,519 @@
+package info.willdspann.collections.concurrent.queue;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ObjLongConsumer;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import info.willdspann.collections.utils.HeapBitReversedCounter;
+
+/**
+ * A thread-safe min-heap of values with primitive {@code long} priorities,
+ * which uses the same node-level locking and bit-reversed scattering of
+ * inserts and deletes as {@link ConcurrentHeapPriorityQueue}. Unlike a
+ * {@code ConcurrentHeapPriorityQueue}, priorities are neither boxed nor
+ * compared via a {@code Comparator} or {@code Comparable}: each heap
+ * position's priority, value and tag are stored in parallel arrays, so
+ * comparing two items is a single primitive comparison, and no object is
+ * allocated per item. (Each position's lock is a single {@code int} word,
+ * managed by {@link SlotLocks}.)
+ * <p>
+ * <u>Implementation Notes</u>: As in {@code ConcurrentHeapPriorityQueue}'s
+ * default {@code LOCKED} mode, leaf positions are reserved from a
+ * {@link HeapBitReversedCounter} under a global count lock, which is held
+ * until the reserved position has been locked. The parallel arrays are
+ * stored in row-aligned segments, so that the heap grows a row at a time,
+ * without copying or blocking access to existing items.
+ *
+ * @author Will D. Spann
+ * @version 1.3
+ *
+ * @see ConcurrentHeapPriorityQueue
+ */
+@ThreadSafe
+public class LongPriorityConcurrentHeap<V> {
+	private static final int DEFAULT_INIT_CAP = 10;
+	/** Number of busy-wait spins before a waiting thread starts yielding. */
+	private static final int MAX_SPINS = 64;
+	/** Tag values; any other tag is the ID of the inserting thread. */
+	private static final long EMPTY = 0L, AVAILABLE = -1L;
+	/** propagateStep() results, besides the item's new position. */
+	private static final int STEP_DONE = -1, STEP_WAIT = -2;
+
+	@GuardedBy("this.countLock")
+	private final HeapBitReversedCounter count;
+	private final ReentrantLock countLock;
+	/** Number of heap rows in the first segment. */
+	private final int baseRows;
+	private final AtomicReferenceArray<Segment> segments;
+	/** Number of positions in all published segments. */
+	private volatile int capacity;
+	private final ReentrantLock growLock;
+	private final SlotLocks slotLocks;
+
+
+	public LongPriorityConcurrentHeap() {
+		this(DEFAULT_INIT_CAP);
+	}
+
+	/**
+	 * @param initialCapacity the minimum initial capacity. Must be greater
+	 *    than 0.
+	 *
+	 * @throws IllegalArgumentException if {@code initialCapacity} is less
+	 *    than 1.
+	 */
+	public LongPriorityConcurrentHeap(int initialCapacity) {
+		if (initialCapacity < 1) {
+			throw new IllegalArgumentException("initialCapacity must be "
+					+ ">= 1");
+		}
+
+		this.count = HeapBitReversedCounter.newInstance();
+		this.countLock = new ReentrantLock();
+		this.baseRows = Integer.SIZE - Integer.numberOfLeadingZeros(
+				initialCapacity);
+		this.segments = new AtomicReferenceArray<Segment>(
+				Integer.SIZE - this.baseRows);
+		this.growLock = new ReentrantLock();
+		this.slotLocks = new SlotLocks();
+		this.segments.set(0, new Segment((1 << this.baseRows) - 1));
+		this.capacity = (1 << this.baseRows) - 1;
+	}
+
+
+	/**
+	 * Inserts the specified value with the specified priority.
+	 *
+	 * @param priority the value's priority, where smaller priorities are
+	 *    removed first.
+	 * @param value the value to insert.
+	 *
+	 * @throws NullPointerException if {@code value} is {@code null}.
+	 * @throws IllegalStateException if the heap already holds
+	 *    {@code Integer.MAX_VALUE} items.
+	 */
+	public void offer(long priority, V value) {
+		if (value == null)
+			throw new NullPointerException();
+
+		long tag = Thread.currentThread().getId();
+		int pos;
+		Segment seg;
+		int i;
+		this.countLock.lock();
+		try {
+			// Reserve the next leaf insert pos., & lock its (EMPTY) node
+			pos = this.count.getAndIncrement();
+			ensureCapacity(pos + 1);
+			seg = segment(pos);
+			i = offset(pos);
+			this.slotLocks.lock(seg.lockWords, i);
+		} finally {
+			this.countLock.unlock();
+		}
+		try {
+			seg.keys[i] = priority;
+			seg.values[i] = value;
+			seg.tags[i] = tag;
+		} finally {
+			this.slotLocks.unlock(seg.lockWords, i);
+		}
+
+		// Propagate the item towards the root while its priority is less
+		// than its parent's
+		int spins = 0;  // number of times we've waited
+		int step;
+		while ((step = propagateStep(pos, tag)) != STEP_DONE) {
+			if (step == STEP_WAIT)
+				backOff(spins++);
+			else
+				pos = step;
+		}
+	}
+
+	/**
+	 * Removes and returns the value with the minimum priority.
+	 *
+	 * @return the value with the minimum priority, after removing it; or
+	 *    {@code null} if the heap is empty.
+	 */
+	public V poll() {
+		return deleteMin(null);
+	}
+
+	/**
+	 * Removes the value with the minimum priority, and passes it along
+	 * with its priority to the specified action.
+	 *
+	 * @param action the action to which the removed value and its priority
+	 *    are passed.
+	 * @return {@code true} if a value was removed; or {@code false} if the
+	 *    heap is empty.
+	 *
+	 * @throws NullPointerException if {@code action} is {@code null}.
+	 */
+	public boolean pollTo(ObjLongConsumer<? super V> action) {
+		if (action == null)
+			throw new NullPointerException();
+
+		return deleteMin(action) != null;
+	}
+
+	/**
+	 * Returns, without removing, the value with the minimum priority.
+	 *
+	 * @return the value with the minimum priority; or {@code null} if the
+	 *    heap is empty.
+	 */
+	@SuppressWarnings("unchecked")
+	public V peek() {
+		Segment root = segment(0);
+		this.slotLocks.lock(root.lockWords, 0);
+		try {
+			return (root.tags[0] != EMPTY) ? (V) root.values[0] : null;
+		} finally {
+			this.slotLocks.unlock(root.lockWords, 0);
+		}
+	}
+
+	/**
+	 * Returns the minimum priority in the heap.
+	 *
+	 * @return the minimum priority in the heap.
+	 *
+	 * @throws NoSuchElementException if the heap is empty.
+	 */
+	public long peekPriority() {
+		Segment root = segment(0);
+		this.slotLocks.lock(root.lockWords, 0);
+		try {
+			if (root.tags[0] == EMPTY)
+				throw new NoSuchElementException();
+			return root.keys[0];
+		} finally {
+			this.slotLocks.unlock(root.lockWords, 0);
+		}
+	}
+
+	public int size() {
+		this.countLock.lock();
+		try {
+			return this.count.getNonreversedCount();
+		} finally {
+			this.countLock.unlock();
+		}
+	}
+
+	public boolean isEmpty() {
+		return peek() == null;
+	}
+
+	/**
+	 * Removes all of the items from this heap, by deleting them one at a
+	 * time. Items inserted concurrently with this call may or may not be
+	 * removed.
+	 */
+	public void clear() {
+		while (poll() != null)
+			;
+	}
+
+
+	/**
+	 * Removes the value with the minimum priority, and passes it along
+	 * with its priority to {@code action}, if it's non-{@code null}.
+	 * <p>
+	 * Impl. Notes: This method is based closely on Galen C. Hunt's
+	 * {@code concurrent_delete(heap_t)} pseudo-code, except that the item
+	 * taken from the bottom is itself returned, if its priority is no
+	 * greater than the root's, so that a delete never returns a larger item
+	 * in place of the one it holds.
+	 *
+	 * @return the removed value; or {@code null} if the heap is empty.
+	 */
+	@SuppressWarnings("unchecked")
+	private V deleteMin(ObjLongConsumer<? super V> action) {
+		/* Grab an item from the bottom of the heap to replace the to-be-deleted
+		 * top item. */
+		int bottomPos;
+		Segment bottom;
+		int b;
+		this.countLock.lock();
+		try {
+			if (this.count.getNonreversedCount() == 0)
+				return null;
+			bottomPos = this.count.decrementAndGet();
+			bottom = segment(bottomPos);
+			b = offset(bottomPos);
+			this.slotLocks.lock(bottom.lockWords, b);
+		} finally {
+			this.countLock.unlock();
+		}
+		long bottomKey = bottom.keys[b];
+		Object bottomValue = bottom.values[b];
+		bottom.tags[b] = EMPTY;
+		bottom.values[b] = null;
+		this.slotLocks.unlock(bottom.lockWords, b);
+
+		long minKey;
+		V minValue;
+		// Stop if it was the only item in the heap (and thereby the root).
+		// Note: The root's tag can't tell us that, since a concurrent insert
+		// may already have refilled the root.
+		if (bottomPos == 0) {
+			minKey = bottomKey;
+			minValue = (V) bottomValue;
+			if (action != null)
+				action.accept(minValue, minKey);
+			return minValue;
+		}
+		Segment root = segment(0);
+		this.slotLocks.lock(root.lockWords, 0);
+		// Stop if a concurrent delete has taken the root as its 'bottom',
+		// or if 'bottom' is the minimum after all. (While it was in
+		// transit, a concurrent delete may have taken the root, and a
+		// concurrent insert refilled it w/ a larger item.)
+		if (root.tags[0] == EMPTY || bottomKey <= root.keys[0]) {
+			this.slotLocks.unlock(root.lockWords, 0);
+			minKey = bottomKey;
+			minValue = (V) bottomValue;
+		} else {
+			// Replace the top item with the item taken from the bottom:
+			minKey = root.keys[0];
+			minValue = (V) root.values[0];
+			root.keys[0] = bottomKey;
+			root.values[0] = bottomValue;
+			root.tags[0] = AVAILABLE;
+			heapify(0);  // Note: Unlocks the root
+		}
+
+		if (action != null)
+			action.accept(minValue, minKey);
+		return minValue;
+	}
+
+	/**
+	 * Heapify the item at the specified position, which must be locked
+	 * when this method is called. All positions locked by this method,
+	 * including {@code pos}, are unlocked by the time it completes.
+	 *
+	 * @param pos position of the item to be heapified.
+	 */
+	private void heapify(int pos) {
+		Segment node = segment(pos), left, right, child;
+		int n = offset(pos), l, r, c;
+		int leftPos, childPos;
+		while (true) {
+			leftPos = (pos << 1) + 1;  // pos * 2 + 1
+			// Lock non-EMPTY children (always left before right), making
+			// sure we don't try to read past the end of the heap
+			left = right = null;
+			l = r = 0;
+			if (leftPos < this.capacity) {
+				left = segment(leftPos);
+				l = offset(leftPos);
+				this.slotLocks.lock(left.lockWords, l);
+				if (left.tags[l] == EMPTY) {
+					this.slotLocks.unlock(left.lockWords, l);
+					left = null;
+				}
+			}
+			if (leftPos + 1 < this.capacity) {
+				right = segment(leftPos + 1);
+				r = offset(leftPos + 1);
+				this.slotLocks.lock(right.lockWords, r);
+				if (right.tags[r] == EMPTY) {
+					this.slotLocks.unlock(right.lockWords, r);
+					right = null;
+				}
+			}
+			// If the item has no non-EMPTY children, we're done.
+			if (left == null && right == null)
+				break;
+			// Otherwise, pick the smaller child, & unlock the other one
+			if (right == null
+					|| (left != null && left.keys[l] <= right.keys[r]))
+			{
+				if (right != null)
+					this.slotLocks.unlock(right.lockWords, r);
+				child = left;
+				c = l;
+				childPos = leftPos;
+			} else {
+				if (left != null)
+					this.slotLocks.unlock(left.lockWords, l);
+				child = right;
+				c = r;
+				childPos = leftPos + 1;
+			}
+
+			// If child is less than parent, swap their items, then continue
+			// from 'child'. Note: 'child' is locked
+			if (child.keys[c] < node.keys[n]) {
+				swap(child, c, node, n);
+				this.slotLocks.unlock(node.lockWords, n);
+				node = child;
+				n = c;
+				pos = childPos;
+			}
+			// If not, stop. We're done.
+			else {
+				this.slotLocks.unlock(child.lockWords, c);
+				break;
+			}
+		}
+		this.slotLocks.unlock(node.lockWords, n);
+	}
+
+	/**
+	 * Performs a single step of propagating an inserted item up the heap,
+	 * as in {@code ConcurrentHeapPriorityQueue}.
+	 *
+	 * @param pos the current position of the inserted item.
+	 * @param tag the item's tag value (i.e., its inserter's thread ID).
+	 * @return the item's new position, if it may have moved further up;
+	 *    {@code STEP_DONE} if it has reached its final position; or
+	 *    {@code STEP_WAIT} if it must wait for another thread.
+	 */
+	private int propagateStep(int pos, long tag) {
+		// If the item is now root, set its tag to AVAILABLE, if it's still
+		// "our" item
+		if (pos == 0) {
+			Segment root = segment(0);
+			this.slotLocks.lock(root.lockWords, 0);
+			if (root.tags[0] == tag)
+				root.tags[0] = AVAILABLE;
+			this.slotLocks.unlock(root.lockWords, 0);
+			return STEP_DONE;
+		}
+
+		int parentPos = (pos - 1) >>> 1;  // (pos-1)/2
+		Segment node = segment(pos), parent = segment(parentPos);
+		int n = offset(pos), p = offset(parentPos);
+		this.slotLocks.lock(parent.lockWords, p);  // Note: Locking order is important.
+		this.slotLocks.lock(node.lockWords, n);
+		try {
+			// If parent isn't currently being inserted or deleted & 'node'
+			// still holds "our" item ...
+			if (parent.tags[p] == AVAILABLE && node.tags[n] == tag) {
+				if (node.keys[n] < parent.keys[p]) {
+					swap(node, n, parent, p);
+					return parentPos;
+				}
+				node.tags[n] = AVAILABLE;
+				return STEP_DONE;
+			}
+			// Otherwise, if the parent is EMPTY, there's a concurrent
+			// delete, so stop or we'll deadlock w/ the deleting thread.
+			else if (parent.tags[p] == EMPTY)
+				return STEP_DONE;
+			// Otherwise, if 'node' doesn't hold our item, a concurrent
+			// delete has moved it up to the parent
+			else if (node.tags[n] != tag)
+				return parentPos;
+			// Otherwise, the parent holds another item, which is still being
+			// inserted. So we wait for it.
+			return STEP_WAIT;
+		} finally {
+			this.slotLocks.unlock(node.lockWords, n);    // Note: Unlocking order is important.
+			this.slotLocks.unlock(parent.lockWords, p);
+		}
+	}
+
+	/**
+	 * Swaps the items (i.e., the priorities, values & tags) at two
+	 * positions, both of which must be locked by the current thread.
+	 */
+	private static void swap(Segment seg1, int i1, Segment seg2, int i2) {
+		long key = seg1.keys[i1];
+		Object value = seg1.values[i1];
+		long tag = seg1.tags[i1];
+		seg1.keys[i1] = seg2.keys[i2];
+		seg1.values[i1] = seg2.values[i2];
+		seg1.tags[i1] = seg2.tags[i2];
+		seg2.keys[i2] = key;
+		seg2.values[i2] = value;
+		seg2.tags[i2] = tag;
+	}
+
+	/**
+	 * Waits briefly before a thread retries an operation that is blocked on
+	 * another thread's progress.
+	 */
+	private static void backOff(int spins) {
+		if (spins < MAX_SPINS)
+			Thread.onSpinWait();
+		else
+			Thread.yield();
+	}
+
+	/**
+	 * Returns the segment holding the specified position, which must be
+	 * less than 'capacity'.
+	 */
+	private Segment segment(int pos) {
+		// Heap row of 'pos', which is also its bit-width
+		int row = Integer.SIZE - 1 - Integer.numberOfLeadingZeros(pos + 1);
+		return this.segments.get((row < this.baseRows) ? 0
+				: row - this.baseRows + 1);
+	}
+
+	/**
+	 * Returns the specified position's offset within its segment.
+	 */
+	private int offset(int pos) {
+		int row = Integer.SIZE - 1 - Integer.numberOfLeadingZeros(pos + 1);
+		return (row < this.baseRows) ? pos : pos + 1 - (1 << row);
+	}
+
+	/**
+	 * Grows the heap a row at a time, until its capacity is at least
+	 * {@code minCapacity}. Has no effect if it already is.
+	 */
+	private void ensureCapacity(int minCapacity) {
+		if (minCapacity <= this.capacity)
+			return;
+
+		this.growLock.lock();
+		try {
+			// Recheck, in case another thread grew the heap first
+			int cap = this.capacity;
+			while (cap < minCapacity) {
+				int row = Integer.SIZE - 1
+						- Integer.numberOfLeadingZeros(cap + 1);
+				this.segments.set(row - this.baseRows + 1,
+						new Segment(cap + 1));
+				cap = (cap << 1) + 1;
+				this.capacity = cap;
+			}
+		} finally {
+			this.growLock.unlock();
+		}
+	}
+
+
+	/**
+	 * A segment of the heap, holding the priorities, values, tags & lock
+	 * words of a run of heap positions in parallel arrays. Each position's
+	 * priority, value & tag are guarded by its lock, which is managed by
+	 * 'slotLocks'.
+	 */
+	private static final class Segment {
+		@GuardedBy("lockWords") final long[] keys;
+		@GuardedBy("lockWords") final Object[] values;
+		@GuardedBy("lockWords") final long[] tags;
+		final AtomicIntegerArray lockWords;
+
+		Segment(int length) {
+			this.keys = new long[length];
+			this.values = new Object[length];
+			this.tags = new long[length];  // All EMPTY
+			this.lockWords = new AtomicIntegerArray(length);
+		}
+	}
+}
@@ -0,0 +1,515 @@
+package info.willdspann.collections.concurrent.queue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import info.willdspann.collections.concurrent.queue.ConcurrentHeapPriorityQueue.CountingMode;
+import info.willdspann.collections.concurrent.queue.ConcurrentHeapPriorityQueue.Handle;
+import info.willdspann.collections.concurrent.queue.ConcurrentHeapPriorityQueue.LockPolicy;
+
+/**
+ * An {@link ExecutorService} which runs its tasks in priority order, taking
+ * them from a {@link ConcurrentHeapPriorityBlockingQueue}, so that
+ * submitting threads don't serialize on a single queue lock, as they do
+ * w/ a {@code ThreadPoolExecutor} over a {@code PriorityBlockingQueue}.
+ * A task's priority is an {@code int}, and tasks w/ <em>lower</em> values
+ * run first. Tasks of equal priority run in submission order. Tasks
+ * submitted w/o a priority have {@link #DEFAULT_PRIORITY}.
+ * <p>
+ * An executor is created in one of two modes:
+ * <ul>
+ * <li>A worker pool ({@link #newWorkerPool(int)}), in which a fixed
+ *    number of worker threads each take and run the next task.</li>
+ * <li>A dispatcher ({@link #newDispatcher(ThreadFactory, int)}), in which
+ *    a single dispatcher thread takes the next task, and starts it on a
+ *    new thread of its own, from a given {@code ThreadFactory}, once fewer
+ *    than a maximum number of tasks are running. This is intended for
+ *    factories of cheap threads, such as virtual threads, where
+ *    available.</li>
+ * </ul>
+ * <p>
+ * Optionally, tasks may age, so that a low-priority task isn't starved by
+ * a steady stream of higher-priority ones. With an aging interval of
+ * {@code a}, a task of priority {@code p} is ordered as if it were
+ * submitted {@code p * a} later, with a priority of 0; i.e., it overtakes
+ * every task submitted more than {@code (p - q) * a} after it, of any
+ * priority {@code q < p}. Since a task's position is fixed when it's
+ * submitted, aging costs nothing while it waits.
+ * <p>
+ * A task that throws from {@link #execute(Runnable)} is reported to the
+ * running thread's {@code UncaughtExceptionHandler}, and the thread goes
+ * on to the next task. A {@code Future} that's cancelled before its task
+ * runs is discarded when the task is reached.
+ *
+ * @author Will D. Spann
+ * @version 1.1
+ *
+ * @see ConcurrentHeapPriorityBlockingQueue
+ */
+@ThreadSafe
+public class PriorityExecutorService extends AbstractExecutorService {
+	/** Priority of tasks submitted w/o one. */
+	public static final int DEFAULT_PRIORITY = 0;
+
+	/** Run states, in increasing order. */
+	private static final int RUNNING = 0, SHUTDOWN = 1, STOP = 2,
+			TERMINATED = 3;
+
+	private final ConcurrentHeapPriorityBlockingQueue<PriorityTask> queue;
+	/** Aging interval, in nanoseconds, or 0 if tasks don't age. */
+	private final long agingNanos;
+	/** Base of the submission times of aging tasks. */
+	private final long startNanos;
+	/** Submission sequence, which orders tasks of equal rank. */
+	private final AtomicLong seq = new AtomicLong();
+	private final AtomicInteger runState = new AtomicInteger(RUNNING);
+
+	/** Factory of worker (or dispatcher) threads. */
+	private final ThreadFactory threadFactory;
+	/** Number of worker threads; 1 in dispatcher mode. */
+	private final int numWorkers;
+	/** Factory of per-task threads, or null if not in dispatcher mode. */
+	private final ThreadFactory taskThreadFactory;
+	/** Limit on running per-task threads, in dispatcher mode. */
+	private final int maxConcurrency;
+	private final Semaphore taskPermits;
+	/** Worker & per-task threads, to be interrupted by shutdownNow(). */
+	private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+	private final AtomicInteger liveWorkers;
+	private final CountDownLatch terminated = new CountDownLatch(1);
+
+
+	private PriorityExecutorService(int numWorkers, ThreadFactory threadFactory,
+			ThreadFactory taskThreadFactory, int maxConcurrency,
+			long agingInterval, TimeUnit unit)
+	{
+		if (threadFactory == null || unit == null)
+			throw new NullPointerException();
+		if (agingInterval < 0L)
+			throw new IllegalArgumentException("agingInterval must be >= 0");
+
+		this.queue = new ConcurrentHeapPriorityBlockingQueue<PriorityTask>(
+				64, null, CountingMode.LOCKED, LockPolicy.SPIN_THEN_PARK);
+		this.agingNanos = unit.toNanos(agingInterval);
+		this.startNanos = System.nanoTime();
+		this.threadFactory = threadFactory;
+		this.numWorkers = numWorkers;
+		this.taskThreadFactory = taskThreadFactory;
+		this.maxConcurrency = maxConcurrency;
+		this.taskPermits = (taskThreadFactory != null)
+				? new Semaphore(maxConcurrency) : null;
+		this.liveWorkers = new AtomicInteger(numWorkers);
+	}
+
+	/**
+	 * Creates a pool of {@code nThreads} worker threads, from
+	 * {@link Executors#defaultThreadFactory()}, whose tasks don't age.
+	 *
+	 * @param nThreads the number of worker threads. Must be greater than 0.
+	 * @return the new executor.
+	 *
+	 * @throws IllegalArgumentException if {@code nThreads} is less than 1.
+	 */
+	public static PriorityExecutorService newWorkerPool(int nThreads) {
+		return newWorkerPool(nThreads, Executors.defaultThreadFactory(), 0L,
+				TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Creates a pool of {@code nThreads} worker threads.
+	 *
+	 * @param nThreads the number of worker threads. Must be greater than 0.
+	 * @param threadFactory the factory of the worker threads.
+	 * @param agingInterval the time a task waits to gain one priority
+	 *    level, in units of {@code unit}; or 0 if tasks don't age.
+	 * @param unit the unit of {@code agingInterval}.
+	 * @return the new executor.
+	 *
+	 * @throws IllegalArgumentException if {@code nThreads} is less than 1,
+	 *    or {@code agingInterval} is negative.
+	 * @throws NullPointerException if {@code threadFactory} or {@code unit}
+	 *    is {@code null}.
+	 */
+	public static PriorityExecutorService newWorkerPool(int nThreads,
+			ThreadFactory threadFactory, long agingInterval, TimeUnit unit)
+	{
+		if (nThreads < 1)
+			throw new IllegalArgumentException("nThreads must be >= 1");
+
+		PriorityExecutorService executor = new PriorityExecutorService(
+				nThreads, threadFactory, null, 0, agingInterval, unit);
+		executor.startWorkers();
+		return executor;
+	}
+
+	/**
+	 * Creates a dispatcher, which starts each task on a new thread from
+	 * {@code taskThreadFactory}, in priority order, and whose tasks don't
+	 * age.
+	 *
+	 * @param taskThreadFactory the factory of the tasks' threads.
+	 * @param maxConcurrency the maximum number of tasks running at once,
+	 *    or {@code Integer.MAX_VALUE} for no limit. Must be greater than 0.
+	 * @return the new executor.
+	 *
+	 * @throws IllegalArgumentException if {@code maxConcurrency} is less
+	 *    than 1.
+	 * @throws NullPointerException if {@code taskThreadFactory} is
+	 *    {@code null}.
+	 */
+	public static PriorityExecutorService newDispatcher(
+			ThreadFactory taskThreadFactory, int maxConcurrency)
+	{
+		return newDispatcher(taskThreadFactory, maxConcurrency, 0L,
+				TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Creates a dispatcher, which starts each task on a new thread from
+	 * {@code taskThreadFactory}, in priority order. The dispatcher thread
+	 * itself comes from {@link Executors#defaultThreadFactory()}.
+	 *
+	 * @param taskThreadFactory the factory of the tasks' threads.
+	 * @param maxConcurrency the maximum number of tasks running at once,
+	 *    or {@code Integer.MAX_VALUE} for no limit. Must be greater than 0.
+	 * @param agingInterval the time a task waits to gain one priority
+	 *    level, in units of {@code unit}; or 0 if tasks don't age.
+	 * @param unit the unit of {@code agingInterval}.
+	 * @return the new executor.
+	 *
+	 * @throws IllegalArgumentException if {@code maxConcurrency} is less
+	 *    than 1, or {@code agingInterval} is negative.
+	 * @throws NullPointerException if {@code taskThreadFactory} or
+	 *    {@code unit} is {@code null}.
+	 */
+	public static PriorityExecutorService newDispatcher(
+			ThreadFactory taskThreadFactory, int maxConcurrency,
+			long agingInterval, TimeUnit unit)
+	{
+		if (taskThreadFactory == null)
+			throw new NullPointerException();
+		if (maxConcurrency < 1)
+			throw new IllegalArgumentException("maxConcurrency must be >= 1");
+
+		PriorityExecutorService executor = new PriorityExecutorService(1,
+				Executors.defaultThreadFactory(), taskThreadFactory,
+				maxConcurrency, agingInterval, unit);
+		executor.startWorkers();
+		return executor;
+	}
+
+
+	/**
+	 * Executes the specified task at {@link #DEFAULT_PRIORITY}.
+	 *
+	 * @throws RejectedExecutionException if this executor has been shut
+	 *    down.
+	 * @throws NullPointerException if {@code command} is {@code null}.
+	 */
+	public void execute(Runnable command) {
+		execute(command, DEFAULT_PRIORITY);
+	}
+
+	/**
+	 * Executes the specified task at the specified priority.
+	 *
+	 * @param command the task to run.
+	 * @param priority the task's priority, lower values running first.
+	 *
+	 * @throws RejectedExecutionException if this executor has been shut
+	 *    down.
+	 * @throws NullPointerException if {@code command} is {@code null}.
+	 */
+	public void execute(Runnable command, int priority) {
+		if (command == null)
+			throw new NullPointerException();
+		if (this.runState.get() != RUNNING)
+			throw new RejectedExecutionException("Executor is shut down");
+
+		PriorityTask task = new PriorityTask(command, rank(priority),
+				this.seq.getAndIncrement());
+		Handle<PriorityTask> handle = this.queue.offerHandle(task);
+		// If we were shut down meanwhile, our task may have missed the
+		// workers, so take it back, unless a worker (or shutdownNow()) got
+		// it first.
+		if (this.runState.get() != RUNNING && handle.cancel())
+			throw new RejectedExecutionException("Executor is shut down");
+	}
+
+	/**
+	 * Submits the specified value-returning task for execution at the
+	 * specified priority.
+	 *
+	 * @param task the task to run.
+	 * @param priority the task's priority, lower values running first.
+	 * @return a {@code Future} representing the task's pending result.
+	 *
+	 * @throws RejectedExecutionException if this executor has been shut
+	 *    down.
+	 * @throws NullPointerException if {@code task} is {@code null}.
+	 */
+	public <T> Future<T> submit(Callable<T> task, int priority) {
+		if (task == null)
+			throw new NullPointerException();
+		RunnableFuture<T> future = newTaskFor(task);
+		execute(future, priority);
+		return future;
+	}
+
+	/**
+	 * Submits the specified task for execution at the specified priority.
+	 *
+	 * @param task the task to run.
+	 * @param priority the task's priority, lower values running first.
+	 * @return a {@code Future} representing the task's completion, whose
+	 *    result is {@code null}.
+	 *
+	 * @throws RejectedExecutionException if this executor has been shut
+	 *    down.
+	 * @throws NullPointerException if {@code task} is {@code null}.
+	 */
+	public Future<?> submit(Runnable task, int priority) {
+		if (task == null)
+			throw new NullPointerException();
+		RunnableFuture<Void> future = newTaskFor(task, null);
+		execute(future, priority);
+		return future;
+	}
+
+	/**
+	 * Stops accepting tasks. Tasks already submitted are still run, after
+	 * which the worker (or dispatcher) threads exit.
+	 */
+	public void shutdown() {
+		if (this.runState.compareAndSet(RUNNING, SHUTDOWN))
+			releaseWorkers();
+	}
+
+	/**
+	 * Stops accepting tasks, interrupts the running ones, and returns the
+	 * tasks which were never started, in priority order.
+	 *
+	 * @return the tasks which were never started.
+	 */
+	public List<Runnable> shutdownNow() {
+		int state;
+		do {
+			state = this.runState.get();
+		} while (state < STOP && !this.runState.compareAndSet(state, STOP));
+
+		List<Runnable> pending = new ArrayList<Runnable>();
+		PriorityTask task;
+		while ((task = this.queue.poll()) != null) {
+			if (task.command != null)
+				pending.add(task.command);
+		}
+		for (Thread t : this.threads)
+			t.interrupt();
+		// Any shutdown() markers were drained above
+		releaseWorkers();
+		return pending;
+	}
+
+	public boolean isShutdown() {
+		return this.runState.get() != RUNNING;
+	}
+
+	public boolean isTerminated() {
+		return this.runState.get() == TERMINATED;
+	}
+
+	public boolean awaitTermination(long timeout, TimeUnit unit)
+			throws InterruptedException
+	{
+		return this.terminated.await(timeout, unit);
+	}
+
+	/**
+	 * Returns the number of tasks waiting to be run.
+	 *
+	 * @return the number of queued tasks.
+	 */
+	public int getQueueSize() {
+		// Note: May count shutdown markers.
+		return this.queue.size();
+	}
+
+
+	/**
+	 * Returns the rank of a task of the specified priority submitted now.
+	 */
+	private long rank(int priority) {
+		if (this.agingNanos == 0L)
+			return priority;
+
+		long age = System.nanoTime() - this.startNanos;
+		long delay;
+		try {
+			delay = Math.multiplyExact(priority, this.agingNanos);
+		} catch (ArithmeticException e) {
+			delay = (priority < 0) ? Long.MIN_VALUE / 2 : Long.MAX_VALUE / 2;
+		}
+		return age + Math.max(Math.min(delay, Long.MAX_VALUE / 2),
+				Long.MIN_VALUE / 2);
+	}
+
+	private void startWorkers() {
+		for (int i = 0; i < this.numWorkers; i++) {
+			Thread t = this.threadFactory.newThread(new Worker());
+			if (t == null)
+				throw new IllegalStateException("ThreadFactory returned null");
+			this.threads.add(t);
+			t.start();
+		}
+	}
+
+	/**
+	 * Queues a marker for each worker, behind every task, which makes the
+	 * worker that takes it exit.
+	 */
+	private void releaseWorkers() {
+		for (int i = 0; i < this.numWorkers; i++) {
+			this.queue.offer(new PriorityTask(null, Long.MAX_VALUE,
+					Long.MAX_VALUE));
+		}
+	}
+
+	private void workerExited() {
+		this.threads.remove(Thread.currentThread());
+		if (this.liveWorkers.decrementAndGet() == 0) {
+			this.runState.set(TERMINATED);
+			this.terminated.countDown();
+		}
+	}
+
+	/**
+	 * Takes the next task, or {@code null} if the worker should exit.
+	 */
+	private PriorityTask nextTask() {
+		while (true) {
+			try {
+				PriorityTask task = this.queue.take();
+				return (task.command != null) ? task : null;
+			} catch (InterruptedException e) {
+				if (this.runState.get() >= STOP)
+					return null;
+			}
+		}
+	}
+
+	private void runTask(Runnable command) {
+		// Only shutdownNow() may leave the thread interrupted
+		if (this.runState.get() < STOP)
+			Thread.interrupted();
+		try {
+			command.run();
+		} catch (Throwable e) {
+			Thread current = Thread.currentThread();
+			current.getUncaughtExceptionHandler().uncaughtException(current, e);
+		}
+	}
+
+
+	/**
+	 * A queued task, ordered by rank, then by submission sequence.
+	 */
+	private static final class PriorityTask
+			implements Comparable<PriorityTask>
+	{
+		/** The task, or null for a worker's exit marker. */
+		final Runnable command;
+		final long rank;
+		final long seq;
+
+		PriorityTask(Runnable command, long rank, long seq) {
+			this.command = command;
+			this.rank = rank;
+			this.seq = seq;
+		}
+
+		public int compareTo(PriorityTask other) {
+			int cmp = Long.compare(this.rank, other.rank);
+			return (cmp != 0) ? cmp : Long.compare(this.seq, other.seq);
+		}
+	}
+
+	/**
+	 * The loop of a worker thread, or in dispatcher mode, of the dispatcher
+	 * thread.
+	 */
+	private final class Worker implements Runnable {
+		public void run() {
+			try {
+				if (taskThreadFactory == null)
+					work();
+				else
+					dispatch();
+			} finally {
+				workerExited();
+			}
+		}
+
+		private void work() {
+			PriorityTask task;
+			while ((task = nextTask()) != null)
+				runTask(task.command);
+		}
+
+		private void dispatch() {
+			PriorityTask task;
+			try {
+				while (true) {
+					// Wait for a free slot before taking the next task, so
+					// that it's the highest-priority one at that time.
+					try {
+						taskPermits.acquire();
+					} catch (InterruptedException e) {
+						if (runState.get() >= STOP)
+							break;
+						continue;
+					}
+					if ((task = nextTask()) == null) {
+						taskPermits.release();
+						break;
+					}
+					startTask(task.command);
+				}
+			} finally {
+				// Wait for the running tasks
+				taskPermits.acquireUninterruptibly(maxConcurrency);
+			}
+		}
+
+		private void startTask(final Runnable command) {
+			Thread t = taskThreadFactory.newThread(new Runnable() {
+				public void run() {
+					try {
+						runTask(command);
+					} finally {
+						threads.remove(Thread.currentThread());
+						taskPermits.release();
+					}
+				}
+			});
+			if (t == null) {
+				// Run it here instead, rather than lose it
+				try {
+					runTask(command);
+				} finally {
+					taskPermits.release();
+				}
+				return;
+			}
+			threads.add(t);
+			if (runState.get() >= STOP)
+				t.interrupt();
+			t.start();
+		}
+	}
+}
@@ -0,0 +1,426 @@
+package info.willdspann.collections.concurrent.queue;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import info.willdspann.collections.concurrent.queue.ConcurrentHeapPriorityQueue.CountingMode;
+import info.willdspann.collections.concurrent.queue.ConcurrentHeapPriorityQueue.Handle;
+import info.willdspann.collections.concurrent.queue.ConcurrentHeapPriorityQueue.LockPolicy;
+
+/**
+ * An unbounded, thread-safe, blocking queue of {@link Delayed} items, in
+ * which an item may only be removed once its delay has expired. The items
+ * are kept in a {@link ConcurrentHeapPriorityQueue}, ordered by their
+ * delays, so that producers insert w/ node-level locking only, rather than
+ * through a global lock, as in {@code java.util.concurrent.DelayQueue}.
+ * <p>
+ * The head of the queue is the item whose delay expired furthest in the
+ * past, or, if none has expired, the one whose delay expires soonest.
+ * {@link #poll()} returns {@code null} unless the head has expired, while
+ * {@link #peek()} returns the head either way. {@link #size()} counts
+ * both expired and unexpired items.
+ * <p>
+ * <u>Implementation Notes</u>: Consumers wait as in the Leader-Follower
+ * pattern: a single consumer, the leader, waits only until the head's
+ * delay expires, while any others wait indefinitely, until the leader
+ * passes on the signal after removing an item. Only an insert (or a
+ * {@link Handle#updatePriority(Object)}) whose item is propagated up to
+ * the heap's root, or a cancel or update of the head itself, so that the
+ * leader may be waiting for the wrong deadline, signals a waiting
+ * consumer, and then only if any consumer is waiting.
+ * An expired head is removed by a conditional delete, which tests the
+ * root's item while its node is locked, so that of several consumers
+ * racing for an expired head, the losers never remove an unexpired item
+ * in its place.
+ *
+ * @author Will D. Spann
+ * @version 1.0
+ *
+ * @see ConcurrentHeapPriorityBlockingQueue
+ */
+@ThreadSafe
+public class ScheduledDelayQueue<E extends Delayed> extends AbstractQueue<E>
+		implements BlockingQueue<E>
+{
+	private static final int DEFAULT_INIT_CAP = 16;
+	/** Condition of a removable item. */
+	private static final Predicate<Delayed> EXPIRED =
+			item -> item.getDelay(TimeUnit.NANOSECONDS) <= 0L;
+
+	private final DelayHeap<E> heap;
+	/** Lock held by consumers while waiting for the head to expire, and by
+	 *  producers while signaling them. */
+	private final ReentrantLock takeLock;
+	@GuardedBy("this.takeLock") private final Condition available;
+	/** The consumer waiting for the head's delay to expire, if any. */
+	@GuardedBy("this.takeLock") private Thread leader;
+	/** Number of consumers waiting on 'available'. (Only written while
+	 *  holding 'takeLock', but read without it by producers.) */
+	private volatile int waiters;
+
+
+	public ScheduledDelayQueue() {
+		this(DEFAULT_INIT_CAP, CountingMode.LOCKED, LockPolicy.SPIN_THEN_PARK);
+	}
+
+	/**
+	 * @param initialCapacity the minimum initial capacity. Must be greater
+	 *    than 0.
+	 * @param mode how leaf positions are reserved by inserts and deletes.
+	 * @param policy how node locks are granted to waiting threads.
+	 *
+	 * @throws IllegalArgumentException if {@code initialCapacity} is less
+	 *    than 1.
+	 * @throws NullPointerException if {@code mode} or {@code policy} is
+	 *    {@code null}.
+	 */
+	public ScheduledDelayQueue(int initialCapacity, CountingMode mode,
+			LockPolicy policy)
+	{
+		this.heap = new DelayHeap<E>(this, initialCapacity, mode, policy);
+		this.takeLock = new ReentrantLock();
+		this.available = this.takeLock.newCondition();
+	}
+
+
+	/**
+	 * Inserts the specified item into this queue.
+	 *
+	 * @param item the item to add.
+	 * @return {@code true}
+	 *
+	 * @throws NullPointerException if {@code item} is {@code null}.
+	 */
+	public boolean offer(E item) {
+		return this.heap.offer(item);
+	}
+
+	/**
+	 * Inserts the specified item into this queue, and returns a
+	 * {@code Handle} which may be used to cancel the item, or to change its
+	 * delay (i.e., to reschedule it) after updating the item.
+	 *
+	 * @param item the item to add.
+	 * @return the item's {@code Handle}.
+	 *
+	 * @throws NullPointerException if {@code item} is {@code null}.
+	 */
+	public Handle<E> offerHandle(E item) {
+		return this.heap.offerHandle(item);
+	}
+
+	/**
+	 * Inserts the specified item into this queue. Since the queue is
+	 * unbounded, this method never blocks.
+	 *
+	 * @param item the item to add.
+	 *
+	 * @throws NullPointerException if {@code item} is {@code null}.
+	 */
+	public void put(E item) {
+		offer(item);
+	}
+
+	/**
+	 * Inserts the specified item into this queue. Since the queue is
+	 * unbounded, this method never blocks, and so {@code timeout} and
+	 * {@code unit} are ignored.
+	 *
+	 * @return {@code true}
+	 *
+	 * @throws NullPointerException if {@code item} is {@code null}.
+	 */
+	public boolean offer(E item, long timeout, TimeUnit unit) {
+		return offer(item);
+	}
+
+	/**
+	 * Removes and returns the head of this queue, only if its delay has
+	 * expired.
+	 *
+	 * @return the head of this queue; or {@code null} if the queue is
+	 *    empty, or its head's delay hasn't expired.
+	 */
+	public E poll() {
+		return this.heap.pollIf(EXPIRED);
+	}
+
+	/**
+	 * Removes and returns the head of this queue, waiting if necessary
+	 * until an item w/ an expired delay is available.
+	 *
+	 * @return the head of this queue.
+	 *
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public E take() throws InterruptedException {
+		E item = poll();
+		if (item != null)
+			return item;
+
+		this.takeLock.lockInterruptibly();
+		try {
+			this.waiters++;
+			try {
+				// Note: An insert of a new head must signal while holding
+				// 'takeLock', so it can't slip in between this poll and the
+				// await.
+				while ((item = poll()) == null) {
+					E first = this.heap.peek();
+					if (first == null || this.leader != null) {
+						this.available.await();
+					} else {
+						Thread current = Thread.currentThread();
+						this.leader = current;
+						try {
+							this.available.awaitNanos(
+									first.getDelay(TimeUnit.NANOSECONDS));
+						} finally {
+							if (this.leader == current)
+								this.leader = null;
+						}
+					}
+				}
+			} catch (InterruptedException e) {
+				this.available.signal();  // In case we consumed a signal
+				throw e;
+			} finally {
+				this.waiters--;
+			}
+			passSignalOn();
+			return item;
+		} finally {
+			this.takeLock.unlock();
+		}
+	}
+
+	/**
+	 * Removes and returns the head of this queue, waiting up to the
+	 * specified wait time if necessary for an item w/ an expired delay to
+	 * become available.
+	 *
+	 * @param timeout how long to wait before giving up, in units of
+	 *    {@code unit}.
+	 * @param unit a {@code TimeUnit} determining how to interpret the
+	 *    {@code timeout} parameter.
+	 * @return the head of this queue; or {@code null} if the specified
+	 *    waiting time elapses before an item w/ an expired delay is
+	 *    available.
+	 *
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+		E item = poll();
+		if (item != null)
+			return item;
+
+		long nanos = unit.toNanos(timeout);
+		this.takeLock.lockInterruptibly();
+		try {
+			this.waiters++;
+			try {
+				while ((item = poll()) == null) {
+					if (nanos <= 0L)
+						return null;
+					E first = this.heap.peek();
+					long delay = (first != null)
+							? first.getDelay(TimeUnit.NANOSECONDS) : nanos;
+					if (first == null || this.leader != null || nanos < delay) {
+						nanos = this.available.awaitNanos(nanos);
+					} else {
+						Thread current = Thread.currentThread();
+						this.leader = current;
+						try {
+							nanos -= delay - this.available.awaitNanos(delay);
+						} finally {
+							if (this.leader == current)
+								this.leader = null;
+						}
+					}
+				}
+			} catch (InterruptedException e) {
+				this.available.signal();  // In case we consumed a signal
+				throw e;
+			} finally {
+				this.waiters--;
+			}
+			passSignalOn();
+			return item;
+		} finally {
+			this.takeLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns, but doesn't remove, the head of this queue, whether or not
+	 * its delay has expired.
+	 *
+	 * @return the head of this queue; or {@code null} if the queue is
+	 *    empty.
+	 */
+	public E peek() {
+		return this.heap.peek();
+	}
+
+	/**
+	 * Returns the number of items in this queue, whether or not their
+	 * delays have expired.
+	 */
+	public int size() {
+		return this.heap.size();
+	}
+
+	public boolean isEmpty() {
+		return this.heap.isEmpty();
+	}
+
+	public boolean contains(Object o) {
+		return this.heap.contains(o);
+	}
+
+	/**
+	 * Removes a single instance of the specified item from this queue,
+	 * whether or not its delay has expired.
+	 *
+	 * @return {@code true} if an item was removed.
+	 */
+	public boolean remove(Object o) {
+		return this.heap.remove(o);
+	}
+
+	public void clear() {
+		this.heap.clear();
+	}
+
+	/**
+	 * Always returns {@code Integer.MAX_VALUE}, because this queue is
+	 * unbounded.
+	 *
+	 * @return {@code Integer.MAX_VALUE}
+	 */
+	public int remainingCapacity() {
+		return Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Removes every item w/ an expired delay from this queue, and adds them
+	 * to the specified collection, in order.
+	 *
+	 * @throws IllegalArgumentException if {@code c} is this queue.
+	 */
+	public int drainTo(Collection<? super E> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Removes up to {@code maxElements} items w/ expired delays from this
+	 * queue, and adds them to the specified collection, in order.
+	 *
+	 * @throws IllegalArgumentException if {@code c} is this queue.
+	 */
+	public int drainTo(Collection<? super E> c, int maxElements) {
+		if (c == null)
+			throw new NullPointerException();
+		if (c == this)
+			throw new IllegalArgumentException();
+
+		int n = 0;
+		E item;
+		while (n < maxElements && (item = poll()) != null) {
+			c.add(item);
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Returns an {@code Iterator} over a snapshot of this queue's items,
+	 * both expired and unexpired, in no particular order. The
+	 * {@code Iterator}'s {@code remove()} removes the last item returned
+	 * from the queue.
+	 */
+	public Iterator<E> iterator() {
+		return this.heap.iterator();
+	}
+
+	@Override
+	public Spliterator<E> spliterator() {
+		return this.heap.spliterator();
+	}
+
+	@Override
+	public Object[] toArray() {
+		return this.heap.toArray();
+	}
+
+	@Override
+	public <T> T[] toArray(T[] a) {
+		return this.heap.toArray(a);
+	}
+
+
+	/**
+	 * Wakes a waiting consumer, if there is one, after an item has become
+	 * the head of the queue, since the leader (if any) is waiting for the
+	 * old head's delay to expire.
+	 */
+	private void signalNewHead() {
+		// A consumer increments 'waiters' before polling & peeking, so if we
+		// read 0 here, it will see our item.
+		if (this.waiters == 0)
+			return;
+
+		this.takeLock.lock();
+		try {
+			this.leader = null;
+			this.available.signal();
+		} finally {
+			this.takeLock.unlock();
+		}
+	}
+
+	/**
+	 * Wakes the next waiting consumer, if there's no leader & items remain
+	 * after a woken consumer's delete, so that one of them becomes the
+	 * leader for the new head.
+	 */
+	@GuardedBy("this.takeLock")
+	private void passSignalOn() {
+		if (this.waiters > 0 && this.leader == null && !isEmpty())
+			this.available.signal();
+	}
+
+
+	/**
+	 * The heap of a {@code ScheduledDelayQueue}, which tells the queue
+	 * when its root has been replaced by an insert.
+	 */
+	private static final class DelayHeap<E extends Delayed>
+			extends ConcurrentHeapPriorityQueue<E>
+	{
+		private final ScheduledDelayQueue<E> queue;
+
+		DelayHeap(ScheduledDelayQueue<E> queue, int initialCapacity,
+				CountingMode mode, LockPolicy policy)
+		{
+			super(initialCapacity, null, mode, policy);
+			this.queue = queue;
+		}
+
+		@Override
+		void signalNewRoot() {
+			this.queue.signalNewHead();
+		}
+	}
+}
@@ -0,0 +1,214 @@
+package info.willdspann.collections.concurrent.queue;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import info.willdspann.collections.concurrent.queue.ConcurrentHeapPriorityQueue.LockPolicy;
+
+/**
+ * Locks for the slots (i.e., positions) of the array-based
+ * concurrent heaps in this package. Each slot's lock is a single
+ * {@code int} lock word in an {@code AtomicIntegerArray}, rather than a
+ * {@code ReentrantLock} object, so a slot's lock costs four bytes and no
+ * allocation. The locks aren't reentrant, and have no owner.
+ * <p>
+ * <u>Implementation Notes</u>: A lock is acquired by a CAS of its word
+ * from {@code UNLOCKED} to {@code LOCKED}. A thread that fails to acquire
+ * it busy-waits for up to {@code MAX_SPINS} attempts, and then parks. A
+ * parking thread first registers itself in one of a fixed set of waiter
+ * queues (chosen by hashing the slot), and then sets the word's
+ * {@code PARKED} bit, so that the releasing thread knows to unpark that
+ * queue's threads. Since a stripe's queue may hold threads waiting on
+ * other slots, every unparked thread simply retries its lock.
+ * <p>
+ * That is the {@link LockPolicy#SPIN_THEN_PARK} policy. Under
+ * {@link LockPolicy#NON_FAIR}, a thread that fails its first CAS parks
+ * right away, w/o spinning. Under {@link LockPolicy#FAIR}, the lock word is
+ * instead a ticket lock: its high 16 bits are the next ticket to hand out,
+ * and its low 16 bits the ticket being served. A thread takes a ticket
+ * w/ a single atomic add, and waits (spinning, then parking) until it's
+ * served, so the lock is granted in arrival order. (The tickets wrap, so
+ * at most 65535 threads may wait on one slot.)
+ *
+ * @author Will D. Spann
+ * @version 1.2
+ */
+@ThreadSafe
+final class SlotLocks {
+	/** Lock word values & bits. */
+	private static final int UNLOCKED = 0, LOCKED = 1, PARKED = 2;
+	/** Number of busy-wait spins before a waiting thread parks. */
+	private static final int MAX_SPINS = 64;
+	/** Number of waiter queues, which must be a power of 2. */
+	private static final int NUM_STRIPES = 64;
+	/** FAIR lock word fields: the next ticket, and the ticket served. */
+	private static final int TICKET = 1 << 16, SERVING_MASK = TICKET - 1;
+
+	private final LockPolicy policy;
+	private final ConcurrentLinkedQueue<Thread>[] waiters;
+
+
+	SlotLocks() {
+		this(LockPolicy.SPIN_THEN_PARK);
+	}
+
+	/**
+	 * @param policy how threads wait for, and are granted, the locks.
+	 */
+	@SuppressWarnings("unchecked")
+	SlotLocks(LockPolicy policy) {
+		assert policy != null;
+
+		this.policy = policy;
+		this.waiters = (ConcurrentLinkedQueue<Thread>[])
+				new ConcurrentLinkedQueue<?>[NUM_STRIPES];
+		for (int i = 0; i < NUM_STRIPES; i++)
+			this.waiters[i] = new ConcurrentLinkedQueue<Thread>();
+	}
+
+
+	/**
+	 * Acquires the lock of the specified slot, waiting if necessary.
+	 *
+	 * @param words the lock words of the slot's segment.
+	 * @param i the slot's index in {@code words}.
+	 */
+	void lock(AtomicIntegerArray words, int i) {
+		if (this.policy == LockPolicy.FAIR)
+			lockFair(words, i);
+		else if (!words.compareAndSet(i, UNLOCKED, LOCKED))
+			lockSlow(words, i);
+	}
+
+	/**
+	 * Acquires the lock of the specified slot, only if it's free.
+	 *
+	 * @param words the lock words of the slot's segment.
+	 * @param i the slot's index in {@code words}.
+	 * @return {@code true} if the lock was acquired.
+	 */
+	boolean tryLock(AtomicIntegerArray words, int i) {
+		if (this.policy == LockPolicy.FAIR) {
+			int word = words.get(i);
+			return isFree(word) && words.compareAndSet(i, word, word + TICKET);
+		}
+		return words.compareAndSet(i, UNLOCKED, LOCKED);
+	}
+
+	/**
+	 * Releases the lock of the specified slot, which must be held by the
+	 * current thread, and unparks any threads that may be waiting for it.
+	 *
+	 * @param words the lock words of the slot's segment.
+	 * @param i the slot's index in {@code words}.
+	 */
+	void unlock(AtomicIntegerArray words, int i) {
+		if (this.policy == LockPolicy.FAIR) {
+			unlockFair(words, i);
+			return;
+		}
+		int prev = words.getAndSet(i, UNLOCKED);
+		assert prev != UNLOCKED;
+
+		if ((prev & PARKED) != 0) {
+			for (Thread t : this.waiters[stripe(words, i)])
+				LockSupport.unpark(t);
+		}
+	}
+
+	/**
+	 * Returns whether the specified slot is locked, by any thread.
+	 */
+	boolean isLocked(AtomicIntegerArray words, int i) {
+		if (this.policy == LockPolicy.FAIR)
+			return !isFree(words.get(i));
+		return words.get(i) != UNLOCKED;
+	}
+
+
+	private void lockSlow(AtomicIntegerArray words, int i) {
+		ConcurrentLinkedQueue<Thread> queue = null;
+		Thread current = Thread.currentThread();
+		int maxSpins = (this.policy == LockPolicy.SPIN_THEN_PARK)
+				? MAX_SPINS : 0;
+		int word;
+		for (int spins = 0; ; spins++) {
+			word = words.get(i);
+			if (word == UNLOCKED) {
+				if (words.compareAndSet(i, UNLOCKED, LOCKED))
+					break;
+			} else if (spins < maxSpins) {
+				Thread.onSpinWait();
+			} else {
+				// Register as a waiter, then reread the word, before relying
+				// on the PARKED bit, so that the releasing thread is sure to
+				// see us.
+				if (queue == null) {
+					queue = this.waiters[stripe(words, i)];
+					queue.add(current);
+					continue;
+				}
+				if ((word & PARKED) != 0
+						|| words.compareAndSet(i, word, word | PARKED))
+				{
+					LockSupport.park(this);
+				}
+			}
+		}
+		if (queue != null)
+			queue.remove(current);
+	}
+
+	private void lockFair(AtomicIntegerArray words, int i) {
+		int ticket = words.getAndAdd(i, TICKET) >>> 16;
+		if ((words.get(i) & SERVING_MASK) == ticket)
+			return;
+
+		ConcurrentLinkedQueue<Thread> queue = null;
+		Thread current = Thread.currentThread();
+		for (int spins = 0; (words.get(i) & SERVING_MASK) != ticket;
+				spins++)
+		{
+			if (spins < MAX_SPINS) {
+				Thread.onSpinWait();
+			} else if (queue == null) {
+				// Register, then recheck our turn before parking, so that
+				// the thread serving us is sure to see us.
+				queue = this.waiters[stripe(words, i)];
+				queue.add(current);
+			} else {
+				LockSupport.park(this);
+			}
+		}
+		if (queue != null)
+			queue.remove(current);
+	}
+
+	private void unlockFair(AtomicIntegerArray words, int i) {
+		int word, next;
+		do {
+			word = words.get(i);
+			assert !isFree(word);
+			// Serve the next ticket, w/o carrying into the ticket field
+			next = (word & ~SERVING_MASK) | ((word + 1) & SERVING_MASK);
+		} while (!words.compareAndSet(i, word, next));
+
+		if (!isFree(next)) {
+			for (Thread t : this.waiters[stripe(words, i)])
+				LockSupport.unpark(t);
+		}
+	}
+
+	/** Returns whether a FAIR lock word has served every ticket. */
+	private static boolean isFree(int word) {
+		return (word >>> 16) == (word & SERVING_MASK);
+	}
+
+	private static int stripe(AtomicIntegerArray words, int i) {
+		int h = System.identityHashCode(words) ^ (i * 0x9E3779B9);
+		return (h ^ (h >>> 16)) & (NUM_STRIPES - 1);
+	}
+}
@@ -0,0 +1,54 @@
+package info.willdspann.collections.concurrent.queue;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A Flight Recorder event, emitted when an insert or delete of a
+ * {@link ConcurrentHeapPriorityQueue} that collects statistics takes at
+ * least its slow operation threshold. The event is only committed while
+ * a recording has it enabled.
+ * <p>
+ * <u>Implementation Notes</u>: The {@code jdk.jfr} API first shipped w/
+ * Java 11, so this class is only ever referenced from
+ * {@link #emit(String, long)}, whose callers catch the
+ * {@code LinkageError} thrown on an older JVM, and stop emitting events.
+ *
+ * @author Will D. Spann
+ * @version 1.0
+ */
+@Name("info.willdspann.collections.SlowHeapOperation")
+@Label("Slow Heap Operation")
+@Category({ "Collections", "Concurrent Heap" })
+@Description("An insert or delete of a ConcurrentHeapPriorityQueue that "
+		+ "took at least its slow operation threshold")
+@StackTrace(true)
+final class SlowHeapOperationEvent extends jdk.jfr.Event {
+	@Label("Operation")
+	String operation;
+
+	@Label("Latency")
+	@Timespan(Timespan.NANOSECONDS)
+	long latency;
+
+
+	/**
+	 * Commits an event for the specified operation, if the event is
+	 * enabled.
+	 *
+	 * @param operation the operation's name.
+	 * @param latency how long the operation took, in nanoseconds.
+	 */
+	static void emit(String operation, long latency) {
+		SlowHeapOperationEvent event = new SlowHeapOperationEvent();
+		if (!event.isEnabled())
+			return;
+		event.operation = operation;
+		event.latency = latency;
+		event.commit();
+	}
+}
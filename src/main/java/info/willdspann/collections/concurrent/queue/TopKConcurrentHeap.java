@@ -0,0 +1,254 @@
+package info.willdspann.collections.concurrent.queue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Predicate;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import info.willdspann.collections.concurrent.queue.ConcurrentHeapPriorityQueue.CountingMode;
+import info.willdspann.collections.concurrent.queue.ConcurrentHeapPriorityQueue.LockPolicy;
+import info.willdspann.collections.concurrent.queue.ConcurrentHeapPriorityQueue.OverflowPolicy;
+
+/**
+ * A thread-safe collector of the {@code k} greatest items offered to it,
+ * per their natural ordering or a {@code Comparator}, as for a running
+ * leaderboard. The items are kept in a bounded
+ * {@link ConcurrentHeapPriorityQueue}, w/ the same node-level locking and
+ * bit-reversed scattering of inserts and deletes, whose root is the least
+ * of the items kept.
+ * <p>
+ * Once {@code k} items have been collected, an offer that's no greater
+ * than the current <i>threshold</i> is rejected by a single volatile read,
+ * and a comparison, w/o taking any lock or touching the heap. Since most
+ * offers to a long-running top-k collector fall below its threshold, most
+ * offers cost next to nothing. A greater item evicts the heap's root, via
+ * a conditional delete, and is then inserted into the freed position.
+ * <p>
+ * <u>Implementation Notes</u>: The threshold is the greatest item evicted
+ * so far, and so only ever rises. Every kept item is at least as great as
+ * any evicted item, so an item no greater than the threshold could never
+ * have been kept. The threshold may lag behind the heap's root, in which
+ * case a few offers that would be rejected pay for a failed conditional
+ * delete instead. When offers are sequential, the items kept are exactly
+ * the {@code k} greatest. Under concurrent offers, a delete may take the
+ * root while a lesser item is still rising from its leaf (as in
+ * {@code ConcurrentHeapPriorityQueue}), so that item may occasionally be
+ * kept in place of a slightly greater one.
+ *
+ * @author Will D. Spann
+ * @version 1.1
+ *
+ * @see ConcurrentHeapPriorityQueue
+ */
+@ThreadSafe
+public class TopKConcurrentHeap<E> {
+	private final int k;
+	private final Comparator<? super E> comp;
+	/** Bounded min-heap of the kept items. */
+	private final ConcurrentHeapPriorityQueue<E> heap;
+	/** Greatest item evicted so far, or {@code null} if none has been. */
+	private volatile E threshold;
+
+
+	/**
+	 * @param k the number of items to keep. Must be greater than 0.
+	 *
+	 * @throws IllegalArgumentException if {@code k} is less than 1.
+	 */
+	public TopKConcurrentHeap(int k) {
+		this(k, null, CountingMode.LOCKED, LockPolicy.SPIN_THEN_PARK);
+	}
+
+	/**
+	 * @param k the number of items to keep. Must be greater than 0.
+	 * @param comparator the {@code Comparator} by which the greatest items
+	 *    are kept.
+	 *
+	 * @throws IllegalArgumentException if {@code k} is less than 1.
+	 * @throws NullPointerException if {@code comparator} is {@code null}.
+	 */
+	public TopKConcurrentHeap(int k, Comparator<? super E> comparator) {
+		this(k, requireComparator(comparator), CountingMode.LOCKED,
+				LockPolicy.SPIN_THEN_PARK);
+	}
+
+	/**
+	 * @param k the number of items to keep. Must be greater than 0.
+	 * @param comparator the {@code Comparator} by which the greatest items
+	 *    are kept, or {@code null} to use their natural ordering.
+	 * @param mode how the heap's leaf positions are reserved.
+	 * @param policy how the heap's node locks are granted to waiting
+	 *    threads.
+	 *
+	 * @throws IllegalArgumentException if {@code k} is less than 1.
+	 * @throws NullPointerException if {@code mode} or {@code policy} is
+	 *    {@code null}.
+	 */
+	public TopKConcurrentHeap(int k, Comparator<? super E> comparator,
+			CountingMode mode, LockPolicy policy)
+	{
+		if (k < 1)
+			throw new IllegalArgumentException("k must be >= 1");
+
+		this.k = k;
+		this.comp = comparator;
+		this.heap = new ConcurrentHeapPriorityQueue<E>(k, comparator, mode,
+				policy, OverflowPolicy.REJECT);
+	}
+
+	private static <T> Comparator<T> requireComparator(Comparator<T> comp) {
+		if (comp == null)
+			throw new NullPointerException();
+		return comp;
+	}
+
+
+	/**
+	 * Offers the specified item, which is kept if it's among the {@code k}
+	 * greatest items offered so far.
+	 *
+	 * @param item the item to offer.
+	 * @return {@code true} if the item was kept; or {@code false} if it
+	 *    was rejected.
+	 *
+	 * @throws NullPointerException if {@code item} is {@code null}.
+	 * @throws ClassCastException if {@code item} can't be compared with the
+	 *    kept items.
+	 */
+	public boolean offer(final E item) {
+		if (item == null)
+			throw new NullPointerException();
+		E t = this.threshold;
+		if (t != null && compare(item, t) <= 0)
+			return false;    // The common case, once the heap has filled
+
+		Predicate<E> lessThanItem = new Predicate<E>() {
+			public boolean test(E least) {
+				return compare(least, item) < 0;
+			}
+		};
+		while (!this.heap.offer(item)) {
+			// Full: evict the least item, if it's less than 'item'
+			E evicted = this.heap.pollIf(lessThanItem);
+			if (evicted != null) {
+				raiseThreshold(evicted);
+			} else if (this.heap.size() >= this.k) {
+				E least = this.heap.peek();
+				if (least != null && compare(item, least) <= 0)
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Offers each of the specified items, as by {@link #offer(Object)}.
+	 *
+	 * @param items the items to offer.
+	 * @return the number of items kept.
+	 *
+	 * @throws NullPointerException if {@code items} or any of its items is
+	 *    {@code null}.
+	 * @throws ClassCastException if any of {@code items} can't be compared
+	 *    with the kept items.
+	 */
+	public int offerAll(Iterable<? extends E> items) {
+		int n = 0;
+		for (E item : items) {
+			if (offer(item))
+				n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Returns the least of the kept items, which is the item the next
+	 * greater offer would evict, if the collector is full.
+	 *
+	 * @return the least kept item, or {@code null} if none are kept.
+	 */
+	public E peekLeast() {
+		return this.heap.peek();
+	}
+
+	/**
+	 * Returns the current rejection threshold: any offer that's no greater
+	 * is rejected w/o taking a lock.
+	 *
+	 * @return the threshold; or {@code null} if no item has been evicted
+	 *    yet, so every offer is considered.
+	 */
+	public E getThreshold() {
+		return this.threshold;
+	}
+
+	/**
+	 * Returns the number of items kept, which is at most {@code k}.
+	 */
+	public int size() {
+		return this.heap.size();
+	}
+
+	public boolean isEmpty() {
+		return this.heap.isEmpty();
+	}
+
+	/**
+	 * Returns the maximum number of items kept.
+	 */
+	public int getK() {
+		return this.k;
+	}
+
+	/**
+	 * Returns a snapshot of the kept items, sorted from greatest to least.
+	 * The snapshot is taken in O(k) time, and sorted in O(k log k) time.
+	 *
+	 * @return a new, modifiable list of the kept items.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<E> toSortedList() {
+		E[] items = (E[]) this.heap.toArray();  // unchecked cast
+		Arrays.sort(items, Collections.reverseOrder(
+				new Comparator<E>() {
+					public int compare(E item1, E item2) {
+						return TopKConcurrentHeap.this.compare(item1, item2);
+					}
+				}));
+		return new ArrayList<E>(Arrays.asList(items));
+	}
+
+	public String toString() {
+		return toSortedList().toString();
+	}
+
+
+	/**
+	 * Raises the threshold to {@code evicted}, unless it's already at
+	 * least as great.
+	 */
+	private void raiseThreshold(E evicted) {
+		// Only evictions, which are far rarer than rejections, write the
+		// threshold, so they may simply synchronize.
+		E t = this.threshold;
+		if (t != null && compare(evicted, t) <= 0)
+			return;
+		synchronized (this) {
+			t = this.threshold;
+			if (t == null || compare(evicted, t) > 0)
+				this.threshold = evicted;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private int compare(E data1, E data2) {
+		if (this.comp != null)
+			return this.comp.compare(data1, data2);
+		else
+			return ((Comparable<E>) data1).compareTo(data2); // unchecked cast
+	}
+}
@@ -0,0 +1,406 @@
+package info.willdspann.collections.concurrent.queue;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import info.willdspann.collections.concurrent.queue.ConcurrentHeapPriorityQueue.CountingMode;
+
+/**
+ * A thread-safe, relaxed priority queue for a pool of workers, which gives
+ * each worker its own local {@link ConcurrentHeapPriorityQueue}. A worker
+ * inserts into, & deletes from, its own heap, so in the common case no
+ * node lock (in particular, no root lock) is shared between workers. A
+ * worker whose heap is empty steals the minimum item from the root of
+ * another worker's heap.
+ * <p>
+ * Each heap's minimum item is published after every operation on it, and
+ * an approximate summary of the global minimum item (i.e., which heap
+ * holds the smallest published minimum) is kept up to date from them. A
+ * delete reads the summary, w/o touching any other worker's heap, to
+ * decide whether its local minimum is good enough; if another heap's
+ * minimum is smaller, that item is stolen instead, so long as it's still
+ * smaller than the local minimum when the victim's root is locked.
+ * <p>
+ * Since the summary is only approximate, a delete isn't guaranteed to
+ * remove the queue's minimum item. But a delete only returns {@code null}
+ * if every heap was found to be empty, and no item is ever lost or
+ * returned twice. With a single worker, the queue is strictly ordered.
+ * <p>
+ * A thread is assigned a home worker, round-robin, the first time it uses
+ * the queue w/o naming a worker. Threads of a pool which know their own
+ * worker index may instead use {@link #offer(int, Object)} &
+ * {@link #poll(int)}.
+ *
+ * @author Will D. Spann
+ * @version 1.1
+ *
+ * @see ConcurrentHeapPriorityQueue
+ * @see ConcurrentMultiPriorityQueue
+ */
+@ThreadSafe
+public class WorkStealingPriorityQueue<E> extends AbstractQueue<E> {
+	private static final int DEFAULT_HEAP_INIT_CAP = 16;
+
+	private final ConcurrentHeapPriorityQueue<E>[] heaps;
+	/** Each heap's last published minimum item, or null if it was empty. */
+	private final AtomicReferenceArray<E> mins;
+	/** Approximate global minimum, or null if every heap appeared empty. */
+	private final AtomicReference<Hint<E>> globalMin =
+			new AtomicReference<Hint<E>>();
+	private final AtomicInteger nextWorker = new AtomicInteger();
+	private final ThreadLocal<Integer> homeWorkers;
+	private final Comparator<? super E> comp;
+
+
+	/**
+	 * Creates a queue w/ a worker per available processor, whose items are
+	 * ordered by their natural ordering.
+	 */
+	public WorkStealingPriorityQueue() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates a queue w/ the specified number of workers, whose items are
+	 * ordered by their natural ordering.
+	 *
+	 * @param numWorkers the number of workers (& so, local heaps), which
+	 *    must be greater than 0.
+	 *
+	 * @throws IllegalArgumentException if {@code numWorkers} is less than 1.
+	 */
+	public WorkStealingPriorityQueue(int numWorkers) {
+		this(numWorkers, null, CountingMode.LOCKED);
+	}
+
+	/**
+	 * Creates a queue w/ the specified number of workers, whose items are
+	 * ordered by the specified {@code Comparator}.
+	 *
+	 * @param numWorkers the number of workers (& so, local heaps), which
+	 *    must be greater than 0.
+	 * @param comparator the {@code Comparator} used to order the queue's
+	 *    items.
+	 *
+	 * @throws IllegalArgumentException if {@code numWorkers} is less than 1.
+	 * @throws NullPointerException if {@code comparator} is {@code null}.
+	 */
+	public WorkStealingPriorityQueue(int numWorkers,
+			Comparator<? super E> comparator)
+	{
+		this(numWorkers, comparator, CountingMode.LOCKED);
+		if (comparator == null)
+			throw new NullPointerException();
+	}
+
+	/**
+	 * @param numWorkers the number of workers (& so, local heaps), which
+	 *    must be greater than 0.
+	 * @param comparator the {@code Comparator} used to order the queue's
+	 *    items, or {@code null} to use their natural ordering.
+	 * @param mode how the local heaps reserve leaf positions.
+	 *
+	 * @throws IllegalArgumentException if {@code numWorkers} is less than 1.
+	 * @throws NullPointerException if {@code mode} is {@code null}.
+	 */
+	@SuppressWarnings("unchecked")
+	public WorkStealingPriorityQueue(int numWorkers,
+			Comparator<? super E> comparator, CountingMode mode)
+	{
+		if (numWorkers < 1)
+			throw new IllegalArgumentException("numWorkers must be >= 1");
+		if (mode == null)
+			throw new NullPointerException();
+
+		this.comp = comparator;
+		this.heaps = (ConcurrentHeapPriorityQueue<E>[])
+				new ConcurrentHeapPriorityQueue<?>[numWorkers];
+		for (int i = 0; i < numWorkers; i++) {
+			this.heaps[i] = (comparator != null)
+					? new ConcurrentHeapPriorityQueue<E>(
+							DEFAULT_HEAP_INIT_CAP, comparator, mode)
+					: new ConcurrentHeapPriorityQueue<E>(
+							DEFAULT_HEAP_INIT_CAP, mode);
+		}
+		this.mins = new AtomicReferenceArray<E>(numWorkers);
+		this.homeWorkers = ThreadLocal.withInitial(() -> Math.floorMod(
+				this.nextWorker.getAndIncrement(), this.heaps.length));
+	}
+
+
+	/**
+	 * Returns the number of workers, each of which has its own local heap.
+	 *
+	 * @return the number of workers.
+	 */
+	public int getNumWorkers() {
+		return this.heaps.length;
+	}
+
+	/**
+	 * Returns the index of the calling thread's home worker, whose local
+	 * heap is used by {@link #offer(Object)} & {@link #poll()}.
+	 *
+	 * @return the calling thread's worker index.
+	 */
+	public int getWorkerIndex() {
+		return this.homeWorkers.get();
+	}
+
+	/**
+	 * Inserts the specified item into the calling thread's local heap.
+	 *
+	 * @throws NullPointerException if {@code item} is {@code null}.
+	 * @throws ClassCastException if {@code item} can't be compared with the
+	 *    queue's items.
+	 */
+	public boolean offer(E item) {
+		return offer(this.homeWorkers.get(), item);
+	}
+
+	/**
+	 * Inserts the specified item into the specified worker's local heap.
+	 *
+	 * @param worker the index of the worker whose heap receives the item.
+	 * @param item the item to insert.
+	 * @return {@code true}
+	 *
+	 * @throws IllegalArgumentException if {@code worker} isn't a valid
+	 *    worker index.
+	 * @throws NullPointerException if {@code item} is {@code null}.
+	 * @throws ClassCastException if {@code item} can't be compared with the
+	 *    queue's items.
+	 */
+	public boolean offer(int worker, E item) {
+		checkWorker(worker);
+		boolean added = this.heaps[worker].offer(item);
+		// Only a new local minimum changes what's published, so the common
+		// case doesn't even lock the local root again.
+		E min = this.mins.get(worker);
+		if (added && (min == null || compare(item, min) < 0))
+			publish(worker);
+		return added;
+	}
+
+	/**
+	 * Removes and returns one of this queue's smallest items, from the
+	 * calling thread's local heap if its minimum is good enough, or else
+	 * stolen from another worker's heap.
+	 *
+	 * @return one of this queue's smallest items; or {@code null} if every
+	 *    heap was found to be empty.
+	 *
+	 * @see #poll(int)
+	 */
+	public E poll() {
+		return poll(this.homeWorkers.get());
+	}
+
+	/**
+	 * Removes and returns one of this queue's smallest items, on behalf of
+	 * the specified worker. If the global minimum summary shows a smaller
+	 * item than the worker's local minimum, that item is stolen from its
+	 * heap's root, provided it's still smaller once the root is locked.
+	 * Otherwise, the local minimum is removed. If the worker's heap is
+	 * empty, the other workers' heaps are stolen from in turn.
+	 *
+	 * @param worker the index of the worker polling.
+	 * @return one of this queue's smallest items; or {@code null} if every
+	 *    heap was found to be empty.
+	 *
+	 * @throws IllegalArgumentException if {@code worker} isn't a valid
+	 *    worker index.
+	 */
+	public E poll(int worker) {
+		checkWorker(worker);
+		E item;
+		// Note: Both of these may be stale, which only costs accuracy.
+		final E localMin = this.mins.get(worker);
+		Hint<E> hint = this.globalMin.get();
+		if (hint != null && hint.worker != worker
+				&& (localMin == null || compare(hint.item, localMin) < 0))
+		{
+			item = this.heaps[hint.worker].pollIf(
+					x -> localMin == null || compare(x, localMin) < 0);
+			publish(hint.worker);
+			if (item != null)
+				return item;
+		}
+
+		if ((item = this.heaps[worker].poll()) != null) {
+			publish(worker);
+			return item;
+		}
+		publish(worker);
+		return steal(worker);
+	}
+
+	/**
+	 * Returns the smallest of the local heaps' minimum items. Since the
+	 * heaps are examined one at a time, the item returned may not be the
+	 * minimum item of the queue as a whole, if it's concurrently modified.
+	 *
+	 * @return the smallest item found; or {@code null} if every heap was
+	 *    found to be empty.
+	 */
+	public E peek() {
+		E min = null, item;
+		for (ConcurrentHeapPriorityQueue<E> heap : this.heaps) {
+			item = heap.peek();
+			if (item != null && (min == null || compare(item, min) < 0))
+				min = item;
+		}
+		return min;
+	}
+
+	public int size() {
+		long size = 0L;
+		for (ConcurrentHeapPriorityQueue<E> heap : this.heaps)
+			size += heap.size();
+		return (int) Math.min(size, Integer.MAX_VALUE);
+	}
+
+	public boolean isEmpty() {
+		for (ConcurrentHeapPriorityQueue<E> heap : this.heaps) {
+			if (!heap.isEmpty())
+				return false;
+		}
+		return true;
+	}
+
+	public boolean contains(Object o) {
+		for (ConcurrentHeapPriorityQueue<E> heap : this.heaps) {
+			if (heap.contains(o))
+				return true;
+		}
+		return false;
+	}
+
+	public boolean remove(Object o) {
+		for (int i = 0; i < this.heaps.length; i++) {
+			if (this.heaps[i].remove(o)) {
+				publish(i);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public void clear() {
+		for (int i = 0; i < this.heaps.length; i++) {
+			this.heaps[i].clear();
+			publish(i);
+		}
+	}
+
+	/**
+	 * Returns an {@code Iterator} over a snapshot of each local heap's
+	 * items, in no particular order. The {@code Iterator} doesn't support
+	 * {@code remove()}.
+	 *
+	 * @return an {@code Iterator} over the elements in this queue.
+	 */
+	public Iterator<E> iterator() {
+		List<E> buf = new ArrayList<E>();
+		for (ConcurrentHeapPriorityQueue<E> heap : this.heaps) {
+			for (E item : heap)
+				buf.add(item);
+		}
+		return Collections.unmodifiableList(buf).iterator();
+	}
+
+
+	/**
+	 * Polls every other worker's heap in turn, starting after
+	 * {@code worker}, and returns the first item found, or {@code null} if
+	 * all of them are empty.
+	 */
+	private E steal(int worker) {
+		E item;
+		int n = this.heaps.length, victim;
+		for (int k = 1; k < n; k++) {
+			victim = (worker + k) % n;
+			if ((item = this.heaps[victim].poll()) != null) {
+				publish(victim);
+				return item;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Publishes the current minimum item of the specified worker's heap,
+	 * and updates the global minimum summary from it: the summary is
+	 * pointed at this heap if its minimum is smaller, or recomputed if it
+	 * already pointed at this heap, whose minimum may have grown.
+	 */
+	private void publish(int worker) {
+		E min = this.heaps[worker].peek();
+		this.mins.set(worker, min);
+		Hint<E> hint;
+		while (true) {
+			hint = this.globalMin.get();
+			if (hint != null && hint.worker == worker) {
+				if (hint.item != min)
+					recomputeGlobalMin();
+				return;
+			}
+			if (min == null || (hint != null && compare(hint.item, min) <= 0))
+				return;
+			if (this.globalMin.compareAndSet(hint, new Hint<E>(worker, min)))
+				return;
+		}
+	}
+
+	/**
+	 * Points the global minimum summary at the heap w/ the smallest
+	 * published minimum, from a scan of the published minimums (which
+	 * locks no heap).
+	 */
+	private void recomputeGlobalMin() {
+		int best = -1;
+		E bestMin = null, min;
+		for (int i = 0; i < this.heaps.length; i++) {
+			min = this.mins.get(i);
+			if (min != null && (bestMin == null || compare(min, bestMin) < 0)) {
+				best = i;
+				bestMin = min;
+			}
+		}
+		this.globalMin.set((best >= 0) ? new Hint<E>(best, bestMin) : null);
+	}
+
+	private void checkWorker(int worker) {
+		if (worker < 0 || worker >= this.heaps.length) {
+			throw new IllegalArgumentException("Invalid worker index: "
+					+ worker);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private int compare(E item1, E item2) {
+		if (this.comp != null)
+			return this.comp.compare(item1, item2);
+		else
+			return ((Comparable<E>) item1).compareTo(item2); // unchecked cast
+	}
+
+
+	/**
+	 * An immutable entry of the global minimum summary: a heap, & the
+	 * minimum item it had when published.
+	 */
+	private static final class Hint<E> {
+		final int worker;
+		final E item;
+
+		Hint(int worker, E item) {
+			this.worker = worker;
+			this.item = item;
+		}
+	}
+}
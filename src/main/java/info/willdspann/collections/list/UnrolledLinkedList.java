@@ -1,9 +1,15 @@
 /*
- * Last Modified: 7/26/08
- * Prev. Modified: 7/17/08
+ * Last Modified: 10/17/26
+ * Prev. Modified: 7/26/08
  * J2SE Version: 5.0
  * 
- * Version Notes: Updated the Node member class, to no longer be
+ * Version Notes:
+ *     v1.3.3: Fixed the UnrolledLinkedList() constructor, which created
+ *   the head Node before setting 'maxItems', leaving it w/ an empty items
+ *   array. Fixed two bugs in insert(long,E): appending to an empty list
+ *   looked up the item before index 0, & splitting a full last Node
+ *   dereferenced its 'null' next Node.
+ *     v1.3.2: Updated the Node member class, to no longer be
  *   parameterized, because, as a member class, Node inherently has access
  *   to this class' type parameter E. Updated all other member classes
  *   and methods to use the new unparameterized Node class.
@@ -119,7 +125,7 @@ import info.willdspann.collections.*;  // BigCollection, BigList
  * should be used only to detect bugs.</em> 
  *
  * @author Will D. Spann [willdspann@gmail.com]
- * @version 1.3.2
+ * @version 1.3.3
  */
 public final class UnrolledLinkedList<E> implements BigList<E> {
 	private static final int DEFAULT_MAX_ITEMS = 64;
@@ -134,12 +140,13 @@ public final class UnrolledLinkedList<E> implements BigList<E> {
 
 	/**
 	 * <p>
-	 * Version: 1.2
+	 * Version: 1.2.1
 	 */
 	public UnrolledLinkedList() {
-		this.head = new Node(null, null);
 		this.maxItems = DEFAULT_MAX_ITEMS;
 		this.halfFull = this.maxItems >>> 1;  // this.maxItems / 2
+		// Note: The head Node's array is sized by 'maxItems'
+		this.head = new Node(null, null);
     }
 	
 	
@@ -657,7 +664,7 @@ public final class UnrolledLinkedList<E> implements BigList<E> {
 	
 	/**
 	 * <p>
-	 * Version: 1.3
+	 * Version: 1.3.1
 	 *   
 	 * @throws ConcurrentModificationException if this list was concurrently
 	 *    modified by another thread.
@@ -675,6 +682,11 @@ public final class UnrolledLinkedList<E> implements BigList<E> {
 			node = getNodeAtItemIndex(index, arrIndexHolder);
 			arrIndex = arrIndexHolder[0];
 		}
+		// Otherwise, if appending to an empty list
+		else if (index == 0L) {
+			node = this.head;
+			arrIndex = 0;
+		}
 		// Otherwise, doing an append
 		else {
 			node = getNodeAtItemIndex(index - 1, arrIndexHolder);
@@ -698,7 +710,8 @@ public final class UnrolledLinkedList<E> implements BigList<E> {
 			// Insert new Node after 'node':
 			Node next = new Node(node, node.next);
 			node.next = next;
-			next.next.prev = next;
+			if (next.next != null)
+				next.next.prev = next;
 			
 			// Move items in 2nd 1/2 of 'node' to 'next'
 			moveItemsToNewNode(node, next, this.halfFull);			
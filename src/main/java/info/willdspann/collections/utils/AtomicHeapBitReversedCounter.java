@@ -0,0 +1,630 @@
+package info.willdspann.collections.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A lock-free, thread-safe heap bit-reversed counter. This class provides
+ * the same counting sequence as {@link HeapBitReversedCounter}, but every
+ * update is a single compare-and-set on one packed {@code long}, so it may
+ * be shared by many threads without any external locking.
+ * <p>
+ * A heap may also reserve its leaf positions w/ the counter's
+ * {@code reserve*()} methods, each of which must be followed by a call
+ * to {@link #completeIncrement()} (or {@link #completeDecrement()}), once
+ * the reserved leaf has been filled (or emptied). No reservation is
+ * granted while one in the opposite direction is still pending, so a
+ * decrement can never reserve a leaf whose increment hasn't yet filled
+ * it, nor an increment a leaf whose decrement hasn't yet emptied it.
+ * Reservations in the same direction don't wait for each other, unless
+ * one in the opposite direction is waiting for them to drain, in which
+ * case it goes first, so that neither direction can starve the other.
+ * <p>
+ * <u>Implementation Notes</u>: The packed state holds the non-bit-reversed
+ * count in its upper 32 bits, and the reservation gate in its lower 32
+ * bits: the number of pending reservations, the direction they're in,
+ * and whether one in the other direction is waiting for them to drain.
+ * The bit-reversed count is computed from the non-bit-reversed one on a
+ * read.
+ *
+ * @author Will D. Spann
+ * @version 1.3
+ *
+ * @see HeapBitReversedCounter
+ */
+@ThreadSafe
+public class AtomicHeapBitReversedCounter {
+
+	/** Maximum counter value, equal to {@code Integer.MAX_VALUE}, which is
+	 *  {@code 2^31 - 1} or {@value MAX_VALUE}. */
+	public static final int MAX_VALUE = Integer.MAX_VALUE;  // 2^31 - 1
+
+	/** Gate bit set while the pending reservations are decrements. */
+	private static final int DECREMENTING = 1 << 31;
+	/** Gate bit set while a reservation in the opposite direction to the
+	 *  pending ones waits for them to drain. */
+	private static final int DRAINING = 1 << 30;
+	/** Gate bits holding the number of pending reservations. */
+	private static final int PENDING_MASK = DRAINING - 1;
+	/** Number of times a blocked reservation busy-waits, before it yields
+	 *  its processor between attempts. */
+	private static final int MAX_SPINS = 64;
+
+	/** Packed non-bit-reversed count (upper 32 bits) & reservation gate
+	 *  (lower 32 bits). */
+	private final AtomicLong state;
+
+
+	/**
+	 * Creates a new counter with an initial value of 0.
+	 */
+	protected AtomicHeapBitReversedCounter() {
+		this.state = new AtomicLong(pack(0, 0L));
+	}
+
+	/**
+	 * Creates a new counter with an initial value of {@code start}, which
+	 * is the starting bit-reversed or non-bit-reversed count, depending on
+	 * the value of the {@code isReversed} boolean parameter.
+	 *
+	 * @param start the counter's starting count, which is the bit-reversed
+	 *    or non-bit-reversed count, depending on the value of
+	 *    {@code isReversed}.
+	 * @param isReversed whether the specified initial value {@code start}
+	 *    is the bit-reversed or non-bit-reversed starting count.
+	 */
+	protected AtomicHeapBitReversedCounter(int start, boolean isReversed) {
+		/* 'start' should be >= 0 && <= MAX_VALUE
+		 * (Note: if 'start' > MAX_VALUE it will be negative.) */
+		assert start >= 0;
+
+		this.state = new AtomicLong(pack(isReversed ? toNonreversed(start)
+				: start, 0L));
+	}
+
+
+	/**
+	 * Returns a new counter starting at 0.
+	 *
+	 * @return a new counter starting at 0.
+	 */
+	public static AtomicHeapBitReversedCounter newInstance() {
+		return new AtomicHeapBitReversedCounter();
+	}
+
+	/**
+	 * Returns a new counter starting at the specified bit-reversed count.
+	 *
+	 * @param count the bit-reversed starting count, which must be greater
+	 *    than or equal to 0.
+	 * @return a new counter starting at the specified bit-reversed count;
+	 *    or {@code null} if {@code count < 0}.
+	 */
+	public static AtomicHeapBitReversedCounter newAtReversedCount(int count) {
+		// Return 'null' on invalid 'count'
+		if (count < 0)
+			return null;
+
+		return new AtomicHeapBitReversedCounter(count, true);
+	}
+
+	/**
+	 * Returns a new counter starting at the specified non-bit-reversed
+	 * count.
+	 *
+	 * @param nonreversedCount the non-bit-reversed starting count, which
+	 *    must be greater than or equal to 0.
+	 * @return a new counter starting at the specified non-bit-reversed
+	 *    count; or {@code null} if {@code nonreversedCount < 0}.
+	 */
+	public static AtomicHeapBitReversedCounter newAtNonreversedCount(
+			int nonreversedCount)
+	{
+		// Return 'null' on invalid 'nonreversedCount'
+		if (nonreversedCount < 0)
+			return null;
+
+		return new AtomicHeapBitReversedCounter(nonreversedCount, false);
+	}
+
+	/**
+	 * Atomically increments the counter, then returns its pre-increment
+	 * value.
+	 *
+	 * @return the count, prior to incrementing the counter.
+	 *
+	 * @throws IllegalStateException if incrementing past the maximum value
+	 *    {@code MAX_VALUE} is attempted.
+	 */
+	public int getAndIncrement() {
+		return reversedOf(incrementState());
+	}
+
+	/**
+	 * Atomically increments the counter, only if its non-bit-reversed count
+	 * is less than {@code limit}, then returns its pre-increment value.
+	 * This allows a bounded heap to reserve its next leaf position and
+	 * check its bound in a single step.
+	 *
+	 * @param limit the non-bit-reversed count at or above which the counter
+	 *    isn't incremented, which must be greater than or equal to 0.
+	 * @return the count, prior to incrementing the counter; or -1 if the
+	 *    counter had reached {@code limit}, in which case it remains
+	 *    unchanged.
+	 */
+	public int tryGetAndIncrement(int limit) {
+		long prev;
+		int nonrev;
+		do {
+			prev = this.state.get();
+			nonrev = nonreversedOf(prev);
+			if (nonrev >= limit || nonrev == MAX_VALUE)
+				return -1;
+		} while (!this.state.compareAndSet(prev, pack(nonrev + 1, prev)));
+		return reversedOf(prev);
+	}
+
+	/**
+	 * Atomically increments the counter, then returns the new count.
+	 *
+	 * @return the new count, after incrementing the counter.
+	 *
+	 * @throws IllegalStateException if incrementing past the maximum value
+	 *    {@code MAX_VALUE} is attempted.
+	 */
+	public int incrementAndGet() {
+		return toReversed(nonreversedOf(incrementState()) + 1);
+	}
+
+	/**
+	 * Atomically decrements the counter, then returns its pre-decrement
+	 * value.
+	 *
+	 * @return the count, prior to decrementing the counter.
+	 *
+	 * @throws IllegalStateException if decrementing below 0 is attempted.
+	 */
+	public int getAndDecrement() {
+		long prev = decrementState();
+		if (prev < 0L)
+			throw new IllegalStateException("Attempt to decrement below 0.");
+		return reversedOf(prev);
+	}
+
+	/**
+	 * Atomically decrements the counter, then returns the new count.
+	 *
+	 * @return the new count, after decrementing the counter.
+	 *
+	 * @throws IllegalStateException if decrementing below 0 is attempted.
+	 */
+	public int decrementAndGet() {
+		int ret = tryDecrementAndGet();
+		if (ret < 0)
+			throw new IllegalStateException("Attempt to decrement below 0.");
+		return ret;
+	}
+
+	/**
+	 * Atomically decrements the counter if it is greater than 0, then
+	 * returns the new count. Unlike {@link #decrementAndGet()}, this method
+	 * doesn't throw an exception when the counter is 0, which makes it
+	 * suitable for callers that expect to race with a concurrent
+	 * decrement of the last count (e.g., a concurrent queue's delete).
+	 *
+	 * @return the new count, after decrementing the counter; or -1 if the
+	 *    counter was equal to 0, in which case it remains unchanged.
+	 */
+	public int tryDecrementAndGet() {
+		long prev = decrementState();
+		if (prev < 0L)
+			return -1;
+		return toReversed(nonreversedOf(prev) - 1);
+	}
+
+	/**
+	 * Atomically adds {@code delta} to the counter's non-bit-reversed
+	 * count, then returns the non-bit-reversed count prior to the addition.
+	 * The bit-reversed counts {@code toReversed(prev)} through
+	 * {@code toReversed(prev + delta - 1)} are thereby reserved in a single
+	 * step, where {@code prev} is the returned value.
+	 *
+	 * @param delta the non-negative number of counts to add.
+	 * @return the non-bit-reversed count, prior to the addition.
+	 *
+	 * @throws IllegalArgumentException if {@code delta < 0}.
+	 * @throws IllegalStateException if incrementing past the maximum value
+	 *    {@code MAX_VALUE} is attempted.
+	 */
+	public int getAndAddNonreversed(int delta) {
+		if (delta < 0) {
+			throw new IllegalArgumentException("Value of 'delta' must be "
+					+ ">= 0.");
+		}
+
+		long prev;
+		int nonrev;
+		do {
+			prev = this.state.get();
+			nonrev = nonreversedOf(prev);
+			if (nonrev > MAX_VALUE - delta) {
+				throw new IllegalStateException("Attempt to increment past "
+						+ "maximum counter value MAX_VALUE: 2^"
+						+ (Integer.SIZE - 1) + " - 1 or " + MAX_VALUE);
+			}
+		} while (!this.state.compareAndSet(prev, pack(nonrev + delta, prev)));
+		return nonrev;
+	}
+
+	/**
+	 * Atomically subtracts {@code delta} from the counter's
+	 * non-bit-reversed count, or only as much as keeps it from going below
+	 * 0, then returns the non-bit-reversed count prior to the subtraction.
+	 * The bit-reversed counts {@code toReversed(prev - 1)} down through
+	 * {@code toReversed(prev - min(prev, delta))} are thereby released in a
+	 * single step, where {@code prev} is the returned value.
+	 *
+	 * @param delta the non-negative maximum number of counts to subtract.
+	 * @return the non-bit-reversed count, prior to the subtraction.
+	 *
+	 * @throws IllegalArgumentException if {@code delta < 0}.
+	 */
+	public int getAndSubtractAtMostNonreversed(int delta) {
+		if (delta < 0) {
+			throw new IllegalArgumentException("Value of 'delta' must be "
+					+ ">= 0.");
+		}
+
+		long prev;
+		int nonrev;
+		do {
+			prev = this.state.get();
+			nonrev = nonreversedOf(prev);
+			if (nonrev == 0)
+				return 0;
+		} while (!this.state.compareAndSet(prev,
+				pack(nonrev - Math.min(nonrev, delta), prev)));
+		return nonrev;
+	}
+
+	/**
+	 * Reserves the counter's next count for an increment, only if its
+	 * non-bit-reversed count is less than {@code limit}, then returns its
+	 * pre-increment value. If decrements are pending, this method waits
+	 * until they've all completed.
+	 * <p>
+	 * Unless -1 is returned, the reservation must be completed via
+	 * {@link #completeIncrement()}.
+	 *
+	 * @param limit the non-bit-reversed count at or above which the counter
+	 *    isn't incremented.
+	 * @return the count, prior to incrementing the counter; or -1 if the
+	 *    counter had reached {@code limit}, in which case nothing is
+	 *    reserved.
+	 */
+	public int tryReserveIncrement(int limit) {
+		long prev = reserve(false, 1, limit);
+		return (prev < 0L) ? -1 : reversedOf(prev);
+	}
+
+	/**
+	 * Reserves the counter's next {@code delta} counts for an increment,
+	 * as {@link #getAndAddNonreversed(int)} does, then returns the
+	 * non-bit-reversed count prior to the addition. If decrements are
+	 * pending, this method waits until they've all completed.
+	 * <p>
+	 * The reservation must be completed via {@link #completeIncrement()}.
+	 *
+	 * @param delta the positive number of counts to add.
+	 * @return the non-bit-reversed count, prior to the addition.
+	 *
+	 * @throws IllegalArgumentException if {@code delta < 1}.
+	 * @throws IllegalStateException if incrementing past the maximum value
+	 *    {@code MAX_VALUE} is attempted.
+	 */
+	public int reserveAddNonreversed(int delta) {
+		if (delta < 1) {
+			throw new IllegalArgumentException("Value of 'delta' must be "
+					+ ">= 1.");
+		}
+
+		long prev = reserve(false, delta, MAX_VALUE);
+		if (prev < 0L) {
+			throw new IllegalStateException("Attempt to increment past "
+					+ "maximum counter value MAX_VALUE: 2^"
+					+ (Integer.SIZE - 1) + " - 1 or " + MAX_VALUE);
+		}
+		return nonreversedOf(prev);
+	}
+
+	/**
+	 * Reserves the counter's last count for a decrement, if it is greater
+	 * than 0, then returns the new count. If increments are pending, this
+	 * method waits until they've all completed.
+	 * <p>
+	 * Unless -1 is returned, the reservation must be completed via
+	 * {@link #completeDecrement()}.
+	 *
+	 * @return the new count, after decrementing the counter; or -1 if the
+	 *    counter was equal to 0, in which case nothing is reserved.
+	 */
+	public int tryReserveDecrement() {
+		long prev = reserve(true, 1, 0);
+		return (prev < 0L) ? -1 : toReversed(nonreversedOf(prev) - 1);
+	}
+
+	/**
+	 * Reserves the counter's last {@code delta} counts, or as many as it
+	 * has, for a decrement, as {@link #getAndSubtractAtMostNonreversed(int)}
+	 * does, then returns the non-bit-reversed count prior to the
+	 * subtraction. If increments are pending, this method waits until
+	 * they've all completed.
+	 * <p>
+	 * Unless nothing is reserved (i.e., {@code min(prev, delta)} is 0,
+	 * where {@code prev} is the returned value), the reservation must be
+	 * completed via {@link #completeDecrement()}.
+	 *
+	 * @param delta the non-negative maximum number of counts to subtract.
+	 * @return the non-bit-reversed count, prior to the subtraction; or 0 if
+	 *    nothing was reserved.
+	 *
+	 * @throws IllegalArgumentException if {@code delta < 0}.
+	 */
+	public int reserveSubtractAtMostNonreversed(int delta) {
+		if (delta < 0) {
+			throw new IllegalArgumentException("Value of 'delta' must be "
+					+ ">= 0.");
+		}
+
+		long prev = reserve(true, delta, 0);
+		return (prev < 0L) ? 0 : nonreversedOf(prev);
+	}
+
+	/**
+	 * Completes a reservation made by {@link #tryReserveIncrement(int)} or
+	 * {@link #reserveAddNonreversed(int)}, once its counts' leaves have all
+	 * been filled.
+	 *
+	 * @throws IllegalStateException if no increment is pending.
+	 */
+	public void completeIncrement() {
+		complete(false);
+	}
+
+	/**
+	 * Completes a reservation made by {@link #tryReserveDecrement()} or
+	 * {@link #reserveSubtractAtMostNonreversed(int)}, once its counts'
+	 * leaves have all been emptied.
+	 *
+	 * @throws IllegalStateException if no decrement is pending.
+	 */
+	public void completeDecrement() {
+		complete(true);
+	}
+
+	/**
+	 * Atomically sets the counter to the specified bit-reversed value.
+	 *
+	 * @param count the bit-reversed value to set the counter to, which must
+	 *    be greater than or equal to 0.
+	 *
+	 * @throws IllegalArgumentException if {@code count < 0}.
+	 */
+	public void set(int count) {
+		if (count < 0) {
+			throw new IllegalArgumentException("Value of 'count' must be "
+					+ ">= 0.");
+		}
+
+		this.state.set(pack(toNonreversed(count), 0L));
+	}
+
+	/**
+	 * Atomically sets the counter to the specified non-bit-reversed value.
+	 *
+	 * @param nonreversedCount the non-bit-reversed value to set the counter
+	 *    to, which must be greater than or equal to 0.
+	 *
+	 * @throws IllegalArgumentException if {@code nonreversedCount < 0}.
+	 */
+	public void setNonreversed(int nonreversedCount) {
+		if (nonreversedCount < 0) {
+			throw new IllegalArgumentException("Value of 'nonreversedCount'"
+					+ " must be >= 0");
+		}
+
+		this.state.set(pack(nonreversedCount, 0L));
+	}
+
+	/**
+	 * Atomically resets this counter to its initial value of 0.
+	 */
+	public void reset() {
+		this.state.set(pack(0, 0L));
+	}
+
+	/**
+	 * Returns the counter's current value, which is a heap bit-reversed
+	 * count.
+	 *
+	 * @return the counter's current value, which is a heap bit-reversed
+	 *    count.
+	 */
+	public int get() {
+		return reversedOf(this.state.get());
+	}
+
+	/**
+	 * Returns the counter's current non-bit-reversed value.
+	 *
+	 * @return the counter's current non-bit-reversed value.
+	 */
+	public int getNonreversedCount() {
+		return nonreversedOf(this.state.get());
+	}
+
+
+	/**
+	 * Atomically increments the packed counter state.
+	 *
+	 * @return the packed state, prior to incrementing the counter.
+	 *
+	 * @throws IllegalStateException if incrementing past the maximum value
+	 *    {@code MAX_VALUE} is attempted.
+	 */
+	private long incrementState() {
+		long prev;
+		int nonrev;
+		do {
+			prev = this.state.get();
+			nonrev = nonreversedOf(prev);
+			// Disallow incrementing past the max. value MAX_VALUE:
+			if (nonrev == MAX_VALUE) {
+				throw new IllegalStateException("Attempt to increment past "
+						+ "maximum counter value MAX_VALUE: 2^"
+						+ (Integer.SIZE - 1) + " - 1 or " + MAX_VALUE);
+			}
+		} while (!this.state.compareAndSet(prev, pack(nonrev + 1, prev)));
+		return prev;
+	}
+
+	/**
+	 * Atomically decrements the packed counter state, unless the counter
+	 * is equal to 0.
+	 *
+	 * @return the packed state, prior to decrementing the counter; or -1 if
+	 *    the counter was equal to 0 (and so was left unchanged).
+	 */
+	private long decrementState() {
+		long prev;
+		int nonrev;
+		do {
+			prev = this.state.get();
+			nonrev = nonreversedOf(prev);
+			if (nonrev == 0)
+				return -1L;
+		} while (!this.state.compareAndSet(prev, pack(nonrev - 1, prev)));
+		return prev;
+	}
+
+	/**
+	 * Reserves {@code delta} counts (or, for a decrement, as many as the
+	 * counter has, up to {@code delta}), once the reservation gate admits
+	 * the direction, and counts the reservation as pending.
+	 *
+	 * @param decrement whether the counts are reserved for a decrement.
+	 * @param delta the number of counts to reserve, or for a decrement,
+	 *    the maximum number.
+	 * @param limit for an increment, the non-bit-reversed count that the
+	 *    counter mustn't exceed.
+	 * @return the packed state, prior to the reservation; or -1 if nothing
+	 *    was reserved, due to {@code limit}, or to there being no counts
+	 *    to decrement.
+	 */
+	private long reserve(boolean decrement, int delta, int limit) {
+		int dir = decrement ? DECREMENTING : 0;
+		for (int spins = 0; ; spins++) {
+			long prev = this.state.get();
+			int nonrev = nonreversedOf(prev);
+			int k = decrement ? Math.min(nonrev, delta) : delta;
+			if (decrement ? k == 0 : nonrev > limit - delta)
+				return -1L;
+
+			int gate = (int) prev;
+			int pending = gate & PENDING_MASK;
+			boolean sameDir = (gate & DECREMENTING) == dir;
+			if (pending > 0 && !sameDir) {
+				// Wait for the pending reservations, & ask that no more be
+				// granted meanwhile
+				if ((gate & DRAINING) == 0)
+					this.state.compareAndSet(prev, prev | DRAINING);
+			} else if ((gate & DRAINING) == 0 || !sameDir) {
+				// Admitted: Add to the pending reservations in our direction
+				// (clearing the drain request, if it was ours)
+				int next = dir | (((pending > 0) ? pending : 0) + 1);
+				if (this.state.compareAndSet(prev, pack(
+						decrement ? nonrev - k : nonrev + k, next)))
+				{
+					return prev;
+				}
+				continue;
+			}
+			// Our direction is draining (or waiting to drain)
+			if (spins < MAX_SPINS)
+				Thread.onSpinWait();
+			else
+				Thread.yield();
+		}
+	}
+
+	/**
+	 * Completes one pending reservation in the specified direction.
+	 */
+	private void complete(boolean decrement) {
+		int dir = decrement ? DECREMENTING : 0;
+		long prev;
+		do {
+			prev = this.state.get();
+			int gate = (int) prev;
+			if ((gate & PENDING_MASK) == 0 || (gate & DECREMENTING) != dir) {
+				throw new IllegalStateException("No pending "
+						+ (decrement ? "decrement" : "increment")
+						+ " to complete.");
+			}
+		} while (!this.state.compareAndSet(prev, prev - 1L));
+	}
+
+	/**
+	 * Returns the packed counter state for the specified non-bit-reversed
+	 * count, and the reservation gate held in the lower 32 bits of
+	 * {@code gate}.
+	 *
+	 * @param nonrevCount a non-bit-reversed count, which must be greater
+	 *    than or equal to 0.
+	 * @return the packed counter state for {@code nonrevCount}.
+	 */
+	private static long pack(int nonrevCount, long gate) {
+		return ((long) nonrevCount << Integer.SIZE) | (gate & 0xFFFFFFFFL);
+	}
+
+	private static int nonreversedOf(long state) {
+		return (int) (state >>> Integer.SIZE);
+	}
+
+	private static int reversedOf(long state) {
+		return toReversed(nonreversedOf(state));
+	}
+
+	/**
+	 * Returns the heap bit-reversed count for the specified
+	 * non-bit-reversed count.
+	 *
+	 * @param nonrevCount a non-bit-reversed count, which must be greater
+	 *    than or equal to 0.
+	 * @return the heap bit-reversed count for {@code nonrevCount}.
+	 */
+	public static int toReversed(int nonrevCount) {
+		// Current level in the heap, which is also the row's bit-width
+		int bitWidth = Integer.SIZE - 1 - Integer.numberOfLeadingZeros(
+				nonrevCount + 1);
+		if (bitWidth < 1)
+			return nonrevCount;
+		int rowStart = (1 << bitWidth) - 1;
+		int rowCount = Integer.reverse(nonrevCount - rowStart)
+				>>> (Integer.SIZE - bitWidth);
+		return rowStart + rowCount;
+	}
+
+	/**
+	 * Returns the non-bit-reversed count for the specified heap
+	 * bit-reversed count. (Bit-reversal within a row is its own inverse.)
+	 *
+	 * @param count a heap bit-reversed count, which must be greater than
+	 *    or equal to 0.
+	 * @return the non-bit-reversed count for {@code count}.
+	 */
+	public static int toNonreversed(int count) {
+		return toReversed(count);
+	}
+}
@@ -10,8 +10,8 @@ import info.willdspann.utilities.BitReversalUtil;
  * the root node.
  *
  * @author Will D. Spann
- * @see info.willdspann.collections.concurrent.queue.ConcurrentBigPriorityQueue
- *    ConcurrentBigPriorityQueue
+ * @see info.willdspann.collections.concurrent.queue.BigConcurrentHeapPriorityQueue
+ *    BigConcurrentHeapPriorityQueue
  * @version 2.0
  */
 public class HeapBitReversedLongCounter {
@@ -0,0 +1,376 @@
+package info.willdspann.collections.utils;
+
+/**
+ * A heap digit-reversed counter, which generalizes
+ * {@link HeapBitReversedCounter} to array-stored d-ary heaps, whose arity
+ * {@code d} is a power of 2. Within each row of the heap, the count is
+ * written in base {@code d}, and its digits are reversed, so that the
+ * lowest digit picks the root's subtree. So, as with a heap bit-reversed
+ * counter, if such a heap's next insert/delete leaf node position is
+ * indicated by one of these counters, consecutive inserts/deletes will take
+ * place on independent paths to/from the root node. (A counter of arity 2
+ * counts exactly as a {@code HeapBitReversedCounter} does.)
+ * <p>
+ * In a d-ary heap stored in an array, the children of the node at position
+ * {@code i} are at positions {@code d*i + 1} through {@code d*i + d}, and
+ * row {@code r} starts at position {@code (d^r - 1) / (d - 1)}. The
+ * counter's maximum value is the number of positions in the rows that
+ * fit entirely within {@code Integer.MAX_VALUE} positions.
+ *
+ * @author Will D. Spann
+ * @version 1.0
+ *
+ * @see HeapBitReversedCounter
+ */
+public class HeapDigitReversedCounter {
+
+	/** Largest supported arity. */
+	public static final int MAX_ARITY = 16;
+
+	protected final int arity;
+	/** Number of bits per base-{@code arity} digit. */
+	protected final int digitBits;
+	/** Maximum (non-reversed) counter value. */
+	protected final int maxValue;
+
+	protected int count, nonrevCount;
+
+	/** Reversed count within the current row of the heap. */
+	protected int rowCount;
+
+	/** Non-reversed count within the current row of the heap. */
+	protected int nonrevRowCount;
+
+	/** Size of, and position of the first node in, the current row. */
+	protected int rowSz, rowStart;
+
+	/** Current level in the heap (where 0 is the root level). This is also
+	 *  the number of base-{@code arity} digits reversed within the row. */
+	protected int level;
+
+
+	/**
+	 * Creates a new counter with an initial value of 0.
+	 *
+	 * @param arity the heap's arity, which must be a power of 2 from 2 to
+	 *    {@code MAX_ARITY}.
+	 */
+	protected HeapDigitReversedCounter(int arity) {
+		checkArity(arity);
+
+		this.arity = arity;
+		this.digitBits = Integer.numberOfTrailingZeros(arity);
+		this.maxValue = maxValue(arity);
+		reset();
+	}
+
+
+	/**
+	 * Returns a new counter, for a heap of the specified arity, starting
+	 * at 0.
+	 *
+	 * @param arity the heap's arity, which must be a power of 2 from 2 to
+	 *    {@code MAX_ARITY}.
+	 * @return a new counter starting at 0.
+	 *
+	 * @throws IllegalArgumentException if {@code arity} isn't a power of 2
+	 *    from 2 to {@code MAX_ARITY}.
+	 */
+	public static HeapDigitReversedCounter newInstance(int arity) {
+		return new HeapDigitReversedCounter(arity);
+	}
+
+	/**
+	 * Returns a new counter, for a heap of the specified arity, starting at
+	 * the specified non-digit-reversed count.
+	 *
+	 * @param arity the heap's arity, which must be a power of 2 from 2 to
+	 *    {@code MAX_ARITY}.
+	 * @param nonreversedCount the non-digit-reversed starting count.
+	 * @return a new counter starting at the specified count.
+	 *
+	 * @throws IllegalArgumentException if {@code arity} isn't a power of 2
+	 *    from 2 to {@code MAX_ARITY}, or if {@code nonreversedCount} is
+	 *    negative or greater than the counter's maximum value.
+	 */
+	public static HeapDigitReversedCounter newAtNonreversedCount(int arity,
+			int nonreversedCount)
+	{
+		HeapDigitReversedCounter counter = new HeapDigitReversedCounter(arity);
+		counter.setNonreversed(nonreversedCount);
+		return counter;
+	}
+
+	/**
+	 * Increments the counter, then returns its pre-increment value.
+	 *
+	 * @return the count, prior to incrementing the counter.
+	 *
+	 * @throws IllegalStateException if incrementing past the maximum value
+	 *    is attempted.
+	 */
+	public int getAndIncrement() {
+		int ret = this.count;
+		increment();
+		return ret;
+	}
+
+	/**
+	 * Increments the counter, then returns the new count.
+	 *
+	 * @return the new count, after incrementing the counter.
+	 *
+	 * @throws IllegalStateException if incrementing past the maximum value
+	 *    is attempted.
+	 */
+	public int incrementAndGet() {
+		increment();
+		return this.count;
+	}
+
+	/**
+	 * Decrements the counter, then returns its pre-decrement value.
+	 *
+	 * @return the count, prior to decrementing the counter.
+	 *
+	 * @throws IllegalStateException if decrementing below 0 is attempted.
+	 */
+	public int getAndDecrement() {
+		int ret = this.count;
+		decrement();
+		return ret;
+	}
+
+	/**
+	 * Decrements the counter, then returns the new count.
+	 *
+	 * @return the new count, after decrementing the counter.
+	 *
+	 * @throws IllegalStateException if decrementing below 0 is attempted.
+	 */
+	public int decrementAndGet() {
+		decrement();
+		return this.count;
+	}
+
+	/**
+	 * Sets the counter to the specified non-digit-reversed value.
+	 *
+	 * @param nonreversedCount the non-digit-reversed value to set the
+	 *    counter to.
+	 *
+	 * @throws IllegalArgumentException if {@code nonreversedCount} is
+	 *    negative or greater than the counter's maximum value.
+	 */
+	public void setNonreversed(int nonreversedCount) {
+		if (nonreversedCount < 0 || nonreversedCount > this.maxValue) {
+			throw new IllegalArgumentException("Value of 'nonreversedCount'"
+					+ " must be >= 0 & <= " + this.maxValue);
+		}
+
+		reset();
+		// Find the count's row
+		long start = 0L, size = 1L;
+		while (nonreversedCount >= start + size) {
+			start += size;
+			size <<= this.digitBits;
+			this.level++;
+		}
+		this.rowStart = (int) start;
+		this.rowSz = rowSize(this.level, this.digitBits);
+		this.nonrevRowCount = nonreversedCount - this.rowStart;
+		this.rowCount = reverseDigits(this.nonrevRowCount, this.level,
+				this.digitBits);
+		this.nonrevCount = nonreversedCount;
+		this.count = this.rowStart + this.rowCount;
+	}
+
+	/**
+	 * Resets this counter to its initial value of 0.
+	 */
+	public void reset() {
+		this.count = 0;
+		this.nonrevCount = 0;
+		this.rowCount = 0;
+		this.nonrevRowCount = 0;
+		this.rowSz = 1;
+		this.rowStart = 0;
+		this.level = 0;
+	}
+
+	/**
+	 * Returns the counter's current value, which is a heap digit-reversed
+	 * count (i.e., a heap position).
+	 *
+	 * @return the counter's current value.
+	 */
+	public int get() {
+		return this.count;
+	}
+
+	/**
+	 * Returns the counter's current non-digit-reversed value.
+	 *
+	 * @return the counter's current non-digit-reversed value.
+	 */
+	public int getNonreversedCount() {
+		return this.nonrevCount;
+	}
+
+	/**
+	 * Returns the arity of the heap this counter counts for.
+	 */
+	public int getArity() {
+		return this.arity;
+	}
+
+	/**
+	 * Returns the counter's maximum (non-digit-reversed) value.
+	 */
+	public int getMaxValue() {
+		return this.maxValue;
+	}
+
+
+	/**
+	 * Returns the heap digit-reversed count (i.e., the heap position) for
+	 * the specified non-digit-reversed count, in a heap of the specified
+	 * arity.
+	 *
+	 * @param nonrevCount a non-digit-reversed count, which must be greater
+	 *    than or equal to 0.
+	 * @param arity the heap's arity, which must be a power of 2 from 2 to
+	 *    {@code MAX_ARITY}.
+	 * @return the heap digit-reversed count for {@code nonrevCount}.
+	 *
+	 * @throws IllegalArgumentException if {@code arity} isn't a power of 2
+	 *    from 2 to {@code MAX_ARITY}.
+	 */
+	public static int toReversed(int nonrevCount, int arity) {
+		checkArity(arity);
+		int digitBits = Integer.numberOfTrailingZeros(arity);
+		long start = 0L, size = 1L;
+		int level = 0;
+		while (nonrevCount >= start + size) {
+			start += size;
+			size <<= digitBits;
+			level++;
+		}
+		return (int) start + reverseDigits((int) (nonrevCount - start), level,
+				digitBits);
+	}
+
+	/**
+	 * Returns the non-digit-reversed count for the specified heap
+	 * digit-reversed count. (Digit-reversal within a row is its own
+	 * inverse.)
+	 *
+	 * @param count a heap digit-reversed count, which must be greater than
+	 *    or equal to 0.
+	 * @param arity the heap's arity, which must be a power of 2 from 2 to
+	 *    {@code MAX_ARITY}.
+	 * @return the non-digit-reversed count for {@code count}.
+	 *
+	 * @throws IllegalArgumentException if {@code arity} isn't a power of 2
+	 *    from 2 to {@code MAX_ARITY}.
+	 */
+	public static int toNonreversed(int count, int arity) {
+		return toReversed(count, arity);
+	}
+
+
+	/**
+	 * Increments the heap digit-reversed counter.
+	 *
+	 * @throws IllegalStateException if incrementing past the maximum value
+	 *    is attempted.
+	 */
+	protected void increment() {
+		if (this.nonrevCount == this.maxValue) {
+			throw new IllegalStateException("Attempt to increment past "
+					+ "maximum counter value " + this.maxValue);
+		}
+
+		if (this.nonrevRowCount == this.rowSz - 1) {
+			this.rowStart += this.rowSz;
+			this.level++;
+			this.rowSz = rowSize(this.level, this.digitBits);
+			this.nonrevRowCount = 0;
+		} else {
+			this.nonrevRowCount++;
+		}
+		this.rowCount = reverseDigits(this.nonrevRowCount, this.level,
+				this.digitBits);
+		this.nonrevCount++;
+		this.count = this.rowStart + this.rowCount;
+	}
+
+	/**
+	 * Decrements the heap digit-reversed counter.
+	 *
+	 * @throws IllegalStateException if decrementing below 0 is attempted.
+	 */
+	protected void decrement() {
+		if (this.nonrevCount == 0)
+			throw new IllegalStateException("Attempt to decrement below 0.");
+
+		if (this.nonrevRowCount == 0) {
+			this.level--;
+			this.rowSz = rowSize(this.level, this.digitBits);
+			this.rowStart -= this.rowSz;
+			this.nonrevRowCount = this.rowSz - 1;
+		} else {
+			this.nonrevRowCount--;
+		}
+		this.rowCount = reverseDigits(this.nonrevRowCount, this.level,
+				this.digitBits);
+		this.nonrevCount--;
+		this.count = this.rowStart + this.rowCount;
+	}
+
+
+	/**
+	 * Reverses the order of the lowest {@code numDigits} digits, of
+	 * {@code digitBits} bits each, of {@code value}.
+	 */
+	private static int reverseDigits(int value, int numDigits, int digitBits) {
+		int mask = (1 << digitBits) - 1;
+		int reversed = 0;
+		for (int i = 0; i < numDigits; i++) {
+			reversed = (reversed << digitBits) | (value & mask);
+			value >>>= digitBits;
+		}
+		return reversed;
+	}
+
+	/**
+	 * Returns the size of the specified row, or {@code Integer.MAX_VALUE}
+	 * if it's the first row that doesn't fit in the heap (in which case
+	 * the counter is at its maximum value).
+	 */
+	private static int rowSize(int level, int digitBits) {
+		int bits = level * digitBits;
+		return (bits < Integer.SIZE - 1) ? 1 << bits : Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Returns the number of positions in the rows of a heap of the
+	 * specified arity that fit entirely within {@code Integer.MAX_VALUE}
+	 * positions.
+	 */
+	private static int maxValue(int arity) {
+		long start = 0L, size = 1L;
+		while (start + size <= Integer.MAX_VALUE) {
+			start += size;
+			size *= arity;
+		}
+		return (int) start;
+	}
+
+	private static void checkArity(int arity) {
+		if (arity < 2 || arity > MAX_ARITY || Integer.bitCount(arity) != 1) {
+			throw new IllegalArgumentException("arity must be a power of 2 "
+					+ "from 2 to " + MAX_ARITY);
+		}
+	}
+}
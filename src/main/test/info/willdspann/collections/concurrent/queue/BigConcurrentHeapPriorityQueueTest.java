@@ -0,0 +1,160 @@
+package info.willdspann.collections.concurrent.queue;
+
+import java.util.*;  // List, ArrayList, Collections, Random
+import java.util.concurrent.*;  // ExecutorService, Executors, Future, Callable
+
+import org.junit.*;  // Test, Before, After
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import info.willdspann.collections.BigList;
+import info.willdspann.collections.concurrent.queue.ConcurrentHeapPriorityQueue.LockPolicy;
+import info.willdspann.collections.list.UnrolledLinkedList;
+
+import static org.junit.Assert.*;
+
+/**
+ * JUnit test for {@code BigConcurrentHeapPriorityQueue}. Most tests use
+ * tiny chunks, so that the heap's chunked rows are exercised w/o billions
+ * of items.
+ *
+ * @author Will D. Spann
+ * @version 1.0
+ */
+@RunWith(JUnit4.class)
+public class BigConcurrentHeapPriorityQueueTest {
+	private static final int NUM_THREADS = 4, NUM_ITEMS = 20000;
+	private static final int CHUNK_BITS = 3;
+	private ExecutorService pool;   // Init. by setup().
+
+
+	@Before
+	public void setup() {
+		this.pool = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void teardown() {
+		this.pool.shutdownNow();
+	}
+
+
+	@Test
+	public void pollsInOrder() {
+		BigConcurrentHeapPriorityQueue<Integer> queue = newQueue(null);
+		List<Integer> items = new ArrayList<Integer>();
+		Random rand = new Random(1);
+		for (int i = 0; i < NUM_ITEMS; i++)
+			items.add(rand.nextInt(NUM_ITEMS));
+
+		for (Integer item : items)
+			assertTrue(queue.add(item));
+		assertEquals(NUM_ITEMS, queue.size());
+		Collections.sort(items);
+		assertEquals(items.get(0), queue.element());
+		for (Integer item : items)
+			assertEquals(item, queue.poll());
+		assertNull(queue.poll());
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void defaultChunksPollInOrder() {
+		BigConcurrentHeapPriorityQueue<String> queue =
+				new BigConcurrentHeapPriorityQueue<String>(
+						Collections.reverseOrder());
+		for (String s : Arrays.asList("b", "e", "a", "d", "c"))
+			queue.offer(s);
+
+		for (String s : Arrays.asList("e", "d", "c", "b", "a"))
+			assertEquals(s, queue.remove());
+	}
+
+	@Test(expected=NoSuchElementException.class)
+	public void removeFromEmpty() {
+		newQueue(null).remove();
+	}
+
+	@Test
+	public void toListHoldsEveryItem() {
+		BigConcurrentHeapPriorityQueue<Integer> queue = newQueue(null);
+		for (int i = 999; i >= 0; i--)
+			queue.offer(i);
+
+		BigList<Integer> list = queue.toList();
+		assertEquals(1000L, list.size());
+		boolean[] seen = new boolean[1000];
+		for (Integer item : list) {
+			assertFalse(seen[item]);
+			seen[item] = true;
+		}
+		assertEquals(1000L, queue.size());
+	}
+
+	@Test
+	public void removeObject() {
+		BigConcurrentHeapPriorityQueue<Integer> queue = newQueue(null);
+		for (int i = 0; i < 500; i++)
+			queue.offer(i);
+
+		assertTrue(queue.remove(Integer.valueOf(250)));
+		assertFalse(queue.remove(Integer.valueOf(250)));
+		assertFalse(queue.contains(250));
+		assertTrue(queue.contains(499));
+		assertTrue(queue.removeAll(new UnrolledLinkedList<Integer>(
+				Arrays.asList(0, 1, 2))));
+		for (int i = 3; i < 500; i++) {
+			if (i != 250)
+				assertEquals(Integer.valueOf(i), queue.poll());
+		}
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void concurrentOffersAndPolls() throws Exception {
+		final BigConcurrentHeapPriorityQueue<Integer> queue = newQueue(null);
+		List<Future<Long>> results = new ArrayList<Future<Long>>();
+		for (int t = 0; t < NUM_THREADS; t++) {
+			final int base = t * NUM_ITEMS;
+			results.add(this.pool.submit(new Callable<Long>() {
+				public Long call() {
+					long polledSum = 0L;
+					for (int i = 0; i < NUM_ITEMS; i++) {
+						queue.offer(base + i);
+						if ((i & 1) == 1)
+							polledSum += queue.poll();
+					}
+					return polledSum;
+				}
+			}));
+		}
+		long sum = 0L;
+		for (Future<Long> result : results)
+			sum += result.get(60, TimeUnit.SECONDS);
+
+		// The remaining items must come out in order
+		assertEquals(NUM_THREADS * NUM_ITEMS / 2, queue.size());
+		Integer prev = null, item;
+		while ((item = queue.poll()) != null) {
+			if (prev != null)
+				assertTrue(prev <= item);
+			prev = item;
+			sum += item;
+		}
+		long n = (long) NUM_THREADS * NUM_ITEMS;
+		assertEquals(n * (n - 1) / 2, sum);
+	}
+
+	@Test(expected=NullPointerException.class)
+	public void offerNull() {
+		newQueue(null).offer(null);
+	}
+
+
+	private static <E> BigConcurrentHeapPriorityQueue<E> newQueue(
+			Comparator<? super E> comparator)
+	{
+		return new BigConcurrentHeapPriorityQueue<E>(1, comparator,
+				LockPolicy.SPIN_THEN_PARK, CHUNK_BITS);
+	}
+}
@@ -0,0 +1,209 @@
+package info.willdspann.collections.concurrent.queue;
+
+import java.util.*;  // List, ArrayList
+import java.util.concurrent.*;  // ExecutorService, Executors, Future, TimeUnit
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.*;  // Test, Before, After
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import info.willdspann.collections.concurrent.queue.ConcurrentHeapPriorityQueue.CountingMode;
+import info.willdspann.collections.concurrent.queue.ConcurrentHeapPriorityQueue.LockPolicy;
+import info.willdspann.collections.concurrent.queue.ConcurrentHeapPriorityQueue.OverflowPolicy;
+
+import static org.junit.Assert.*;
+
+/**
+ * JUnit test for the blocking operations of
+ * {@code ConcurrentHeapPriorityBlockingQueue}.
+ *
+ * @author Will D. Spann
+ * @version 1.1
+ */
+@RunWith(JUnit4.class)
+public class ConcurrentHeapPriorityBlockingQueueTest {
+	private static final int NUM_PAIRS = 4, NUM_ITEMS = 10000;
+	private ExecutorService pool;   // Init. by setup().
+
+
+	@Before
+	public void setup() {
+		this.pool = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void teardown() {
+		this.pool.shutdownNow();
+	}
+
+
+	@Test
+	public void takeWaitsForOffer() throws Exception {
+		final ConcurrentHeapPriorityBlockingQueue<Integer> queue
+				= new ConcurrentHeapPriorityBlockingQueue<Integer>();
+		Future<Integer> taken = this.pool.submit(new Callable<Integer>() {
+			public Integer call() throws Exception {
+				return queue.take();
+			}
+		});
+
+		Thread.sleep(50);
+		assertFalse(taken.isDone());
+		queue.put(42);
+		assertEquals(Integer.valueOf(42), taken.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void takeReturnsMinimum() throws Exception {
+		ConcurrentHeapPriorityBlockingQueue<Integer> queue
+				= new ConcurrentHeapPriorityBlockingQueue<Integer>();
+		queue.put(3);
+		queue.put(1);
+		queue.put(2);
+
+		assertEquals(Integer.valueOf(1), queue.take());
+		assertEquals(Integer.valueOf(2), queue.take());
+		assertEquals(Integer.valueOf(3), queue.take());
+	}
+
+	@Test
+	public void pollTimesOutOnEmpty() throws Exception {
+		ConcurrentHeapPriorityBlockingQueue<Integer> queue
+				= new ConcurrentHeapPriorityBlockingQueue<Integer>();
+		long start = System.nanoTime();
+
+		assertNull(queue.poll(20, TimeUnit.MILLISECONDS));
+		assertTrue(System.nanoTime() - start
+				>= TimeUnit.MILLISECONDS.toNanos(20));
+	}
+
+	@Test
+	public void takeIsInterruptible() throws Exception {
+		final ConcurrentHeapPriorityBlockingQueue<Integer> queue
+				= new ConcurrentHeapPriorityBlockingQueue<Integer>();
+		Future<Integer> taken = this.pool.submit(new Callable<Integer>() {
+			public Integer call() throws Exception {
+				return queue.take();
+			}
+		});
+
+		Thread.sleep(50);
+		taken.cancel(true);
+		queue.put(7);
+		assertEquals(Integer.valueOf(7), queue.poll(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void remainingCapacityIsUnbounded() {
+		assertEquals(Integer.MAX_VALUE,
+				new ConcurrentHeapPriorityBlockingQueue<Integer>()
+				.remainingCapacity());
+	}
+
+	@Test
+	public void putWaitsForSpace() throws Exception {
+		final ConcurrentHeapPriorityBlockingQueue<Integer> queue = bounded(
+				2, CountingMode.LOCKED);
+		queue.put(1);
+		queue.put(2);
+		assertEquals(0, queue.remainingCapacity());
+		assertFalse(queue.offer(3, 20, TimeUnit.MILLISECONDS));
+		Future<?> put = this.pool.submit(new Callable<Void>() {
+			public Void call() throws Exception {
+				queue.put(0);
+				return null;
+			}
+		});
+
+		Thread.sleep(50);
+		assertFalse(put.isDone());
+		assertEquals(Integer.valueOf(1), queue.take());
+		put.get(5, TimeUnit.SECONDS);
+		assertEquals(Integer.valueOf(0), queue.take());
+		assertEquals(1, queue.remainingCapacity());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void drainToSelf() {
+		ConcurrentHeapPriorityBlockingQueue<Integer> queue
+				= new ConcurrentHeapPriorityBlockingQueue<Integer>();
+		queue.drainTo(queue);
+	}
+
+	@Test
+	public void producersConsumersLocked() throws Exception {
+		testProducersConsumers(CountingMode.LOCKED);
+	}
+
+	@Test
+	public void producersConsumersLockFree() throws Exception {
+		testProducersConsumers(CountingMode.LOCK_FREE);
+	}
+
+	@Test
+	public void boundedProducersConsumersLocked() throws Exception {
+		testProducersConsumers(bounded(8, CountingMode.LOCKED));
+	}
+
+	@Test
+	public void boundedProducersConsumersLockFree() throws Exception {
+		testProducersConsumers(bounded(8, CountingMode.LOCK_FREE));
+	}
+
+
+	private void testProducersConsumers(CountingMode mode) throws Exception {
+		testProducersConsumers(
+				new ConcurrentHeapPriorityBlockingQueue<Integer>(10, mode));
+	}
+
+	/**
+	 * Checks that blocked consumers take every item put by concurrent
+	 * producers, which only signal on empty to non-empty transitions (and,
+	 * if the queue is bounded, are blocked while it's full).
+	 */
+	private void testProducersConsumers(
+			final ConcurrentHeapPriorityBlockingQueue<Integer> queue)
+			throws Exception
+	{
+		final AtomicLong putSum = new AtomicLong(), takeSum = new AtomicLong();
+		List<Future<?>> results = new ArrayList<Future<?>>();
+
+		// Start consumers first, so they block on the empty queue
+		for (int p = 0; p < NUM_PAIRS; p++) {
+			results.add(this.pool.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					for (int i = 0; i < NUM_ITEMS; i++)
+						takeSum.addAndGet(queue.take());
+					return null;
+				}
+			}));
+		}
+		for (int p = 0; p < NUM_PAIRS; p++) {
+			final int seed = p;
+			results.add(this.pool.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					Random rand = new Random(seed);
+					for (int i = 0; i < NUM_ITEMS; i++) {
+						int item = rand.nextInt(1000);
+						putSum.addAndGet(item);
+						queue.put(item);
+					}
+					return null;
+				}
+			}));
+		}
+		for (Future<?> f : results)
+			f.get(60, TimeUnit.SECONDS);
+
+		assertEquals(putSum.get(), takeSum.get());
+		assertTrue(queue.isEmpty());
+	}
+
+	private static ConcurrentHeapPriorityBlockingQueue<Integer> bounded(
+			int capacity, CountingMode mode)
+	{
+		return new ConcurrentHeapPriorityBlockingQueue<Integer>(capacity, null,
+				mode, LockPolicy.SPIN_THEN_PARK, OverflowPolicy.REJECT);
+	}
+}
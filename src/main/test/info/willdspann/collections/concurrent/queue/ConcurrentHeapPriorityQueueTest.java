@@ -0,0 +1,1593 @@
+package info.willdspann.collections.concurrent.queue;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;  // List, ArrayList, Arrays, Collections, Comparator, HashSet, Map, Random, Set
+import java.util.concurrent.*;  // ExecutorService, Executors, Future, TimeUnit
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.*;  // Test, Before, After
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import info.willdspann.collections.concurrent.queue.ConcurrentHeapPriorityQueue.CountingMode;
+import info.willdspann.collections.concurrent.queue.ConcurrentHeapPriorityQueue.Handle;
+import info.willdspann.collections.concurrent.queue.ConcurrentHeapPriorityQueue.LockPolicy;
+import info.willdspann.collections.concurrent.queue.ConcurrentHeapPriorityQueue.OverflowPolicy;
+import info.willdspann.collections.concurrent.queue.ConcurrentHeapPriorityQueue.Stats;
+
+import static org.junit.Assert.*;
+
+/**
+ * JUnit test for {@code ConcurrentHeapPriorityQueue}'s operations beyond
+ * those of {@code Queue}, in both of its counting modes.
+ *
+ * @author Will D. Spann
+ * @version 1.21
+ */
+@RunWith(JUnit4.class)
+public class ConcurrentHeapPriorityQueueTest {
+	private static final int BATCH_SZ = 1000, NUM_THREADS = 4,
+							 NUM_BATCHES = 50;
+	private ExecutorService pool;   // Init. by setup().
+
+
+	@Before
+	public void setup() {
+		this.pool = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void teardown() {
+		this.pool.shutdownNow();
+	}
+
+
+	@Test
+	public void offerAllPollBatchLocked() {
+		testOfferAllPollBatch(CountingMode.LOCKED);
+	}
+
+	@Test
+	public void offerAllPollBatchLockFree() {
+		testOfferAllPollBatch(CountingMode.LOCK_FREE);
+	}
+
+	@Test(expected=NullPointerException.class)
+	public void offerAllWithNullInsertsNothing() {
+		ConcurrentHeapPriorityQueue<Integer> queue
+				= new ConcurrentHeapPriorityQueue<Integer>();
+		try {
+			queue.offerAll(Arrays.asList(1, null, 3));
+		} finally {
+			assertTrue(queue.isEmpty());
+		}
+	}
+
+	@Test
+	public void pollBatchOnEmpty() {
+		assertTrue(new ConcurrentHeapPriorityQueue<Integer>().pollBatch(10)
+				.isEmpty());
+	}
+
+	@Test
+	public void concurrentBatchesLocked() throws Exception {
+		testConcurrentBatches(CountingMode.LOCKED);
+	}
+
+	@Test
+	public void concurrentBatchesLockFree() throws Exception {
+		testConcurrentBatches(CountingMode.LOCK_FREE);
+	}
+
+	@Test
+	public void concurrentOfferPollFair() throws Exception {
+		testConcurrentOfferPoll(LockPolicy.FAIR);
+	}
+
+	@Test
+	public void concurrentOfferPollNonFair() throws Exception {
+		testConcurrentOfferPoll(LockPolicy.NON_FAIR);
+	}
+
+	@Test
+	public void concurrentOfferPollSpinThenPark() throws Exception {
+		testConcurrentOfferPoll(LockPolicy.SPIN_THEN_PARK);
+	}
+
+	@Test
+	public void handleCancel() {
+		ConcurrentHeapPriorityQueue<Integer> queue
+				= new ConcurrentHeapPriorityQueue<Integer>();
+		List<Handle<Integer>> handles = new ArrayList<Handle<Integer>>();
+		for (int i = 0; i < 100; i++)
+			handles.add(queue.offerHandle(i));
+		for (int i = 0; i < 100; i += 2) {
+			assertTrue(handles.get(i).cancel());
+			assertFalse(handles.get(i).isQueued());
+			assertFalse(handles.get(i).cancel());
+		}
+		assertEquals(50, queue.size());
+		for (int i = 1; i < 100; i += 2) {
+			assertTrue(handles.get(i).isQueued());
+			assertEquals(Integer.valueOf(i), queue.poll());
+			assertFalse(handles.get(i).isQueued());
+			assertFalse(handles.get(i).cancel());
+		}
+		assertNull(queue.poll());
+	}
+
+	@Test
+	public void handleUpdatePriority() {
+		ConcurrentHeapPriorityQueue<Integer> queue
+				= new ConcurrentHeapPriorityQueue<Integer>();
+		List<Handle<Integer>> handles = new ArrayList<Handle<Integer>>();
+		for (int i = 0; i < 100; i++)
+			handles.add(queue.offerHandle(i));
+		assertTrue(handles.get(50).updatePriority(-1));   // Decrease
+		assertTrue(handles.get(0).updatePriority(1000));  // Increase
+		assertEquals(Integer.valueOf(1000), handles.get(0).get());
+
+		assertEquals(Integer.valueOf(-1), queue.poll());
+		for (int i = 1; i < 100; i++) {
+			if (i != 50)
+				assertEquals(Integer.valueOf(i), queue.poll());
+		}
+		assertEquals(Integer.valueOf(1000), queue.poll());
+		assertFalse(handles.get(0).updatePriority(5));
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void removeObject() {
+		ConcurrentHeapPriorityQueue<Integer> queue
+				= new ConcurrentHeapPriorityQueue<Integer>();
+		for (int i = 0; i < 20; i++)
+			queue.offer(i % 10);
+		assertTrue(queue.remove(Integer.valueOf(3)));
+		assertTrue(queue.remove(Integer.valueOf(3)));
+		assertFalse(queue.remove(Integer.valueOf(3)));
+		assertTrue(queue.remove(Integer.valueOf(0)));
+		assertEquals(17, queue.size());
+
+		Integer prev = null, item;
+		while ((item = queue.poll()) != null) {
+			assertTrue(item != 3);
+			assertTrue(prev == null || prev <= item);
+			prev = item;
+		}
+	}
+
+	@Test
+	public void pollNeverPassesOverSmallerItemLocked() throws Exception {
+		testPollNeverPassesOverSmallerItem(CountingMode.LOCKED);
+	}
+
+	@Test
+	public void pollNeverPassesOverSmallerItemLockFree() throws Exception {
+		testPollNeverPassesOverSmallerItem(CountingMode.LOCK_FREE);
+	}
+
+	@Test
+	public void concurrentCancelPollLocked() throws Exception {
+		testConcurrentCancelPoll(CountingMode.LOCKED);
+	}
+
+	@Test
+	public void concurrentCancelPollLockFree() throws Exception {
+		testConcurrentCancelPoll(CountingMode.LOCK_FREE);
+	}
+
+	/**
+	 * Checks that a snapshot taken while other threads keep moving their
+	 * items up & down the heap (by updating their priorities) neither
+	 * skips nor repeats any item.
+	 */
+	@Test
+	public void snapshotDuringUpdates() throws Exception {
+		final int numFixed = 5000, numMoving = 1000;
+		final ConcurrentHeapPriorityQueue<Integer> queue
+				= new ConcurrentHeapPriorityQueue<Integer>();
+		for (int i = 0; i < numFixed; i++)
+			queue.offer(2 * i);
+		final List<Handle<Integer>> handles = new ArrayList<Handle<Integer>>();
+		for (int i = 0; i < numMoving; i++)
+			handles.add(queue.offerHandle(2 * i + 1));
+		final AtomicInteger done = new AtomicInteger();
+		List<Future<?>> results = new ArrayList<Future<?>>();
+		for (int t = 0; t < NUM_THREADS; t++) {
+			final int seed = t;
+			results.add(this.pool.submit(new Callable<Void>() {
+				public Void call() {
+					Random rand = new Random(seed);
+					while (done.get() == 0) {
+						int i = rand.nextInt(numMoving);
+						// Odd values, so as not to equal any fixed item
+						handles.get(i).updatePriority(
+								2 * rand.nextInt(numFixed) + 1);
+					}
+					return null;
+				}
+			}));
+		}
+		try {
+			for (int round = 0; round < 20; round++) {
+				Object[] snapshot = queue.toArray();
+				assertEquals(numFixed + numMoving, snapshot.length);
+				BitSet fixed = new BitSet();
+				for (Object item : snapshot) {
+					int value = (Integer) item;
+					if ((value & 1) == 0) {
+						assertFalse(fixed.get(value / 2));
+						fixed.set(value / 2);
+					}
+				}
+				assertEquals(numFixed, fixed.cardinality());
+			}
+		} finally {
+			done.set(1);
+		}
+		for (Future<?> f : results)
+			f.get(60, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void spliteratorIsSizedSnapshot() {
+		ConcurrentHeapPriorityQueue<Integer> queue
+				= new ConcurrentHeapPriorityQueue<Integer>();
+		for (int i = 0; i < 1000; i++)
+			queue.offer(i);
+		Spliterator<Integer> split = queue.spliterator();
+		assertTrue(split.hasCharacteristics(Spliterator.SIZED
+				| Spliterator.SUBSIZED | Spliterator.CONCURRENT
+				| Spliterator.NONNULL));
+		assertEquals(1000, split.estimateSize());
+		queue.offer(1000);  // Not in the snapshot
+
+		Spliterator<Integer> half = split.trySplit();
+		assertEquals(1000, half.estimateSize() + split.estimateSize());
+		final BitSet seen = new BitSet();
+		Consumer<Integer> visit = item -> {
+			assertFalse(seen.get(item));
+			seen.set(item);
+		};
+		half.forEachRemaining(visit);
+		while (split.tryAdvance(visit))
+			;
+		assertEquals(1000, seen.cardinality());
+		assertFalse(seen.get(1000));
+	}
+
+	@Test
+	public void parallelStreamOverConcurrentInserts() throws Exception {
+		final ConcurrentHeapPriorityQueue<Integer> queue
+				= new ConcurrentHeapPriorityQueue<Integer>(10,
+						CountingMode.LOCK_FREE);
+		long expected = 0L;
+		for (int i = 0; i < 100000; i++) {
+			queue.offer(i);
+			expected += i;
+		}
+		// Inserts of other items, which rise past ours, don't disturb the
+		// snapshot
+		Future<?> churn = this.pool.submit(new Callable<Void>() {
+			public Void call() {
+				for (int i = 0; i < 10000; i++)
+					queue.offer(-1 - i);
+				return null;
+			}
+		});
+		long sum = queue.parallelStream().filter(item -> item >= 0)
+				.mapToLong(Integer::longValue).sum();
+		churn.get(60, TimeUnit.SECONDS);
+		assertEquals(expected, sum);
+	}
+
+	@Test
+	public void builderOrdersByComparator() {
+		ConcurrentHeapPriorityQueue<Integer> queue
+				= new ConcurrentHeapPriorityQueue.Builder<Integer>()
+				.initialCapacity(2)
+				.comparator(Collections.reverseOrder())
+				.lockPolicy(LockPolicy.FAIR)
+				.build();
+		for (int i = 0; i < 100; i++)
+			queue.offer(i);
+		for (int i = 99; i >= 0; i--)
+			assertEquals(Integer.valueOf(i), queue.poll());
+		assertNull(queue.poll());
+	}
+
+	@Test
+	public void boundedRejectsLocked() {
+		testBoundedRejects(CountingMode.LOCKED);
+	}
+
+	@Test
+	public void boundedRejectsLockFree() {
+		testBoundedRejects(CountingMode.LOCK_FREE);
+	}
+
+	@Test
+	public void evictWorstKeepsSmallest() {
+		ConcurrentHeapPriorityQueue<Integer> queue
+				= new ConcurrentHeapPriorityQueue.Builder<Integer>()
+				.capacity(10)
+				.overflowPolicy(OverflowPolicy.EVICT_WORST)
+				.build();
+		List<Integer> items = new ArrayList<Integer>();
+		for (int i = 0; i < 100; i++)
+			items.add(i);
+		Collections.shuffle(items, new Random(1));
+		for (int item : items)
+			queue.offer(item);
+
+		assertEquals(10, queue.size());
+		assertFalse(queue.offer(50));
+		for (int i = 0; i < 10; i++)
+			assertEquals(Integer.valueOf(i), queue.poll());
+		assertNull(queue.poll());
+	}
+
+	@Test
+	public void evictWorstKeepsSmallestInLargeQueue() {
+		final int capacity = 4096;
+		ConcurrentHeapPriorityQueue<Integer> queue
+				= new ConcurrentHeapPriorityQueue.Builder<Integer>()
+				.capacity(capacity)
+				.overflowPolicy(OverflowPolicy.EVICT_WORST)
+				.build();
+		List<Integer> items = new ArrayList<Integer>();
+		for (int i = 0; i < capacity * 10; i++)
+			items.add(i);
+		Collections.shuffle(items, new Random(1));
+		for (int item : items)
+			queue.offer(item);
+
+		assertEquals(capacity, queue.size());
+		for (int i = 0; i < capacity; i++)
+			assertEquals(i, (int) queue.poll());
+		assertTrue(queue.isEmpty());
+	}
+
+	/**
+	 * Checks that evictions see the items of handles that have been
+	 * updated or cancelled.
+	 */
+	@Test
+	public void evictWorstTracksHandles() {
+		ConcurrentHeapPriorityQueue<Integer> queue
+				= new ConcurrentHeapPriorityQueue.Builder<Integer>()
+				.capacity(10)
+				.overflowPolicy(OverflowPolicy.EVICT_WORST)
+				.build();
+		List<Handle<Integer>> handles = new ArrayList<Handle<Integer>>();
+		for (int i = 0; i < 10; i++)
+			handles.add(queue.offerHandle(i * 10));
+
+		assertTrue(handles.get(0).updatePriority(1000));
+		assertTrue(queue.offer(55));  // Evicts 1000
+		assertFalse(handles.get(0).isQueued());
+		assertTrue(handles.get(9).cancel());
+		assertTrue(queue.offer(500));
+		assertTrue(queue.offer(45));  // Evicts 500
+		assertFalse(queue.offer(95));
+
+		int[] expected = {10, 20, 30, 40, 45, 50, 55, 60, 70, 80};
+		for (int item : expected)
+			assertEquals(item, (int) queue.poll());
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void concurrentEvictWorst() throws Exception {
+		final int capacity = 100;
+		final ConcurrentHeapPriorityQueue<Integer> queue
+				= new ConcurrentHeapPriorityQueue<Integer>(capacity, null,
+						CountingMode.LOCK_FREE, LockPolicy.SPIN_THEN_PARK,
+						OverflowPolicy.EVICT_WORST);
+		List<Future<?>> results = new ArrayList<Future<?>>();
+		for (int t = 0; t < NUM_THREADS; t++) {
+			final int seed = t;
+			results.add(this.pool.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					Random rand = new Random(seed);
+					for (int i = 0; i < BATCH_SZ * 5; i++) {
+						queue.offer(rand.nextInt(100000));
+						if (i % 7 == 0)
+							queue.poll();
+					}
+					return null;
+				}
+			}));
+		}
+		for (Future<?> f : results)
+			f.get(60, TimeUnit.SECONDS);
+
+		assertTrue(queue.size() <= capacity);
+		Integer prev = null, item;
+		while ((item = queue.poll()) != null) {
+			assertTrue(prev == null || prev <= item);
+			prev = item;
+		}
+	}
+
+
+	@Test
+	public void bulkConstructionLocked() {
+		testBulkConstruction(CountingMode.LOCKED, 1000);
+	}
+
+	@Test
+	public void parallelBulkConstructionLockFree() {
+		testBulkConstruction(CountingMode.LOCK_FREE, 100000);
+	}
+
+	@Test(expected=NullPointerException.class)
+	public void bulkConstructionWithNull() {
+		new ConcurrentHeapPriorityQueue<Integer>(Arrays.asList(3, null, 1));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void bulkConstructionOverCapacity() {
+		new ConcurrentHeapPriorityQueue.Builder<Integer>()
+				.capacity(2)
+				.build(Arrays.asList(3, 2, 1));
+	}
+
+	@Test
+	public void trimToSizeLocked() {
+		testTrimToSize(CountingMode.LOCKED);
+	}
+
+	@Test
+	public void trimToSizeLockFree() {
+		testTrimToSize(CountingMode.LOCK_FREE);
+	}
+
+	@Test
+	public void clearTrims() {
+		ConcurrentHeapPriorityQueue<Integer> queue
+				= new ConcurrentHeapPriorityQueue<Integer>(10);
+		int initialCap = queue.heapCapacity();
+		for (int i = 0; i < 5000; i++)
+			queue.offer(i);
+		queue.clear();
+		assertTrue(queue.isEmpty());
+		assertEquals(initialCap, queue.heapCapacity());
+		queue.offer(1);
+		assertEquals(Integer.valueOf(1), queue.poll());
+	}
+
+	@Test
+	public void concurrentTrimOnDrainLocked() throws Exception {
+		testConcurrentTrimOnDrain(CountingMode.LOCKED);
+	}
+
+	@Test
+	public void concurrentTrimOnDrainLockFree() throws Exception {
+		testConcurrentTrimOnDrain(CountingMode.LOCK_FREE);
+	}
+
+	@Test
+	public void concurrentGrowthAcrossSegmentsLocked() throws Exception {
+		testConcurrentGrowthAcrossSegments(CountingMode.LOCKED);
+	}
+
+	@Test
+	public void concurrentGrowthAcrossSegmentsLockFree() throws Exception {
+		testConcurrentGrowthAcrossSegments(CountingMode.LOCK_FREE);
+	}
+
+	@Test
+	public void longKeysComputedOnceLocked() {
+		testLongKeysComputedOnce(CountingMode.LOCKED);
+	}
+
+	@Test
+	public void longKeysComputedOnceLockFree() {
+		testLongKeysComputedOnce(CountingMode.LOCK_FREE);
+	}
+
+	@Test
+	public void doubleKeysOrderAsDoubleCompare() {
+		Double[] keys = { 2.5, -0.0, Double.NaN, 0.0, -7.25,
+				Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, -1e-300,
+				Double.MAX_VALUE };
+		ConcurrentHeapPriorityQueue<Double> queue
+				= ConcurrentHeapPriorityQueue.orderedByDoubleKey(d -> d);
+		for (Double key : keys)
+			queue.offer(key);
+		Arrays.sort(keys);  // As by Double.compare()
+		for (Double key : keys)
+			assertEquals(key, queue.poll());
+		assertNull(queue.poll());
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void keyAndComparatorBothSet() {
+		new ConcurrentHeapPriorityQueue.Builder<Integer>()
+				.comparator(Comparator.<Integer>naturalOrder())
+				.longKey(i -> i)
+				.build();
+	}
+
+	@Test
+	public void concurrentKeyedCancelPoll() throws Exception {
+		testConcurrentKeyedBatches(CountingMode.LOCK_FREE);
+	}
+
+	@Test
+	public void pollAsyncCompletedByInserter() throws Exception {
+		final ConcurrentHeapPriorityQueue<Integer> queue
+				= new ConcurrentHeapPriorityQueue<Integer>();
+		queue.offer(1);
+		assertEquals(Integer.valueOf(1), queue.pollAsync().getNow(null));
+
+		final AtomicReference<Thread> completer = new AtomicReference<Thread>();
+		CompletableFuture<Integer> first = queue.pollAsync(),
+				second = queue.pollAsync(), third = queue.pollAsync();
+		first.thenRun(() -> completer.set(Thread.currentThread()));
+		assertFalse(first.isDone());
+		assertTrue(second.cancel(false));
+		Thread producer = new Thread(() -> queue.offer(7));
+		producer.start();
+		producer.join();
+		assertEquals(Integer.valueOf(7), first.getNow(null));
+		assertSame(producer, completer.get());
+
+		// The cancelled future took no item, so the next one goes to 'third'
+		queue.offer(8);
+		assertEquals(Integer.valueOf(8), third.getNow(null));
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void publisherHonorsDemand() {
+		ConcurrentHeapPriorityQueue<Integer> queue
+				= new ConcurrentHeapPriorityQueue<Integer>();
+		for (int i = 9; i >= 0; i--)
+			queue.offer(i);
+		final List<Integer> received = new ArrayList<Integer>();
+		final AtomicReference<Flow.Subscription> sub
+				= new AtomicReference<Flow.Subscription>();
+		queue.publisher().subscribe(new Flow.Subscriber<Integer>() {
+			public void onSubscribe(Flow.Subscription s) {
+				sub.set(s);
+			}
+
+			public void onNext(Integer item) {
+				received.add(item);
+			}
+
+			public void onError(Throwable t) {
+				fail(t.toString());
+			}
+
+			public void onComplete() {
+				fail();
+			}
+		});
+		assertTrue(received.isEmpty());
+		sub.get().request(3);
+		assertEquals(Arrays.asList(0, 1, 2), received);
+		assertEquals(7, queue.size());
+
+		// Outstanding demand is met by later inserts
+		sub.get().request(10);
+		assertEquals(10, received.size());
+		queue.offer(20);
+		queue.offer(15);
+		assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 20, 15),
+				received);
+		sub.get().request(1);
+		queue.offer(30);
+
+		// Once cancelled, inserts stay in the queue
+		sub.get().cancel();
+		queue.offer(40);
+		assertEquals(13, received.size());
+		assertEquals(Integer.valueOf(40), queue.poll());
+		assertNull(queue.poll());
+	}
+
+	/**
+	 * Checks that the unsent items of a cancelled batch are inserted back
+	 * into a full, bounded queue, even though producers have taken their
+	 * places.
+	 */
+	@Test
+	public void publisherPutsBackUnsentItemsPastBound() {
+		final ConcurrentHeapPriorityQueue<Integer> queue
+				= new ConcurrentHeapPriorityQueue.Builder<Integer>()
+				.capacity(3)
+				.build(Arrays.asList(1, 2, 3));
+		final List<Integer> received = new ArrayList<Integer>();
+		queue.publisher().subscribe(new Flow.Subscriber<Integer>() {
+			private Flow.Subscription sub;
+
+			public void onSubscribe(Flow.Subscription s) {
+				this.sub = s;
+				s.request(3);
+			}
+
+			public void onNext(Integer item) {
+				received.add(item);
+				// Refill the queue, then cancel the rest of the batch
+				assertTrue(queue.offer(10));
+				assertTrue(queue.offer(20));
+				assertTrue(queue.offer(30));
+				this.sub.cancel();
+			}
+
+			public void onError(Throwable t) {
+				fail(t.toString());
+			}
+
+			public void onComplete() {
+				fail();
+			}
+		});
+		assertEquals(Arrays.asList(1), received);
+		assertEquals(Arrays.asList(2, 3, 10, 20, 30), queue.pollBatch(10));
+	}
+
+	/**
+	 * Checks that the unsent items of a cancelled batch are handed to
+	 * waiting {@code pollAsync()} futures before any is inserted back.
+	 */
+	@Test
+	public void publisherHandsUnsentItemsToWaiters() {
+		final ConcurrentHeapPriorityQueue<Integer> queue
+				= new ConcurrentHeapPriorityQueue.Builder<Integer>()
+				.capacity(3)
+				.build(Arrays.asList(1, 2, 3));
+		final List<CompletableFuture<Integer>> waiters
+				= new ArrayList<CompletableFuture<Integer>>();
+		queue.publisher().subscribe(new Flow.Subscriber<Integer>() {
+			private Flow.Subscription sub;
+
+			public void onSubscribe(Flow.Subscription s) {
+				this.sub = s;
+				s.request(3);
+			}
+
+			public void onNext(Integer item) {
+				// The batch has emptied the queue, so these futures wait
+				waiters.add(queue.pollAsync());
+				this.sub.cancel();
+			}
+
+			public void onError(Throwable t) {
+				fail(t.toString());
+			}
+
+			public void onComplete() {
+				fail();
+			}
+		});
+		assertEquals(1, waiters.size());
+		assertEquals(2, (int) waiters.get(0).getNow(null));
+		assertEquals(1, queue.size());
+		assertEquals(3, (int) queue.poll());
+	}
+
+	@Test
+	public void meldIntoEmptyLocked() {
+		testMeld(CountingMode.LOCKED, 0, 20000);
+	}
+
+	@Test
+	public void meldIntoEmptyLockFree() {
+		testMeld(CountingMode.LOCK_FREE, 0, 20000);
+	}
+
+	@Test
+	public void meldIntoNonEmpty() {
+		testMeld(CountingMode.LOCK_FREE, 3000, 5000);
+	}
+
+	@Test
+	public void meldIntoBoundedRejectsOverflow() {
+		ConcurrentHeapPriorityQueue<Integer> queue
+				= new ConcurrentHeapPriorityQueue.Builder<Integer>()
+				.capacity(5)
+				.build(Arrays.asList(10, 20));
+		ConcurrentHeapPriorityQueue<Integer> donor
+				= new ConcurrentHeapPriorityQueue<Integer>();
+		Handle<Integer> handle = donor.offerHandle(5);
+		donor.offerAll(Arrays.asList(1, 2, 3, 4));
+		List<Integer> rejected = new ArrayList<Integer>();
+		assertEquals(3, queue.meld(donor, rejected));
+		assertFalse(handle.isQueued());
+		assertEquals(5, queue.size());
+		assertTrue(donor.isEmpty());
+		assertEquals(2, rejected.size());
+		assertEquals(15, queue.poll() + queue.poll() + queue.poll()
+				+ rejected.get(0) + rejected.get(1));
+	}
+
+	@Test
+	public void meldIntoEvictWorstEvictsLargest() {
+		ConcurrentHeapPriorityQueue<Integer> queue
+				= new ConcurrentHeapPriorityQueue.Builder<Integer>()
+				.capacity(4)
+				.overflowPolicy(OverflowPolicy.EVICT_WORST)
+				.build(Arrays.asList(10, 20, 30));
+		ConcurrentHeapPriorityQueue<Integer> donor
+				= new ConcurrentHeapPriorityQueue<Integer>();
+		donor.offerAll(Arrays.asList(25, 1, 40, 2, 15));
+		List<Integer> rejected = new ArrayList<Integer>();
+		assertEquals(3, queue.meld(donor, rejected));
+		assertTrue(donor.isEmpty());
+		Collections.sort(rejected);
+		assertEquals(Arrays.asList(25, 40), rejected);
+		assertEquals(Arrays.asList(1, 2, 10, 15), queue.pollBatch(4));
+	}
+
+	@Test
+	public void meldOfIncomparableItemsRejectsThemAll() {
+		ConcurrentHeapPriorityQueue<Object> queue
+				= new ConcurrentHeapPriorityQueue<Object>();
+		ConcurrentHeapPriorityQueue<Object> donor
+				= new ConcurrentHeapPriorityQueue.Builder<Object>()
+				.comparator(new Comparator<Object>() {
+					public int compare(Object a, Object b) {
+						return Integer.compare(a.hashCode(), b.hashCode());
+					}
+				})
+				.build();
+		donor.offer(1);
+		donor.offer(new Object());
+		List<Object> rejected = new ArrayList<Object>();
+		try {
+			queue.meld(donor, rejected);
+			fail("Expected a ClassCastException");
+		} catch (ClassCastException e) {
+			// Expected
+		}
+		assertTrue(queue.isEmpty());
+		assertTrue(donor.isEmpty());
+		assertEquals(2, rejected.size());
+	}
+
+	@Test
+	public void concurrentMeld() throws Exception {
+		final int numItems = NUM_BATCHES * BATCH_SZ;
+		final ConcurrentHeapPriorityQueue<Integer> queue
+				= new ConcurrentHeapPriorityQueue<Integer>(10,
+						CountingMode.LOCK_FREE),
+				donor = new ConcurrentHeapPriorityQueue<Integer>(10,
+						CountingMode.LOCK_FREE);
+		final AtomicIntegerArray removed = new AtomicIntegerArray(numItems);
+		final List<Integer> rejected
+				= Collections.synchronizedList(new ArrayList<Integer>());
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Future<?>> results = new ArrayList<Future<?>>();
+		for (int t = 0; t < NUM_THREADS; t++) {
+			final int thread = t;
+			results.add(this.pool.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					int perThread = numItems / NUM_THREADS;
+					Integer item;
+					start.await();
+					for (int i = 0; i < perThread; i++) {
+						donor.offer(thread * perThread + i);
+						if (i % 100 == 0)
+							queue.meld(donor, rejected);
+						else if (i % 2 == 0
+								&& (item = queue.poll()) != null)
+							assertEquals(0, removed.getAndIncrement(item));
+					}
+					return null;
+				}
+			}));
+		}
+		start.countDown();
+		for (Future<?> f : results)
+			f.get(60, TimeUnit.SECONDS);
+
+		queue.meld(donor, rejected);
+		assertTrue(donor.isEmpty());
+		assertTrue(rejected.isEmpty());
+		Integer prev = null, item;
+		while ((item = queue.poll()) != null) {
+			assertTrue(prev == null || prev <= item);
+			assertEquals(0, removed.getAndIncrement(item));
+			prev = item;
+		}
+		for (int i = 0; i < numItems; i++)
+			assertEquals(1, removed.get(i));
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void statsNotCollectedByDefault() {
+		new ConcurrentHeapPriorityQueue<Integer>().getStats();
+	}
+
+	@Test
+	public void statsCountSiftsAndCountLock() {
+		final int n = 1023;  // Fills rows 0-9
+		ConcurrentHeapPriorityQueue<Integer> queue
+				= new ConcurrentHeapPriorityQueue.Builder<Integer>()
+				.collectStats(true)
+				.build();
+		// Each item is the smallest so far, so it sifts up to the root
+		for (int i = n; i > 0; i--)
+			queue.offer(i);
+		Stats stats = queue.getStats();
+		long[] siftUps = stats.getSiftUpDepths();
+		for (int row = 0; row < 10; row++)
+			assertEquals(1L << row, siftUps[row]);
+		assertEquals(0L, siftUps[10]);
+
+		for (int i = 1; i <= n; i++)
+			assertEquals(Integer.valueOf(i), queue.poll());
+		stats = queue.getStats();
+		assertEquals(2L * n, stats.getCountLockAcquisitions());
+		assertEquals(0L, stats.getCountLockContentions());
+		assertEquals(0L, sum(stats.getNodeLockContentionByLevel()));
+		assertTrue(sum(stats.getSiftDownDepths()) > 0L);
+		assertTrue(sum(stats.getSiftDownDepths()) <= n);
+		assertEquals(0L, stats.getParentEmptyRetries()
+				+ stats.getTagChangedRetries());
+	}
+
+	@Test
+	public void slowOperationsAreRecordedAsJfrEvents() throws Exception {
+		ConcurrentHeapPriorityQueue<Integer> queue
+				= new ConcurrentHeapPriorityQueue.Builder<Integer>()
+				.collectStats(true)
+				.slowOperationThreshold(0L, TimeUnit.NANOSECONDS)
+				.build();
+		Path dump = Files.createTempFile("slow-heap-ops", ".jfr");
+		try (Recording recording = new Recording()) {
+			recording.enable("info.willdspann.collections.SlowHeapOperation");
+			recording.start();
+			for (int i = 0; i < 10; i++)
+				queue.offer(i);
+			for (int i = 0; i < 5; i++)
+				queue.poll();
+			recording.stop();
+			recording.dump(dump);
+
+			int offers = 0, polls = 0;
+			for (RecordedEvent event : RecordingFile.readAllEvents(dump)) {
+				if ("offer".equals(event.getString("operation")))
+					offers++;
+				else if ("poll".equals(event.getString("operation")))
+					polls++;
+			}
+			assertEquals(10, offers);
+			assertEquals(5, polls);
+		} finally {
+			Files.delete(dump);
+		}
+		assertEquals(15L, queue.getStats().getSlowOperations());
+	}
+
+	@Test
+	public void statsMBean() throws Exception {
+		ConcurrentHeapPriorityQueue<Integer> queue
+				= new ConcurrentHeapPriorityQueue.Builder<Integer>()
+				.collectStats(true)
+				.build();
+		ObjectName name = new ObjectName("info.willdspann.collections:"
+				+ "type=ConcurrentHeapPriorityQueue,name=statsMBean");
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		queue.registerMBean(name);
+		try {
+			queue.offer(2);
+			queue.offer(1);
+			assertEquals(2, server.getAttribute(name, "Size"));
+			assertEquals(2L, server.getAttribute(name,
+					"CountLockAcquisitions"));
+			long[] siftUps = (long[]) server.getAttribute(name,
+					"SiftUpDepths");
+			assertEquals(1L, siftUps[0]);
+			assertEquals(1L, siftUps[1]);
+		} finally {
+			server.unregisterMBean(name);
+		}
+	}
+
+	@Test
+	public void concurrentStatsLockFree() throws Exception {
+		final ConcurrentHeapPriorityQueue<Integer> queue
+				= new ConcurrentHeapPriorityQueue.Builder<Integer>()
+				.countingMode(CountingMode.LOCK_FREE)
+				.collectStats(true)
+				.build();
+		final int perThread = NUM_BATCHES * BATCH_SZ / NUM_THREADS;
+		List<Future<?>> results = new ArrayList<Future<?>>();
+		for (int t = 0; t < NUM_THREADS; t++) {
+			final int seed = t;
+			results.add(this.pool.submit(new Callable<Void>() {
+				public Void call() {
+					Random rand = new Random(seed);
+					for (int i = 0; i < perThread; i++) {
+						queue.offer(rand.nextInt(100000));
+						if (i % 2 == 1)
+							assertNotNull(queue.poll());
+					}
+					return null;
+				}
+			}));
+		}
+		for (Future<?> f : results)
+			f.get(60, TimeUnit.SECONDS);
+
+		Stats stats = queue.getStats();
+		// Every insert is counted once, however many retries it took
+		assertEquals((long) NUM_THREADS * perThread,
+				sum(stats.getSiftUpDepths()));
+		assertEquals(0L, stats.getCountLockAcquisitions());
+		assertEquals(NUM_THREADS * perThread / 2, queue.size());
+	}
+
+	@Test
+	public void concurrentPollAsync() throws Exception {
+		final int numItems = NUM_BATCHES * BATCH_SZ;
+		final ConcurrentHeapPriorityQueue<Integer> queue
+				= new ConcurrentHeapPriorityQueue<Integer>(10,
+						CountingMode.LOCK_FREE);
+		final AtomicIntegerArray removed = new AtomicIntegerArray(numItems);
+		List<Future<?>> results = new ArrayList<Future<?>>();
+		for (int t = 0; t < NUM_THREADS; t++) {
+			final int base = t * (numItems / NUM_THREADS);
+			results.add(this.pool.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					List<CompletableFuture<Integer>> futures
+							= new ArrayList<CompletableFuture<Integer>>();
+					for (int i = 0; i < numItems / NUM_THREADS; i++) {
+						futures.add(queue.pollAsync());
+						queue.offer(base + i);
+					}
+					for (CompletableFuture<Integer> f : futures)
+						assertEquals(0, removed.getAndIncrement(
+								f.get(60, TimeUnit.SECONDS)));
+					return null;
+				}
+			}));
+		}
+		for (Future<?> f : results)
+			f.get(60, TimeUnit.SECONDS);
+
+		assertTrue(queue.isEmpty());
+		for (int i = 0; i < numItems; i++)
+			assertEquals(1, removed.get(i));
+	}
+
+
+	/**
+	 * Checks that a queue built from a collection holds its items in a
+	 * valid heap, whose counter allows further inserts & deletes.
+	 */
+	private void testBulkConstruction(CountingMode mode, int n) {
+		List<Integer> items = new ArrayList<Integer>();
+		Random rand = new Random(n);
+		for (int i = 0; i < n; i++)
+			items.add(rand.nextInt(n));
+		ConcurrentHeapPriorityQueue<Integer> queue
+				= new ConcurrentHeapPriorityQueue.Builder<Integer>()
+				.countingMode(mode)
+				.build(items);
+		assertEquals(n, queue.size());
+
+		queue.offer(-1);
+		queue.offer(n);
+		items.add(-1);
+		items.add(n);
+		Collections.sort(items);
+		for (int item : items)
+			assertEquals(Integer.valueOf(item), queue.poll());
+		assertNull(queue.poll());
+	}
+
+	/**
+	 * Checks that no poll returns a larger item than one that's still in
+	 * the queue: Each thread offers a unique item, in random order, then
+	 * polls. So every smaller item whose offer ended before a poll started
+	 * must have been taken by a poll that started before it ended.
+	 * <p>
+	 * The one exception is an item in transit: A delete that took it from
+	 * the bottom of the heap puts it in the root, in place of the root's
+	 * item, if that's smaller. So if a smaller item is inserted (& reaches
+	 * the root) while it's in transit, it may be taken by a later poll.
+	 * That's only allowed if some poll that started before the poll ended
+	 * took an even smaller item, whose offer ended after the poll started.
+	 */
+	private void testPollNeverPassesOverSmallerItem(CountingMode mode)
+			throws Exception
+	{
+		final int perThread = NUM_BATCHES * BATCH_SZ / NUM_THREADS;
+		final int numItems = NUM_THREADS * perThread;
+		final ConcurrentHeapPriorityQueue<Integer> queue
+				= new ConcurrentHeapPriorityQueue<Integer>(1, mode);
+		final AtomicLong clock = new AtomicLong();
+		// Per item ID: its value, the time its offer ended, & the start time
+		// of its poll
+		final int[] values = new int[numItems];
+		final long[] offeredAt = new long[numItems];
+		final long[] polledAt = new long[numItems];
+		// Per poll: its item's ID, start & end times
+		final AtomicInteger numPolls = new AtomicInteger();
+		final int[] pollItems = new int[numItems];
+		final long[] pollStarts = new long[numItems],
+				pollEnds = new long[numItems];
+		List<Future<?>> results = new ArrayList<Future<?>>();
+		for (int t = 0; t < NUM_THREADS; t++) {
+			final int thread = t;
+			results.add(this.pool.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					Random rand = new Random(thread);
+					for (int i = 0; i < perThread; i++) {
+						int id = thread * perThread + i;
+						int item = values[id] = rand.nextInt(100) * numItems
+								+ id;
+						queue.offer(item);
+						offeredAt[id] = clock.incrementAndGet();
+						long start = clock.incrementAndGet();
+						Integer polled = queue.poll();
+						long end = clock.incrementAndGet();
+						assertNotNull(polled);
+						polledAt[polled % numItems] = start;
+						int p = numPolls.getAndIncrement();
+						pollItems[p] = polled % numItems;
+						pollStarts[p] = start;
+						pollEnds[p] = end;
+					}
+					return null;
+				}
+			}));
+		}
+		for (Future<?> f : results)
+			f.get(60, TimeUnit.SECONDS);
+		assertNull(queue.poll());
+
+		// Replay the offer ends, poll starts & poll ends in time order,
+		// tracking which items are in the queue
+		int numTimes = (int) clock.get() + 1;
+		int[] offerEndOf = new int[numTimes], pollStartOf = new int[numTimes],
+				pollEndOf = new int[numTimes];
+		Arrays.fill(offerEndOf, -1);
+		Arrays.fill(pollStartOf, -1);
+		Arrays.fill(pollEndOf, -1);
+		for (int x = 0; x < numItems; x++)
+			offerEndOf[(int) offeredAt[x]] = x;
+		for (int p = 0; p < numItems; p++) {
+			pollStartOf[(int) pollStarts[p]] = p;
+			pollEndOf[(int) pollEnds[p]] = p;
+		}
+		Set<Integer> queued = new HashSet<Integer>();
+		for (int time = 1; time < numTimes; time++) {
+			int x = offerEndOf[time];
+			if (x >= 0 && polledAt[x] > time)
+				queued.add(x);
+			if (pollStartOf[time] >= 0)
+				queued.remove(pollItems[pollStartOf[time]]);
+			int p = pollEndOf[time];
+			if (p < 0)
+				continue;
+			// The smallest item passed over by poll 'p', if any
+			int passedOver = -1;
+			for (int y : queued) {
+				if (offeredAt[y] < pollStarts[p]
+						&& values[y] < values[pollItems[p]]
+						&& (passedOver < 0
+								|| values[y] < values[passedOver]))
+				{
+					passedOver = y;
+				}
+			}
+			if (passedOver < 0)
+				continue;
+			boolean inTransit = false;
+			for (int r = 0; r < numItems && !inTransit; r++) {
+				int z = pollItems[r];
+				inTransit = pollStarts[r] < pollEnds[p]
+						&& values[z] < values[passedOver]
+						&& offeredAt[z] > pollStarts[p];
+			}
+			assertTrue("Item " + values[passedOver] + " was passed over by "
+					+ values[pollItems[p]], inTransit);
+		}
+	}
+
+	private static long sum(long[] counts) {
+		long sum = 0L;
+		for (long count : counts)
+			sum += count;
+		return sum;
+	}
+
+	/**
+	 * Checks that a meld moves all of the donor's items into the queue,
+	 * which then holds a valid heap of both queues' items.
+	 */
+	private void testMeld(CountingMode mode, int n, int donated) {
+		List<Integer> items = new ArrayList<Integer>();
+		Random rand = new Random(donated);
+		ConcurrentHeapPriorityQueue<Integer> queue
+				= new ConcurrentHeapPriorityQueue<Integer>(10, mode);
+		ConcurrentHeapPriorityQueue<Integer> donor
+				= new ConcurrentHeapPriorityQueue<Integer>(10, mode);
+		for (int i = 0; i < n + donated; i++) {
+			int item = rand.nextInt(n + donated);
+			items.add(item);
+			if (i < n)
+				queue.offer(item);
+			else
+				donor.offer(item);
+		}
+		List<Integer> rejected = new ArrayList<Integer>();
+		assertEquals(donated, queue.meld(donor, rejected));
+		assertTrue(rejected.isEmpty());
+		assertTrue(donor.isEmpty());
+		assertNull(donor.poll());
+		assertEquals(n + donated, queue.size());
+
+		// The merged heap still accepts inserts & deletes
+		queue.offer(-1);
+		items.add(-1);
+		Collections.sort(items);
+		for (int item : items)
+			assertEquals(Integer.valueOf(item), queue.poll());
+		assertNull(queue.poll());
+	}
+
+	/**
+	 * Checks that a key-mode queue orders items that aren't
+	 * {@code Comparable} by their keys, through inserts, batches, handle
+	 * updates, removals & a bulk construction, and that each item's key
+	 * is only computed when the item enters the queue.
+	 */
+	private void testLongKeysComputedOnce(CountingMode mode) {
+		final AtomicLong keyCalls = new AtomicLong();
+		ConcurrentHeapPriorityQueue.Builder<long[]> builder
+				= new ConcurrentHeapPriorityQueue.Builder<long[]>()
+				.countingMode(mode)
+				.longKey(item -> {
+					keyCalls.incrementAndGet();
+					return item[0];
+				});
+		ConcurrentHeapPriorityQueue<long[]> queue = builder.build();
+		Random rand = new Random(7);
+		List<Long> expected = new ArrayList<Long>();
+		List<long[]> batch = new ArrayList<long[]>();
+		for (int i = 0; i < 3000; i++) {
+			long key = rand.nextInt(100000);
+			expected.add(key);
+			if (i % 3 == 0)
+				batch.add(new long[] { key });
+			else
+				queue.offer(new long[] { key });
+		}
+		queue.offerAll(batch);
+		assertEquals(3000, keyCalls.get());
+
+		// Re-prioritize an item, w/ one key computation
+		Handle<long[]> handle = queue.offerHandle(new long[] { 50000 });
+		handle.updatePriority(new long[] { -1 });
+		expected.add(-1L);
+		assertEquals(3002, keyCalls.get());
+
+		Collections.sort(expected);
+		int i = 0;
+		for (long[] item : queue.pollBatch(100))
+			assertEquals((long) expected.get(i++), item[0]);
+		long[] item;
+		while ((item = queue.poll()) != null)
+			assertEquals((long) expected.get(i++), item[0]);
+		assertEquals(expected.size(), i);
+		// A batch poll computes its items' keys once more, outside the heap
+		assertEquals(3102, keyCalls.get());
+
+		List<long[]> items = new ArrayList<long[]>();
+		for (int j = 100; j > 0; j--)
+			items.add(new long[] { j });
+		queue = builder.build(items);
+		for (int j = 1; j <= 100; j++)
+			assertEquals(j, queue.poll()[0]);
+	}
+
+	/**
+	 * Checks that concurrent batches, single inserts & deletes on a
+	 * key-mode queue neither lose nor duplicate items, and that the queue
+	 * is left in order.
+	 */
+	private void testConcurrentKeyedBatches(CountingMode mode)
+			throws Exception
+	{
+		final int perThread = NUM_BATCHES * BATCH_SZ / NUM_THREADS;
+		final ConcurrentHeapPriorityQueue<long[]> queue
+				= new ConcurrentHeapPriorityQueue.Builder<long[]>()
+				.countingMode(mode)
+				.longKey(item -> item[0])
+				.build();
+		final AtomicIntegerArray removed
+				= new AtomicIntegerArray(NUM_THREADS * perThread);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (int t = 0; t < NUM_THREADS; t++) {
+			final int base = t * perThread;
+			futures.add(this.pool.submit(new Callable<Void>() {
+				public Void call() {
+					for (int i = 0; i < perThread; i += 100) {
+						List<long[]> batch = new ArrayList<long[]>();
+						for (int j = i; j < i + 50; j++)
+							batch.add(new long[] { base + j });
+						queue.offerAll(batch);
+						for (int j = i + 50; j < i + 100; j++)
+							queue.offer(new long[] { base + j });
+						for (long[] item : queue.pollBatch(30))
+							assertEquals(0, removed.getAndIncrement((int) item[0]));
+						long[] item;
+						for (int j = 0; j < 30 && (item = queue.poll()) != null; j++)
+							assertEquals(0, removed.getAndIncrement((int) item[0]));
+					}
+					return null;
+				}
+			}));
+		}
+		for (Future<?> future : futures)
+			future.get(60, TimeUnit.SECONDS);
+
+		long prev = -1;
+		long[] item;
+		while ((item = queue.poll()) != null) {
+			assertTrue(prev <= item[0]);
+			assertEquals(0, removed.getAndIncrement((int) item[0]));
+			prev = item[0];
+		}
+		for (int i = 0; i < removed.length(); i++)
+			assertEquals(1, removed.get(i));
+	}
+
+	/**
+	 * Checks that a drained queue's heap is trimmed to its size, and that
+	 * the queue still orders its items, and regrows, after a trim.
+	 */
+	private void testTrimToSize(CountingMode mode) {
+		ConcurrentHeapPriorityQueue<Integer> queue
+				= new ConcurrentHeapPriorityQueue<Integer>(10, mode);
+		for (int i = 10000; i > 0; i--)
+			queue.offer(i);
+		int peakCap = queue.heapCapacity();
+		for (int i = 1; i <= 9900; i++)
+			assertEquals(Integer.valueOf(i), queue.poll());
+
+		queue.trimToSize();
+		assertTrue(queue.heapCapacity() < peakCap);
+		assertTrue(queue.heapCapacity() >= queue.size());
+		for (int i = 0; i < 1000; i++)
+			queue.offer(-i);
+		for (int i = 999; i >= 0; i--)
+			assertEquals(Integer.valueOf(-i), queue.poll());
+		for (int i = 9901; i <= 10000; i++)
+			assertEquals(Integer.valueOf(i), queue.poll());
+		assertNull(queue.poll());
+	}
+
+	/**
+	 * Checks that bursts of concurrent inserts & deletes, into a queue
+	 * that trims itself on drain (and is trimmed explicitly meanwhile),
+	 * neither lose nor duplicate items.
+	 */
+	private void testConcurrentTrimOnDrain(CountingMode mode)
+			throws Exception
+	{
+		final ConcurrentHeapPriorityQueue<Integer> queue
+				= new ConcurrentHeapPriorityQueue.Builder<Integer>()
+				.initialCapacity(1)
+				.countingMode(mode)
+				.trimOnDrain(true)
+				.build();
+		final int perThread = NUM_BATCHES * BATCH_SZ / 10;
+		final AtomicLong polledSum = new AtomicLong();
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (int t = 0; t < NUM_THREADS; t++) {
+			final int base = t * perThread;
+			futures.add(this.pool.submit(new Runnable() {
+				public void run() {
+					// Alternate bursts of inserts w/ full drains
+					for (int i = 0; i < perThread; i += 500) {
+						for (int j = i; j < i + 500; j++)
+							queue.offer(base + j);
+						Integer item;
+						int n = 0;
+						while (n < 500 && (item = queue.poll()) != null) {
+							polledSum.addAndGet(item);
+							n++;
+						}
+						if ((i & 1023) == 0)
+							queue.trimToSize();
+					}
+				}
+			}));
+		}
+		for (Future<?> future : futures)
+			future.get(60, TimeUnit.SECONDS);
+
+		Integer item;
+		while ((item = queue.poll()) != null)
+			polledSum.addAndGet(item);
+		long n = (long) NUM_THREADS * perThread;
+		assertEquals(n * (n - 1) / 2, polledSum.get());
+		assertTrue(queue.heapCapacity() < 1023);
+	}
+
+	/**
+	 * Checks that concurrent inserts, which grow a queue of initial
+	 * capacity 1 across many heap segments (one per row past the first),
+	 * neither lose nor duplicate items, & leave them in heap order. The
+	 * threads' items interleave, so each row fills w/ all their items.
+	 */
+	private void testConcurrentGrowthAcrossSegments(CountingMode mode)
+			throws Exception
+	{
+		final ConcurrentHeapPriorityQueue<Integer> queue
+				= new ConcurrentHeapPriorityQueue.Builder<Integer>()
+				.initialCapacity(1)
+				.countingMode(mode)
+				.build();
+		final int perThread = NUM_BATCHES * BATCH_SZ / 2;
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (int t = 0; t < NUM_THREADS; t++) {
+			final int thread = t;
+			futures.add(this.pool.submit(new Runnable() {
+				public void run() {
+					// Alternate single offers w/ small batches, in descending
+					// order, so new items sift up through every segment
+					List<Integer> batch = new ArrayList<Integer>();
+					for (int i = perThread - 1; i >= 0; i--) {
+						int item = i * NUM_THREADS + thread;
+						if ((i & 64) == 0) {
+							queue.offer(item);
+						} else {
+							batch.add(item);
+							if (batch.size() == 16) {
+								queue.offerAll(batch);
+								batch.clear();
+							}
+						}
+					}
+					queue.offerAll(batch);
+				}
+			}));
+		}
+		for (Future<?> future : futures)
+			future.get(60, TimeUnit.SECONDS);
+
+		int n = NUM_THREADS * perThread;
+		assertEquals(n, queue.size());
+		// Segment 0 is the single root row, so the ~17 rows below it each
+		// crossed a segment boundary
+		assertTrue(queue.heapCapacity() >= n);
+		for (int i = 0; i < n; i++)
+			assertEquals(Integer.valueOf(i), queue.poll());
+		assertNull(queue.poll());
+	}
+
+	/**
+	 * Checks that a full, bounded queue rejects offers until an item is
+	 * removed, and that a rejected add() throws.
+	 */
+	private void testBoundedRejects(CountingMode mode) {
+		ConcurrentHeapPriorityQueue<Integer> queue
+				= new ConcurrentHeapPriorityQueue.Builder<Integer>()
+				.capacity(3)
+				.countingMode(mode)
+				.build();
+		assertEquals(3, queue.getMaxSize());
+		assertTrue(queue.offer(5));
+		assertTrue(queue.offer(1));
+		assertNotNull(queue.offerHandle(3));
+		assertFalse(queue.offer(0));
+		assertNull(queue.offerHandle(0));
+		try {
+			queue.add(0);
+			fail("add() to a full queue");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+		assertEquals(0, queue.offerAll(Arrays.asList(9, 8)));
+		assertEquals(3, queue.size());
+
+		assertEquals(Integer.valueOf(1), queue.poll());
+		assertTrue(queue.offer(0));
+		assertEquals(Integer.valueOf(0), queue.poll());
+		assertEquals(Integer.valueOf(3), queue.poll());
+		assertEquals(Integer.valueOf(5), queue.poll());
+		assertNull(queue.poll());
+	}
+
+	/**
+	 * Checks that batch inserts, interleaved w/ single inserts, are removed
+	 * by batch deletes in ascending order.
+	 */
+	private void testOfferAllPollBatch(CountingMode mode) {
+		ConcurrentHeapPriorityQueue<Integer> queue
+				= new ConcurrentHeapPriorityQueue<Integer>(10, mode);
+		List<Integer> expected = new ArrayList<Integer>();
+		Random rand = new Random(1);
+		for (int b = 0; b < 5; b++) {
+			List<Integer> batch = new ArrayList<Integer>();
+			for (int i = 0; i < BATCH_SZ; i++)
+				batch.add(rand.nextInt());
+			assertEquals(BATCH_SZ, queue.offerAll(batch));
+			queue.offer(rand.nextInt(100));
+			expected.addAll(batch);
+		}
+		assertEquals(5 * (BATCH_SZ + 1), queue.size());
+
+		List<Integer> actual = new ArrayList<Integer>();
+		List<Integer> batch;
+		while (!(batch = queue.pollBatch(333)).isEmpty()) {
+			assertTrue(batch.size() <= 333);
+			actual.addAll(batch);
+		}
+		assertEquals(5 * (BATCH_SZ + 1), actual.size());
+		for (int i = 1; i < actual.size(); i++)
+			assertTrue(actual.get(i - 1) <= actual.get(i));
+		assertTrue(queue.isEmpty());
+	}
+
+	/**
+	 * Checks that concurrent batch inserts & deletes neither lose nor
+	 * duplicate items.
+	 */
+	private void testConcurrentBatches(CountingMode mode) throws Exception {
+		final ConcurrentHeapPriorityQueue<Integer> queue
+				= new ConcurrentHeapPriorityQueue<Integer>(10, mode);
+		final AtomicLong offerSum = new AtomicLong(), pollSum = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Future<?>> results = new ArrayList<Future<?>>();
+		for (int t = 0; t < NUM_THREADS; t++) {
+			final int seed = t;
+			results.add(this.pool.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					Random rand = new Random(seed);
+					start.await();
+					for (int b = 0; b < NUM_BATCHES; b++) {
+						List<Integer> batch = new ArrayList<Integer>();
+						for (int i = 0; i < BATCH_SZ / 10; i++) {
+							int item = rand.nextInt(1000);
+							offerSum.addAndGet(item);
+							batch.add(item);
+						}
+						queue.offerAll(batch);
+						for (int item : queue.pollBatch(BATCH_SZ / 20))
+							pollSum.addAndGet(item);
+					}
+					return null;
+				}
+			}));
+		}
+		start.countDown();
+		for (Future<?> f : results)
+			f.get(60, TimeUnit.SECONDS);
+
+		List<Integer> rest = new ArrayList<Integer>();
+		queue.drainTo(rest);
+		for (int item : rest)
+			pollSum.addAndGet(item);
+		assertEquals(offerSum.get(), pollSum.get());
+		assertTrue(queue.isEmpty());
+	}
+
+	/**
+	 * Checks that concurrent single inserts & deletes, which contend for
+	 * the root's lock, neither lose nor duplicate items under the specified
+	 * lock policy, and leave a valid heap behind.
+	 */
+	private void testConcurrentOfferPoll(LockPolicy policy) throws Exception {
+		final ConcurrentHeapPriorityQueue<Integer> queue
+				= new ConcurrentHeapPriorityQueue.Builder<Integer>()
+				.countingMode(CountingMode.LOCK_FREE)
+				.lockPolicy(policy)
+				.build();
+		final AtomicLong offerSum = new AtomicLong(), pollSum = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Future<?>> results = new ArrayList<Future<?>>();
+		for (int t = 0; t < NUM_THREADS; t++) {
+			final int seed = t;
+			results.add(this.pool.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					Random rand = new Random(seed);
+					Integer item;
+					start.await();
+					for (int i = 0; i < NUM_BATCHES * BATCH_SZ / 10; i++) {
+						int next = rand.nextInt(1000);
+						offerSum.addAndGet(next);
+						queue.offer(next);
+						if (i % 3 != 0 && (item = queue.poll()) != null)
+							pollSum.addAndGet(item);
+					}
+					return null;
+				}
+			}));
+		}
+		start.countDown();
+		for (Future<?> f : results)
+			f.get(60, TimeUnit.SECONDS);
+
+		Integer prev = null, item;
+		while ((item = queue.poll()) != null) {
+			assertTrue(prev == null || prev <= item);
+			pollSum.addAndGet(item);
+			prev = item;
+		}
+		assertEquals(offerSum.get(), pollSum.get());
+	}
+
+	/**
+	 * Checks that items cancelled, re-prioritized & polled concurrently are
+	 * each removed exactly once, and that a cancel only succeeds for an
+	 * item that hasn't been polled.
+	 */
+	private void testConcurrentCancelPoll(CountingMode mode) throws Exception {
+		final int numItems = NUM_BATCHES * BATCH_SZ;
+		final ConcurrentHeapPriorityQueue<Integer> queue
+				= new ConcurrentHeapPriorityQueue<Integer>(10, mode);
+		final List<Handle<Integer>> handles = new ArrayList<Handle<Integer>>();
+		for (int i = 0; i < numItems; i++)
+			handles.add(queue.offerHandle(i));
+		// Items are their own indexes, so each may only be removed once
+		final AtomicIntegerArray removed = new AtomicIntegerArray(numItems);
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Future<?>> results = new ArrayList<Future<?>>();
+		for (int t = 0; t < NUM_THREADS; t++) {
+			final int seed = t;
+			results.add(this.pool.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					Random rand = new Random(seed);
+					Integer item;
+					start.await();
+					for (int i = 0; i < numItems / NUM_THREADS; i++) {
+						Handle<Integer> h = handles.get(rand.nextInt(numItems));
+						switch (rand.nextInt(3)) {
+						case 0:
+							if (h.cancel())
+								assertEquals(0, removed.getAndIncrement(h.get()));
+							break;
+						case 1:
+							// Re-prioritize w/ an equal item
+							h.updatePriority(h.get());
+							break;
+						default:
+							if ((item = queue.poll()) != null)
+								assertEquals(0, removed.getAndIncrement(item));
+						}
+					}
+					return null;
+				}
+			}));
+		}
+		start.countDown();
+		for (Future<?> f : results)
+			f.get(60, TimeUnit.SECONDS);
+
+		Integer prev = null, item;
+		while ((item = queue.poll()) != null) {
+			assertTrue(prev == null || prev <= item);
+			assertEquals(0, removed.getAndIncrement(item));
+			prev = item;
+		}
+		for (int i = 0; i < numItems; i++) {
+			assertEquals(1, removed.get(i));
+			assertFalse(handles.get(i).isQueued());
+		}
+	}
+}
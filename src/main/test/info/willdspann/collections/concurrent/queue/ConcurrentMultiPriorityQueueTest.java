@@ -0,0 +1,188 @@
+package info.willdspann.collections.concurrent.queue;
+
+import java.util.*;  // List, ArrayList, Collections, Random, TreeSet
+import java.util.concurrent.*;  // ExecutorService, Executors, Future, TimeUnit
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.*;  // Test, Before, After
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.*;
+
+/**
+ * JUnit test for {@code ConcurrentMultiPriorityQueue}.
+ *
+ * @author Will D. Spann
+ * @version 1.2
+ */
+@RunWith(JUnit4.class)
+public class ConcurrentMultiPriorityQueueTest {
+	private static final int NUM_ITEMS = 10000, NUM_PAIRS = 4;
+	private ExecutorService pool;   // Init. by setup().
+
+
+	@Before
+	public void setup() {
+		this.pool = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void teardown() {
+		this.pool.shutdownNow();
+	}
+
+
+	@Test
+	public void singleShardIsStrictlyOrdered() {
+		ConcurrentMultiPriorityQueue<Integer> queue
+				= new ConcurrentMultiPriorityQueue<Integer>(1, 1);
+		Random rand = new Random(1);
+		for (int i = 0; i < NUM_ITEMS; i++)
+			queue.offer(rand.nextInt());
+
+		int prev = Integer.MIN_VALUE;
+		Integer item;
+		while ((item = queue.poll()) != null) {
+			assertTrue(prev <= item);
+			prev = item;
+		}
+	}
+
+	@Test
+	public void pollRemovesEveryItem() {
+		ConcurrentMultiPriorityQueue<Integer> queue
+				= new ConcurrentMultiPriorityQueue<Integer>(4, 4);
+		for (int i = 0; i < NUM_ITEMS; i++)
+			queue.offer(i);
+		assertEquals(NUM_ITEMS, queue.size());
+
+		boolean[] seen = new boolean[NUM_ITEMS];
+		Integer item;
+		while ((item = queue.poll()) != null) {
+			assertFalse(seen[item]);
+			seen[item] = true;
+		}
+		for (boolean s : seen)
+			assertTrue(s);
+		assertTrue(queue.isEmpty());
+	}
+
+	/**
+	 * Checks that the average rank error of deletes stays within a small
+	 * multiple of the number of shards.
+	 */
+	@Test
+	public void rankErrorIsBounded() {
+		int numShards = ConcurrentMultiPriorityQueue.shardsForRankError(8);
+		ConcurrentMultiPriorityQueue<Integer> queue
+				= new ConcurrentMultiPriorityQueue<Integer>(numShards, 1);
+		TreeSet<Integer> items = new TreeSet<Integer>();
+		for (int i = 0; i < NUM_ITEMS; i++) {
+			queue.offer(i);
+			items.add(i);
+		}
+
+		long totalRankError = 0L;
+		Integer item;
+		while ((item = queue.poll()) != null) {
+			totalRankError += items.headSet(item).size();
+			items.remove(item);
+		}
+		assertTrue(totalRankError / NUM_ITEMS <= 4 * numShards);
+	}
+
+	/**
+	 * Checks that the measured average rank error of deletes stays within
+	 * the bound that the queue was created w/.
+	 */
+	@Test
+	public void measuredRankErrorIsWithinBound() {
+		for (int maxRankError : new int[] { 0, 1, 8, 32 }) {
+			ConcurrentMultiPriorityQueue<Integer> queue
+					= ConcurrentMultiPriorityQueue.withMaxRankError(maxRankError);
+			assertEquals(maxRankError, queue.getMaxRankError());
+			List<Integer> shuffled = new ArrayList<Integer>();
+			for (int i = 0; i < NUM_ITEMS; i++)
+				shuffled.add(i);
+			Collections.shuffle(shuffled, new Random(maxRankError));
+			TreeSet<Integer> items = new TreeSet<Integer>(shuffled);
+			for (Integer item : shuffled)
+				queue.offer(item);
+
+			long totalRankError = 0L;
+			Integer item;
+			while ((item = queue.poll()) != null) {
+				totalRankError += items.headSet(item).size();
+				items.remove(item);
+			}
+			assertTrue(items.isEmpty());
+			assertTrue("Average rank error exceeds " + maxRankError,
+					totalRankError <= (long) maxRankError * NUM_ITEMS);
+		}
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void negativeRankError() {
+		ConcurrentMultiPriorityQueue.withMaxRankError(-1);
+	}
+
+	@Test
+	public void comparatorOrdersShards() {
+		ConcurrentMultiPriorityQueue<Integer> queue
+				= new ConcurrentMultiPriorityQueue<Integer>(1, 1,
+						Collections.reverseOrder());
+		queue.offer(1);
+		queue.offer(3);
+		queue.offer(2);
+
+		assertEquals(Integer.valueOf(3), queue.poll());
+		assertEquals(Integer.valueOf(2), queue.peek());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void zeroShardsPerThread() {
+		new ConcurrentMultiPriorityQueue<Integer>(0, 1);
+	}
+
+	@Test
+	public void producersConsumers() throws Exception {
+		final ConcurrentMultiPriorityQueue<Integer> queue
+				= new ConcurrentMultiPriorityQueue<Integer>(2, NUM_PAIRS);
+		final AtomicLong offerSum = new AtomicLong(), pollSum = new AtomicLong();
+		List<Future<?>> results = new ArrayList<Future<?>>();
+		for (int p = 0; p < NUM_PAIRS; p++) {
+			final int seed = p;
+			results.add(this.pool.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					Random rand = new Random(seed);
+					for (int i = 0; i < NUM_ITEMS; i++) {
+						int item = rand.nextInt(1000);
+						offerSum.addAndGet(item);
+						queue.offer(item);
+					}
+					return null;
+				}
+			}));
+			results.add(this.pool.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					Integer item;
+					for (int i = 0; i < NUM_ITEMS; ) {
+						if ((item = queue.poll()) != null) {
+							pollSum.addAndGet(item);
+							i++;
+						} else {
+							Thread.yield();
+						}
+					}
+					return null;
+				}
+			}));
+		}
+		for (Future<?> f : results)
+			f.get(60, TimeUnit.SECONDS);
+
+		assertEquals(offerSum.get(), pollSum.get());
+		assertTrue(queue.isEmpty());
+	}
+}
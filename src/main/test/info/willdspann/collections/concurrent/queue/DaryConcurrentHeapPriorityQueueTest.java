@@ -0,0 +1,134 @@
+package info.willdspann.collections.concurrent.queue;
+
+import java.util.*;  // List, ArrayList, Collections, Random
+import java.util.concurrent.*;  // ExecutorService, Executors, Future, Callable
+
+import org.junit.*;  // Test, Before, After
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import info.willdspann.collections.concurrent.queue.ConcurrentHeapPriorityQueue.LockPolicy;
+
+import static org.junit.Assert.*;
+
+/**
+ * JUnit test for {@code DaryConcurrentHeapPriorityQueue}.
+ *
+ * @author Will D. Spann
+ * @version 1.0
+ */
+@RunWith(JUnit4.class)
+public class DaryConcurrentHeapPriorityQueueTest {
+	private static final int NUM_THREADS = 4, NUM_ITEMS = 20000;
+	private ExecutorService pool;   // Init. by setup().
+
+
+	@Before
+	public void setup() {
+		this.pool = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void teardown() {
+		this.pool.shutdownNow();
+	}
+
+
+	@Test
+	public void pollsInOrder() {
+		for (int arity = 2; arity <= 16; arity <<= 1) {
+			DaryConcurrentHeapPriorityQueue<Integer> queue =
+					new DaryConcurrentHeapPriorityQueue<Integer>(arity);
+			List<Integer> items = new ArrayList<Integer>();
+			Random rand = new Random(arity);
+			for (int i = 0; i < NUM_ITEMS; i++)
+				items.add(rand.nextInt(NUM_ITEMS));
+
+			queue.addAll(items);
+			assertEquals(NUM_ITEMS, queue.size());
+			Collections.sort(items);
+			assertEquals(items.get(0), queue.peek());
+			for (Integer item : items)
+				assertEquals(item, queue.poll());
+			assertNull(queue.poll());
+			assertTrue(queue.isEmpty());
+		}
+	}
+
+	@Test
+	public void interleavedOffersAndPolls() {
+		DaryConcurrentHeapPriorityQueue<Integer> queue =
+				new DaryConcurrentHeapPriorityQueue<Integer>(8);
+		PriorityQueue<Integer> expected = new PriorityQueue<Integer>();
+		Random rand = new Random(1);
+		for (int i = 0; i < NUM_ITEMS; i++) {
+			if (rand.nextInt(3) == 0) {
+				assertEquals(expected.poll(), queue.poll());
+			} else {
+				int item = rand.nextInt(1000);
+				queue.offer(item);
+				expected.offer(item);
+			}
+		}
+		assertEquals(expected.size(), queue.size());
+	}
+
+	@Test
+	public void comparatorOrder() {
+		DaryConcurrentHeapPriorityQueue<String> queue =
+				new DaryConcurrentHeapPriorityQueue<String>(4,
+						Collections.reverseOrder());
+		queue.addAll(Arrays.asList("b", "e", "a", "d", "c"));
+
+		assertEquals(5, queue.toArray().length);
+		for (String s : Arrays.asList("e", "d", "c", "b", "a"))
+			assertEquals(s, queue.poll());
+	}
+
+	@Test
+	public void concurrentOffersAndPolls() throws Exception {
+		final DaryConcurrentHeapPriorityQueue<Integer> queue =
+				new DaryConcurrentHeapPriorityQueue<Integer>(4, 1,
+						null, LockPolicy.SPIN_THEN_PARK);
+		List<Future<Long>> results = new ArrayList<Future<Long>>();
+		for (int t = 0; t < NUM_THREADS; t++) {
+			final int base = t * NUM_ITEMS;
+			results.add(this.pool.submit(new Callable<Long>() {
+				public Long call() {
+					long polledSum = 0L;
+					for (int i = 0; i < NUM_ITEMS; i++) {
+						queue.offer(base + i);
+						if ((i & 1) == 1)
+							polledSum += queue.poll();
+					}
+					return polledSum;
+				}
+			}));
+		}
+		long sum = 0L;
+		for (Future<Long> result : results)
+			sum += result.get(60, TimeUnit.SECONDS);
+
+		// The remaining items must come out in order
+		assertEquals(NUM_THREADS * NUM_ITEMS / 2, queue.size());
+		Integer prev = null, item;
+		while ((item = queue.poll()) != null) {
+			if (prev != null)
+				assertTrue(prev <= item);
+			prev = item;
+			sum += item;
+		}
+		long n = (long) NUM_THREADS * NUM_ITEMS;
+		assertEquals(n * (n - 1) / 2, sum);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void invalidArity() {
+		new DaryConcurrentHeapPriorityQueue<Integer>(6);
+	}
+
+	@Test(expected=NullPointerException.class)
+	public void offerNull() {
+		new DaryConcurrentHeapPriorityQueue<Integer>().offer(null);
+	}
+}
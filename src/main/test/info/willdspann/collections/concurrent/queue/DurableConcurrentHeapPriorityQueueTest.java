@@ -0,0 +1,289 @@
+package info.willdspann.collections.concurrent.queue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;  // List, ArrayList, Collections, Random
+import java.util.concurrent.*;  // ExecutorService, Executors, Future, TimeUnit
+
+import org.junit.*;  // Test, Before, After
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import info.willdspann.collections.concurrent.queue.DurableConcurrentHeapPriorityQueue.Codec;
+
+import static org.junit.Assert.*;
+
+/**
+ * JUnit test for {@code DurableConcurrentHeapPriorityQueue}'s recovery of
+ * its items from its log & checkpoints.
+ *
+ * @author Will D. Spann
+ * @version 1.1
+ */
+@RunWith(JUnit4.class)
+public class DurableConcurrentHeapPriorityQueueTest {
+	/** Small segments, so that the log rotates & checkpoints often. */
+	private static final int SEGMENT_SZ = 4096, CHECKPOINT_SEGMENTS = 2;
+	private static final Codec<Integer> INT_CODEC = new Codec<Integer>() {
+		public byte[] encode(Integer item) {
+			return ByteBuffer.allocate(4).putInt(item).array();
+		}
+
+		public Integer decode(byte[] bytes) {
+			return ByteBuffer.wrap(bytes).getInt();
+		}
+	};
+	private Path dir;   // Init. by setup().
+
+
+	@Before
+	public void setup() throws IOException {
+		this.dir = Files.createTempDirectory("durable-queue");
+	}
+
+	@After
+	public void teardown() throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(this.dir)) {
+			for (Path file : files)
+				Files.delete(file);
+		}
+		Files.delete(this.dir);
+	}
+
+
+	@Test
+	public void recoversAfterClose() throws IOException {
+		List<Integer> expected = new ArrayList<Integer>();
+		Random rand = new Random(21);
+		DurableConcurrentHeapPriorityQueue<Integer> queue = open();
+		for (int i = 0; i < 3000; i++) {
+			int item = rand.nextInt(100000);
+			queue.offer(item);
+			expected.add(item);
+		}
+		Collections.sort(expected);
+		for (int i = 0; i < 1000; i++)
+			assertEquals(expected.remove(0), queue.poll());
+		queue.close();
+
+		queue = open();
+		assertEquals(expected.size(), queue.size());
+		for (int i = 0; i < 500; i++)
+			assertEquals(expected.remove(0), queue.poll());
+		queue.close();
+
+		queue = open();
+		for (Integer item : expected)
+			assertEquals(item, queue.poll());
+		assertNull(queue.poll());
+		queue.close();
+	}
+
+	@Test
+	public void checkpointFoldsFullSegments() throws IOException {
+		DurableConcurrentHeapPriorityQueue<Integer> queue = open();
+		for (int i = 0; i < 1000; i++)
+			queue.offer(i);
+		for (int i = 0; i < 400; i++)
+			assertEquals(Integer.valueOf(i), queue.poll());
+		queue.checkpoint();
+		assertEquals(1, countFiles(".ckp"));
+		// Only the current segment, & maybe a spare, are left
+		assertTrue(countFiles(".log") <= 2);
+		queue.close();
+
+		queue = open();
+		for (int i = 400; i < 1000; i++)
+			assertEquals(Integer.valueOf(i), queue.poll());
+		assertNull(queue.poll());
+		queue.close();
+	}
+
+	@Test
+	public void tornRecordIsDropped() throws IOException {
+		DurableConcurrentHeapPriorityQueue<Integer> queue = open();
+		queue.offer(3);
+		queue.offer(1);
+		queue.offer(2);
+		queue.close();
+
+		// Corrupt the ID of the 3rd record (each of which is 21 bytes)
+		Path segment = null;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(this.dir,
+				"*.log"))
+		{
+			for (Path file : files)
+				segment = file;
+		}
+		try (FileChannel channel = FileChannel.open(segment,
+				StandardOpenOption.WRITE))
+		{
+			channel.write(ByteBuffer.wrap(new byte[] { 0x7f }), 2 * 21 + 6);
+		}
+
+		queue = open();
+		assertEquals(Integer.valueOf(1), queue.poll());
+		assertEquals(Integer.valueOf(3), queue.poll());
+		assertNull(queue.poll());
+		queue.close();
+	}
+
+	@Test
+	public void removalsAreLogged() throws IOException {
+		DurableConcurrentHeapPriorityQueue<Integer> queue = open();
+		for (int i = 0; i < 10; i++)
+			queue.offer(i);
+		assertTrue(queue.remove(Integer.valueOf(4)));
+		for (Iterator<Integer> it = queue.iterator(); it.hasNext(); ) {
+			if (it.next() % 2 == 1)
+				it.remove();
+		}
+		queue.close();
+
+		queue = open();
+		for (int i : new int[] { 0, 2, 6, 8 })
+			assertEquals(Integer.valueOf(i), queue.poll());
+		assertNull(queue.poll());
+		queue.close();
+	}
+
+	@Test(expected=IOException.class)
+	public void directoryInUse() throws IOException {
+		DurableConcurrentHeapPriorityQueue<Integer> queue = open();
+		try {
+			open();
+		} finally {
+			queue.close();
+		}
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void offerAfterClose() throws IOException {
+		DurableConcurrentHeapPriorityQueue<Integer> queue = open();
+		queue.close();
+		queue.offer(1);
+	}
+
+	/**
+	 * Checks that items offered & polled concurrently, w/ syncs & log
+	 * rotations underway, are recovered exactly when they weren't polled.
+	 */
+	@Test
+	public void concurrentOffersPollsAndSyncs() throws Exception {
+		final int numThreads = 4, perThread = 5000;
+		final DurableConcurrentHeapPriorityQueue<Integer> queue = open();
+		final Set<Integer> polled = ConcurrentHashMap.newKeySet();
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int t = 0; t < numThreads; t++) {
+				final int base = t * perThread;
+				futures.add(pool.submit(new Callable<Void>() {
+					public Void call() throws IOException {
+						for (int i = 0; i < perThread; i++) {
+							queue.offer(base + i);
+							if (i % 3 == 0) {
+								Integer item = queue.poll();
+								if (item != null)
+									assertTrue(polled.add(item));
+							}
+							if (i % 1000 == 0)
+								queue.sync();
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<?> future : futures)
+				future.get(60, TimeUnit.SECONDS);
+		} finally {
+			pool.shutdownNow();
+		}
+		queue.sync();
+		queue.close();
+
+		DurableConcurrentHeapPriorityQueue<Integer> recovered = open();
+		assertEquals(numThreads * perThread - polled.size(), recovered.size());
+		Integer prev = null, item;
+		while ((item = recovered.poll()) != null) {
+			assertTrue(prev == null || prev < item);
+			assertTrue(polled.add(item));
+			prev = item;
+		}
+		assertEquals(numThreads * perThread, polled.size());
+		recovered.close();
+	}
+
+
+	/**
+	 * Checks that polls racing the queue's close() neither lose an item
+	 * (from the closed queue, or from the recovered one) nor recover a
+	 * polled one.
+	 */
+	@Test
+	public void pollsRacingClose() throws Exception {
+		final int numThreads = 4, numItems = 20000;
+		final DurableConcurrentHeapPriorityQueue<Integer> queue = open();
+		for (int i = 0; i < numItems; i++)
+			queue.offer(i);
+		final Set<Integer> polled = ConcurrentHashMap.newKeySet();
+		final CountDownLatch started = new CountDownLatch(numThreads);
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int t = 0; t < numThreads; t++) {
+				futures.add(pool.submit(new Callable<Void>() {
+					public Void call() {
+						started.countDown();
+						try {
+							Integer item;
+							while ((item = queue.poll()) != null)
+								assertTrue(polled.add(item));
+						} catch (IllegalStateException e) {
+							// Closed
+						}
+						return null;
+					}
+				}));
+			}
+			started.await();
+			queue.close();
+			for (Future<?> future : futures)
+				future.get(60, TimeUnit.SECONDS);
+		} finally {
+			pool.shutdownNow();
+		}
+		assertEquals(numItems, polled.size() + queue.size());
+
+		DurableConcurrentHeapPriorityQueue<Integer> recovered = open();
+		assertEquals(numItems - polled.size(), recovered.size());
+		Integer item;
+		while ((item = recovered.poll()) != null)
+			assertTrue(polled.add(item));
+		recovered.close();
+	}
+
+
+	private DurableConcurrentHeapPriorityQueue<Integer> open()
+			throws IOException
+	{
+		return new DurableConcurrentHeapPriorityQueue<Integer>(this.dir,
+				INT_CODEC, null, SEGMENT_SZ, 5L, CHECKPOINT_SEGMENTS);
+	}
+
+	private int countFiles(String suffix) throws IOException {
+		int n = 0;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(this.dir,
+				"*" + suffix))
+		{
+			for (@SuppressWarnings("unused") Path file : files)
+				n++;
+		}
+		return n;
+	}
+}
@@ -0,0 +1,166 @@
+package info.willdspann.collections.concurrent.queue;
+
+import java.util.*;  // List, ArrayList, Collections, Random
+import java.util.concurrent.*;  // CountDownLatch, ExecutionException, Future, ...
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.*;  // Test, Before, After
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.*;
+
+/**
+ * JUnit test for {@code FlatCombiningPriorityQueue}.
+ *
+ * @author Will D. Spann
+ * @version 1.1
+ */
+@RunWith(JUnit4.class)
+public class FlatCombiningPriorityQueueTest {
+	private static final int NUM_THREADS = 8, NUM_OPS = 20000;
+	private ExecutorService pool;   // Init. by setup().
+
+
+	@Before
+	public void setup() {
+		this.pool = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void teardown() {
+		this.pool.shutdownNow();
+	}
+
+
+	@Test
+	public void pollsInOrder() {
+		FlatCombiningPriorityQueue<Integer> queue
+				= new FlatCombiningPriorityQueue<Integer>();
+		List<Integer> items = new ArrayList<Integer>();
+		for (int i = 0; i < 1000; i++)
+			items.add(i);
+		Collections.shuffle(items, new Random(1));
+		for (int item : items)
+			assertTrue(queue.offer(item));
+
+		assertEquals(1000, queue.size());
+		for (int i = 0; i < 1000; i++)
+			assertEquals(Integer.valueOf(i), queue.poll());
+		assertNull(queue.poll());
+	}
+
+	@Test
+	public void ordersByComparator() {
+		FlatCombiningPriorityQueue<String> queue
+				= new FlatCombiningPriorityQueue<String>(
+						Collections.reverseOrder());
+		queue.addAll(Arrays.asList("b", "d", "a", "c"));
+
+		assertEquals("d", queue.peek());
+		assertTrue(queue.remove("c"));
+		assertEquals("d", queue.poll());
+		assertEquals("b", queue.poll());
+		assertEquals("a", queue.poll());
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test(expected=NullPointerException.class)
+	public void offerNull() {
+		new FlatCombiningPriorityQueue<Integer>().offer(null);
+	}
+
+	/**
+	 * Checks that when a combining pass fails, because its inserted items
+	 * can't be compared, its inserts fail in their own threads, & its
+	 * deletes are still applied, rather than any of them waiting forever.
+	 */
+	@Test
+	public void failedPassCompletesEveryRequest() throws Exception {
+		final Integer gate = 5;
+		final CountDownLatch combining = new CountDownLatch(1),
+				release = new CountDownLatch(1);
+		// Integers only; stalls the combiner that inserts 'gate'
+		final FlatCombiningPriorityQueue<Object> queue
+				= new FlatCombiningPriorityQueue<Object>(
+						new Comparator<Object>() {
+			public int compare(Object a, Object b) {
+				if (gate.equals(a) || gate.equals(b)) {
+					combining.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+				return ((Integer) a).compareTo((Integer) b);
+			}
+		});
+		queue.offer(0);
+		Future<Boolean> combiner = this.pool.submit(() -> queue.offer(gate));
+		assertTrue(combining.await(10, TimeUnit.SECONDS));
+		// Published while the combiner is stalled, so they share a pass
+		Future<Boolean> badOffer = this.pool.submit(() -> queue.offer("x"));
+		Future<Boolean> goodOffer = this.pool.submit(() -> queue.offer(3));
+		Future<Object> poll = this.pool.submit(() -> queue.poll());
+		Thread.sleep(500);
+		release.countDown();
+
+		assertTrue(combiner.get(10, TimeUnit.SECONDS));
+		for (Future<Boolean> offer : Arrays.asList(badOffer, goodOffer)) {
+			try {
+				offer.get(10, TimeUnit.SECONDS);
+				fail("Expected a ClassCastException");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof ClassCastException);
+			}
+		}
+		assertEquals(0, poll.get(10, TimeUnit.SECONDS));
+		assertEquals(gate, queue.poll());
+		assertNull(queue.poll());
+	}
+
+	/**
+	 * Checks that concurrent offers & polls, which are combined &
+	 * eliminated in batches, neither lose nor duplicate items.
+	 */
+	@Test
+	public void concurrentOfferPoll() throws Exception {
+		final FlatCombiningPriorityQueue<Integer> queue
+				= new FlatCombiningPriorityQueue<Integer>();
+		final AtomicLong offerSum = new AtomicLong(), pollSum = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Future<?>> results = new ArrayList<Future<?>>();
+		for (int t = 0; t < NUM_THREADS; t++) {
+			final int seed = t;
+			results.add(this.pool.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					Random rand = new Random(seed);
+					Integer item;
+					start.await();
+					for (int i = 0; i < NUM_OPS; i++) {
+						if (rand.nextBoolean()) {
+							int next = rand.nextInt(1000);
+							offerSum.addAndGet(next);
+							queue.offer(next);
+						} else if ((item = queue.poll()) != null) {
+							pollSum.addAndGet(item);
+						}
+					}
+					return null;
+				}
+			}));
+		}
+		start.countDown();
+		for (Future<?> f : results)
+			f.get(60, TimeUnit.SECONDS);
+
+		Integer prev = null, item;
+		while ((item = queue.poll()) != null) {
+			assertTrue(prev == null || prev <= item);
+			pollSum.addAndGet(item);
+			prev = item;
+		}
+		assertEquals(offerSum.get(), pollSum.get());
+	}
+}
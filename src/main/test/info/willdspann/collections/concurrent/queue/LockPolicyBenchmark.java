@@ -0,0 +1,109 @@
+package info.willdspann.collections.concurrent.queue;
+
+import java.util.*;  // List, ArrayList, Random
+import java.util.concurrent.*;  // CountDownLatch, ExecutorService, Executors, Future
+
+import info.willdspann.collections.concurrent.queue.ConcurrentHeapPriorityQueue.CountingMode;
+import info.willdspann.collections.concurrent.queue.ConcurrentHeapPriorityQueue.LockPolicy;
+
+/**
+ * Throughput benchmark of {@code ConcurrentHeapPriorityQueue}'s node
+ * {@link LockPolicy}s. For each policy & thread count, a {@code LOCK_FREE}
+ * queue is pre-filled w/ {@code PREFILL} items, and the threads then share
+ * {@code TOTAL_PAIRS} offer+poll pairs, after a warm-up round. Prints
+ * millions of pairs per second, as the median of {@code ROUNDS} rounds.
+ * <p>
+ * Run w/ {@code java -cp <test & main classes>
+ * info.willdspann.collections.concurrent.queue.LockPolicyBenchmark
+ * [threads...]}. The lock policies only differ once threads contend for
+ * the same node locks on different cores: on a single available
+ * processor, contention comes only from preemption, so the results are
+ * effectively uncontended, which the output notes.
+ *
+ * @author Will D. Spann
+ * @version 1.0
+ */
+public class LockPolicyBenchmark {
+	private static final int PREFILL = 10000, TOTAL_PAIRS = 400000,
+			ROUNDS = 5;
+	private static final int[] DEFAULT_THREADS = { 1, 4, 8 };
+
+
+	public static void main(String[] args) throws Exception {
+		int[] threadCounts = DEFAULT_THREADS;
+		if (args.length > 0) {
+			threadCounts = new int[args.length];
+			for (int i = 0; i < args.length; i++)
+				threadCounts[i] = Integer.parseInt(args[i]);
+		}
+		int cpus = Runtime.getRuntime().availableProcessors();
+		System.out.println("Available processors: " + cpus);
+		if (cpus == 1) {
+			System.out.println("NOTE: 1 processor, so the threads never run "
+					+ "in parallel; these numbers are uncontended.");
+		}
+
+		System.out.printf("%-16s", "policy");
+		for (int threads : threadCounts)
+			System.out.printf("%12s", threads + " thr");
+		System.out.println("   (Mpairs/s)");
+		for (LockPolicy policy : LockPolicy.values()) {
+			System.out.printf("%-16s", policy);
+			for (int threads : threadCounts) {
+				run(policy, threads);  // Warm-up
+				double[] results = new double[ROUNDS];
+				for (int r = 0; r < ROUNDS; r++)
+					results[r] = run(policy, threads);
+				Arrays.sort(results);
+				System.out.printf("%12.2f", results[ROUNDS / 2]);
+			}
+			System.out.println();
+		}
+	}
+
+	/**
+	 * Runs a round, and returns its throughput in millions of offer+poll
+	 * pairs per second.
+	 */
+	private static double run(LockPolicy policy, final int threads)
+			throws Exception
+	{
+		final ConcurrentHeapPriorityQueue<Integer> queue
+				= new ConcurrentHeapPriorityQueue.Builder<Integer>()
+				.countingMode(CountingMode.LOCK_FREE)
+				.lockPolicy(policy)
+				.build();
+		Random rand = new Random(1);
+		for (int i = 0; i < PREFILL; i++)
+			queue.offer(rand.nextInt());
+
+		final int perThread = TOTAL_PAIRS / threads;
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> results = new ArrayList<Future<?>>();
+			for (int t = 0; t < threads; t++) {
+				final int seed = t;
+				results.add(pool.submit(new Callable<Void>() {
+					public Void call() throws InterruptedException {
+						Random rand = new Random(seed);
+						start.await();
+						for (int i = 0; i < perThread; i++) {
+							queue.offer(rand.nextInt());
+							queue.poll();
+						}
+						return null;
+					}
+				}));
+			}
+			long begin = System.nanoTime();
+			start.countDown();
+			for (Future<?> f : results)
+				f.get();
+			long elapsed = System.nanoTime() - begin;
+			return (perThread * (double) threads) * 1000.0 / elapsed;
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,246 @@
+package info.willdspann.collections.concurrent.queue;
+
+import java.util.*;  // List, ArrayList, Arrays, HashSet, Random, Set
+import java.util.concurrent.*;  // ExecutorService, Executors, Future, TimeUnit
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.*;  // Test, Before, After
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.*;
+
+/**
+ * JUnit test for {@code LongPriorityConcurrentHeap}.
+ *
+ * @author Will D. Spann
+ * @version 1.3
+ */
+@RunWith(JUnit4.class)
+public class LongPriorityConcurrentHeapTest {
+	private static final int NUM_ITEMS = 10000, NUM_PAIRS = 4;
+	private ExecutorService pool;   // Init. by setup().
+
+
+	@Before
+	public void setup() {
+		this.pool = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void teardown() {
+		this.pool.shutdownNow();
+	}
+
+
+	@Test
+	public void pollInPriorityOrder() {
+		LongPriorityConcurrentHeap<String> heap
+				= new LongPriorityConcurrentHeap<String>();
+		Random rand = new Random(1);
+		for (int i = 0; i < NUM_ITEMS; i++) {
+			long priority = rand.nextLong();
+			heap.offer(priority, Long.toString(priority));
+		}
+		assertEquals(NUM_ITEMS, heap.size());
+
+		final long[] prev = { Long.MIN_VALUE };
+		for (int i = 0; i < NUM_ITEMS; i++) {
+			assertTrue(heap.pollTo((value, priority) -> {
+				assertTrue(prev[0] <= priority);
+				assertEquals(Long.toString(priority), value);
+				prev[0] = priority;
+			}));
+		}
+		assertTrue(heap.isEmpty());
+		assertNull(heap.poll());
+	}
+
+	@Test
+	public void peek() {
+		LongPriorityConcurrentHeap<String> heap
+				= new LongPriorityConcurrentHeap<String>(1);
+		heap.offer(5L, "five");
+		heap.offer(-3L, "minus three");
+		heap.offer(4L, "four");
+
+		assertEquals("minus three", heap.peek());
+		assertEquals(-3L, heap.peekPriority());
+		assertEquals("minus three", heap.poll());
+		assertEquals(4L, heap.peekPriority());
+	}
+
+	@Test(expected=NoSuchElementException.class)
+	public void peekPriorityOnEmpty() {
+		new LongPriorityConcurrentHeap<String>().peekPriority();
+	}
+
+	@Test(expected=NullPointerException.class)
+	public void offerNull() {
+		new LongPriorityConcurrentHeap<String>().offer(1L, null);
+	}
+
+	@Test
+	public void clear() {
+		LongPriorityConcurrentHeap<String> heap
+				= new LongPriorityConcurrentHeap<String>();
+		heap.offer(1L, "one");
+		heap.offer(2L, "two");
+		heap.clear();
+
+		assertTrue(heap.isEmpty());
+		assertEquals(0, heap.size());
+	}
+
+	@Test
+	public void producersConsumers() throws Exception {
+		final LongPriorityConcurrentHeap<Long> heap
+				= new LongPriorityConcurrentHeap<Long>();
+		final AtomicLong offerSum = new AtomicLong(), pollSum = new AtomicLong();
+		List<Future<?>> results = new ArrayList<Future<?>>();
+		for (int p = 0; p < NUM_PAIRS; p++) {
+			final int seed = p;
+			results.add(this.pool.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					Random rand = new Random(seed);
+					for (int i = 0; i < NUM_ITEMS; i++) {
+						long priority = rand.nextInt(1000);
+						offerSum.addAndGet(priority);
+						heap.offer(priority, priority);
+					}
+					return null;
+				}
+			}));
+			results.add(this.pool.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					Long value;
+					for (int i = 0; i < NUM_ITEMS; ) {
+						if ((value = heap.poll()) != null) {
+							pollSum.addAndGet(value);
+							i++;
+						} else {
+							Thread.yield();
+						}
+					}
+					return null;
+				}
+			}));
+		}
+		for (Future<?> f : results)
+			f.get(60, TimeUnit.SECONDS);
+
+		assertEquals(offerSum.get(), pollSum.get());
+		assertTrue(heap.isEmpty());
+	}
+
+	/**
+	 * Checks that no poll returns a larger priority than one that's still
+	 * in the heap: Each thread offers a unique priority, in random order,
+	 * then polls. So every smaller priority whose offer ended before a poll
+	 * started must have been taken by a poll that started before it ended.
+	 * <p>
+	 * The one exception is an item in transit: A delete that took it from
+	 * the bottom of the heap puts it in the root, if the root's priority is
+	 * smaller. So if a smaller priority is inserted (& reaches the root)
+	 * while it's in transit, it may be taken by a later poll. That's only
+	 * allowed if some poll that started before the poll ended took an even
+	 * smaller priority, whose offer ended after the poll started.
+	 */
+	@Test
+	public void pollNeverPassesOverSmallerItem() throws Exception {
+		final int numThreads = 4, perThread = 20000;
+		final int numItems = numThreads * perThread;
+		final LongPriorityConcurrentHeap<Integer> heap
+				= new LongPriorityConcurrentHeap<Integer>(1);
+		final AtomicLong clock = new AtomicLong();
+		// Per item ID: its priority, the time its offer ended, & the start
+		// time of its poll
+		final long[] priorities = new long[numItems];
+		final long[] offeredAt = new long[numItems];
+		final long[] polledAt = new long[numItems];
+		// Per poll: its item's ID, start & end times
+		final AtomicInteger numPolls = new AtomicInteger();
+		final int[] pollItems = new int[numItems];
+		final long[] pollStarts = new long[numItems],
+				pollEnds = new long[numItems];
+		List<Future<?>> results = new ArrayList<Future<?>>();
+		for (int t = 0; t < numThreads; t++) {
+			final int thread = t;
+			results.add(this.pool.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					Random rand = new Random(thread);
+					for (int i = 0; i < perThread; i++) {
+						int id = thread * perThread + i;
+						long priority = priorities[id]
+								= (long) rand.nextInt(100) * numItems + id;
+						heap.offer(priority, Integer.valueOf(id));
+						offeredAt[id] = clock.incrementAndGet();
+						long start = clock.incrementAndGet();
+						Integer polled = heap.poll();
+						long end = clock.incrementAndGet();
+						assertNotNull(polled);
+						polledAt[polled] = start;
+						int p = numPolls.getAndIncrement();
+						pollItems[p] = polled;
+						pollStarts[p] = start;
+						pollEnds[p] = end;
+					}
+					return null;
+				}
+			}));
+		}
+		for (Future<?> f : results)
+			f.get(60, TimeUnit.SECONDS);
+		assertNull(heap.poll());
+
+		// Replay the offer ends, poll starts & poll ends in time order,
+		// tracking which items are in the heap
+		int numTimes = (int) clock.get() + 1;
+		int[] offerEndOf = new int[numTimes], pollStartOf = new int[numTimes],
+				pollEndOf = new int[numTimes];
+		Arrays.fill(offerEndOf, -1);
+		Arrays.fill(pollStartOf, -1);
+		Arrays.fill(pollEndOf, -1);
+		for (int x = 0; x < numItems; x++)
+			offerEndOf[(int) offeredAt[x]] = x;
+		for (int p = 0; p < numItems; p++) {
+			pollStartOf[(int) pollStarts[p]] = p;
+			pollEndOf[(int) pollEnds[p]] = p;
+		}
+		Set<Integer> queued = new HashSet<Integer>();
+		for (int time = 1; time < numTimes; time++) {
+			int x = offerEndOf[time];
+			if (x >= 0 && polledAt[x] > time)
+				queued.add(x);
+			if (pollStartOf[time] >= 0)
+				queued.remove(pollItems[pollStartOf[time]]);
+			int p = pollEndOf[time];
+			if (p < 0)
+				continue;
+			// The smallest priority passed over by poll 'p', if any
+			int passedOver = -1;
+			for (int y : queued) {
+				if (offeredAt[y] < pollStarts[p]
+						&& priorities[y] < priorities[pollItems[p]]
+						&& (passedOver < 0
+								|| priorities[y] < priorities[passedOver]))
+				{
+					passedOver = y;
+				}
+			}
+			if (passedOver < 0)
+				continue;
+			boolean inTransit = false;
+			for (int r = 0; r < numItems && !inTransit; r++) {
+				int z = pollItems[r];
+				inTransit = pollStarts[r] < pollEnds[p]
+						&& priorities[z] < priorities[passedOver]
+						&& offeredAt[z] > pollStarts[p];
+			}
+			assertTrue("Priority " + priorities[passedOver]
+					+ " was passed over by " + priorities[pollItems[p]],
+					inTransit);
+		}
+	}
+}
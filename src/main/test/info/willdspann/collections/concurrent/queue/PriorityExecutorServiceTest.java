@@ -0,0 +1,217 @@
+package info.willdspann.collections.concurrent.queue;
+
+import java.util.*;  // List, ArrayList, Collections
+import java.util.concurrent.*;  // CountDownLatch, Executors, Future, TimeUnit
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.*;  // Test, After
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.*;
+
+/**
+ * JUnit test for {@code PriorityExecutorService}.
+ *
+ * @author Will D. Spann
+ * @version 1.0
+ */
+@RunWith(JUnit4.class)
+public class PriorityExecutorServiceTest {
+	private static final int NUM_SUBMITTERS = 8, NUM_TASKS = 5000;
+	private PriorityExecutorService executor;   // Init. by each test.
+
+
+	@After
+	public void teardown() throws InterruptedException {
+		if (this.executor != null) {
+			this.executor.shutdownNow();
+			assertTrue(this.executor.awaitTermination(5, TimeUnit.SECONDS));
+		}
+	}
+
+
+	@Test
+	public void workerPoolRunsInPriorityOrder() throws Exception {
+		this.executor = PriorityExecutorService.newWorkerPool(1);
+		checkPriorityOrder();
+	}
+
+	@Test
+	public void dispatcherRunsInPriorityOrder() throws Exception {
+		this.executor = PriorityExecutorService.newDispatcher(
+				Executors.defaultThreadFactory(), 1);
+		checkPriorityOrder();
+	}
+
+	@Test
+	public void agingOvertakesLaterTasks() throws Exception {
+		this.executor = PriorityExecutorService.newWorkerPool(1,
+				Executors.defaultThreadFactory(), 1, TimeUnit.MILLISECONDS);
+		List<Integer> order = Collections.synchronizedList(
+				new ArrayList<Integer>());
+		CountDownLatch gate = block(this.executor);
+
+		this.executor.execute(record(order, 1), 50);  // Ages 50ms
+		Thread.sleep(200);
+		this.executor.execute(record(order, 2), 0);
+		this.executor.execute(record(order, 3), 0);
+		gate.countDown();
+		this.executor.shutdown();
+		assertTrue(this.executor.awaitTermination(5, TimeUnit.SECONDS));
+
+		assertEquals(Arrays.asList(1, 2, 3), order);
+	}
+
+	@Test
+	public void submitReturnsResult() throws Exception {
+		this.executor = PriorityExecutorService.newWorkerPool(2);
+		Future<String> f = this.executor.submit(new Callable<String>() {
+			public String call() {
+				return "done";
+			}
+		}, 3);
+
+		assertEquals("done", f.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void shutdownRunsQueuedTasks() throws Exception {
+		this.executor = PriorityExecutorService.newWorkerPool(1);
+		final AtomicInteger ran = new AtomicInteger();
+		CountDownLatch gate = block(this.executor);
+		for (int i = 0; i < 10; i++) {
+			this.executor.execute(new Runnable() {
+				public void run() {
+					ran.incrementAndGet();
+				}
+			}, i);
+		}
+
+		this.executor.shutdown();
+		assertTrue(this.executor.isShutdown());
+		gate.countDown();
+		assertTrue(this.executor.awaitTermination(5, TimeUnit.SECONDS));
+		assertTrue(this.executor.isTerminated());
+		assertEquals(10, ran.get());
+	}
+
+	@Test
+	public void shutdownNowReturnsQueuedTasks() throws Exception {
+		this.executor = PriorityExecutorService.newWorkerPool(1);
+		block(this.executor);
+		Runnable low = new Runnable() { public void run() {} };
+		Runnable high = new Runnable() { public void run() {} };
+		this.executor.execute(low, 9);
+		this.executor.execute(high, 1);
+
+		List<Runnable> pending = this.executor.shutdownNow();
+		assertEquals(Arrays.asList(high, low), pending);
+		assertTrue(this.executor.awaitTermination(5, TimeUnit.SECONDS));
+	}
+
+	@Test(expected=RejectedExecutionException.class)
+	public void rejectsAfterShutdown() {
+		this.executor = PriorityExecutorService.newWorkerPool(1);
+		this.executor.shutdown();
+		this.executor.execute(new Runnable() { public void run() {} });
+	}
+
+	@Test
+	public void concurrentSubmittersWorkerPool() throws Exception {
+		testConcurrentSubmitters(PriorityExecutorService.newWorkerPool(4));
+	}
+
+	@Test
+	public void concurrentSubmittersDispatcher() throws Exception {
+		testConcurrentSubmitters(PriorityExecutorService.newDispatcher(
+				Executors.defaultThreadFactory(), 4));
+	}
+
+
+	/**
+	 * Checks that tasks submitted while the only running slot is busy run
+	 * in priority order, and in submission order within a priority.
+	 */
+	private void checkPriorityOrder() throws Exception {
+		List<Integer> order = Collections.synchronizedList(
+				new ArrayList<Integer>());
+		CountDownLatch gate = block(this.executor);
+
+		this.executor.execute(record(order, 4), 5);
+		this.executor.execute(record(order, 1), 1);
+		this.executor.execute(record(order, 3), 3);
+		this.executor.execute(record(order, 2), 1);
+		this.executor.execute(record(order, 5), 7);
+		gate.countDown();
+		this.executor.shutdown();
+		assertTrue(this.executor.awaitTermination(5, TimeUnit.SECONDS));
+
+		assertEquals(Arrays.asList(1, 2, 3, 4, 5), order);
+	}
+
+	/**
+	 * Checks that every task submitted by concurrent submitters runs
+	 * exactly once, before the executor terminates.
+	 */
+	private void testConcurrentSubmitters(final PriorityExecutorService exec)
+			throws Exception
+	{
+		this.executor = exec;
+		final AtomicInteger ran = new AtomicInteger();
+		final Runnable task = new Runnable() {
+			public void run() {
+				ran.incrementAndGet();
+			}
+		};
+		Thread[] submitters = new Thread[NUM_SUBMITTERS];
+		for (int s = 0; s < NUM_SUBMITTERS; s++) {
+			final int seed = s;
+			submitters[s] = new Thread() {
+				public void run() {
+					Random rand = new Random(seed);
+					for (int i = 0; i < NUM_TASKS; i++)
+						exec.execute(task, rand.nextInt(100));
+				}
+			};
+			submitters[s].start();
+		}
+		for (Thread t : submitters)
+			t.join();
+		exec.shutdown();
+
+		assertTrue(exec.awaitTermination(60, TimeUnit.SECONDS));
+		assertEquals(NUM_SUBMITTERS * NUM_TASKS, ran.get());
+	}
+
+	/**
+	 * Occupies the executor's only running slot until the returned latch
+	 * is counted down.
+	 */
+	private static CountDownLatch block(PriorityExecutorService exec)
+			throws InterruptedException
+	{
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch gate = new CountDownLatch(1);
+		exec.execute(new Runnable() {
+			public void run() {
+				started.countDown();
+				try {
+					gate.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, Integer.MIN_VALUE);
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		return gate;
+	}
+
+	private static Runnable record(final List<Integer> order, final int id) {
+		return new Runnable() {
+			public void run() {
+				order.add(id);
+			}
+		};
+	}
+}
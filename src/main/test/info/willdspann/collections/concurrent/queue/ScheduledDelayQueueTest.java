@@ -0,0 +1,237 @@
+package info.willdspann.collections.concurrent.queue;
+
+import java.util.*;  // List, ArrayList, Random
+import java.util.concurrent.*;  // Delayed, ExecutorService, Future, TimeUnit
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.*;  // Test, Before, After
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import info.willdspann.collections.concurrent.queue.ConcurrentHeapPriorityQueue.CountingMode;
+import info.willdspann.collections.concurrent.queue.ConcurrentHeapPriorityQueue.Handle;
+import info.willdspann.collections.concurrent.queue.ConcurrentHeapPriorityQueue.LockPolicy;
+
+import static org.junit.Assert.*;
+
+/**
+ * JUnit test for {@code ScheduledDelayQueue}.
+ *
+ * @author Will D. Spann
+ * @version 1.0
+ */
+@RunWith(JUnit4.class)
+public class ScheduledDelayQueueTest {
+	private static final int NUM_PAIRS = 4, NUM_ITEMS = 5000;
+	private ExecutorService pool;   // Init. by setup().
+
+
+	@Before
+	public void setup() {
+		this.pool = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void teardown() {
+		this.pool.shutdownNow();
+	}
+
+
+	@Test
+	public void pollIgnoresUnexpiredHead() {
+		ScheduledDelayQueue<Deadline> queue = new ScheduledDelayQueue<Deadline>();
+		Deadline later = Deadline.in(1, TimeUnit.HOURS, 1);
+		queue.offer(later);
+
+		assertNull(queue.poll());
+		assertSame(later, queue.peek());
+		assertEquals(1, queue.size());
+	}
+
+	@Test
+	public void pollReturnsExpiredInOrder() {
+		ScheduledDelayQueue<Deadline> queue = new ScheduledDelayQueue<Deadline>();
+		queue.offer(Deadline.in(-3, TimeUnit.SECONDS, 3));
+		queue.offer(Deadline.in(1, TimeUnit.HOURS, 4));
+		queue.offer(Deadline.in(-9, TimeUnit.SECONDS, 1));
+		queue.offer(Deadline.in(-5, TimeUnit.SECONDS, 2));
+
+		assertEquals(1, queue.poll().value);
+		assertEquals(2, queue.poll().value);
+		assertEquals(3, queue.poll().value);
+		assertNull(queue.poll());
+		assertEquals(1, queue.size());
+	}
+
+	@Test
+	public void takeWaitsForDeadline() throws Exception {
+		ScheduledDelayQueue<Deadline> queue = new ScheduledDelayQueue<Deadline>();
+		Deadline item = Deadline.in(50, TimeUnit.MILLISECONDS, 1);
+		queue.put(item);
+
+		assertSame(item, queue.take());
+		assertTrue(item.getDelay(TimeUnit.NANOSECONDS) <= 0L);
+	}
+
+	@Test
+	public void newHeadWakesLeader() throws Exception {
+		final ScheduledDelayQueue<Deadline> queue
+				= new ScheduledDelayQueue<Deadline>();
+		queue.put(Deadline.in(1, TimeUnit.HOURS, 1));
+		Future<Deadline> taken = this.pool.submit(new Callable<Deadline>() {
+			public Deadline call() throws Exception {
+				return queue.take();
+			}
+		});
+
+		Thread.sleep(50);  // Let the consumer wait for the first deadline
+		assertFalse(taken.isDone());
+		queue.put(Deadline.in(20, TimeUnit.MILLISECONDS, 2));
+		assertEquals(2, taken.get(5, TimeUnit.SECONDS).value);
+	}
+
+	@Test
+	public void rescheduledHeadWakesLeader() throws Exception {
+		final ScheduledDelayQueue<Deadline> queue
+				= new ScheduledDelayQueue<Deadline>();
+		queue.put(Deadline.in(1, TimeUnit.HOURS, 1));
+		Handle<Deadline> handle = queue.offerHandle(
+				Deadline.in(2, TimeUnit.HOURS, 2));
+		Future<Deadline> taken = this.pool.submit(new Callable<Deadline>() {
+			public Deadline call() throws Exception {
+				return queue.take();
+			}
+		});
+
+		Thread.sleep(50);
+		assertFalse(taken.isDone());
+		assertTrue(handle.updatePriority(Deadline.in(0, TimeUnit.SECONDS, 3)));
+		assertEquals(3, taken.get(5, TimeUnit.SECONDS).value);
+	}
+
+	@Test
+	public void cancelledItemIsNeverTaken() throws Exception {
+		ScheduledDelayQueue<Deadline> queue = new ScheduledDelayQueue<Deadline>();
+		Handle<Deadline> handle = queue.offerHandle(
+				Deadline.in(10, TimeUnit.MILLISECONDS, 1));
+		queue.put(Deadline.in(30, TimeUnit.MILLISECONDS, 2));
+
+		assertTrue(handle.cancel());
+		assertEquals(2, queue.take().value);
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void pollTimesOutBeforeDeadline() throws Exception {
+		ScheduledDelayQueue<Deadline> queue = new ScheduledDelayQueue<Deadline>();
+		queue.put(Deadline.in(1, TimeUnit.HOURS, 1));
+		long start = System.nanoTime();
+
+		assertNull(queue.poll(20, TimeUnit.MILLISECONDS));
+		assertTrue(System.nanoTime() - start
+				>= TimeUnit.MILLISECONDS.toNanos(20));
+		assertEquals(1, queue.size());
+	}
+
+	@Test
+	public void drainToOnlyExpired() {
+		ScheduledDelayQueue<Deadline> queue = new ScheduledDelayQueue<Deadline>();
+		for (int i = 0; i < 10; i++)
+			queue.offer(Deadline.in(-i, TimeUnit.SECONDS, i));
+		queue.offer(Deadline.in(1, TimeUnit.HOURS, 10));
+		List<Deadline> drained = new ArrayList<Deadline>();
+
+		assertEquals(10, queue.drainTo(drained));
+		assertEquals(9, drained.get(0).value);
+		assertEquals(0, drained.get(9).value);
+		assertEquals(1, queue.size());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void drainToSelf() {
+		ScheduledDelayQueue<Deadline> queue = new ScheduledDelayQueue<Deadline>();
+		queue.drainTo(queue);
+	}
+
+	@Test
+	public void producersConsumersLocked() throws Exception {
+		testProducersConsumers(CountingMode.LOCKED);
+	}
+
+	@Test
+	public void producersConsumersLockFree() throws Exception {
+		testProducersConsumers(CountingMode.LOCK_FREE);
+	}
+
+	/**
+	 * Checks that blocked consumers take every item put by concurrent
+	 * producers, w/ short, random delays, and never before its deadline.
+	 */
+	private void testProducersConsumers(CountingMode mode) throws Exception {
+		final ScheduledDelayQueue<Deadline> queue = new ScheduledDelayQueue<Deadline>(
+				16, mode, LockPolicy.SPIN_THEN_PARK);
+		final AtomicLong putSum = new AtomicLong(), takeSum = new AtomicLong();
+		final AtomicLong early = new AtomicLong();
+		List<Future<?>> results = new ArrayList<Future<?>>();
+
+		for (int p = 0; p < NUM_PAIRS; p++) {
+			results.add(this.pool.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					for (int i = 0; i < NUM_ITEMS; i++) {
+						Deadline item = queue.take();
+						if (item.getDelay(TimeUnit.NANOSECONDS) > 0L)
+							early.incrementAndGet();
+						takeSum.addAndGet(item.value);
+					}
+					return null;
+				}
+			}));
+		}
+		for (int p = 0; p < NUM_PAIRS; p++) {
+			final int seed = p;
+			results.add(this.pool.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					Random rand = new Random(seed);
+					for (int i = 0; i < NUM_ITEMS; i++) {
+						int value = rand.nextInt(1000);
+						putSum.addAndGet(value);
+						queue.put(Deadline.in(rand.nextInt(2000),
+								TimeUnit.MICROSECONDS, value));
+					}
+					return null;
+				}
+			}));
+		}
+		for (Future<?> f : results)
+			f.get(60, TimeUnit.SECONDS);
+
+		assertEquals(0L, early.get());
+		assertEquals(putSum.get(), takeSum.get());
+		assertTrue(queue.isEmpty());
+	}
+
+
+	/** A {@code Delayed} item which expires at a fixed {@code nanoTime}. */
+	private static final class Deadline implements Delayed {
+		final long at;
+		final int value;
+
+		private Deadline(long at, int value) {
+			this.at = at;
+			this.value = value;
+		}
+
+		static Deadline in(long delay, TimeUnit unit, int value) {
+			return new Deadline(System.nanoTime() + unit.toNanos(delay), value);
+		}
+
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(this.at - System.nanoTime(),
+					TimeUnit.NANOSECONDS);
+		}
+
+		public int compareTo(Delayed o) {
+			return Long.compare(this.at, ((Deadline) o).at);
+		}
+	}
+}
@@ -0,0 +1,200 @@
+package info.willdspann.collections.concurrent.queue;
+
+import java.util.*;  // List, ArrayList
+import java.util.concurrent.*;  // CountDownLatch, ExecutorService, Executors, Future, TimeUnit
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.*;  // Test, Before, After
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import info.willdspann.collections.concurrent.queue.ConcurrentHeapPriorityQueue.LockPolicy;
+
+import static org.junit.Assert.*;
+
+/**
+ * JUnit test for {@code SlotLocks}, under each of its lock policies:
+ * mutual exclusion, the unparking of waiting threads on release, and the
+ * wraparound of a {@code FAIR} lock word's 16-bit tickets.
+ *
+ * @author Will D. Spann
+ * @version 1.0
+ */
+@RunWith(JUnit4.class)
+public class SlotLocksTest {
+	private static final int NUM_THREADS = 4, NUM_SLOTS = 3,
+							 LOCKS_PER_THREAD = 20000;
+	private ExecutorService pool;   // Init. by setup().
+
+
+	@Before
+	public void setup() {
+		this.pool = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void teardown() {
+		this.pool.shutdownNow();
+	}
+
+
+	@Test
+	public void mutualExclusionFair() throws Exception {
+		testMutualExclusion(LockPolicy.FAIR);
+	}
+
+	@Test
+	public void mutualExclusionNonFair() throws Exception {
+		testMutualExclusion(LockPolicy.NON_FAIR);
+	}
+
+	@Test
+	public void mutualExclusionSpinThenPark() throws Exception {
+		testMutualExclusion(LockPolicy.SPIN_THEN_PARK);
+	}
+
+	@Test
+	public void unlockUnparksWaiterFair() throws Exception {
+		testUnlockUnparksWaiter(LockPolicy.FAIR);
+	}
+
+	@Test
+	public void unlockUnparksWaiterNonFair() throws Exception {
+		testUnlockUnparksWaiter(LockPolicy.NON_FAIR);
+	}
+
+	@Test
+	public void unlockUnparksWaiterSpinThenPark() throws Exception {
+		testUnlockUnparksWaiter(LockPolicy.SPIN_THEN_PARK);
+	}
+
+	@Test
+	public void tryLock() {
+		for (LockPolicy policy : LockPolicy.values()) {
+			SlotLocks locks = new SlotLocks(policy);
+			AtomicIntegerArray words = new AtomicIntegerArray(2);
+			assertTrue(locks.tryLock(words, 0));
+			assertTrue(locks.isLocked(words, 0));
+			assertFalse(locks.tryLock(words, 0));
+			assertFalse(locks.isLocked(words, 1));
+			locks.unlock(words, 0);
+			assertFalse(locks.isLocked(words, 0));
+		}
+	}
+
+	/**
+	 * Checks that a FAIR lock word keeps working as its ticket & serving
+	 * fields wrap from 0xFFFF to 0, w/o the ticket field's carry-out
+	 * disturbing anything.
+	 */
+	@Test
+	public void fairTicketsWrapAround() throws Exception {
+		final SlotLocks locks = new SlotLocks(LockPolicy.FAIR);
+		final AtomicIntegerArray words = new AtomicIntegerArray(1);
+		// Free, w/ the next ticket (& the one to be served) 0xFFFD
+		words.set(0, 0xFFFDFFFD);
+		for (int i = 0; i < 4; i++) {
+			assertFalse(locks.isLocked(words, 0));
+			locks.lock(words, 0);
+			assertTrue(locks.isLocked(words, 0));
+			assertFalse(locks.tryLock(words, 0));
+			locks.unlock(words, 0);
+		}
+		assertEquals(0x00010001, words.get(0));
+
+		// A waiter whose ticket is past the wrap
+		words.set(0, 0xFFFFFFFF);
+		locks.lock(words, 0);  // Takes ticket 0xFFFF
+		Future<?> waiter = this.pool.submit(new Callable<Void>() {
+			public Void call() {
+				locks.lock(words, 0);  // Takes ticket 0
+				locks.unlock(words, 0);
+				return null;
+			}
+		});
+		while (words.get(0) >>> 16 != 1)
+			Thread.yield();  // Until the waiter has its ticket
+		locks.unlock(words, 0);
+		waiter.get(10, TimeUnit.SECONDS);
+		assertFalse(locks.isLocked(words, 0));
+		assertEquals(0x00010001, words.get(0));
+	}
+
+
+	/**
+	 * Has several threads increment per-slot counters, that aren't
+	 * thread-safe, while holding the slots' locks, and checks that no
+	 * increment is lost, & that no two threads ever hold a lock at once.
+	 */
+	private void testMutualExclusion(LockPolicy policy) throws Exception {
+		final SlotLocks locks = new SlotLocks(policy);
+		final AtomicIntegerArray words = new AtomicIntegerArray(NUM_SLOTS);
+		final int[] counts = new int[NUM_SLOTS];
+		final int[] holders = new int[NUM_SLOTS];
+		List<Future<?>> results = new ArrayList<Future<?>>();
+		for (int t = 0; t < NUM_THREADS; t++) {
+			final int first = t;
+			results.add(this.pool.submit(new Callable<Void>() {
+				public Void call() {
+					for (int i = 0; i < LOCKS_PER_THREAD; i++) {
+						int slot = (first + i) % NUM_SLOTS;
+						locks.lock(words, slot);
+						try {
+							assertEquals(0, holders[slot]++);
+							counts[slot]++;
+							if (i % 64 == 0)
+								Thread.yield();  // Make others wait
+							holders[slot]--;
+						} finally {
+							locks.unlock(words, slot);
+						}
+					}
+					return null;
+				}
+			}));
+		}
+		for (Future<?> f : results)
+			f.get(60, TimeUnit.SECONDS);
+
+		locks.lock(words, 0);  // Makes the counts visible
+		int total = 0;
+		for (int slot = 0; slot < NUM_SLOTS; slot++) {
+			assertFalse(slot > 0 && locks.isLocked(words, slot));
+			total += counts[slot];
+		}
+		locks.unlock(words, 0);
+		assertEquals(NUM_THREADS * LOCKS_PER_THREAD, total);
+	}
+
+	/**
+	 * Checks that a thread parked waiting for a lock is unparked, &
+	 * acquires it, once the lock is released.
+	 */
+	private void testUnlockUnparksWaiter(LockPolicy policy) throws Exception {
+		final SlotLocks locks = new SlotLocks(policy);
+		final AtomicIntegerArray words = new AtomicIntegerArray(1);
+		final CountDownLatch acquired = new CountDownLatch(1);
+		locks.lock(words, 0);
+		Thread waiter = new Thread() {
+			public void run() {
+				locks.lock(words, 0);
+				acquired.countDown();
+				locks.unlock(words, 0);
+			}
+		};
+		waiter.start();
+		// Wait for the waiter to park on the lock
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (LockSupport.getBlocker(waiter) != locks) {
+			assertTrue("Waiter never parked", System.nanoTime() < deadline);
+			Thread.sleep(1);
+		}
+		assertEquals(1, acquired.getCount());
+
+		locks.unlock(words, 0);
+		assertTrue(acquired.await(10, TimeUnit.SECONDS));
+		waiter.join(10000);
+		assertFalse(locks.isLocked(words, 0));
+	}
+}
@@ -0,0 +1,124 @@
+package info.willdspann.collections.concurrent.queue;
+
+import java.util.*;  // List, ArrayList, Collections, Random
+import java.util.concurrent.*;  // ExecutorService, Executors, Future, TimeUnit
+
+import org.junit.*;  // Test, Before, After
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import info.willdspann.collections.concurrent.queue.ConcurrentHeapPriorityQueue.CountingMode;
+import info.willdspann.collections.concurrent.queue.ConcurrentHeapPriorityQueue.LockPolicy;
+
+import static org.junit.Assert.*;
+
+/**
+ * JUnit test for {@code TopKConcurrentHeap}.
+ *
+ * @author Will D. Spann
+ * @version 1.0
+ */
+@RunWith(JUnit4.class)
+public class TopKConcurrentHeapTest {
+	private static final int K = 100, NUM_THREADS = 4, NUM_ITEMS = 20000;
+	private ExecutorService pool;   // Init. by setup().
+
+
+	@Before
+	public void setup() {
+		this.pool = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void teardown() {
+		this.pool.shutdownNow();
+	}
+
+
+	@Test
+	public void keepsGreatest() {
+		TopKConcurrentHeap<Integer> topK = new TopKConcurrentHeap<Integer>(K);
+		List<Integer> items = new ArrayList<Integer>();
+		Random rand = new Random(1);
+		for (int i = 0; i < NUM_ITEMS; i++)
+			items.add(rand.nextInt(NUM_ITEMS));
+
+		topK.offerAll(items);
+		Collections.sort(items, Collections.reverseOrder());
+		assertEquals(K, topK.size());
+		assertEquals(items.subList(0, K), topK.toSortedList());
+	}
+
+	@Test
+	public void rejectsBelowThreshold() {
+		TopKConcurrentHeap<Integer> topK = new TopKConcurrentHeap<Integer>(3);
+		assertTrue(topK.offer(5));
+		assertTrue(topK.offer(7));
+		assertTrue(topK.offer(6));
+		assertNull(topK.getThreshold());
+		assertFalse(topK.offer(5));   // Equal to the least kept item
+
+		assertTrue(topK.offer(9));
+		assertEquals(Integer.valueOf(5), topK.getThreshold());
+		assertFalse(topK.offer(4));
+		assertEquals(Integer.valueOf(6), topK.peekLeast());
+		assertEquals(Arrays.asList(9, 7, 6), topK.toSortedList());
+	}
+
+	@Test
+	public void keepsGreatestByComparator() {
+		TopKConcurrentHeap<String> topK = new TopKConcurrentHeap<String>(2,
+				Collections.reverseOrder());
+		for (String s : Arrays.asList("d", "b", "e", "a", "c"))
+			topK.offer(s);
+
+		assertEquals(Arrays.asList("a", "b"), topK.toSortedList());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void zeroK() {
+		new TopKConcurrentHeap<Integer>(0);
+	}
+
+	@Test
+	public void concurrentOffersLocked() throws Exception {
+		testConcurrentOffers(CountingMode.LOCKED);
+	}
+
+	@Test
+	public void concurrentOffersLockFree() throws Exception {
+		testConcurrentOffers(CountingMode.LOCK_FREE);
+	}
+
+
+	/**
+	 * Checks that concurrent offers leave a full collector, which keeps
+	 * exactly the greatest items offered afterwards.
+	 */
+	private void testConcurrentOffers(CountingMode mode) throws Exception {
+		final TopKConcurrentHeap<Integer> topK = new TopKConcurrentHeap<Integer>(
+				K, null, mode, LockPolicy.SPIN_THEN_PARK);
+		List<Future<?>> results = new ArrayList<Future<?>>();
+		for (int t = 0; t < NUM_THREADS; t++) {
+			final int seed = t;
+			results.add(this.pool.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					Random rand = new Random(seed);
+					for (int i = 0; i < NUM_ITEMS; i++)
+						topK.offer(rand.nextInt(NUM_ITEMS));
+					return null;
+				}
+			}));
+		}
+		for (Future<?> f : results)
+			f.get(60, TimeUnit.SECONDS);
+
+		assertEquals(K, topK.size());
+		for (int i = 0; i < K; i++)
+			assertTrue(topK.offer(NUM_ITEMS + i));
+		List<Integer> expected = new ArrayList<Integer>();
+		for (int i = NUM_ITEMS + K - 1; i >= NUM_ITEMS; i--)
+			expected.add(i);
+		assertEquals(expected, topK.toSortedList());
+	}
+}
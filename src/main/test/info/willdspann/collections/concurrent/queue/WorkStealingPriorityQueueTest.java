@@ -0,0 +1,128 @@
+package info.willdspann.collections.concurrent.queue;
+
+import java.util.*;  // List, ArrayList, Collections, Random, Set
+import java.util.concurrent.*;  // ExecutorService, Executors, Future, TimeUnit
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.*;
+
+/**
+ * JUnit test for {@code WorkStealingPriorityQueue}'s local deletes,
+ * stealing & global minimum summary.
+ *
+ * @author Will D. Spann
+ * @version 1.0
+ */
+@RunWith(JUnit4.class)
+public class WorkStealingPriorityQueueTest {
+
+	@Test
+	public void singleWorkerIsStrictlyOrdered() {
+		WorkStealingPriorityQueue<Integer> queue =
+				new WorkStealingPriorityQueue<Integer>(1);
+		List<Integer> expected = new ArrayList<Integer>();
+		Random rand = new Random(22);
+		for (int i = 0; i < 1000; i++) {
+			int item = rand.nextInt(10000);
+			queue.offer(item);
+			expected.add(item);
+		}
+		Collections.sort(expected);
+		for (Integer item : expected)
+			assertEquals(item, queue.poll());
+		assertNull(queue.poll());
+	}
+
+	@Test
+	public void idleWorkerSteals() {
+		WorkStealingPriorityQueue<Integer> queue =
+				new WorkStealingPriorityQueue<Integer>(3);
+		for (int i = 9; i >= 0; i--)
+			queue.offer(0, i);
+		// Worker 2's heap is empty, so it steals worker 0's roots in order
+		for (int i = 0; i < 10; i++)
+			assertEquals(Integer.valueOf(i), queue.poll(2));
+		assertNull(queue.poll(1));
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void smallerGlobalMinIsStolen() {
+		WorkStealingPriorityQueue<Integer> queue =
+				new WorkStealingPriorityQueue<Integer>(2);
+		queue.offer(0, 100);
+		queue.offer(1, 5);
+		queue.offer(1, 50);
+		assertEquals(Integer.valueOf(5), queue.poll(0));
+		assertEquals(Integer.valueOf(50), queue.poll(0));
+		assertEquals(Integer.valueOf(100), queue.poll(0));
+		assertNull(queue.poll(0));
+	}
+
+	@Test
+	public void goodEnoughLocalMinIsKept() {
+		WorkStealingPriorityQueue<Integer> queue =
+				new WorkStealingPriorityQueue<Integer>(2,
+						Collections.reverseOrder());
+		queue.offer(0, 1);
+		queue.offer(0, 3);
+		queue.offer(1, 2);
+		assertEquals(Integer.valueOf(3), queue.poll(0));
+		// Worker 1's item is now the global minimum
+		assertEquals(Integer.valueOf(2), queue.poll(0));
+		assertEquals(Integer.valueOf(1), queue.poll(1));
+		assertNull(queue.peek());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void invalidWorker() {
+		new WorkStealingPriorityQueue<Integer>(2).offer(2, 1);
+	}
+
+	/**
+	 * Checks that no item is lost or returned twice, while every worker
+	 * both offers to, & polls, the queue, and so steals from the others.
+	 */
+	@Test
+	public void concurrentOffersAndPolls() throws Exception {
+		final int numThreads = 4, perThread = 20000;
+		final WorkStealingPriorityQueue<Integer> queue =
+				new WorkStealingPriorityQueue<Integer>(numThreads);
+		final Set<Integer> polled = ConcurrentHashMap.newKeySet();
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int t = 0; t < numThreads; t++) {
+				final int worker = t;
+				futures.add(pool.submit(new Callable<Void>() {
+					public Void call() {
+						Integer item;
+						// Odd workers only poll, so they must steal
+						for (int i = 0; i < perThread; i++) {
+							if (worker % 2 == 0)
+								queue.offer(worker, worker * perThread + i);
+							if (i % 2 == 1 || worker % 2 == 1) {
+								if ((item = queue.poll(worker)) != null)
+									assertTrue(polled.add(item));
+							}
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<?> future : futures)
+				future.get(60, TimeUnit.SECONDS);
+		} finally {
+			pool.shutdownNow();
+		}
+
+		Integer item;
+		while ((item = queue.poll()) != null)
+			assertTrue(polled.add(item));
+		assertEquals(numThreads / 2 * perThread, polled.size());
+		assertTrue(queue.isEmpty());
+	}
+}
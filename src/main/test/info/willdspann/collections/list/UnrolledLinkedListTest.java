@@ -0,0 +1,115 @@
+package info.willdspann.collections.list;
+
+import java.util.*;  // List, ArrayList, Arrays, Iterator
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * JUnit unit-testing class for testing {@code UnrolledLinkedList}'s
+ * inserts, including the cases fixed in v1.3.3: a list created by the
+ * no-arg constructor, an append to an empty list, and the split of a full
+ * last node.
+ *
+ * @author Will D. Spann
+ * @version 1.0
+ * @see UnrolledLinkedList UnrolledLinkedList
+ */
+public class UnrolledLinkedListTest {
+	/** UnrolledLinkedList's default (& so, maximum) items per node. */
+	private static final int NODE_SZ = 64;
+
+	@Test
+	public void noArgConstructorHoldsItems() {
+		UnrolledLinkedList<Integer> list = new UnrolledLinkedList<Integer>();
+		assertTrue(list.isEmpty());
+		list.add(7);
+		assertEquals(1L, list.size());
+		assertEquals(7, (int) list.get(0L));
+	}
+
+	@Test
+	public void copyConstructor() {
+		List<Integer> items = range(0, NODE_SZ * 3 + 5);
+		UnrolledLinkedList<Integer> list
+				= new UnrolledLinkedList<Integer>(items);
+		assertContents(items, list);
+	}
+
+	@Test
+	public void insertAtIndexZeroOfEmptyList() {
+		UnrolledLinkedList<Integer> list = new UnrolledLinkedList<Integer>();
+		list.add(0L, 1);
+		list.add(0L, 0);
+		assertContents(Arrays.asList(0, 1), list);
+
+		// Again, once the list has been emptied
+		list.clear();
+		list.add(0L, 5);
+		assertContents(Arrays.asList(5), list);
+	}
+
+	@Test
+	public void appendsFillNewNodes() {
+		List<Integer> items = range(0, NODE_SZ * 2 + 1);
+		UnrolledLinkedList<Integer> list = new UnrolledLinkedList<Integer>();
+		for (int item : items)
+			list.add(item);
+		assertContents(items, list);
+	}
+
+	@Test
+	public void insertIntoFullLastNodeSplitsIt() {
+		List<Integer> expected = range(0, NODE_SZ);
+		UnrolledLinkedList<Integer> list
+				= new UnrolledLinkedList<Integer>(expected);
+
+		// The only (& so last) node is full, so it's split
+		list.add(10L, -1);
+		expected.add(10, -1);
+		assertContents(expected, list);
+
+		// Split a full last node that follows another node
+		for (int i = NODE_SZ; expected.size() < NODE_SZ * 2 + 1; i++) {
+			list.add(i);
+			expected.add(i);
+		}
+		long index = list.size() - 3L;
+		list.add(index, -2);
+		expected.add((int) index, -2);
+		assertContents(expected, list);
+		list.add(list.size(), -3);
+		expected.add(-3);
+		assertContents(expected, list);
+	}
+
+
+	private static List<Integer> range(int from, int to) {
+		List<Integer> items = new ArrayList<Integer>(to - from);
+		for (int i = from; i < to; i++)
+			items.add(i);
+		return items;
+	}
+
+	/**
+	 * Asserts that the list holds the expected items, when read by index,
+	 * by its iterator, & by its descending iterator (which follows the
+	 * nodes' 'prev' links).
+	 */
+	private static void assertContents(List<Integer> expected,
+			UnrolledLinkedList<Integer> list)
+	{
+		assertEquals(expected.size(), list.size());
+		for (int i = 0; i < expected.size(); i++)
+			assertEquals(expected.get(i), list.get(i));
+		Iterator<Integer> it = list.iterator();
+		for (Integer item : expected)
+			assertEquals(item, it.next());
+		assertFalse(it.hasNext());
+		Iterator<Integer> dit = list.descendingIterator();
+		for (int i = expected.size() - 1; i >= 0; i--)
+			assertEquals(expected.get(i), dit.next());
+		assertFalse(dit.hasNext());
+	}
+}
@@ -0,0 +1,353 @@
+package info.willdspann.collections.utils;
+
+import java.util.*;  // List, Arrays, Collections, Set, Iterator
+import java.util.concurrent.*;  // ExecutorService, Executors, CountDownLatch, Future, TimeUnit, TimeoutException
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * JUnit unit-testing class for testing
+ * {@code AtomicHeapBitReversedCounter}.
+ *
+ * @author Will D. Spann
+ * @version 1.3
+ *
+ * @see AtomicHeapBitReversedCounter
+ * 		AtomicHeapBitReversedCounter
+ */
+public class AtomicHeapBitReversedCounterTest {
+	private static final int TEST_DATA_SZ = 15;
+	private static final int NONREV_VAL = 14;
+	private static final int REV_VAL;
+	private static final int NUM_THREADS = 8, NUM_INCREMENTS = 10000;
+	private static final List<Integer> incrValues = Arrays.asList(
+			0x00000000, 0x00000001, 0x00000002, 0x00000003, 0x00000005,
+			0x00000004, 0x00000006, 0x00000007, 0x0000000B, 0x00000009,
+			0x0000000D, 0x00000008, 0x0000000C, 0x0000000A, 0x0000000E
+		);
+	private static final List<Integer> decrValues;
+
+	// Init. static constants
+	static {
+		// Set up 'decrValues' as a List having the reverse of 'incrValues':
+		decrValues = new ArrayList<Integer>(incrValues);
+		Collections.reverse(decrValues);
+
+		// Set REV_VAL to the last 'incrValues' value
+		REV_VAL = incrValues.get(TEST_DATA_SZ - 1);
+	}
+
+
+	@Test
+	public void factoryNewInstance() {
+		AtomicHeapBitReversedCounter count = AtomicHeapBitReversedCounter
+				.newInstance();
+
+		assertNotNull(count);
+		assertEquals(0, count.get());
+		assertEquals(0, count.getNonreversedCount());
+	}
+
+	@Test
+	public void factoryNewAtRevCount() {
+		AtomicHeapBitReversedCounter count = AtomicHeapBitReversedCounter
+				.newAtReversedCount(REV_VAL);
+
+		assertNotNull(count);
+		assertEquals(REV_VAL, count.get());
+		assertEquals(NONREV_VAL, count.getNonreversedCount());
+	}
+
+	@Test
+	public void factoryNewAtRevCountBelowZero() {
+		assertNull(AtomicHeapBitReversedCounter.newAtReversedCount(-1));
+	}
+
+	@Test
+	public void factoryNewAtNonrevCount() {
+		AtomicHeapBitReversedCounter count = AtomicHeapBitReversedCounter
+				.newAtNonreversedCount(NONREV_VAL);
+
+		assertNotNull(count);
+		assertEquals(NONREV_VAL, count.getNonreversedCount());
+		assertEquals(REV_VAL, count.get());
+	}
+
+	@Test
+	public void getAndIncrement() {
+		AtomicHeapBitReversedCounter count = AtomicHeapBitReversedCounter
+				.newInstance();
+		for (int exp : incrValues)
+			assertEquals(exp, count.getAndIncrement());
+	}
+
+	@Test
+	public void tryGetAndIncrementStopsAtLimit() {
+		AtomicHeapBitReversedCounter count = AtomicHeapBitReversedCounter
+				.newInstance();
+		int limit = 5;
+		for (int i = 0; i < limit; i++)
+			assertEquals(incrValues.get(i).intValue(),
+					count.tryGetAndIncrement(limit));
+		assertEquals(-1, count.tryGetAndIncrement(limit));
+		assertEquals(limit, count.getNonreversedCount());
+	}
+
+    @Test
+    public void incrementAndGet() {
+    	AtomicHeapBitReversedCounter count = AtomicHeapBitReversedCounter
+    			.newInstance();
+    	Iterator<Integer> it = incrValues.iterator();
+    	it.next();
+    	while (it.hasNext())
+    		assertEquals(it.next().intValue(), count.incrementAndGet());
+    }
+
+    @Test
+    public void getAndDecrement() {
+    	AtomicHeapBitReversedCounter count = AtomicHeapBitReversedCounter
+				.newAtNonreversedCount(TEST_DATA_SZ - 1);
+
+    	int j = TEST_DATA_SZ - 1;
+    	for (Iterator<Integer> it = decrValues.iterator(); j > 0; j--)
+    		assertEquals(it.next().intValue(), count.getAndDecrement());
+    	assertEquals(0, count.get());
+    }
+
+    @Test
+    public void decrementAndGet() {
+    	AtomicHeapBitReversedCounter count = AtomicHeapBitReversedCounter
+    			.newAtNonreversedCount(TEST_DATA_SZ);
+
+    	for (int exp : decrValues)
+    		assertEquals(exp, count.decrementAndGet());
+    }
+
+    @Test
+    public void matchesHeapBitReversedCounter() {
+    	AtomicHeapBitReversedCounter atomic = AtomicHeapBitReversedCounter
+    			.newInstance();
+    	HeapBitReversedCounter count = HeapBitReversedCounter.newInstance();
+    	for (int i = 0; i < 100000; i++)
+    		assertEquals(count.getAndIncrement(), atomic.getAndIncrement());
+    	for (int i = 0; i < 100000; i++)
+    		assertEquals(count.decrementAndGet(), atomic.decrementAndGet());
+    }
+
+    @Test
+    public void getAndAddNonreversed() {
+    	AtomicHeapBitReversedCounter count = AtomicHeapBitReversedCounter
+    			.newAtNonreversedCount(3);
+
+    	assertEquals(3, count.getAndAddNonreversed(NONREV_VAL - 3));
+    	assertEquals(NONREV_VAL, count.getNonreversedCount());
+    	assertEquals(REV_VAL, count.get());
+    	for (int i = 0; i < TEST_DATA_SZ; i++) {
+    		assertEquals(incrValues.get(i).intValue(),
+    				AtomicHeapBitReversedCounter.toReversed(i));
+    	}
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void addNonreversedAboveMax() {
+    	AtomicHeapBitReversedCounter.newAtNonreversedCount(
+    			AtomicHeapBitReversedCounter.MAX_VALUE - 1)
+    			.getAndAddNonreversed(2);
+    }
+
+    @Test
+    public void getAndSubtractAtMostNonreversed() {
+    	AtomicHeapBitReversedCounter count = AtomicHeapBitReversedCounter
+    			.newAtNonreversedCount(NONREV_VAL);
+
+    	assertEquals(NONREV_VAL, count.getAndSubtractAtMostNonreversed(4));
+    	assertEquals(NONREV_VAL - 4, count.getNonreversedCount());
+    	// Subtracting more than the count stops at 0
+    	assertEquals(NONREV_VAL - 4,
+    			count.getAndSubtractAtMostNonreversed(TEST_DATA_SZ));
+    	assertEquals(0, count.get());
+    	assertEquals(0, count.getAndSubtractAtMostNonreversed(1));
+    }
+
+    @Test
+    public void set() {
+    	AtomicHeapBitReversedCounter count = AtomicHeapBitReversedCounter
+				.newInstance();
+
+    	count.set(REV_VAL);
+
+    	assertEquals(REV_VAL, count.get());
+    	assertEquals(NONREV_VAL, count.getNonreversedCount());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void setBelowZero() {
+    	AtomicHeapBitReversedCounter.newInstance().set(-1);
+    }
+
+    @Test
+    public void setNonreversed() {
+    	AtomicHeapBitReversedCounter count = AtomicHeapBitReversedCounter
+				.newInstance();
+
+    	count.setNonreversed(NONREV_VAL);
+
+    	assertEquals(NONREV_VAL, count.getNonreversedCount());
+    	assertEquals(REV_VAL, count.get());
+    }
+
+    @Test
+    public void reset() {
+    	AtomicHeapBitReversedCounter count = AtomicHeapBitReversedCounter
+    			.newInstance();
+    	count.incrementAndGet();
+    	count.reset();
+
+    	assertEquals(0, count.get());
+    	assertEquals(0, count.getNonreversedCount());
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void decrementBelowZero() {
+    	AtomicHeapBitReversedCounter.newInstance().decrementAndGet();
+    }
+
+    @Test
+    public void tryDecrementBelowZero() {
+    	AtomicHeapBitReversedCounter count = AtomicHeapBitReversedCounter
+    			.newInstance();
+
+    	assertEquals(-1, count.tryDecrementAndGet());
+    	assertEquals(0, count.getNonreversedCount());
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void incrementAboveMax() {
+    	AtomicHeapBitReversedCounter count = AtomicHeapBitReversedCounter
+    			.newAtNonreversedCount(AtomicHeapBitReversedCounter.MAX_VALUE);
+
+    	assertEquals(AtomicHeapBitReversedCounter.MAX_VALUE, count.get());
+    	count.incrementAndGet();
+    }
+
+    @Test
+    public void reserveAndComplete() {
+    	AtomicHeapBitReversedCounter count = AtomicHeapBitReversedCounter
+    			.newInstance();
+
+    	for (int exp : incrValues) {
+    		assertEquals(exp, count.tryReserveIncrement(TEST_DATA_SZ));
+    		count.completeIncrement();
+    	}
+    	assertEquals(-1, count.tryReserveIncrement(TEST_DATA_SZ));
+    	for (int exp : decrValues) {
+    		assertEquals(exp, count.tryReserveDecrement());
+    		count.completeDecrement();
+    	}
+    	assertEquals(-1, count.tryReserveDecrement());
+
+    	assertEquals(0, count.reserveAddNonreversed(NONREV_VAL));
+    	count.completeIncrement();
+    	assertEquals(NONREV_VAL, count.reserveSubtractAtMostNonreversed(
+    			TEST_DATA_SZ));
+    	count.completeDecrement();
+    	assertEquals(0, count.getNonreversedCount());
+    	assertEquals(0, count.reserveSubtractAtMostNonreversed(1));
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void completeWithoutReservation() {
+    	AtomicHeapBitReversedCounter count = AtomicHeapBitReversedCounter
+    			.newInstance();
+    	count.tryReserveIncrement(1);
+    	count.completeDecrement();
+    }
+
+    /**
+     * Checks that a decrement isn't granted while an increment is pending
+     * (so it can't reserve a leaf that hasn't yet been filled), & that an
+     * increment that arrives while the decrement waits goes after it.
+     */
+    @Test
+    public void reservationsWaitForOppositeDirection() throws Exception {
+    	final AtomicHeapBitReversedCounter count
+    			= AtomicHeapBitReversedCounter.newInstance();
+    	ExecutorService pool = Executors.newFixedThreadPool(2);
+    	try {
+    		assertEquals(0, count.tryReserveIncrement(TEST_DATA_SZ));
+    		Future<Integer> decr = pool.submit(new Callable<Integer>() {
+    			public Integer call() {
+    				return count.tryReserveDecrement();
+    			}
+    		});
+    		assertPending(decr);
+    		// The waiting decrement keeps further increments out
+    		Future<Integer> incr = pool.submit(new Callable<Integer>() {
+    			public Integer call() {
+    				return count.tryReserveIncrement(TEST_DATA_SZ);
+    			}
+    		});
+    		assertPending(incr);
+    		assertPending(decr);
+
+    		count.completeIncrement();
+    		assertEquals(0, decr.get(10, TimeUnit.SECONDS).intValue());
+    		assertPending(incr);
+    		count.completeDecrement();
+    		assertEquals(0, incr.get(10, TimeUnit.SECONDS).intValue());
+    		count.completeIncrement();
+    		assertEquals(1, count.getNonreversedCount());
+    	} finally {
+    		pool.shutdownNow();
+    	}
+    }
+
+    /**
+     * Checks that concurrent increments each reserve a distinct position,
+     * and that together they cover the same positions as sequential
+     * increments.
+     */
+    @Test
+    public void concurrentGetAndIncrement() throws Exception {
+    	final AtomicHeapBitReversedCounter count
+    			= AtomicHeapBitReversedCounter.newInstance();
+    	final Set<Integer> seen = ConcurrentHashMap.newKeySet();
+    	final CountDownLatch start = new CountDownLatch(1);
+    	ExecutorService pool = Executors.newFixedThreadPool(NUM_THREADS);
+    	try {
+    		List<Future<?>> results = new ArrayList<Future<?>>();
+    		for (int t = 0; t < NUM_THREADS; t++) {
+    			results.add(pool.submit(new Callable<Void>() {
+    				public Void call() throws Exception {
+    					start.await();
+    					for (int i = 0; i < NUM_INCREMENTS; i++)
+    						assertTrue(seen.add(count.getAndIncrement()));
+    					return null;
+    				}
+    			}));
+    		}
+    		start.countDown();
+    		for (Future<?> f : results)
+    			f.get();
+    	} finally {
+    		pool.shutdown();
+    	}
+
+    	int total = NUM_THREADS * NUM_INCREMENTS;
+    	assertEquals(total, count.getNonreversedCount());
+    	HeapBitReversedCounter expected = HeapBitReversedCounter.newInstance();
+    	for (int i = 0; i < total; i++)
+    		assertTrue(seen.contains(expected.getAndIncrement()));
+    }
+
+    private static void assertPending(Future<?> f) throws Exception {
+    	try {
+    		f.get(100, TimeUnit.MILLISECONDS);
+    		fail("Reservation was granted");
+    	} catch (TimeoutException e) {
+    		// Expected
+    	}
+    }
+}
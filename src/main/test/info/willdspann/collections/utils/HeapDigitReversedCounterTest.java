@@ -0,0 +1,108 @@
+package info.willdspann.collections.utils;
+
+import java.util.*;  // List, Arrays
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * JUnit unit-testing class for testing {@code HeapDigitReversedCounter}.
+ *
+ * @author Will D. Spann
+ * @version 1.0
+ *
+ * @see HeapDigitReversedCounter
+ * 		HeapDigitReversedCounter
+ */
+public class HeapDigitReversedCounterTest {
+	private static final int TEST_DATA_SZ = 15;
+	/** Heap positions of the first 13 inserts into a 4-ary heap. */
+	private static final List<Integer> quaternaryValues = Arrays.asList(
+			0, 1, 2, 3, 4, 5, 9, 13, 17, 6, 10, 14, 18
+		);
+
+
+	@Test
+	public void binaryMatchesBitReversed() {
+		HeapDigitReversedCounter count = HeapDigitReversedCounter
+				.newInstance(2);
+		HeapBitReversedCounter bitCount = HeapBitReversedCounter.newInstance();
+
+		for (int i = 0; i < TEST_DATA_SZ * 10; i++) {
+			assertEquals(bitCount.get(), count.get());
+			assertEquals(bitCount.getAndIncrement(), count.getAndIncrement());
+		}
+	}
+
+	@Test
+	public void quaternaryIncrement() {
+		HeapDigitReversedCounter count = HeapDigitReversedCounter
+				.newInstance(4);
+
+		for (int value : quaternaryValues)
+			assertEquals(value, count.getAndIncrement());
+	}
+
+	@Test
+	public void incrementDecrementRoundTrip() {
+		for (int arity = 2; arity <= HeapDigitReversedCounter.MAX_ARITY;
+				arity <<= 1)
+		{
+			HeapDigitReversedCounter count = HeapDigitReversedCounter
+					.newInstance(arity);
+			int n = 1000;
+			int[] positions = new int[n];
+			for (int i = 0; i < n; i++)
+				positions[i] = count.getAndIncrement();
+			for (int i = n - 1; i >= 0; i--)
+				assertEquals(positions[i], count.decrementAndGet());
+			assertEquals(0, count.getNonreversedCount());
+		}
+	}
+
+	@Test
+	public void positionsAreDistinctPerRow() {
+		// Each row's positions are a permutation of the row
+		HeapDigitReversedCounter count = HeapDigitReversedCounter
+				.newInstance(8);
+		boolean[] seen = new boolean[1 + 8 + 64 + 512];
+		for (int i = 0; i < seen.length; i++) {
+			int pos = count.getAndIncrement();
+			assertFalse(seen[pos]);
+			seen[pos] = true;
+		}
+	}
+
+	@Test
+	public void staticConversionsMatchCounter() {
+		HeapDigitReversedCounter count = HeapDigitReversedCounter
+				.newInstance(4);
+		for (int i = 0; i < 500; i++) {
+			int pos = count.getAndIncrement();
+			assertEquals(pos, HeapDigitReversedCounter.toReversed(i, 4));
+			assertEquals(i, HeapDigitReversedCounter.toNonreversed(pos, 4));
+		}
+	}
+
+	@Test
+	public void factoryNewAtNonrevCount() {
+		HeapDigitReversedCounter count = HeapDigitReversedCounter
+				.newAtNonreversedCount(4, 9);
+
+		assertEquals(9, count.getNonreversedCount());
+		assertEquals(6, count.get());
+		assertEquals(6, count.getAndIncrement());
+		assertEquals(10, count.get());
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void decrementBelowZero() {
+		HeapDigitReversedCounter.newInstance(4).getAndDecrement();
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void invalidArity() {
+		HeapDigitReversedCounter.newInstance(3);
+	}
+}